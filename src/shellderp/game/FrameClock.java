@@ -0,0 +1,40 @@
+package shellderp.game;
+
+/**
+ * The time at the start of the current frame of a loop, see GameLoop.getFrameClock() and
+ * ServerLoop.getFrameClock(). Reading it is free, unlike Time.nowNanos(), and gives the same time to
+ * everything in the frame.
+ * <p>
+ * Each loop has its own, so e.g. a client's GameLoop and a listen server's ServerLoop in one JVM don't
+ * overwrite each other's frames. Pass the clock of the loop that steps your code to it.
+ */
+public final class FrameClock {
+  /**
+   * 0 while the loop doesn't run.
+   */
+  private volatile long frameNanos = 0;
+
+  /**
+   * @return The time the current frame started. Outside of the running loop (e.g. before it starts, or in a
+   * test stepping by hand) this is the current time instead.
+   */
+  public long frameNanos() {
+    final long frame = frameNanos;
+    return frame != 0 ? frame : Time.nowNanos();
+  }
+
+  /**
+   * Called by the loop at the start of every frame.
+   */
+  void startFrame(long nowNanos) {
+    // 0 means no frame, and nanoTime can be anything, so nudge the rare exact 0.
+    frameNanos = nowNanos != 0 ? nowNanos : 1;
+  }
+
+  /**
+   * Called by the loop when it exits, so frameNanos() doesn't return a stale time.
+   */
+  void stop() {
+    frameNanos = 0;
+  }
+}
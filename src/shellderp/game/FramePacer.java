@@ -0,0 +1,205 @@
+package shellderp.game;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Waits for the start of each frame with sub-millisecond precision.
+ * <p>
+ * Frames are scheduled against absolute deadlines, start + n * frameNanos, rather than by sleeping for the
+ * frame time minus the time spent, so rounding and oversleeping in one frame are made up in the next
+ * instead of adding up. Sleeping overshoots by up to a millisecond depending on the OS, so the pacer parks
+ * until spinNanos before the deadline and spins for the rest. spinNanos tracks the overshoot it measures,
+ * so the CPU only spins for as long as the platform needs.
+ * <p>
+ * If a frame runs more than a whole frame late, the schedule restarts from now instead of running frames
+ * back to back to catch up.
+ * <p>
+ * Keeps the mean and variance of the achieved frame times, see getFrameTimeStdDevNanos(). Not thread-safe.
+ */
+public final class FramePacer {
+  private static final long MIN_SPIN_NANOS = 50_000;
+  private static final long MAX_SPIN_NANOS = 2_000_000;
+
+  private final long frameNanos;
+
+  /**
+   * System.nanoTime() and LockSupport.parkNanos(), unless a test replaces them.
+   */
+  private final LongSupplier clock;
+  private final LongConsumer parker;
+
+  private long deadline;
+  private long lastFrameStart;
+  private boolean started = false;
+
+  /**
+   * Smoothed overshoot of parkNanos(), and the stretch before a deadline that is spun through.
+   */
+  private long overshootNanos = MIN_SPIN_NANOS;
+  private long spinNanos = 2 * MIN_SPIN_NANOS;
+
+  // Frame time statistics, with Welford's online algorithm.
+  private long frames = 0;
+  private long lateFrames = 0;
+  private double meanNanos = 0;
+  private double squaredDeviations = 0;
+
+  public FramePacer(double targetFps) {
+    this(targetFps, System::nanoTime, LockSupport::parkNanos);
+  }
+
+  /**
+   * @param clock  Returns the current time in nanoseconds, like System.nanoTime().
+   * @param parker Sleeps for about the given nanoseconds, like LockSupport.parkNanos().
+   */
+  FramePacer(double targetFps, LongSupplier clock, LongConsumer parker) {
+    if (!(targetFps > 0)) {
+      throw new IllegalArgumentException("targetFps must be > 0");
+    }
+    this.frameNanos = Math.round(1_000_000_000 / targetFps);
+    this.clock = clock;
+    this.parker = parker;
+  }
+
+  public long getFrameNanos() {
+    return frameNanos;
+  }
+
+  /**
+   * Start the schedule, with the first frame starting now. Called by the first waitForNextFrame() if needed.
+   */
+  public void start() {
+    lastFrameStart = clock.getAsLong();
+    deadline = lastFrameStart + frameNanos;
+    started = true;
+  }
+
+  /**
+   * Wait until the next frame should start.
+   *
+   * @return How late the current frame finished, in nanoseconds, 0 if it finished in time.
+   */
+  public long waitForNextFrame() throws InterruptedException {
+    return waitForNextFrame(null);
+  }
+
+  /**
+   * Wait until the next frame should start, calling poll over and over instead of sleeping, e.g. to receive
+   * packets with no handoff from another thread (see ServerLoop). This keeps a core busy.
+   *
+   * @param poll Called until the deadline; null to sleep and spin as usual.
+   * @return How late the current frame finished, in nanoseconds, 0 if it finished in time.
+   */
+  public long waitForNextFrame(Runnable poll) throws InterruptedException {
+    if (!started) {
+      start();
+    }
+
+    final long finished = clock.getAsLong();
+    final long late = Math.max(0, finished - deadline);
+    long now = finished;
+    if (late > 0) {
+      lateFrames++;
+    } else if (poll != null) {
+      now = pollUntilDeadline(poll);
+    } else {
+      now = awaitDeadline(now);
+    }
+
+    record(now - lastFrameStart);
+    lastFrameStart = now;
+    if (late > frameNanos) {
+      deadline = now + frameNanos;
+    } else {
+      deadline += frameNanos;
+    }
+    return late;
+  }
+
+  private long awaitDeadline(long now) throws InterruptedException {
+    final long sleepNanos = deadline - now - spinNanos;
+    if (sleepNanos > 0) {
+      parker.accept(sleepNanos);
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      now = clock.getAsLong();
+      adjustSpin(now - (deadline - spinNanos));
+    }
+
+    while (now - deadline < 0) {
+      Thread.onSpinWait();
+      now = clock.getAsLong();
+    }
+    return now;
+  }
+
+  private long pollUntilDeadline(Runnable poll) throws InterruptedException {
+    long now;
+    do {
+      poll.run();
+      Thread.onSpinWait();
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      now = clock.getAsLong();
+    } while (now - deadline < 0);
+    return now;
+  }
+
+  /**
+   * Spin for twice the smoothed overshoot, so most wakeups still land before the deadline.
+   */
+  private void adjustSpin(long overshoot) {
+    overshootNanos += (Math.max(0, overshoot) - overshootNanos) / 8;
+    spinNanos = Math.max(MIN_SPIN_NANOS, Math.min(MAX_SPIN_NANOS, 2 * overshootNanos));
+  }
+
+  private void record(long frameTimeNanos) {
+    frames++;
+    final double delta = frameTimeNanos - meanNanos;
+    meanNanos += delta / frames;
+    squaredDeviations += delta * (frameTimeNanos - meanNanos);
+  }
+
+  /**
+   * Clear the frame time statistics, e.g. after loading, so they only cover the frames that follow.
+   */
+  public void resetStats() {
+    frames = 0;
+    lateFrames = 0;
+    meanNanos = 0;
+    squaredDeviations = 0;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return The frames that finished after their deadline, so didn't wait at all.
+   */
+  public long getLateFrames() {
+    return lateFrames;
+  }
+
+  public double getMeanFrameNanos() {
+    return meanNanos;
+  }
+
+  public double getFrameTimeVarianceNanos2() {
+    return frames > 1 ? squaredDeviations / (frames - 1) : 0;
+  }
+
+  public double getFrameTimeStdDevNanos() {
+    return Math.sqrt(getFrameTimeVarianceNanos2());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("FramePacer{target=%.3f ms, frames=%d, mean=%.3f ms, stddev=%.3f ms, late=%d}",
+        frameNanos / 1e6, frames, meanNanos / 1e6, getFrameTimeStdDevNanos() / 1e6, lateFrames);
+  }
+}
@@ -0,0 +1,125 @@
+package shellderp.game;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records how long each frame and each section of a frame (e.g. each GameStep of a GameLoop) take, into
+ * SlidingHistograms, and keeps the durations of the last HISTORY_FRAMES frames for a frame time graph (see
+ * DebugOverlay.setProfiler()). Use it to find which step blows the frame budget.
+ * <p>
+ * Recording never allocates. Not thread-safe: record and read from the loop thread, e.g. in a render step.
+ */
+public final class FrameProfiler {
+  public static final int HISTORY_FRAMES = 240;
+
+  private static final long WINDOW_MS = 10_000;
+  private static final int WINDOW_SLOTS = 10;
+
+  public static final class Section {
+    private final String name;
+    private final SlidingHistogram histogram = new SlidingHistogram(WINDOW_MS, WINDOW_SLOTS);
+
+    private Section(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return The durations of the section over the last 10 seconds.
+     */
+    public SlidingHistogram getHistogram() {
+      return histogram;
+    }
+
+    public void record(long nanos, long nowNanos) {
+      histogram.record(nanos, nowNanos);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: p50 %.2f ms, p99 %.2f ms, max %.2f ms", name,
+          histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+          histogram.getMaxNanos() / 1e6);
+    }
+  }
+
+  private final long frameBudgetNanos;
+  private final Section frame = new Section("frame");
+  private final List<Section> sections = new ArrayList<>();
+
+  private final long[] history = new long[HISTORY_FRAMES];
+  private int historyNext = 0;
+  private int historySize = 0;
+
+  /**
+   * @param frameBudgetNanos The time a frame should take, marked on the frame time graph.
+   */
+  public FrameProfiler(long frameBudgetNanos) {
+    this.frameBudgetNanos = frameBudgetNanos;
+  }
+
+  public long getFrameBudgetNanos() {
+    return frameBudgetNanos;
+  }
+
+  /**
+   * Add a section to record, e.g. for a subsystem that isn't a GameStep.
+   */
+  public Section addSection(String name) {
+    final Section section = new Section(name);
+    sections.add(section);
+    return section;
+  }
+
+  public List<Section> getSections() {
+    return Collections.unmodifiableList(sections);
+  }
+
+  /**
+   * @return The whole frames, from the start of the frame until it waits for the next.
+   */
+  public Section getFrame() {
+    return frame;
+  }
+
+  public void endFrame(long frameNanos, long nowNanos) {
+    frame.record(frameNanos, nowNanos);
+    history[historyNext] = frameNanos;
+    historyNext = (historyNext + 1) % HISTORY_FRAMES;
+    historySize = Math.min(HISTORY_FRAMES, historySize + 1);
+  }
+
+  /**
+   * @return The number of frames in the history, up to HISTORY_FRAMES.
+   */
+  public int getHistorySize() {
+    return historySize;
+  }
+
+  /**
+   * @param framesAgo 0 for the last frame, up to getHistorySize() - 1.
+   */
+  public long getHistoryNanos(int framesAgo) {
+    if (framesAgo < 0 || framesAgo >= historySize) {
+      throw new IndexOutOfBoundsException("framesAgo " + framesAgo + " of " + historySize);
+    }
+    return history[(historyNext - 1 - framesAgo + HISTORY_FRAMES) % HISTORY_FRAMES];
+  }
+
+  /**
+   * @return One line for the frame and one for each section, with their p50, p99 and max.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder(frame.toString());
+    for (Section section : sections) {
+      builder.append('\n').append(section);
+    }
+    return builder.toString();
+  }
+}
@@ -2,53 +2,213 @@ package shellderp.game;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Level;
 
 /**
  * Created by: Mike
  */
 public final class GameLoop implements Loggable {
-  private final int targetSleepMs;
+  /**
+   * How often the frame time statistics and the profile are logged, at FINE.
+   */
+  private static final int STATS_INTERVAL_FRAMES = 1000;
+  /**
+   * How often the game time dropped by loopFixedStep() is logged, at most.
+   */
+  private static final long DROP_LOG_INTERVAL_NANOS = 1_000_000_000L;
+
+  private final FramePacer pacer;
+  private final FrameProfiler profiler;
+  private final FrameClock frameClock = new FrameClock();
+  private final Scheduler scheduler = new Scheduler(1);
 
   private final List<GameStep> gameSteps = new ArrayList<>();
+  private final List<FrameProfiler.Section> gameStepSections = new ArrayList<>();
+  private final List<RenderStep> renderSteps = new ArrayList<>();
+  private final List<FrameProfiler.Section> renderStepSections = new ArrayList<>();
+
+  public GameLoop(double targetFps) {
+    this.pacer = new FramePacer(targetFps);
+    this.profiler = new FrameProfiler(pacer.getFrameNanos());
+    addStep(scheduler, "scheduler");
+  }
+
+  /**
+   * @return The scheduler of delayed and repeating tasks, with 1 ms ticks. It is the first game step, so
+   * tasks run before the other steps of the frame they come due in.
+   */
+  public Scheduler getScheduler() {
+    return scheduler;
+  }
 
-  public GameLoop(int targetFps) {
-    this.targetSleepMs = 1000 / targetFps;
+  /**
+   * @return The pacer of the frames, with the achieved frame time statistics.
+   */
+  public FramePacer getFramePacer() {
+    return pacer;
+  }
+
+  /**
+   * @return The time at the start of the current frame, for the steps.
+   */
+  public FrameClock getFrameClock() {
+    return frameClock;
+  }
+
+  /**
+   * @return The durations of the frames and of each step, over the last few seconds.
+   */
+  public FrameProfiler getProfiler() {
+    return profiler;
   }
 
   public void addStep(GameStep step) {
+    addStep(step, nameOf(step));
+  }
+
+  /**
+   * @param name The name of the step in the profiler.
+   */
+  public void addStep(GameStep step, String name) {
     gameSteps.add(step);
+    gameStepSections.add(profiler.addSection(name));
+  }
+
+  /**
+   * Add a step that draws a frame. Render steps are called after the game steps, every iteration.
+   */
+  public void addRenderStep(RenderStep step) {
+    addRenderStep(step, nameOf(step));
+  }
+
+  public void addRenderStep(RenderStep step, String name) {
+    renderSteps.add(step);
+    renderStepSections.add(profiler.addSection(name));
   }
 
+  private static String nameOf(Object step) {
+    final String name = step.getClass().getSimpleName();
+    return name.isEmpty() ? step.getClass().getName() : name;
+  }
+
+  /**
+   * Step the game once every frame, passing the time since the last frame.
+   */
   @SuppressWarnings("InfiniteLoopStatement")
   public void loopForever() throws InterruptedException {
-    Time lastIterStart = Time.now();
+    final long loopStart = Time.nowNanos();
+    long steppedMs = 0;
+
+    try {
+      while (true) {
+        final long frameStart = Time.nowNanos();
+        frameClock.startFrame(frameStart);
 
-    while (true) {
-      final Time iterStart = Time.now();
+        // Deltas are measured from the start of the loop, so the fractions of a millisecond truncated from
+        // one frame are carried into the next instead of being lost.
+        final long elapsedMs = Time.millisBetween(loopStart, frameStart);
+        final long timeDeltaMs = elapsedMs - steppedMs;
+        steppedMs = elapsedMs;
 
-      final long timeDeltaMs = iterStart.millisSince(lastIterStart);
+        runGameSteps(timeDeltaMs);
+        runRenderSteps(1);
 
-      for (GameStep gameStep : gameSteps) {
-        gameStep.step(timeDeltaMs);
+        sleepUntilNextFrame(frameStart);
       }
+    } finally {
+      frameClock.stop();
+    }
+  }
 
-      lastIterStart = iterStart;
+  /**
+   * Step the game at a fixed rate, always passing stepMs, and draw frames at the target fps in between.
+   * This keeps the simulation deterministic no matter how long frames take.
+   * <p>
+   * The time of each frame is added to an accumulator, and the game steps as many times as it holds stepMs.
+   * What's left over becomes the alpha passed to the render steps. If frames fall so far behind that more
+   * than maxStepsPerFrame steps are owed, the excess is dropped and the game runs slower than real time,
+   * instead of taking ever longer frames to catch up.
+   *
+   * @param stepMs           The fixed time delta of every game step, e.g. 10 for 100 steps per second.
+   * @param maxStepsPerFrame The most steps to run in one frame to catch up.
+   */
+  @SuppressWarnings("InfiniteLoopStatement")
+  public void loopFixedStep(long stepMs, int maxStepsPerFrame) throws InterruptedException {
+    if (stepMs < 1 || maxStepsPerFrame < 1) {
+      throw new IllegalArgumentException("stepMs and maxStepsPerFrame must be >= 1");
+    }
+    final long stepNanos = stepMs * 1_000_000;
+    final long maxAccumulatedNanos = stepNanos * maxStepsPerFrame;
+
+    long accumulatedNanos = 0;
+    long lastFrameStart = Time.nowNanos();
+    long droppedNanos = 0;
+    long lastDropLog = lastFrameStart - DROP_LOG_INTERVAL_NANOS;
 
-      // We want to start the next frame at time iterStart + targetSleepMs, but some time has
-      // passed in processing. So we remove the time spent since the start of the iteration.
-      final Time iterEnd = Time.now();
-      final long sleepTimeMs = iterStart.millisSince(iterEnd) + targetSleepMs;
+    try {
+      while (true) {
+        final long frameStart = Time.nowNanos();
+        frameClock.startFrame(frameStart);
 
-      // TODO: consider keeping metrics of average processing time
+        accumulatedNanos += frameStart - lastFrameStart;
+        lastFrameStart = frameStart;
+
+        if (accumulatedNanos > maxAccumulatedNanos) {
+          droppedNanos += accumulatedNanos - maxAccumulatedNanos;
+          accumulatedNanos = maxAccumulatedNanos;
+        }
+        // Summed up between logs, since frames that fall behind usually stay behind for a while.
+        if (droppedNanos > 0 && frameStart - lastDropLog >= DROP_LOG_INTERVAL_NANOS) {
+          logger().info(String.format("dropped %d ms of game time, frames are too slow to catch up",
+              droppedNanos / 1_000_000));
+          droppedNanos = 0;
+          lastDropLog = frameStart;
+        }
 
-      if (sleepTimeMs < 0) {
-        if (sleepTimeMs < -targetSleepMs) {
-          logger().info(String.format("processing time (%d ms) exceeds two frames (%d ms per frame)",
-              iterEnd.millisSince(iterStart), targetSleepMs));
+        while (accumulatedNanos >= stepNanos) {
+          runGameSteps(stepMs);
+          accumulatedNanos -= stepNanos;
         }
-      } else {
-        Thread.sleep(sleepTimeMs);
+
+        runRenderSteps((double) accumulatedNanos / stepNanos);
+
+        sleepUntilNextFrame(frameStart);
       }
+    } finally {
+      frameClock.stop();
+    }
+  }
+
+  // Indexed loops, since an iterator per frame is garbage.
+  private void runGameSteps(long timeDeltaMs) {
+    for (int i = 0; i < gameSteps.size(); i++) {
+      final long start = System.nanoTime();
+      gameSteps.get(i).step(timeDeltaMs);
+      final long end = System.nanoTime();
+      gameStepSections.get(i).record(end - start, end);
+    }
+  }
+
+  private void runRenderSteps(double alpha) {
+    for (int i = 0; i < renderSteps.size(); i++) {
+      final long start = System.nanoTime();
+      renderSteps.get(i).render(alpha);
+      final long end = System.nanoTime();
+      renderStepSections.get(i).record(end - start, end);
+    }
+  }
+
+  private void sleepUntilNextFrame(long frameStart) throws InterruptedException {
+    final long frameEnd = Time.nowNanos();
+    profiler.endFrame(frameEnd - frameStart, frameEnd);
+
+    final long lateNanos = pacer.waitForNextFrame();
+    if (lateNanos > pacer.getFrameNanos()) {
+      logger().info(String.format("processing time (%.1f ms) exceeds two frames (%.1f ms per frame)",
+          (pacer.getFrameNanos() + lateNanos) / 1e6, pacer.getFrameNanos() / 1e6));
+    }
+    if (pacer.getFrames() % STATS_INTERVAL_FRAMES == 0 && logger().isLoggable(Level.FINE)) {
+      logger().fine(pacer + "\n" + profiler);
     }
   }
 }
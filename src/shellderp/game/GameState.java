@@ -3,16 +3,9 @@ package shellderp.game;
 import shellderp.game.ui.Renderable;
 
 /**
+ * A SimulationState that is also drawn, managed by StateManager.
+ * <p>
  * Created by: Mike
  */
-public interface GameState extends GameStep, Renderable {
-  /**
-   * Called by StateManager when the state becomes active.
-   */
-  void activate();
-
-  /**
-   * Called by StateManager when the state stops being active. All listeners should be removed at this time.
-   */
-  void dispose();
+public interface GameState extends SimulationState, Renderable {
 }
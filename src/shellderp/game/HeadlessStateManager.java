@@ -0,0 +1,28 @@
+package shellderp.game;
+
+/**
+ * The StateManager of a headless server: wraps the active SimulationState, and never touches AWT.
+ */
+public final class HeadlessStateManager implements GameStep {
+
+  private SimulationState state;
+
+  /**
+   * Set the currently active state. If called from the current state, this should only be called during
+   * the state's step() method.
+   */
+  public void setState(SimulationState newState) {
+    if (this.state != null) {
+      this.state.dispose();
+    }
+    this.state = newState;
+    newState.activate();
+  }
+
+  @Override
+  public void step(long timeDeltaMs) {
+    if (state != null) {
+      state.step(timeDeltaMs);
+    }
+  }
+}
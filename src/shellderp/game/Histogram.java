@@ -0,0 +1,114 @@
+package shellderp.game;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets: every power of two is split into
+ * SUB_BUCKETS linear buckets, so any value is recorded within 1 / SUB_BUCKETS (6%) of its size, from
+ * nanoseconds to minutes, in a fixed array of counts. Recording is a few shifts and an increment, and never
+ * allocates, so it is cheap enough to run on every step of every frame.
+ * <p>
+ * Percentiles are reported as the upper bound of their bucket, so they never understate a duration.
+ * Not thread-safe.
+ */
+public final class Histogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Values at or above 2^MAX_EXPONENT ns (about 18 minutes) go in the last bucket.
+   */
+  private static final int MAX_EXPONENT = 40;
+
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  final long[] counts = new long[BUCKETS];
+  long count = 0;
+  long max = 0;
+  long sum = 0;
+
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) Math.max(0, nanos);
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    final int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * @return The largest value that falls in bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  public void record(long nanos) {
+    recordBucket(nanos);
+  }
+
+  /**
+   * @return The bucket nanos was counted in.
+   */
+  int recordBucket(long nanos) {
+    final int bucket = bucketOf(nanos);
+    counts[bucket]++;
+    count++;
+    sum += nanos;
+    if (nanos > max) {
+      max = nanos;
+    }
+    return bucket;
+  }
+
+  public void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    max = 0;
+    sum = 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getMaxNanos() {
+    return max;
+  }
+
+  public double getMeanNanos() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /**
+   * @param percentile From 0 to 100.
+   * @return The duration that percentile of the values are at or below, or 0 if nothing was recorded.
+   */
+  public long getPercentileNanos(double percentile) {
+    return percentileOf(counts, count, max, percentile);
+  }
+
+  static long percentileOf(long[] counts, long count, long max, double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int bucket = 0; bucket < counts.length; bucket++) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        // The max is exact, so don't report past it.
+        return Math.min(max, upperBoundOf(bucket));
+      }
+    }
+    return max;
+  }
+}
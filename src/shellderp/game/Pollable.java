@@ -0,0 +1,14 @@
+package shellderp.game;
+
+import java.io.IOException;
+
+/**
+ * Something that can do its waiting work (e.g. receiving packets) in short, non-blocking calls from a loop
+ * that is otherwise idle. See ServerLoop.setBusyPoll().
+ */
+public interface Pollable {
+  /**
+   * Handle whatever is ready, and return without blocking.
+   */
+  void poll() throws IOException;
+}
@@ -0,0 +1,12 @@
+package shellderp.game;
+
+public interface RenderStep {
+  /**
+   * Draw a frame. This is called once every iteration of a fixed timestep eventloop, after the game steps.
+   *
+   * @param alpha How far the current time is between the last game step and the next one, from 0 to 1.
+   *              Draw the state interpolated by alpha between the previous step and the last one, so
+   *              motion is smooth when frames don't line up with steps.
+   */
+  void render(double alpha);
+}
@@ -0,0 +1,255 @@
+package shellderp.game;
+
+import java.util.logging.Level;
+
+/**
+ * Runs game logic after a delay, or repeatedly, without polling a Timer every step: "respawn in 3 seconds",
+ * "regenerate health every 500 ms". Driven by game time, as a GameStep (GameLoop and ServerLoop step their
+ * own, see getScheduler()), so tasks follow the simulation: they don't fire while it's paused, and fire
+ * on the same step every run of a fixed timestep loop.
+ * <p>
+ * Time is counted in ticks of tickMs, and tasks are kept in a hierarchical timing wheel keyed on the tick
+ * they are due: LEVELS wheels of SLOTS slots, each slot of a level spanning a whole turn of the level below.
+ * A task goes in the lowest level whose turn reaches its tick. When a level's turn completes, the next
+ * slot of the level above is emptied into the levels below. So a tick only visits the tasks due in it, plus
+ * each task moves down at most LEVELS - 1 times in its life; the number of tasks waiting costs nothing.
+ * Scheduling and cancelling are O(1).
+ * <p>
+ * Tasks run in step(), on its thread. They may schedule and cancel tasks, including themselves. A task
+ * throwing is logged, and doesn't stop the others. Not thread-safe.
+ */
+public final class Scheduler implements GameStep, Loggable {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+
+  /**
+   * Tasks further away than this are placed as if due then, and placed again when they get there.
+   */
+  private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  // Task.level values other than a level of the wheel.
+  private static final int IDLE = -1;
+  private static final int FIRING = -2;
+
+  public final class Task {
+    private final Runnable action;
+    private final long periodTicks;
+    private long deadline;
+
+    private int level = IDLE;
+    private int slot;
+    private Task prev;
+    private Task next;
+
+    private boolean cancelled = false;
+
+    private Task(Runnable action, long deadline, long periodTicks) {
+      this.action = action;
+      this.deadline = deadline;
+      this.periodTicks = periodTicks;
+    }
+
+    /**
+     * Don't run the task (again). Does nothing if it already ran for the last time.
+     */
+    public void cancel() {
+      if (cancelled) {
+        return;
+      }
+      cancelled = true;
+      if (level >= 0) {
+        unlink(this);
+        size--;
+      } else if (level == FIRING) {
+        // In the list being fired; it is skipped there.
+        level = IDLE;
+        size--;
+      }
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    /**
+     * @return true while the task will still run.
+     */
+    public boolean isScheduled() {
+      return level != IDLE;
+    }
+  }
+
+  private final long tickMs;
+  private final Task[][] wheels = new Task[LEVELS][SLOTS];
+
+  /**
+   * The last tick processed.
+   */
+  private long tick = 0;
+  private long pendingMs = 0;
+  private int size = 0;
+
+  /**
+   * @param tickMs The resolution of the scheduler. Tasks run up to a tick late, never early.
+   */
+  public Scheduler(long tickMs) {
+    if (tickMs < 1) {
+      throw new IllegalArgumentException("tickMs must be >= 1");
+    }
+    this.tickMs = tickMs;
+  }
+
+  public long getTickMs() {
+    return tickMs;
+  }
+
+  /**
+   * @return The ticks processed so far.
+   */
+  public long getTick() {
+    return tick;
+  }
+
+  /**
+   * @return The number of tasks that will still run.
+   */
+  public int size() {
+    return size;
+  }
+
+  private long ticksOf(long ms) {
+    // Rounded up, so nothing runs early.
+    return Math.max(1, (ms + tickMs - 1) / tickMs);
+  }
+
+  /**
+   * Run action once, delayMs of game time from now.
+   */
+  public Task schedule(long delayMs, Runnable action) {
+    return add(new Task(action, tick + ticksOf(delayMs), 0));
+  }
+
+  /**
+   * Run action every periodMs of game time, starting initialDelayMs from now, until cancelled. The period
+   * is kept from the schedule, not from when each run happened, so runs don't drift.
+   */
+  public Task scheduleRepeating(long initialDelayMs, long periodMs, Runnable action) {
+    if (periodMs < 1) {
+      throw new IllegalArgumentException("periodMs must be >= 1");
+    }
+    return add(new Task(action, tick + ticksOf(initialDelayMs), ticksOf(periodMs)));
+  }
+
+  private Task add(Task task) {
+    insert(task, tick + 1);
+    size++;
+    return task;
+  }
+
+  /**
+   * @param base The first tick that hasn't been fired yet.
+   */
+  private void insert(Task task, long base) {
+    final long delta = Math.min(MAX_DELTA, Math.max(0, task.deadline - base));
+    final long position = base + delta;
+    int level = 0;
+    while (delta >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    final int slot = (int) ((position >>> (SLOT_BITS * level)) & (SLOTS - 1));
+
+    task.level = level;
+    task.slot = slot;
+    task.prev = null;
+    task.next = wheels[level][slot];
+    if (task.next != null) {
+      task.next.prev = task;
+    }
+    wheels[level][slot] = task;
+  }
+
+  private void unlink(Task task) {
+    if (task.prev != null) {
+      task.prev.next = task.next;
+    } else {
+      wheels[task.level][task.slot] = task.next;
+    }
+    if (task.next != null) {
+      task.next.prev = task.prev;
+    }
+    task.prev = null;
+    task.next = null;
+    task.level = IDLE;
+  }
+
+  /**
+   * Advance game time by timeDeltaMs, and run every task that came due, in order of ticks.
+   */
+  @Override
+  public void step(long timeDeltaMs) {
+    pendingMs += timeDeltaMs;
+    while (pendingMs >= tickMs) {
+      pendingMs -= tickMs;
+      processTick();
+    }
+  }
+
+  private void processTick() {
+    tick++;
+
+    // Move the tasks of the next slot up each level that completed a turn down to where they belong now.
+    for (int level = 1; level < LEVELS; level++) {
+      if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+        break;
+      }
+      cascade(level, (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+    }
+
+    final int slot = (int) (tick & (SLOTS - 1));
+    Task task = wheels[0][slot];
+    if (task == null) {
+      return;
+    }
+    // Detach the slot, so tasks scheduled while firing go in a fresh list, even for this same slot a turn
+    // from now.
+    wheels[0][slot] = null;
+    for (Task t = task; t != null; t = t.next) {
+      t.level = FIRING;
+    }
+    while (task != null) {
+      final Task next = task.next;
+      task.prev = null;
+      task.next = null;
+      if (task.level == FIRING) {
+        fire(task);
+      }
+      task = next;
+    }
+  }
+
+  private void cascade(int level, int slot) {
+    Task task = wheels[level][slot];
+    wheels[level][slot] = null;
+    while (task != null) {
+      final Task next = task.next;
+      insert(task, tick);
+      task = next;
+    }
+  }
+
+  private void fire(Task task) {
+    task.level = IDLE;
+    size--;
+    try {
+      task.action.run();
+    } catch (RuntimeException e) {
+      logger().log(Level.WARNING, "scheduled task threw", e);
+    }
+    if (task.periodTicks != 0 && !task.cancelled && task.level == IDLE) {
+      task.deadline += task.periodTicks;
+      insert(task, tick + 1);
+      size++;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package shellderp.game;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * The loop of a dedicated server: steps the game at a high tick rate (128 Hz and up) with no rendering, so
+ * nothing on its path loads AWT. Use a HeadlessStateManager for states.
+ * <p>
+ * Ticks are paced by a FramePacer, and each step gets the milliseconds since the last tick, with the
+ * fractions carried over (as GameLoop.loopForever()). Steps are profiled like in GameLoop.
+ * <p>
+ * Busy polling (see setBusyPoll()): instead of sleeping until the next tick, the loop polls, e.g. a Server
+ * created with busyPoll, so packets are handled on this thread the moment they arrive, with no handoff from
+ * a receive thread. This costs a whole core. The JVM has no API for CPU affinity, so pin the process with
+ * the OS (e.g. taskset, or isolcpus for a dedicated core); run() runs on the calling thread and raises its
+ * priority, so start it on the thread that should own the core.
+ */
+public final class ServerLoop implements Loggable {
+  private static final int STATS_INTERVAL_TICKS = 10_000;
+
+  private final FramePacer pacer;
+  private final FrameProfiler profiler;
+  private final FrameClock frameClock = new FrameClock();
+  private final Scheduler scheduler = new Scheduler(1);
+
+  private final List<GameStep> steps = new ArrayList<>();
+  private final List<FrameProfiler.Section> sections = new ArrayList<>();
+
+  private Pollable busyPoll = null;
+  private final Runnable pollTask = this::poll;
+
+  private volatile boolean stopped = false;
+
+  /**
+   * @param tickRate The ticks per second.
+   */
+  public ServerLoop(double tickRate) {
+    this.pacer = new FramePacer(tickRate);
+    this.profiler = new FrameProfiler(pacer.getFrameNanos());
+    addStep(scheduler, "scheduler");
+  }
+
+  /**
+   * @return The scheduler of delayed and repeating tasks, with 1 ms ticks, stepped before the other steps.
+   */
+  public Scheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * @return The time at the start of the current tick, for the steps.
+   */
+  public FrameClock getFrameClock() {
+    return frameClock;
+  }
+
+  public FramePacer getFramePacer() {
+    return pacer;
+  }
+
+  public FrameProfiler getProfiler() {
+    return profiler;
+  }
+
+  public void addStep(GameStep step, String name) {
+    steps.add(step);
+    sections.add(profiler.addSection(name));
+  }
+
+  /**
+   * Poll between ticks instead of sleeping, or sleep again if null.
+   */
+  public void setBusyPoll(Pollable pollable) {
+    this.busyPoll = pollable;
+  }
+
+  private void poll() {
+    try {
+      busyPoll.poll();
+    } catch (IOException e) {
+      logger().log(Level.WARNING, "busy poll failed", e);
+    }
+  }
+
+  /**
+   * Run the loop on the calling thread until stop() is called. Returns at once if stop() was already called,
+   * e.g. by another thread before this one got to run().
+   */
+  public void run() throws InterruptedException {
+    final Thread thread = Thread.currentThread();
+    final int priority = thread.getPriority();
+    thread.setPriority(Thread.MAX_PRIORITY);
+    try {
+      loop();
+    } finally {
+      frameClock.stop();
+      thread.setPriority(priority);
+    }
+  }
+
+  private void loop() throws InterruptedException {
+    final long loopStart = Time.nowNanos();
+    long steppedMs = 0;
+    pacer.start();
+
+    while (!stopped) {
+      final long tickStart = Time.nowNanos();
+      frameClock.startFrame(tickStart);
+
+      final long elapsedMs = Time.millisBetween(loopStart, tickStart);
+      final long timeDeltaMs = elapsedMs - steppedMs;
+      steppedMs = elapsedMs;
+
+      for (int i = 0; i < steps.size(); i++) {
+        final long start = System.nanoTime();
+        steps.get(i).step(timeDeltaMs);
+        final long end = System.nanoTime();
+        sections.get(i).record(end - start, end);
+      }
+
+      final long tickEnd = Time.nowNanos();
+      profiler.endFrame(tickEnd - tickStart, tickEnd);
+
+      final long lateNanos = pacer.waitForNextFrame(busyPoll == null ? null : pollTask);
+      if (lateNanos > pacer.getFrameNanos()) {
+        logger().info(String.format("tick time (%.2f ms) exceeds two ticks (%.2f ms per tick)",
+            (pacer.getFrameNanos() + lateNanos) / 1e6, pacer.getFrameNanos() / 1e6));
+      }
+      if (pacer.getFrames() % STATS_INTERVAL_TICKS == 0 && logger().isLoggable(Level.FINE)) {
+        logger().fine(pacer + "\n" + profiler);
+      }
+    }
+  }
+
+  /**
+   * Make run() return after the current tick, or at once if it is called later. May be called from any
+   * thread.
+   */
+  public void stop() {
+    stopped = true;
+  }
+}
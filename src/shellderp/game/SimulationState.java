@@ -0,0 +1,18 @@
+package shellderp.game;
+
+/**
+ * A state of the game that only simulates, with no rendering, so a dedicated server can use the same states
+ * as the game without loading any AWT classes. See HeadlessStateManager.
+ */
+public interface SimulationState extends GameStep {
+  /**
+   * Called by the state manager when the state becomes active.
+   */
+  void activate();
+
+  /**
+   * Called by the state manager when the state stops being active. All listeners should be removed at this
+   * time.
+   */
+  void dispose();
+}
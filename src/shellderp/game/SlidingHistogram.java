@@ -0,0 +1,98 @@
+package shellderp.game;
+
+/**
+ * A Histogram of the durations recorded over the last window of time, e.g. the last 10 seconds, so
+ * percentiles reflect what is happening now rather than since startup.
+ * <p>
+ * The window is split into slots, each a Histogram of its own stretch of time. When a slot expires it is
+ * subtracted from the running total of the window and reused, so recording and reading percentiles cost the
+ * same as for a single Histogram, and nothing is allocated after construction. The window moves a slot at a
+ * time, so it covers between windowMs - windowMs / slots and windowMs.
+ * <p>
+ * Not thread-safe.
+ */
+public final class SlidingHistogram {
+  private final Histogram[] slots;
+  private final long slotNanos;
+
+  private final long[] windowCounts = new long[Histogram.BUCKETS];
+  private long windowCount = 0;
+
+  private int current = 0;
+  private long currentStart;
+
+  public SlidingHistogram(long windowMs, int slots) {
+    this(windowMs, slots, System.nanoTime());
+  }
+
+  SlidingHistogram(long windowMs, int slots, long nowNanos) {
+    if (slots < 1 || windowMs < slots) {
+      throw new IllegalArgumentException("need slots >= 1 and windowMs >= slots");
+    }
+    this.slots = new Histogram[slots];
+    for (int i = 0; i < slots; i++) {
+      this.slots[i] = new Histogram();
+    }
+    this.slotNanos = windowMs * 1_000_000 / slots;
+    this.currentStart = nowNanos;
+  }
+
+  public void record(long nanos, long nowNanos) {
+    advance(nowNanos);
+    windowCounts[slots[current].recordBucket(nanos)]++;
+    windowCount++;
+  }
+
+  /**
+   * Expire the slots that ended before nowNanos. Recording does this, so it only needs to be called before
+   * reading a histogram that may not have been recorded to in a while.
+   */
+  public void advance(long nowNanos) {
+    int expired = 0;
+    while (nowNanos - currentStart >= slotNanos) {
+      if (++expired > slots.length) {
+        // Everything expired; skip ahead instead of cycling through the idle time.
+        currentStart = nowNanos;
+        break;
+      }
+      current = (current + 1) % slots.length;
+      currentStart += slotNanos;
+      expire(slots[current]);
+    }
+  }
+
+  private void expire(Histogram slot) {
+    for (int bucket = 0; bucket < Histogram.BUCKETS; bucket++) {
+      windowCounts[bucket] -= slot.counts[bucket];
+    }
+    windowCount -= slot.count;
+    slot.reset();
+  }
+
+  public long getCount() {
+    return windowCount;
+  }
+
+  public long getMaxNanos() {
+    long max = 0;
+    for (Histogram slot : slots) {
+      max = Math.max(max, slot.max);
+    }
+    return max;
+  }
+
+  public double getMeanNanos() {
+    long sum = 0;
+    for (Histogram slot : slots) {
+      sum += slot.sum;
+    }
+    return windowCount == 0 ? 0 : (double) sum / windowCount;
+  }
+
+  /**
+   * @param percentile From 0 to 100.
+   */
+  public long getPercentileNanos(double percentile) {
+    return Histogram.percentileOf(windowCounts, windowCount, getMaxNanos(), percentile);
+  }
+}
@@ -41,4 +41,11 @@ public final class StateManager implements GameStep, Renderable {
       state.render(graphics);
     }
   }
+
+  @Override
+  public void render(Graphics2D graphics, double alpha) {
+    if (state != null) {
+      state.render(graphics, alpha);
+    }
+  }
 }
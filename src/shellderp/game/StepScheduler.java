@@ -0,0 +1,333 @@
+package shellderp.game;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a group of GameSteps in parallel where they don't depend on each other, e.g. the Server, audio, AI
+ * and particles. Add it to a GameLoop as a single step.
+ * <p>
+ * Each step is added as a Job, which declares what it depends on:
+ * - The resources it reads() and writes(), any objects (e.g. the world, or a class token). A job runs after
+ * every job added before it that writes what it reads or writes, or reads what it writes. Jobs that only
+ * read the same resources may run together.
+ * - Explicit after() and before() edges, for ordering that isn't about a shared resource.
+ * Anything a step touches that isn't declared may be touched by other steps at the same time, so declare
+ * generously.
+ * <p>
+ * In PARALLEL mode each step() starts the jobs that depend on nothing on the ForkJoinPool, each finished job
+ * starts the jobs that were waiting only on it, and step() returns once all of them have run, so all the
+ * jobs of a frame finish before the next frame. In SERIAL mode the jobs run on the calling thread, one
+ * after another, in the same order every frame: the order they were added in, except where a dependency
+ * requires otherwise. Use it to rule out (or in) a race when debugging.
+ * <p>
+ * If a step throws, the jobs that haven't started yet are skipped, and step() throws once the running ones
+ * finish.
+ * <p>
+ * step() may be called from a worker of the pool, e.g. a StepScheduler run as a job of another: the pool
+ * makes up for the blocked worker with a spare thread while it waits.
+ * <p>
+ * Jobs must be added and configured from the thread calling step(), not during it.
+ */
+public final class StepScheduler implements GameStep {
+
+  public enum Mode {
+    PARALLEL,
+    SERIAL,
+  }
+
+  public final class Job {
+    private final GameStep step;
+    private final String name;
+    private final int index;
+    private final FrameProfiler.Section section;
+
+    private final Set<Object> reads = new HashSet<>();
+    private final Set<Object> writes = new HashSet<>();
+    private final Set<Job> after = new HashSet<>();
+
+    // The compiled graph.
+    private final List<Job> successors = new ArrayList<>();
+    private int predecessors;
+
+    // State of the current step().
+    private final AtomicInteger waitingFor = new AtomicInteger();
+    private long durationNanos;
+    private final Runnable task = this::runParallel;
+
+    private Job(GameStep step, String name, int index, FrameProfiler.Section section) {
+      this.step = step;
+      this.name = name;
+      this.index = index;
+      this.section = section;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Job reads(Object... resources) {
+      Collections.addAll(reads, resources);
+      graphChanged();
+      return this;
+    }
+
+    public Job writes(Object... resources) {
+      Collections.addAll(writes, resources);
+      graphChanged();
+      return this;
+    }
+
+    /**
+     * This job runs after the given ones.
+     */
+    public Job after(Job... jobs) {
+      Collections.addAll(after, jobs);
+      graphChanged();
+      return this;
+    }
+
+    /**
+     * This job runs before the given ones.
+     */
+    public Job before(Job... jobs) {
+      for (Job job : jobs) {
+        job.after.add(this);
+      }
+      graphChanged();
+      return this;
+    }
+
+    private boolean conflictsWith(Job other) {
+      return !Collections.disjoint(writes, other.writes) || !Collections.disjoint(writes, other.reads)
+             || !Collections.disjoint(reads, other.writes);
+    }
+
+    private void runParallel() {
+      if (failure.get() == null) {
+        final long start = System.nanoTime();
+        try {
+          step.step(timeDeltaMs);
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+        durationNanos = System.nanoTime() - start;
+      } else {
+        durationNanos = -1;
+      }
+
+      for (Job successor : successors) {
+        if (successor.waitingFor.decrementAndGet() == 0) {
+          pool.execute(successor.task);
+        }
+      }
+      if (remaining.decrementAndGet() == 0) {
+        LockSupport.unpark(waiter);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private final FrameProfiler profiler;
+  private Mode mode = Mode.PARALLEL;
+
+  private final List<Job> jobs = new ArrayList<>();
+
+  /**
+   * The jobs in topological order, with registration order breaking ties. null when the graph changed
+   * since it was last compiled.
+   */
+  private List<Job> order = null;
+  private final List<Job> roots = new ArrayList<>();
+
+  // State of the current step().
+  private volatile long timeDeltaMs;
+  private volatile Thread waiter;
+  private final AtomicInteger remaining = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /**
+   * The frame end barrier. The job that finishes last unparks the waiter; the loop covers spurious wakeups.
+   * We wait through ForkJoinPool.managedBlock, so that if step() is called on a worker of the pool (e.g. by
+   * a job of another StepScheduler), the pool starts a spare thread for our jobs rather than deadlock.
+   */
+  private final ForkJoinPool.ManagedBlocker barrier = new ForkJoinPool.ManagedBlocker() {
+    @Override
+    public boolean block() {
+      while (remaining.get() > 0) {
+        LockSupport.park(StepScheduler.this);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      return remaining.get() == 0;
+    }
+  };
+
+  /**
+   * Run the jobs on the common ForkJoinPool, without profiling them.
+   */
+  public StepScheduler() {
+    this(ForkJoinPool.commonPool(), null);
+  }
+
+  /**
+   * @param profiler If not null, each job is recorded as a section of it, e.g. GameLoop.getProfiler().
+   */
+  public StepScheduler(ForkJoinPool pool, FrameProfiler profiler) {
+    this.pool = pool;
+    this.profiler = profiler;
+  }
+
+  public void setMode(Mode mode) {
+    this.mode = mode;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public Job add(GameStep step, String name) {
+    final Job job = new Job(step, name, jobs.size(), profiler == null ? null : profiler.addSection(name));
+    jobs.add(job);
+    graphChanged();
+    return job;
+  }
+
+  private void graphChanged() {
+    order = null;
+  }
+
+  /**
+   * Build the dependency graph, and order it with Kahn's algorithm.
+   *
+   * @throws IllegalStateException If the dependencies form a cycle.
+   */
+  private void compile() {
+    for (Job job : jobs) {
+      job.successors.clear();
+      job.predecessors = 0;
+    }
+    for (int i = 0; i < jobs.size(); i++) {
+      final Job later = jobs.get(i);
+      final Set<Job> predecessors = new HashSet<>(later.after);
+      for (int j = 0; j < i; j++) {
+        if (jobs.get(j).conflictsWith(later)) {
+          predecessors.add(jobs.get(j));
+        }
+      }
+      for (Job predecessor : predecessors) {
+        predecessor.successors.add(later);
+        later.predecessors++;
+      }
+    }
+
+    final List<Job> sorted = new ArrayList<>(jobs.size());
+    final int[] waiting = new int[jobs.size()];
+    final PriorityQueue<Job> ready = new PriorityQueue<>((a, b) -> Integer.compare(a.index, b.index));
+    roots.clear();
+    for (Job job : jobs) {
+      waiting[job.index] = job.predecessors;
+      if (job.predecessors == 0) {
+        ready.add(job);
+        roots.add(job);
+      }
+    }
+    while (!ready.isEmpty()) {
+      final Job job = ready.poll();
+      sorted.add(job);
+      for (Job successor : job.successors) {
+        if (--waiting[successor.index] == 0) {
+          ready.add(successor);
+        }
+      }
+    }
+    if (sorted.size() != jobs.size()) {
+      final List<Job> cycle = new ArrayList<>(jobs);
+      cycle.removeAll(sorted);
+      throw new IllegalStateException("dependency cycle among jobs " + cycle);
+    }
+    order = sorted;
+  }
+
+  @Override
+  public void step(long timeDeltaMs) {
+    if (order == null) {
+      compile();
+    }
+    if (jobs.isEmpty()) {
+      return;
+    }
+
+    if (mode == Mode.SERIAL) {
+      stepSerial(timeDeltaMs);
+    } else {
+      stepParallel(timeDeltaMs);
+    }
+  }
+
+  private void stepSerial(long timeDeltaMs) {
+    for (int i = 0; i < order.size(); i++) {
+      final Job job = order.get(i);
+      final long start = System.nanoTime();
+      job.step.step(timeDeltaMs);
+      final long end = System.nanoTime();
+      if (job.section != null) {
+        job.section.record(end - start, end);
+      }
+    }
+  }
+
+  private void stepParallel(long timeDeltaMs) {
+    this.timeDeltaMs = timeDeltaMs;
+    failure.set(null);
+    for (int i = 0; i < jobs.size(); i++) {
+      final Job job = jobs.get(i);
+      job.waitingFor.set(job.predecessors);
+    }
+    remaining.set(jobs.size());
+    waiter = Thread.currentThread();
+
+    for (int i = 0; i < roots.size(); i++) {
+      pool.execute(roots.get(i).task);
+    }
+    try {
+      ForkJoinPool.managedBlock(barrier);
+    } catch (InterruptedException e) {
+      throw new AssertionError("barrier.block() doesn't throw", e);
+    }
+    waiter = null;
+
+    final long now = System.nanoTime();
+    for (int i = 0; i < jobs.size(); i++) {
+      final Job job = jobs.get(i);
+      if (job.section != null && job.durationNanos >= 0) {
+        job.section.record(job.durationNanos, now);
+      }
+    }
+
+    final Throwable e = failure.get();
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    } else if (e instanceof Error) {
+      throw (Error) e;
+    } else if (e != null) {
+      throw new IllegalStateException("step failed", e);
+    }
+  }
+}
@@ -4,6 +4,10 @@ package shellderp.game;
  * Computes time differences not sensitive to the system (user set) clock.
  * Useful for timers or game loop.
  * <p>
+ * Time objects are convenient, but each now() allocates. Code that checks the time every frame or every
+ * packet should use the primitive API instead: nowNanos() and millisBetween(), or the frameNanos() of the
+ * loop's FrameClock when the time at the start of the frame is close enough.
+ * <p>
  * Created by: Mike
  */
 public final class Time {
@@ -22,8 +26,19 @@ public final class Time {
   }
 
   public static Time now() {
+    return new Time(nowNanos());
+  }
+
+  /**
+   * @return The current time in nanoseconds, only meaningful relative to other values from this clock.
+   */
+  public static long nowNanos() {
     // We prefer to use nanoTime since it is the CPU clock time.
     // In comparison, currentTimeMillis can change if the user changes the system time.
-    return new Time(System.nanoTime());
+    return System.nanoTime();
+  }
+
+  public static long millisBetween(long sinceNanos, long untilNanos) {
+    return (untilNanos - sinceNanos) / 1_000_000;
   }
 }
@@ -3,6 +3,9 @@ package shellderp.game;
 /**
  * Simple timer. Starts inactive.
  * <p>
+ * Works in primitive nanoseconds, so checking a timer never allocates. The overloads taking nowNanos let a
+ * caller read the clock once (e.g. Time.nowNanos() or FrameClock.frameNanos()) for several timers.
+ * <p>
  * Created by Mike on 2015-04-12.
  */
 public class Timer {
@@ -12,15 +15,19 @@ public class Timer {
   /**
    * Tracks the last time the timer was started.
    */
-  private Time startTime = null;
+  private long startNanos = 0;
 
   public boolean isActive() {
     return active;
   }
 
   public void restart() {
+    restart(Time.nowNanos());
+  }
+
+  public void restart(long nowNanos) {
     active = true;
-    startTime = Time.now();
+    startNanos = nowNanos;
   }
 
   public void stop() {
@@ -28,10 +35,14 @@ public class Timer {
   }
 
   public boolean hasPassed(long timeoutMs) {
+    return hasPassed(timeoutMs, Time.nowNanos());
+  }
+
+  public boolean hasPassed(long timeoutMs, long nowNanos) {
     if (!isActive()) {
       return false;
     }
 
-    return Time.now().millisSince(startTime) > timeoutMs;
+    return Time.millisBetween(startNanos, nowNanos) > timeoutMs;
   }
 }
@@ -0,0 +1,203 @@
+package shellderp.game.ecs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The table of every entity with exactly one set of components. Each field of each component is a column,
+ * a primitive array indexed by row, so a system's inner loop runs over plain arrays:
+ * <pre>
+ *   final float[] x = archetype.floats(positionX);
+ *   final float[] vx = archetype.floats(velocityX);
+ *   for (int row = 0; row < archetype.size(); row++) {
+ *     x[row] += vx[row] * dt;
+ *   }
+ * </pre>
+ * Rows are packed: removing an entity moves the last row into its place. Columns are replaced when the
+ * table grows, so fetch them again after any structural change rather than keeping them across frames.
+ */
+public final class Archetype {
+  private static final int INITIAL_CAPACITY = 16;
+
+  final long mask;
+  private final List<ComponentType> components;
+
+  int size = 0;
+  int[] entities = new int[INITIAL_CAPACITY];
+
+  // Indexed by field id, null for the fields of other components.
+  private final float[][] floats;
+  private final int[][] ints;
+  private final long[][] longs;
+
+  // The archetypes with one component more or less, by component id, filled in by World as it finds them.
+  final Archetype[] addEdges = new Archetype[World.MAX_COMPONENTS];
+  final Archetype[] removeEdges = new Archetype[World.MAX_COMPONENTS];
+
+  Archetype(long mask, List<ComponentType> components, int floatFields, int intFields, int longFields) {
+    this.mask = mask;
+    this.components = Collections.unmodifiableList(components);
+    this.floats = new float[floatFields][];
+    this.ints = new int[intFields][];
+    this.longs = new long[longFields][];
+    for (ComponentType component : components) {
+      for (FloatField field : component.floatFields) {
+        floats[field.id] = new float[INITIAL_CAPACITY];
+      }
+      for (IntField field : component.intFields) {
+        ints[field.id] = new int[INITIAL_CAPACITY];
+      }
+      for (LongField field : component.longFields) {
+        longs[field.id] = new long[INITIAL_CAPACITY];
+      }
+    }
+  }
+
+  public List<ComponentType> getComponents() {
+    return components;
+  }
+
+  public boolean has(ComponentType component) {
+    return (mask & component.bit) != 0;
+  }
+
+  /**
+   * @return The number of entities, the rows in use.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return The entity in row.
+   */
+  public int entity(int row) {
+    return entities[row];
+  }
+
+  public float[] floats(FloatField field) {
+    if (field.id >= floats.length || floats[field.id] == null) {
+      throw new IllegalArgumentException("archetype " + components + " doesn't have " + field);
+    }
+    return floats[field.id];
+  }
+
+  public int[] ints(IntField field) {
+    if (field.id >= ints.length || ints[field.id] == null) {
+      throw new IllegalArgumentException("archetype " + components + " doesn't have " + field);
+    }
+    return ints[field.id];
+  }
+
+  public long[] longs(LongField field) {
+    if (field.id >= longs.length || longs[field.id] == null) {
+      throw new IllegalArgumentException("archetype " + components + " doesn't have " + field);
+    }
+    return longs[field.id];
+  }
+
+  /**
+   * Append a row for entity, with every field 0.
+   *
+   * @return The row.
+   */
+  int addRow(int entity) {
+    if (size == entities.length) {
+      grow(size * 2);
+    }
+    final int row = size++;
+    entities[row] = entity;
+    // Rows are reused after removals, so clear what the last occupant left.
+    for (float[] column : floats) {
+      if (column != null) {
+        column[row] = 0;
+      }
+    }
+    for (int[] column : ints) {
+      if (column != null) {
+        column[row] = 0;
+      }
+    }
+    for (long[] column : longs) {
+      if (column != null) {
+        column[row] = 0;
+      }
+    }
+    return row;
+  }
+
+  private void grow(int capacity) {
+    entities = Arrays.copyOf(entities, capacity);
+    for (int i = 0; i < floats.length; i++) {
+      if (floats[i] != null) {
+        floats[i] = Arrays.copyOf(floats[i], capacity);
+      }
+    }
+    for (int i = 0; i < ints.length; i++) {
+      if (ints[i] != null) {
+        ints[i] = Arrays.copyOf(ints[i], capacity);
+      }
+    }
+    for (int i = 0; i < longs.length; i++) {
+      if (longs[i] != null) {
+        longs[i] = Arrays.copyOf(longs[i], capacity);
+      }
+    }
+  }
+
+  /**
+   * Remove a row by moving the last row into it.
+   *
+   * @return The entity that moved into row, or -1 if row was the last.
+   */
+  int removeRow(int row) {
+    final int last = --size;
+    if (row == last) {
+      return -1;
+    }
+    entities[row] = entities[last];
+    for (float[] column : floats) {
+      if (column != null) {
+        column[row] = column[last];
+      }
+    }
+    for (int[] column : ints) {
+      if (column != null) {
+        column[row] = column[last];
+      }
+    }
+    for (long[] column : longs) {
+      if (column != null) {
+        column[row] = column[last];
+      }
+    }
+    return entities[row];
+  }
+
+  /**
+   * Copy the fields both archetypes have from a row of this one to a row of target.
+   */
+  void copyRow(int row, Archetype target, int targetRow) {
+    for (int i = 0; i < Math.min(floats.length, target.floats.length); i++) {
+      if (floats[i] != null && target.floats[i] != null) {
+        target.floats[i][targetRow] = floats[i][row];
+      }
+    }
+    for (int i = 0; i < Math.min(ints.length, target.ints.length); i++) {
+      if (ints[i] != null && target.ints[i] != null) {
+        target.ints[i][targetRow] = ints[i][row];
+      }
+    }
+    for (int i = 0; i < Math.min(longs.length, target.longs.length); i++) {
+      if (longs[i] != null && target.longs[i] != null) {
+        target.longs[i][targetRow] = longs[i][row];
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "Archetype" + components + "{size=" + size + "}";
+  }
+}
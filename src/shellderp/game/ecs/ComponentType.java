@@ -0,0 +1,64 @@
+package shellderp.game.ecs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A kind of component, made of primitive fields. Created by World.component(), after which its fields are
+ * added; a component with no fields is a tag. Fields can't be added once an entity has the component.
+ */
+public final class ComponentType {
+  private final World world;
+  private final String name;
+  final int id;
+  final long bit;
+
+  final List<FloatField> floatFields = new ArrayList<>();
+  final List<IntField> intFields = new ArrayList<>();
+  final List<LongField> longFields = new ArrayList<>();
+
+  boolean used = false;
+
+  ComponentType(World world, String name, int id) {
+    this.world = world;
+    this.name = name;
+    this.id = id;
+    this.bit = 1L << id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  private void checkUnused() {
+    if (used) {
+      throw new IllegalStateException("fields must be added before " + name + " is used");
+    }
+  }
+
+  public FloatField addFloat(String fieldName) {
+    checkUnused();
+    final FloatField field = new FloatField(this, fieldName, world.nextFloatFieldId++);
+    floatFields.add(field);
+    return field;
+  }
+
+  public IntField addInt(String fieldName) {
+    checkUnused();
+    final IntField field = new IntField(this, fieldName, world.nextIntFieldId++);
+    intFields.add(field);
+    return field;
+  }
+
+  public LongField addLong(String fieldName) {
+    checkUnused();
+    final LongField field = new LongField(this, fieldName, world.nextLongFieldId++);
+    longFields.add(field);
+    return field;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
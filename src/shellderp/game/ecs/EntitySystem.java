@@ -0,0 +1,27 @@
+package shellderp.game.ecs;
+
+import shellderp.game.GameStep;
+
+/**
+ * Game logic over the entities of a World, run as a GameStep, e.g. in a GameLoop or a StepScheduler.
+ * After update() the World's deferred changes are applied, so update() must make structural changes with
+ * the *Later() methods of World while it iterates.
+ * <p>
+ * In a StepScheduler, systems of one World change it when they finish, so declare writes() on the World for
+ * every system of it, or only run systems that don't make structural changes together.
+ */
+public abstract class EntitySystem implements GameStep {
+  protected final World world;
+
+  protected EntitySystem(World world) {
+    this.world = world;
+  }
+
+  @Override
+  public final void step(long timeDeltaMs) {
+    update(timeDeltaMs);
+    world.flush();
+  }
+
+  protected abstract void update(long timeDeltaMs);
+}
@@ -0,0 +1,29 @@
+package shellderp.game.ecs;
+
+/**
+ * A float field of a component, e.g. the x of a position. See Archetype.floats().
+ */
+public final class FloatField {
+  final ComponentType component;
+  final String name;
+  final int id;
+
+  FloatField(ComponentType component, String name, int id) {
+    this.component = component;
+    this.name = name;
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public ComponentType getComponent() {
+    return component;
+  }
+
+  @Override
+  public String toString() {
+    return component + "." + name;
+  }
+}
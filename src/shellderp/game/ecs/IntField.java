@@ -0,0 +1,29 @@
+package shellderp.game.ecs;
+
+/**
+ * An int field of a component. See Archetype.ints().
+ */
+public final class IntField {
+  final ComponentType component;
+  final String name;
+  final int id;
+
+  IntField(ComponentType component, String name, int id) {
+    this.component = component;
+    this.name = name;
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public ComponentType getComponent() {
+    return component;
+  }
+
+  @Override
+  public String toString() {
+    return component + "." + name;
+  }
+}
@@ -0,0 +1,29 @@
+package shellderp.game.ecs;
+
+/**
+ * A long field of a component. See Archetype.longs().
+ */
+public final class LongField {
+  final ComponentType component;
+  final String name;
+  final int id;
+
+  LongField(ComponentType component, String name, int id) {
+    this.component = component;
+    this.name = name;
+    this.id = id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public ComponentType getComponent() {
+    return component;
+  }
+
+  @Override
+  public String toString() {
+    return component + "." + name;
+  }
+}
@@ -0,0 +1,52 @@
+package shellderp.game.ecs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The archetypes that have all of a set of components, from World.query(). The World adds new archetypes
+ * to its queries as they are created, so a query never searches; keep it, and iterate it every frame:
+ * <pre>
+ *   for (int i = 0; i < query.archetypeCount(); i++) {
+ *     final Archetype archetype = query.archetype(i);
+ *     ... loop over the rows of archetype ...
+ *   }
+ * </pre>
+ */
+public final class Query {
+  final long mask;
+  private final List<Archetype> archetypes = new ArrayList<>();
+
+  Query(long mask) {
+    this.mask = mask;
+  }
+
+  boolean matches(Archetype archetype) {
+    return (archetype.mask & mask) == mask;
+  }
+
+  void archetypeAdded(Archetype archetype) {
+    if (matches(archetype)) {
+      archetypes.add(archetype);
+    }
+  }
+
+  public int archetypeCount() {
+    return archetypes.size();
+  }
+
+  public Archetype archetype(int i) {
+    return archetypes.get(i);
+  }
+
+  /**
+   * @return The number of matching entities.
+   */
+  public int count() {
+    int count = 0;
+    for (int i = 0; i < archetypes.size(); i++) {
+      count += archetypes.get(i).size();
+    }
+    return count;
+  }
+}
@@ -0,0 +1,360 @@
+package shellderp.game.ecs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The entities of a game, stored by archetype (see Archetype) so that systems iterate primitive arrays
+ * instead of object graphs, which keeps iteration in cache and lets the JIT vectorize simple loops.
+ * <p>
+ * An entity is an int, never negative. Its low 20 bits are an index that is reused after the entity is
+ * destroyed, so up to about a million entities live at once, and the 11 bits above are a generation, so a
+ * stale id of a destroyed entity is not mistaken for the new one, unless it is kept through 2048 reuses of
+ * its index.
+ * <p>
+ * Adding or removing components (a structural change) moves the entity's row to another archetype, and
+ * creating or destroying one moves the last row of its archetype. Doing so while a system iterates would
+ * skip or repeat rows, and may replace the arrays the system holds, so systems use createLater(),
+ * destroyLater(), addLater() and removeLater() instead, which are applied in order by flush() (EntitySystem
+ * does this after each update). Field values can be changed at any time.
+ * <p>
+ * Up to 64 component types. Not thread-safe.
+ */
+public final class World {
+  public static final int MAX_COMPONENTS = 64;
+
+  private static final int INDEX_BITS = 20;
+  private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+  // The rest but the sign bit.
+  private static final int GENERATION_MASK = (1 << (31 - INDEX_BITS)) - 1;
+
+  // Deferred operations.
+  private static final int DESTROY = 0;
+  private static final int ADD = 1;
+  private static final int REMOVE = 2;
+  private static final int MOVE_TO = 3;
+
+  int nextFloatFieldId = 0;
+  int nextIntFieldId = 0;
+  int nextLongFieldId = 0;
+
+  private final List<ComponentType> components = new ArrayList<>();
+  private final Map<Long, Archetype> archetypes = new HashMap<>();
+  private final Map<Long, Query> queries = new HashMap<>();
+  private final Archetype empty;
+
+  // Where each entity is, by index.
+  private int[] generations = new int[64];
+  private Archetype[] locations = new Archetype[64];
+  private int[] rows = new int[64];
+  private int nextIndex = 0;
+  private int[] freeIndices = new int[64];
+  private int freeCount = 0;
+  private int size = 0;
+
+  private int[] opKinds = new int[64];
+  private int[] opEntities = new int[64];
+  private long[] opArguments = new long[64];
+  private int opCount = 0;
+
+  public World() {
+    empty = archetype(0);
+  }
+
+  /**
+   * Define a component type. Add its fields before giving it to an entity.
+   */
+  public ComponentType component(String name) {
+    if (components.size() == MAX_COMPONENTS) {
+      throw new IllegalStateException("at most " + MAX_COMPONENTS + " component types");
+    }
+    final ComponentType component = new ComponentType(this, name, components.size());
+    components.add(component);
+    return component;
+  }
+
+  /**
+   * @return The query of the entities with all of components. The same query is returned for the same
+   * components, so this is cheap, but it's simplest to keep the query.
+   */
+  public Query query(ComponentType... components) {
+    final long mask = maskOf(components);
+    if (mask == 0) {
+      throw new IllegalArgumentException("query needs a component");
+    }
+    Query query = queries.get(mask);
+    if (query == null) {
+      query = new Query(mask);
+      for (Archetype archetype : archetypes.values()) {
+        query.archetypeAdded(archetype);
+      }
+      queries.put(mask, query);
+    }
+    return query;
+  }
+
+  private static long maskOf(ComponentType... components) {
+    long mask = 0;
+    for (ComponentType component : components) {
+      mask |= component.bit;
+    }
+    return mask;
+  }
+
+  private Archetype archetype(long mask) {
+    Archetype archetype = archetypes.get(mask);
+    if (archetype == null) {
+      final List<ComponentType> members = new ArrayList<>();
+      for (ComponentType component : components) {
+        if ((mask & component.bit) != 0) {
+          component.used = true;
+          members.add(component);
+        }
+      }
+      archetype = new Archetype(mask, members, nextFloatFieldId, nextIntFieldId, nextLongFieldId);
+      archetypes.put(mask, archetype);
+      for (Query query : queries.values()) {
+        query.archetypeAdded(archetype);
+      }
+    }
+    return archetype;
+  }
+
+  /**
+   * @return The number of live entities.
+   */
+  public int size() {
+    return size;
+  }
+
+  private static int indexOf(int entity) {
+    return entity & INDEX_MASK;
+  }
+
+  public boolean isAlive(int entity) {
+    final int index = indexOf(entity);
+    return entity >= 0 && index < nextIndex && locations[index] != null
+           && generations[index] == entity >>> INDEX_BITS;
+  }
+
+  private int checkAlive(int entity) {
+    if (!isAlive(entity)) {
+      throw new IllegalArgumentException("entity " + entity + " is not alive");
+    }
+    return indexOf(entity);
+  }
+
+  /**
+   * Create an entity with the given components, all fields 0. Not while iterating, see createLater().
+   */
+  public int create(ComponentType... components) {
+    final int index;
+    if (freeCount > 0) {
+      index = freeIndices[--freeCount];
+    } else {
+      if (nextIndex > INDEX_MASK) {
+        throw new IllegalStateException("too many entities");
+      }
+      index = nextIndex++;
+      if (index == locations.length) {
+        generations = Arrays.copyOf(generations, index * 2);
+        locations = Arrays.copyOf(locations, index * 2);
+        rows = Arrays.copyOf(rows, index * 2);
+      }
+    }
+    final int entity = (generations[index] << INDEX_BITS) | index;
+    final Archetype archetype = components.length == 0 ? empty : archetype(maskOf(components));
+    locations[index] = archetype;
+    rows[index] = archetype.addRow(entity);
+    size++;
+    return entity;
+  }
+
+  /**
+   * Destroy an entity. Not while iterating, see destroyLater().
+   */
+  public void destroy(int entity) {
+    final int index = checkAlive(entity);
+    removeRow(locations[index], rows[index]);
+    locations[index] = null;
+    generations[index] = (generations[index] + 1) & GENERATION_MASK;
+    if (freeCount == freeIndices.length) {
+      freeIndices = Arrays.copyOf(freeIndices, freeCount * 2);
+    }
+    freeIndices[freeCount++] = index;
+    size--;
+  }
+
+  private void removeRow(Archetype archetype, int row) {
+    final int moved = archetype.removeRow(row);
+    if (moved != -1) {
+      rows[indexOf(moved)] = row;
+    }
+  }
+
+  /**
+   * Give an entity a component, with all fields 0. Does nothing if it has it. Not while iterating, see
+   * addLater().
+   */
+  public void add(int entity, ComponentType component) {
+    final int index = checkAlive(entity);
+    final Archetype source = locations[index];
+    if (!source.has(component)) {
+      Archetype target = source.addEdges[component.id];
+      if (target == null) {
+        target = archetype(source.mask | component.bit);
+        source.addEdges[component.id] = target;
+      }
+      move(index, target);
+    }
+  }
+
+  /**
+   * Take a component from an entity. Does nothing if it doesn't have it. Not while iterating, see
+   * removeLater().
+   */
+  public void remove(int entity, ComponentType component) {
+    final int index = checkAlive(entity);
+    final Archetype source = locations[index];
+    if (source.has(component)) {
+      Archetype target = source.removeEdges[component.id];
+      if (target == null) {
+        target = archetype(source.mask & ~component.bit);
+        source.removeEdges[component.id] = target;
+      }
+      move(index, target);
+    }
+  }
+
+  private void move(int index, Archetype target) {
+    final Archetype source = locations[index];
+    final int row = rows[index];
+    final int targetRow = target.addRow(source.entities[row]);
+    source.copyRow(row, target, targetRow);
+    removeRow(source, row);
+    locations[index] = target;
+    rows[index] = targetRow;
+  }
+
+  public boolean has(int entity, ComponentType component) {
+    return locations[checkAlive(entity)].has(component);
+  }
+
+  /**
+   * @return The archetype of entity; its row is rowOf(). Both change on structural changes.
+   */
+  public Archetype archetypeOf(int entity) {
+    return locations[checkAlive(entity)];
+  }
+
+  public int rowOf(int entity) {
+    return rows[checkAlive(entity)];
+  }
+
+  // Single field access, for code that handles one entity at a time. Systems should use the columns.
+
+  public float getFloat(int entity, FloatField field) {
+    final int index = checkAlive(entity);
+    return locations[index].floats(field)[rows[index]];
+  }
+
+  public void setFloat(int entity, FloatField field, float value) {
+    final int index = checkAlive(entity);
+    locations[index].floats(field)[rows[index]] = value;
+  }
+
+  public int getInt(int entity, IntField field) {
+    final int index = checkAlive(entity);
+    return locations[index].ints(field)[rows[index]];
+  }
+
+  public void setInt(int entity, IntField field, int value) {
+    final int index = checkAlive(entity);
+    locations[index].ints(field)[rows[index]] = value;
+  }
+
+  public long getLong(int entity, LongField field) {
+    final int index = checkAlive(entity);
+    return locations[index].longs(field)[rows[index]];
+  }
+
+  public void setLong(int entity, LongField field, long value) {
+    final int index = checkAlive(entity);
+    locations[index].longs(field)[rows[index]] = value;
+  }
+
+  /**
+   * Create an entity with no components now, and give it components at the next flush(). Its id can be
+   * used right away, e.g. in other deferred operations, but it is in no query until then.
+   */
+  public int createLater(ComponentType... components) {
+    final int entity = create();
+    if (components.length > 0) {
+      defer(MOVE_TO, entity, maskOf(components));
+    }
+    return entity;
+  }
+
+  public void destroyLater(int entity) {
+    checkAlive(entity);
+    defer(DESTROY, entity, 0);
+  }
+
+  public void addLater(int entity, ComponentType component) {
+    checkAlive(entity);
+    defer(ADD, entity, component.id);
+  }
+
+  public void removeLater(int entity, ComponentType component) {
+    checkAlive(entity);
+    defer(REMOVE, entity, component.id);
+  }
+
+  private void defer(int kind, int entity, long argument) {
+    if (opCount == opKinds.length) {
+      opKinds = Arrays.copyOf(opKinds, opCount * 2);
+      opEntities = Arrays.copyOf(opEntities, opCount * 2);
+      opArguments = Arrays.copyOf(opArguments, opCount * 2);
+    }
+    opKinds[opCount] = kind;
+    opEntities[opCount] = entity;
+    opArguments[opCount] = argument;
+    opCount++;
+  }
+
+  /**
+   * Apply the deferred operations, in the order they were made. Operations on entities destroyed by an
+   * earlier one are skipped.
+   */
+  public void flush() {
+    for (int i = 0; i < opCount; i++) {
+      final int entity = opEntities[i];
+      if (!isAlive(entity)) {
+        continue;
+      }
+      switch (opKinds[i]) {
+        case DESTROY:
+          destroy(entity);
+          break;
+        case ADD:
+          add(entity, components.get((int) opArguments[i]));
+          break;
+        case REMOVE:
+          remove(entity, components.get((int) opArguments[i]));
+          break;
+        case MOVE_TO:
+          final Archetype target = archetype(opArguments[i]);
+          if (target != locations[indexOf(entity)]) {
+            move(indexOf(entity), target);
+          }
+          break;
+        default:
+          throw new IllegalStateException("unknown operation " + opKinds[i]);
+      }
+    }
+    opCount = 0;
+  }
+}
@@ -0,0 +1,736 @@
+package shellderp.game.network;
+
+import shellderp.game.Timer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A channel for large blobs (e.g. assets or patches) next to the streams of a connection. The reliable
+ * stream is made for small messages: its window and the 16 bit sequence space keep it far below the
+ * capacity of a fast link, and a large transfer on it would delay game messages behind it. Bulk transfers
+ * instead use their own control messages (BULK_* in ControlType):
+ * <p>
+ * 1. The data is split into chunks that fill a datagram, numbered from 0. Chunks are acked selectively
+ * (a count of chunks received in order plus a map of the ones after it), so a lost chunk is resent alone
+ * rather than with the whole window, and the window can be large: it starts at INITIAL_WINDOW_CHUNKS, grows
+ * by one chunk per chunk acked up to MAX_WINDOW_CHUNKS, and halves when chunks are lost.
+ * <br>
+ * 2. Bulk data has the lowest priority. It is only sent in Connection::step() after the streams and the
+ * SendScheduler, never while scheduled messages or reliable packets are waiting, and only within what is
+ * left of the SendScheduler's budget.
+ * <br>
+ * 3. Transfers are resumable at chunk granularity. The receiver writes chunks to its channel in order, so
+ * after an interruption (e.g. the connection dropped) the channel holds a prefix of the data. When the
+ * sender offers the same transfer id again, the receiver's handler returns the same channel, and only the
+ * chunks after that prefix are sent.
+ * <br>
+ * 4. The sender maps the file and passes slices of the mapping to the socket as the packet body (see
+ * Packet.Builder.body()), so the data is copied once, straight into the datagram, without a read() into a
+ * heap buffer.
+ * <p>
+ * Transfers in each direction are sent one at a time, in the order of send().
+ * <p>
+ * All methods are thread safe. Control messages are handled in the receive thread, and callbacks to the
+ * BulkTransferHandler are made in Connection::step(), which also does the disk writes.
+ */
+public class BulkTransfer {
+  private static final Logger logger = Logger.getLogger(BulkTransfer.class.getName());
+
+  static final int INITIAL_WINDOW_CHUNKS = 16;
+  static final int MAX_WINDOW_CHUNKS = 1024;
+  private static final int MIN_WINDOW_CHUNKS = 4;
+
+  /**
+   * The receiver acks after this many chunks received in order, or right away on a chunk out of order.
+   */
+  private static final int ACK_EVERY = 2;
+
+  /**
+   * A chunk is resent once a chunk this many places after it, sent after it, is acked, without waiting
+   * for the retransmit timeout.
+   */
+  private static final int REORDER_THRESHOLD = 3;
+
+  private static final int SACK_BITS = 64;
+
+  /**
+   * The BULK_DATA header in the payload: type, transfer id and chunk index.
+   */
+  static final int DATA_HEADER_SIZE = 1 + 8 + 4;
+
+  private static final long NANOS_PER_MS = 1_000_000;
+
+  /**
+   * Used while no handler is set.
+   */
+  private static final BulkTransferHandler REFUSING_HANDLER = new BulkTransferHandler() {
+    @Override
+    public FileChannel onOffer(Connection connection, long transferId, long length) {
+      return null;
+    }
+
+    @Override
+    public void onReceived(Connection connection, long transferId) {
+    }
+
+    @Override
+    public void onSent(Connection connection, long transferId) {
+    }
+
+    @Override
+    public void onCancelled(Connection connection, long transferId) {
+    }
+  };
+
+  private enum State {
+    QUEUED,
+    OFFERED,
+    SENDING,
+    DONE,
+    CANCELLED,
+  }
+
+  /**
+   * An outgoing transfer, with its progress.
+   */
+  public static class Outgoing {
+    private final long transferId;
+    private final long length;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final MappedByteBuffer data;
+
+    private volatile State state = State.QUEUED;
+
+    /**
+     * The first chunk not acked in order, and the next chunk never sent.
+     */
+    private volatile int base;
+    private int next;
+
+    // Per chunk in flight, indexed by chunk % MAX_WINDOW_CHUNKS. The serial orders transmissions.
+    private final long[] sentNanos = new long[MAX_WINDOW_CHUNKS];
+    private final long[] sentSerial = new long[MAX_WINDOW_CHUNKS];
+    private final boolean[] sacked = new boolean[MAX_WINDOW_CHUNKS];
+    private final boolean[] resent = new boolean[MAX_WINDOW_CHUNKS];
+
+    private int window = INITIAL_WINDOW_CHUNKS;
+
+    /**
+     * We halve the window at most once per window of data, so a burst of losses counts as one.
+     */
+    private int recoveryEnd = 0;
+
+    private long nextSerial = 0;
+
+    /**
+     * The highest chunk acked so far, and the serial of its last transmission.
+     */
+    private int highestAcked = -1;
+    private long highestAckedSerial;
+
+    private final VariableTimeout timeout =
+        new VariableTimeout(ReliableStream.DEFAULT_PACKET_LOST_TIMEOUT_MS);
+    private final Timer offerTimer = new Timer();
+
+    private Outgoing(long transferId, long length, int chunkSize, MappedByteBuffer data) {
+      this.transferId = transferId;
+      this.length = length;
+      this.chunkSize = chunkSize;
+      this.chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+      this.data = data;
+    }
+
+    public long getTransferId() {
+      return transferId;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return The bytes the receiver has acked in order, including any it held from an earlier attempt.
+     */
+    public long getBytesAcked() {
+      return Math.min(length, (long) base * chunkSize);
+    }
+
+    public boolean isDone() {
+      return state == State.DONE;
+    }
+
+    public boolean isCancelled() {
+      return state == State.CANCELLED;
+    }
+
+    private ByteBuffer chunk(int index) {
+      final ByteBuffer chunk = data.duplicate();
+      final long start = (long) index * chunkSize;
+      chunk.limit((int) Math.min(length, start + chunkSize));
+      chunk.position((int) start);
+      return chunk.slice();
+    }
+  }
+
+  /**
+   * The incoming transfer. Chunks are kept in memory until they can be written in order.
+   */
+  private static class Incoming {
+    final long transferId;
+    final long length;
+    final int chunkSize;
+    final int chunkCount;
+
+    /**
+     * Set in step() once the handler accepted the offer.
+     */
+    FileChannel channel;
+    boolean offerPassedToHandler = false;
+    int firstChunk;
+
+    /**
+     * The next chunk not received, and the next chunk not written. Chunks in between, and chunks received
+     * out of order, are in the slots.
+     */
+    int received;
+    int written;
+
+    final ByteBuffer[] slots = new ByteBuffer[MAX_WINDOW_CHUNKS];
+    final int[] slotChunks = new int[MAX_WINDOW_CHUNKS];
+
+    int unackedChunks = 0;
+
+    Incoming(long transferId, long length, int chunkSize) {
+      this.transferId = transferId;
+      this.length = length;
+      this.chunkSize = chunkSize;
+      this.chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    boolean has(int chunk) {
+      final int slot = chunk % MAX_WINDOW_CHUNKS;
+      return slots[slot] != null && slotChunks[slot] == chunk;
+    }
+  }
+
+  private final Connection connection;
+
+  private volatile BulkTransferHandler handler;
+
+  /**
+   * Outgoing transfers in the order of send(). The first one is the one being sent.
+   */
+  private final ArrayDeque<Outgoing> outgoing = new ArrayDeque<>();
+
+  private Incoming incoming;
+
+  /**
+   * The last transfer we received completely, so that a repeated offer (our accept or acks were lost) can
+   * be answered.
+   */
+  private long completedTransferId;
+  private int completedChunkCount = -1;
+
+  /**
+   * Handler callbacks to make in the next step().
+   */
+  private List<Runnable> callbacks = new ArrayList<>();
+
+  BulkTransfer(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * Set the handler for transfers of this connection. Without a handler, offers are refused.
+   */
+  public void setHandler(BulkTransferHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Queue the contents of source to be sent to the endpoint. The source is read from its start to its size
+   * at the time of this call, and is mapped into memory, so it must not be truncated until the transfer
+   * ends. It is still owned by the caller.
+   *
+   * @param transferId Identifies the transfer to the receiver. Use the same id to resume an interrupted
+   *                   transfer of the same data, e.g. a hash of the name and version of an asset.
+   * @param source     The data to send, open for reading.
+   * @return The transfer, to follow its progress.
+   * @throws IllegalArgumentException If source is larger than 2 GB.
+   */
+  public Outgoing send(long transferId, FileChannel source) throws IOException {
+    final long length = source.size();
+    if (length > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("bulk transfers are mapped in one piece, so must be under 2 GB");
+    }
+    final int chunkSize = connection.getMaxDatagramSize() - Packet.MAX_HEADER_SIZE - DATA_HEADER_SIZE;
+    final Outgoing transfer =
+        new Outgoing(transferId, length, chunkSize, source.map(FileChannel.MapMode.READ_ONLY, 0, length));
+    synchronized (this) {
+      outgoing.add(transfer);
+    }
+    return transfer;
+  }
+
+  /**
+   * Cancel the transfer with this id in either direction, telling the endpoint. Nothing happens if there
+   * is none.
+   */
+  public synchronized void cancel(long transferId) {
+    for (Outgoing transfer : outgoing) {
+      if (transfer.transferId == transferId) {
+        if (transfer.state != State.QUEUED) {
+          sendCancel(transferId);
+        }
+        transfer.state = State.CANCELLED;
+        outgoing.remove(transfer);
+        return;
+      }
+    }
+    if (incoming != null && incoming.transferId == transferId) {
+      sendCancel(transferId);
+      incoming = null;
+    }
+  }
+
+  /**
+   * Called by Connection for a BULK_* control message, in the receive thread.
+   *
+   * @param data The message after the type byte.
+   */
+  synchronized void controlReceived(ControlType type, ByteBuffer data) throws IOException {
+    final long transferId = data.getLong();
+    switch (type) {
+      case BULK_OFFER:
+        offerReceived(transferId, data.getLong(), data.getShort() & 0xFFFF);
+        break;
+      case BULK_ACCEPT:
+        acceptReceived(transferId, data.getInt());
+        break;
+      case BULK_DATA:
+        dataReceived(transferId, data.getInt(), data.slice());
+        break;
+      case BULK_ACK:
+        ackReceived(transferId, data.getInt(), data.getLong());
+        break;
+      case BULK_CANCEL:
+        cancelReceived(transferId);
+        break;
+      default:
+        throw new IllegalArgumentException("not a bulk transfer message: " + type);
+    }
+  }
+
+  private void offerReceived(long transferId, long length, int chunkSize) throws IOException {
+    if (chunkSize == 0 || length < 0 || (length + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+      throw new MalformedPacketException("bad bulk offer: length " + length + ", chunk size " + chunkSize);
+    }
+
+    if (incoming != null && incoming.transferId == transferId) {
+      if (incoming.channel != null) {
+        sendAccept(transferId, incoming.firstChunk); // Our accept was lost.
+      }
+      return;
+    }
+    if (completedChunkCount >= 0 && completedTransferId == transferId) {
+      // We have it all, and our last acks were lost.
+      sendAccept(transferId, completedChunkCount);
+      return;
+    }
+
+    if (incoming != null) {
+      // The sender gave up on the previous transfer without us hearing it.
+      final long abandoned = incoming.transferId;
+      callbacks.add(() -> handlerOrRefuse().onCancelled(connection, abandoned));
+    }
+    incoming = new Incoming(transferId, length, chunkSize);
+  }
+
+  private void acceptReceived(long transferId, int firstChunk) {
+    final Outgoing transfer = outgoing.peek();
+    if (transfer == null || transfer.transferId != transferId || transfer.state != State.OFFERED) {
+      return;
+    }
+    transfer.state = State.SENDING;
+    final int first = Math.max(0, Math.min(firstChunk, transfer.chunkCount));
+    transfer.base = transfer.next = transfer.recoveryEnd = first;
+    completeIfAcked(transfer);
+  }
+
+  private void dataReceived(long transferId, int chunk, ByteBuffer data) throws IOException {
+    final Incoming in = incoming;
+    if (in == null || in.transferId != transferId || in.channel == null) {
+      if (completedChunkCount >= 0 && completedTransferId == transferId) {
+        sendAck(transferId, completedChunkCount, 0); // Our last acks were lost.
+      }
+      return;
+    }
+    if (chunk < 0 || chunk >= in.chunkCount) {
+      throw new MalformedPacketException("bulk chunk out of range: " + chunk);
+    }
+    final long expectedSize = Math.min(in.chunkSize, in.length - (long) chunk * in.chunkSize);
+    if (data.remaining() != expectedSize) {
+      throw new MalformedPacketException("bulk chunk " + chunk + " has " + data.remaining() + " bytes");
+    }
+
+    // Chunks too far ahead would overwrite slots that aren't written yet, the sender resends them later.
+    if (chunk < in.received || chunk >= in.written + MAX_WINDOW_CHUNKS || in.has(chunk)) {
+      sendAck(in); // A duplicate, maybe our acks were lost.
+      return;
+    }
+
+    final int slot = chunk % MAX_WINDOW_CHUNKS;
+    in.slots[slot] = data;
+    in.slotChunks[slot] = chunk;
+
+    final boolean inOrder = chunk == in.received;
+    while (in.received < in.chunkCount && in.received < in.written + MAX_WINDOW_CHUNKS
+           && in.has(in.received)) {
+      in.received++;
+    }
+    in.unackedChunks++;
+    if (!inOrder || in.unackedChunks >= ACK_EVERY || in.received == in.chunkCount) {
+      sendAck(in);
+    }
+  }
+
+  private void ackReceived(long transferId, int chunksReceived, long sackBits) {
+    final Outgoing transfer = outgoing.peek();
+    if (transfer == null || transfer.transferId != transferId || transfer.state != State.SENDING
+        || chunksReceived < transfer.base || chunksReceived > transfer.next) {
+      return;
+    }
+
+    final long now = System.nanoTime();
+    for (int chunk = transfer.base; chunk < chunksReceived; chunk++) {
+      chunkAcked(transfer, chunk, now);
+    }
+    transfer.base = chunksReceived;
+
+    for (int i = 0; i < SACK_BITS; i++) {
+      final int chunk = chunksReceived + 1 + i;
+      if (chunk >= transfer.next) {
+        break;
+      }
+      if ((sackBits & (1L << i)) != 0) {
+        chunkAcked(transfer, chunk, now);
+      }
+    }
+
+    completeIfAcked(transfer);
+  }
+
+  private void chunkAcked(Outgoing transfer, int chunk, long now) {
+    final int slot = chunk % MAX_WINDOW_CHUNKS;
+    if (transfer.sacked[slot]) {
+      return;
+    }
+    transfer.sacked[slot] = true;
+
+    // Only chunks sent once give a clear round trip time sample.
+    if (!transfer.resent[slot]) {
+      transfer.timeout.updateFromSample((now - transfer.sentNanos[slot]) / NANOS_PER_MS);
+    }
+    transfer.window = Math.min(transfer.window + 1, MAX_WINDOW_CHUNKS);
+
+    if (chunk > transfer.highestAcked) {
+      transfer.highestAcked = chunk;
+      transfer.highestAckedSerial = transfer.sentSerial[slot];
+    }
+  }
+
+  private void completeIfAcked(Outgoing transfer) {
+    if (transfer.base < transfer.chunkCount) {
+      return;
+    }
+    transfer.state = State.DONE;
+    outgoing.poll();
+    callbacks.add(() -> handlerOrRefuse().onSent(connection, transfer.transferId));
+  }
+
+  private void cancelReceived(long transferId) {
+    final Outgoing transfer = outgoing.peek();
+    if (transfer != null && transfer.transferId == transferId && transfer.state != State.QUEUED) {
+      transfer.state = State.CANCELLED;
+      outgoing.poll();
+    } else if (incoming != null && incoming.transferId == transferId) {
+      incoming = null;
+    } else {
+      return;
+    }
+    callbacks.add(() -> handlerOrRefuse().onCancelled(connection, transferId));
+  }
+
+  private BulkTransferHandler handlerOrRefuse() {
+    final BulkTransferHandler h = handler;
+    return h != null ? h : REFUSING_HANDLER;
+  }
+
+  /**
+   * Called by Connection::step() after the streams and the SendScheduler:
+   * 1. Make the callbacks of messages received since the last step.
+   * 2. Pass a new offer to the handler, and accept or refuse it.
+   * 3. Write the chunks received in order, and finish the incoming transfer once all are written.
+   * 4. Send the acks that were delayed.
+   * 5. Resend lost chunks and send new ones, within the window and the budget.
+   *
+   * @param budgetBytes How much may be sent, see SendScheduler.bulkBudget().
+   */
+  void step(long budgetBytes) {
+    runCallbacks();
+    stepIncoming();
+    runCallbacks();
+    stepOutgoing(budgetBytes);
+  }
+
+  private void runCallbacks() {
+    final List<Runnable> toRun;
+    synchronized (this) {
+      if (callbacks.isEmpty()) {
+        return;
+      }
+      toRun = callbacks;
+      callbacks = new ArrayList<>();
+    }
+    for (Runnable callback : toRun) {
+      callback.run();
+    }
+  }
+
+  private void stepIncoming() {
+    Incoming offer = null;
+    synchronized (this) {
+      if (incoming != null && !incoming.offerPassedToHandler) {
+        incoming.offerPassedToHandler = true;
+        offer = incoming;
+      }
+    }
+    if (offer != null) {
+      acceptOrRefuse(offer);
+    }
+
+    final Incoming in;
+    final List<ByteBuffer> toWrite = new ArrayList<>();
+    final int firstToWrite;
+    synchronized (this) {
+      in = incoming;
+      if (in == null || in.channel == null) {
+        return;
+      }
+      firstToWrite = in.written;
+      for (int chunk = in.written; chunk < in.received; chunk++) {
+        final int slot = chunk % MAX_WINDOW_CHUNKS;
+        toWrite.add(in.slots[slot]);
+        in.slots[slot] = null;
+      }
+      in.written = in.received;
+      if (in.unackedChunks > 0) {
+        sendAck(in);
+      }
+    }
+
+    // Write outside the lock, so the receive thread doesn't wait on the disk.
+    try {
+      for (int i = 0; i < toWrite.size(); i++) {
+        final ByteBuffer data = toWrite.get(i);
+        long position = (long) (firstToWrite + i) * in.chunkSize;
+        while (data.hasRemaining()) {
+          position += in.channel.write(data, position);
+        }
+      }
+      if (in.written == in.chunkCount) {
+        in.channel.truncate(in.length); // In case the channel held older, longer data.
+        in.channel.force(false);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "failed to write bulk transfer " + in.transferId + ", cancelling", e);
+      cancel(in.transferId);
+      handlerOrRefuse().onCancelled(connection, in.transferId);
+      return;
+    }
+
+    if (in.written == in.chunkCount) {
+      synchronized (this) {
+        if (incoming == in) {
+          incoming = null;
+          completedTransferId = in.transferId;
+          completedChunkCount = in.chunkCount;
+        }
+      }
+      handlerOrRefuse().onReceived(connection, in.transferId);
+    }
+  }
+
+  private void acceptOrRefuse(Incoming offer) {
+    FileChannel channel;
+    int firstChunk = 0;
+    try {
+      channel = handlerOrRefuse().onOffer(connection, offer.transferId, offer.length);
+      if (channel != null) {
+        // Resume after the whole chunks an earlier attempt wrote.
+        final long held = Math.min(channel.size(), offer.length);
+        firstChunk = held == offer.length ? offer.chunkCount : (int) (held / offer.chunkSize);
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "failed to open bulk transfer " + offer.transferId + ", refusing", e);
+      channel = null;
+    }
+
+    synchronized (this) {
+      if (incoming != offer) {
+        return; // Cancelled or replaced while the handler ran.
+      }
+      if (channel == null) {
+        incoming = null;
+        sendCancel(offer.transferId);
+        return;
+      }
+      offer.channel = channel;
+      offer.firstChunk = offer.received = offer.written = firstChunk;
+      sendAccept(offer.transferId, firstChunk);
+    }
+  }
+
+  private void stepOutgoing(long budgetBytes) {
+    long budget = budgetBytes;
+    synchronized (this) {
+      final Outgoing transfer = outgoing.peek();
+      if (transfer == null) {
+        return;
+      }
+
+      final boolean offerLost = transfer.state == State.OFFERED
+                                && transfer.offerTimer.hasPassed(transfer.timeout.getTimeoutMs());
+      if (transfer.state == State.QUEUED || offerLost) {
+        final ByteBuffer offer = ByteBuffer.allocate(18);
+        offer.putLong(transfer.transferId);
+        offer.putLong(transfer.length);
+        offer.putShort((short) transfer.chunkSize);
+        offer.flip();
+        sendControl(ControlType.BULK_OFFER, offer, null);
+        transfer.state = State.OFFERED;
+        transfer.offerTimer.restart();
+        return;
+      }
+      if (transfer.state != State.SENDING) {
+        return;
+      }
+
+      final long now = System.nanoTime();
+      final long timeoutNanos = transfer.timeout.getTimeoutMs() * NANOS_PER_MS;
+
+      // Resend lost chunks first, they hold back the receiver's writes.
+      boolean lost = false;
+      for (int chunk = transfer.base; chunk < transfer.next && budget > 0; chunk++) {
+        final int slot = chunk % MAX_WINDOW_CHUNKS;
+        if (transfer.sacked[slot]) {
+          continue;
+        }
+        final boolean timedOut = now - transfer.sentNanos[slot] > timeoutNanos;
+        final boolean overtaken = transfer.highestAcked >= chunk + REORDER_THRESHOLD
+                                  && transfer.highestAckedSerial > transfer.sentSerial[slot];
+        if (!timedOut && !overtaken) {
+          continue;
+        }
+        final int bytesSent = sendChunk(transfer, chunk);
+        if (bytesSent == 0) {
+          return;
+        }
+        budget -= bytesSent;
+        transfer.sentNanos[slot] = now;
+        transfer.sentSerial[slot] = transfer.nextSerial++;
+        transfer.resent[slot] = true;
+        lost = true;
+      }
+
+      if (lost && transfer.base >= transfer.recoveryEnd) {
+        transfer.window = Math.max(transfer.window / 2, MIN_WINDOW_CHUNKS);
+        transfer.recoveryEnd = transfer.next;
+      }
+
+      while (transfer.next < transfer.chunkCount && transfer.next - transfer.base < transfer.window
+             && budget > 0) {
+        final int bytesSent = sendChunk(transfer, transfer.next);
+        if (bytesSent == 0) {
+          return; // The kernel buffer is full, try again next step.
+        }
+        budget -= bytesSent;
+        final int slot = transfer.next % MAX_WINDOW_CHUNKS;
+        transfer.sentNanos[slot] = now;
+        transfer.sentSerial[slot] = transfer.nextSerial++;
+        transfer.sacked[slot] = false;
+        transfer.resent[slot] = false;
+        transfer.next++;
+      }
+    }
+  }
+
+  private int sendChunk(Outgoing transfer, int chunk) {
+    final ByteBuffer header = ByteBuffer.allocate(12);
+    header.putLong(transfer.transferId);
+    header.putInt(chunk);
+    header.flip();
+    return sendControl(ControlType.BULK_DATA, header, transfer.chunk(chunk));
+  }
+
+  private void sendAck(Incoming in) {
+    long sackBits = 0;
+    for (int i = 0; i < SACK_BITS; i++) {
+      final int chunk = in.received + 1 + i;
+      if (chunk >= in.chunkCount) {
+        break;
+      }
+      if (in.has(chunk)) {
+        sackBits |= 1L << i;
+      }
+    }
+    in.unackedChunks = 0;
+    sendAck(in.transferId, in.received, sackBits);
+  }
+
+  private void sendAck(long transferId, int chunksReceived, long sackBits) {
+    final ByteBuffer ack = ByteBuffer.allocate(20);
+    ack.putLong(transferId);
+    ack.putInt(chunksReceived);
+    ack.putLong(sackBits);
+    ack.flip();
+    sendControl(ControlType.BULK_ACK, ack, null);
+  }
+
+  private void sendAccept(long transferId, int firstChunk) {
+    final ByteBuffer accept = ByteBuffer.allocate(12);
+    accept.putLong(transferId);
+    accept.putInt(firstChunk);
+    accept.flip();
+    sendControl(ControlType.BULK_ACCEPT, accept, null);
+  }
+
+  private void sendCancel(long transferId) {
+    final ByteBuffer cancel = ByteBuffer.allocate(8);
+    cancel.putLong(transferId);
+    cancel.flip();
+    sendControl(ControlType.BULK_CANCEL, cancel, null);
+  }
+
+  /**
+   * @return The bytes sent, 0 if the message could not be sent now. Every message is repeated if it is
+   * lost, so failures are only logged.
+   */
+  private int sendControl(ControlType type, ByteBuffer data, ByteBuffer body) {
+    try {
+      return connection.sendControl(type, data, body);
+    } catch (IOException e) {
+      logger.log(Level.INFO, "failed to send " + type, e);
+      return 0;
+    }
+  }
+}
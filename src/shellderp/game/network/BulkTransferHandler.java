@@ -0,0 +1,40 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Callbacks for the bulk transfers of a connection, see {@link BulkTransfer}. Like ConnectionHandler, all
+ * callbacks are only called inside a call to Connection::step().
+ */
+public interface BulkTransferHandler {
+
+  /**
+   * Called when the endpoint offers a transfer.
+   * <p>
+   * To resume an interrupted transfer, return the channel the earlier attempt was written to, without
+   * truncating it: chunks are written in order, so whole chunks within its size are kept and only the rest
+   * is sent.
+   *
+   * @param transferId The id the sender gave the transfer. Resuming only makes sense for the same id.
+   * @param length     The length of the data in bytes.
+   * @return A channel open for writing to receive the data into, or null to refuse the transfer. The
+   * channel is still owned by the caller, it is not closed when the transfer ends.
+   */
+  FileChannel onOffer(Connection connection, long transferId, long length) throws IOException;
+
+  /**
+   * Called when all the data of an incoming transfer is written to its channel.
+   */
+  void onReceived(Connection connection, long transferId);
+
+  /**
+   * Called when the receiver has acknowledged all the data of an outgoing transfer.
+   */
+  void onSent(Connection connection, long transferId);
+
+  /**
+   * Called when a transfer in either direction is cancelled by the endpoint, or an offer is refused.
+   */
+  void onCancelled(Connection connection, long transferId);
+}
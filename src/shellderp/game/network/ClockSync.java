@@ -0,0 +1,244 @@
+package shellderp.game.network;
+
+import shellderp.game.Timer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates the server's clock from the client side of a connection, similar to NTP.
+ * <p>
+ * The client periodically sends a TIME_REQUEST control packet holding its local send time t0. The server
+ * echoes t0 back along with its own clock ts in a TIME_RESPONSE, which the client receives at t1. Assuming
+ * the path is symmetric, the server clock at t1 was ts + (t1 - t0) / 2, so each exchange gives a sample of
+ * the offset between the two clocks.
+ * <p>
+ * A single sample is noisy since queueing delay is rarely symmetric, so we keep a window of recent
+ * samples and reject outliers: a sample with a round trip much longer than the best in the window most
+ * likely spent that extra time queued in one direction only. From the samples that remain we fit a line to
+ * estimate both the offset and the drift (the rate at which the two clocks diverge), so the estimate stays
+ * accurate between exchanges.
+ * <p>
+ * serverTimeNanos() is called from game code, possibly from several threads, so it only reads a single
+ * immutable estimate and never takes a lock. Once synchronized, the returned value never decreases, even
+ * when a new estimate would move the clock backwards.
+ * <p>
+ * On the server side of a connection (the authority), the server clock is simply the local clock and no
+ * requests are sent.
+ */
+class ClockSync {
+
+  /**
+   * Interval between requests until we have enough samples for a stable estimate.
+   */
+  static final long INITIAL_SYNC_INTERVAL_MS = 100;
+
+  /**
+   * Interval between requests once synchronized. Drift between two clocks is typically tens of
+   * microseconds per second, so this is plenty.
+   */
+  static final long SYNC_INTERVAL_MS = 2000;
+
+  /**
+   * Number of accepted samples needed before we consider the clock synchronized and slow down.
+   */
+  static final int SAMPLES_TO_SYNCHRONIZE = 5;
+
+  /**
+   * Size of the window of recent samples used for the estimate.
+   */
+  private static final int MAX_SAMPLES = 16;
+
+  /**
+   * A sample is an outlier if its round trip exceeds the best round trip in the window by more than this
+   * fraction of the best round trip (or by MIN_OUTLIER_SLACK_NANOS, whichever is larger).
+   */
+  private static final double OUTLIER_RTT_FACTOR = 0.5;
+  private static final long MIN_OUTLIER_SLACK_NANOS = 1_000_000;
+
+  /**
+   * The drift estimate is only meaningful once samples span some time, and is clamped to a sane value
+   * since real oscillators are well within 500 ppm.
+   */
+  private static final long MIN_DRIFT_SPAN_NANOS = 1_000_000_000L;
+  private static final double MAX_DRIFT = 500e-6;
+
+  /**
+   * Immutable estimate of the server clock: serverTime(local) = local + offset + drift * (local - base).
+   */
+  private static final class Estimate {
+    final long baseLocalNanos;
+    final long offsetNanos;
+    final double drift;
+
+    Estimate(long baseLocalNanos, long offsetNanos, double drift) {
+      this.baseLocalNanos = baseLocalNanos;
+      this.offsetNanos = offsetNanos;
+      this.drift = drift;
+    }
+
+    long serverTimeAt(long localNanos) {
+      return localNanos + offsetNanos + (long) (drift * (localNanos - baseLocalNanos));
+    }
+  }
+
+  private final boolean authority;
+
+  private volatile Estimate estimate = new Estimate(0, 0, 0);
+
+  /**
+   * The largest value returned by serverTimeNanos(), used to keep the clock monotonic.
+   */
+  private final AtomicLong lastServerTime = new AtomicLong(Long.MIN_VALUE);
+
+  // Circular buffer of samples. Only accessed under synchronized (this).
+  private final long[] sampleLocalNanos = new long[MAX_SAMPLES];
+  private final long[] sampleOffsetNanos = new long[MAX_SAMPLES];
+  private final long[] sampleRttNanos = new long[MAX_SAMPLES];
+  private int numSamples = 0;
+  private int nextSample = 0;
+
+  private volatile int acceptedSamples = 0;
+
+  private final Timer requestTimer = new Timer();
+
+  /**
+   * @param authority true if the local clock is the server clock, i.e. this is the server side of a
+   *                  connection.
+   */
+  ClockSync(boolean authority) {
+    this.authority = authority;
+  }
+
+  /**
+   * @return true if the local clock is the server clock.
+   */
+  boolean isAuthority() {
+    return authority;
+  }
+
+  /**
+   * @return true once enough samples have been accepted for the estimate to be used. Always true on the
+   * authority.
+   */
+  boolean isSynchronized() {
+    return authority || acceptedSamples >= SAMPLES_TO_SYNCHRONIZE;
+  }
+
+  /**
+   * Check if a new TIME_REQUEST should be sent. If true, the request timer is restarted, so the caller
+   * must send the request. Only called from Connection::step().
+   */
+  boolean needToSendRequest() {
+    if (authority) {
+      return false;
+    }
+
+    final long intervalMs = isSynchronized() ? SYNC_INTERVAL_MS : INITIAL_SYNC_INTERVAL_MS;
+    if (!requestTimer.isActive() || requestTimer.hasPassed(intervalMs)) {
+      requestTimer.restart();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return The estimated server clock in nanoseconds. Monotonic and lock-free.
+   */
+  long serverTimeNanos() {
+    final long localNanos = System.nanoTime();
+    if (authority) {
+      return localNanos;
+    }
+
+    final long serverTime = estimate.serverTimeAt(localNanos);
+    if (!isSynchronized()) {
+      // Early estimates can be far off, so we don't let them hold back the clock once synchronized.
+      return serverTime;
+    }
+
+    // Clamp to the last value handed out so that the clock never runs backwards when the estimate is
+    // corrected downwards.
+    return lastServerTime.accumulateAndGet(serverTime, Math::max);
+  }
+
+  /**
+   * Called when a TIME_RESPONSE is received.
+   *
+   * @param requestSentNanos  The local time at which the request was sent (echoed by the server).
+   * @param serverNanos       The server time at which the response was sent.
+   * @param responseRecvNanos The local time at which the response was received.
+   */
+  synchronized void sampleReceived(long requestSentNanos, long serverNanos, long responseRecvNanos) {
+    final long rtt = responseRecvNanos - requestSentNanos;
+    if (rtt < 0) {
+      return; // Not a response to one of our requests.
+    }
+
+    final long midpoint = requestSentNanos + rtt / 2;
+
+    sampleLocalNanos[nextSample] = midpoint;
+    sampleOffsetNanos[nextSample] = serverNanos - midpoint;
+    sampleRttNanos[nextSample] = rtt;
+    nextSample = (nextSample + 1) % MAX_SAMPLES;
+    numSamples = Math.min(numSamples + 1, MAX_SAMPLES);
+
+    updateEstimate(rtt);
+  }
+
+  private void updateEstimate(long latestRtt) {
+    long minRtt = Long.MAX_VALUE;
+    for (int i = 0; i < numSamples; i++) {
+      minRtt = Math.min(minRtt, sampleRttNanos[i]);
+    }
+    final long maxRtt = minRtt + Math.max((long) (minRtt * OUTLIER_RTT_FACTOR), MIN_OUTLIER_SLACK_NANOS);
+
+    if (latestRtt <= maxRtt) {
+      acceptedSamples++;
+    }
+
+    // Least squares fit of offset against local time over the accepted samples. We work relative to the
+    // first accepted sample to keep the numbers small enough for doubles.
+    int n = 0;
+    long base = 0;
+    long baseOffset = 0;
+    long minLocal = Long.MAX_VALUE;
+    long maxLocal = Long.MIN_VALUE;
+    double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+    for (int i = 0; i < numSamples; i++) {
+      if (sampleRttNanos[i] > maxRtt) {
+        continue;
+      }
+      if (n == 0) {
+        base = sampleLocalNanos[i];
+        baseOffset = sampleOffsetNanos[i];
+      }
+      final double x = sampleLocalNanos[i] - base;
+      final double y = sampleOffsetNanos[i] - baseOffset;
+      sumX += x;
+      sumY += y;
+      sumXX += x * x;
+      sumXY += x * y;
+      minLocal = Math.min(minLocal, sampleLocalNanos[i]);
+      maxLocal = Math.max(maxLocal, sampleLocalNanos[i]);
+      n++;
+    }
+
+    // The sample with the best round trip is always accepted, so n >= 1.
+    final double meanX = sumX / n;
+    final double meanY = sumY / n;
+
+    double drift = 0;
+    if (n >= 2 && maxLocal - minLocal >= MIN_DRIFT_SPAN_NANOS) {
+      final double varX = sumXX - n * meanX * meanX;
+      if (varX > 0) {
+        drift = (sumXY - n * meanX * meanY) / varX;
+        drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+      }
+    }
+
+    // The fitted line passes through (meanX, meanY), so use that as the base of the estimate.
+    final long estimateBase = base + (long) meanX;
+    final long estimateOffset = baseOffset + (long) meanY;
+    estimate = new Estimate(estimateBase, estimateOffset, drift);
+  }
+}
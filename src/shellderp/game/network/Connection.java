@@ -6,7 +6,10 @@ import shellderp.game.Timer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Optional;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
@@ -24,22 +27,66 @@ import java.util.logging.Logger;
  * step() needs to be called regularly (at least a few times per second) for the connection state to be
  * maintained. Not calling this often enough will result in poorer latency.
  * <p>
- * Timeout: a connection does not attempt to keep-alive internally. The only timeout scenario is if a reliable
- * packet is sent but not acked within the send timeout {@link ReliableStream#setSendTimeout(long)}. Thus a
- * keep-alive can be implemented by the user by sending keep-alive packets on the reliable stream.
+ * Clock: the client side of a connection keeps an estimate of the server's clock, see
+ * {@link #serverTimeNanos()}. This is maintained by periodic timestamp exchanges in step().
+ * <p>
+ * Datagram size: by default packets can be up to Packet.MAX_PACKET_SIZE, which relies on IP fragmentation
+ * for packets larger than the path MTU. See {@link #enablePathMtuDiscovery()} to avoid this.
+ * <p>
+ * Timeout: a connection times out if a reliable packet is sent but not acked within the send timeout
+ * {@link ReliableStream#setSendTimeout(long)}. An idle connection is only detected as dead with keep-alive
+ * enabled, see {@link #setKeepAlive(long, long)} and {@link Server#setKeepAlive(long, long)}.
+ * <p>
+ * Connection ids: a client can ask for a connection id when opening the connection. Every packet the client
+ * sends then carries the id, so if the client's address changes (e.g. a NAT rebinding, or moving between
+ * networks) the Server can still find the connection. The Server sends a PATH_CHALLENGE to the new address
+ * and only moves the connection there once the client echoes it back, so a spoofed source address can't
+ * take over a connection.
  * <p>
  * Created by: Mike
  */
 public class Connection implements GameStep {
   private static final Logger logger = Logger.getLogger(Connection.class.getName());
 
+  /**
+   * The connection id of connections that don't use one. The Server never assigns it.
+   */
+  static final int NO_CONNECTION_ID = 0;
+
+  /**
+   * Minimum time between PATH_CHALLENGEs to a new address, in case a challenge or its response is lost.
+   */
+  static final long PATH_CHALLENGE_RETRY_MS = 200;
+
+  private static final int PATH_CHALLENGE_SIZE = 8;
+
+  private static final SecureRandom pathChallengeRandom = new SecureRandom();
+
+  private static final long NANOS_PER_MS = 1_000_000;
+
   /**
    * The socket underlying this connection. In Connection we only use the send
    */
   private final Socket socket;
-  private final SocketAddress endpoint;
+
+  /**
+   * Only changes on the server side, when the client moves to a new address. See setEndPoint.
+   */
+  private volatile SocketAddress endpoint;
   private ConnectionHandler handler;
 
+  private final boolean serverSide;
+  private final int connectionId;
+  private final SequenceSpace sequences;
+
+  /**
+   * The server side state of validating a new client address. Only used by the Server's receive thread,
+   * under the Server lock.
+   */
+  private SocketAddress challengedAddress;
+  private final byte[] pathChallenge = new byte[PATH_CHALLENGE_SIZE];
+  private final Timer pathChallengeTimer = new Timer();
+
   private final ReliableStream reliableStream;
   private final UnreliableStream unreliableStream;
 
@@ -70,6 +117,40 @@ public class Connection implements GameStep {
    */
   private final PiggybackAck piggybackAck = new PiggybackAck();
 
+  /**
+   * Estimates the server clock. On the server side of the connection this is the local clock.
+   */
+  private final ClockSync clockSync;
+
+  private final SendScheduler sendScheduler;
+
+  private final PathMtuDiscovery pathMtuDiscovery = new PathMtuDiscovery();
+
+  private final BulkTransfer bulkTransfer = new BulkTransfer(this);
+
+  /**
+   * Keep-alive settings, 0 if disabled. See setKeepAlive.
+   */
+  private volatile long keepAliveIntervalMs = 0;
+  private volatile long idleTimeoutMs = 0;
+
+  /**
+   * When we last received a packet from the endpoint. Written by the receive thread.
+   */
+  private volatile long lastReceivedNanos = System.nanoTime();
+
+  /**
+   * When keepAliveCheck should run next on a client connection. Server connections are checked by the
+   * Server's timing wheel instead.
+   */
+  private long nextKeepAliveCheckNanos;
+
+  /**
+   * On the server side, the check of this connection the Server's keep-alive wheel should run. Checks still
+   * in the wheel that aren't this one were replaced and are ignored. Guarded by the Server.
+   */
+  Object keepAliveEntry = null;
+
   /**
    * Construct a connection representing socket connected to endpoint.
    * The socket must already have established a connection with the endpoint.
@@ -79,16 +160,35 @@ public class Connection implements GameStep {
    * @param initialSequenceIn  The initial incoming sequence number from the connection handshake.
    * @param initialSequenceOut The initial outgoing sequence number from the connection handshake.
    * @param handler            The handler that receives callbacks for this connection.
+   * @param serverSide         True if this connection was accepted by a Server, false if it was opened
+   *                           by a client.
    */
   Connection(Socket socket, SocketAddress endpoint, int initialSequenceIn, int initialSequenceOut,
-      ConnectionHandler handler) {
+      ConnectionHandler handler, boolean serverSide) {
+    this(socket, endpoint, initialSequenceIn, initialSequenceOut, handler, serverSide, NO_CONNECTION_ID,
+        SequenceSpace.NARROW);
+  }
+
+  /**
+   * @param connectionId The id assigned by the server in the handshake, or NO_CONNECTION_ID.
+   * @param sequences    The sequence space of the reliable stream negotiated in the handshake.
+   */
+  Connection(Socket socket, SocketAddress endpoint, int initialSequenceIn, int initialSequenceOut,
+      ConnectionHandler handler, boolean serverSide, int connectionId, SequenceSpace sequences) {
     this.socket = socket;
     this.endpoint = endpoint;
     this.handler = handler;
+    this.serverSide = serverSide;
+    this.connectionId = connectionId;
+    this.sequences = sequences;
+    this.clockSync = new ClockSync(serverSide);
+    this.sendScheduler = new SendScheduler(this);
 
     this.reliableStream = new ReliableStream(this, handler, initialSequenceIn, initialSequenceOut,
-        piggybackAck);
-    this.unreliableStream = new UnreliableStream(this, handler, initialSequenceIn, initialSequenceOut);
+        piggybackAck, sequences);
+    // The unreliable stream always uses narrow sequences, it has no window to grow.
+    this.unreliableStream = new UnreliableStream(this, handler, initialSequenceIn & (Packet.MAX_SEQUENCE - 1),
+        initialSequenceOut & (Packet.MAX_SEQUENCE - 1));
   }
 
   void setReceiveThread(ReceiveThread receiveThread) {
@@ -99,6 +199,37 @@ public class Connection implements GameStep {
     return endpoint;
   }
 
+  /**
+   * Move the connection to a new client address. Called by the Server once the address is validated.
+   */
+  void setEndPoint(SocketAddress endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * @return The id assigned by the server, or NO_CONNECTION_ID if the client didn't ask for one.
+   */
+  int getConnectionId() {
+    return connectionId;
+  }
+
+  /**
+   * @return true if the connection negotiated 32 bit sequences for its reliable stream, which lets the send
+   * window grow to thousands of packets. See {@link #open(SocketAddress, long, ConnectionHandler, boolean,
+   * boolean)}.
+   */
+  public boolean hasWideSequences() {
+    return sequences.isWide();
+  }
+
+  /**
+   * @return true if our outgoing packets carry the connection id. Only the client sends it, since only
+   * the server needs it to find the connection.
+   */
+  private boolean sendsConnectionId() {
+    return !serverSide && connectionId != NO_CONNECTION_ID;
+  }
+
   public void setHandler(ConnectionHandler handler) {
     this.handler = handler;
   }
@@ -131,6 +262,159 @@ public class Connection implements GameStep {
     return unreliableStream;
   }
 
+  /**
+   * The send scheduler of this connection, for sending messages by priority within a bandwidth budget
+   * rather than immediately on a stream.
+   */
+  public SendScheduler getSendScheduler() {
+    return sendScheduler;
+  }
+
+  /**
+   * The bulk transfer channel of this connection, for large blobs such as assets or patches. It sends at a
+   * lower priority than the streams and the send scheduler.
+   */
+  public BulkTransfer getBulkTransfer() {
+    return bulkTransfer;
+  }
+
+  /**
+   * The delayed ack policy of this connection, with counts of acks piggybacked on data versus sent bare.
+   */
+  public PiggybackAck getPiggybackAck() {
+    return piggybackAck;
+  }
+
+  /**
+   * The estimated clock of the server, in nanoseconds. This is a shared timeline for both ends of the
+   * connection, useful for lag compensation and interpolation. It has no relation to wall clock time, only
+   * differences between values are meaningful.
+   * <p>
+   * On the server side of a connection this is the local System.nanoTime(). On the client side, the value
+   * is monotonic once {@link #isClockSynchronized()} is true. This is thread-safe, lock-free and cheap
+   * enough to call from hot code.
+   */
+  public long serverTimeNanos() {
+    return clockSync.serverTimeNanos();
+  }
+
+  /**
+   * @return true once the client has enough timestamp exchanges for serverTimeNanos() to be accurate.
+   * Always true on the server side.
+   */
+  public boolean isClockSynchronized() {
+    return clockSync.isSynchronized();
+  }
+
+  /**
+   * Start discovering the path MTU to the endpoint, so that packets are kept small enough to never be
+   * fragmented. A fragmented packet is lost if any of its fragments is lost, and some networks drop
+   * fragments entirely.
+   * <p>
+   * Once enabled, {@link #getMaxDatagramSize()} drops to a size that fits any path and grows as larger sizes
+   * are confirmed. The streams do not split payloads, so it is up to the user to keep payloads within
+   * maxSupportedPacketSize() of the stream. This is opt-in since payloads that are too large would be
+   * dropped rather than fragmented.
+   * <p>
+   * This sets the don't fragment bit on the socket, which for connections of a Server affects all of its
+   * connections.
+   *
+   * @return true if discovery was started, false if the socket can't set the don't fragment bit on this
+   * platform, in which case nothing changes.
+   */
+  public boolean enablePathMtuDiscovery() {
+    try {
+      if (!socket.enableDontFragment()) {
+        logger.info("don't fragment is not supported, path MTU discovery disabled");
+        return false;
+      }
+    } catch (IOException e) {
+      logger.log(Level.INFO, "failed to set don't fragment, path MTU discovery disabled", e);
+      return false;
+    }
+    pathMtuDiscovery.enable();
+    return true;
+  }
+
+  /**
+   * Enable transport level keep-alive, so that an idle connection stays open while the endpoint is alive
+   * and is closed once it isn't.
+   * <p>
+   * Any packet from the endpoint shows it is alive, so nothing extra is sent while there is traffic. Once
+   * nothing has been received for intervalMs, we send a KEEP_ALIVE control packet, which the endpoint
+   * answers right away (whether or not it has keep-alive enabled), and repeat it every intervalMs. Pending
+   * acks are piggybacked on it. If nothing is received for idleTimeoutMs, the connection is closed.
+   * <p>
+   * Only for connections opened with Connection.open(). The connections of a Server are checked by its
+   * timing wheel, so their keep-alive is set for all of them with {@link Server#setKeepAlive(long, long)}.
+   *
+   * @param intervalMs    How long the connection may be quiet before we probe the endpoint. 0 disables
+   *                      keep-alive.
+   * @param idleTimeoutMs How long the connection may be quiet before it is closed. Must be more than
+   *                      intervalMs, and a few intervals to allow for lost probes.
+   * @throws IllegalStateException If this connection was accepted by a Server.
+   */
+  public void setKeepAlive(long intervalMs, long idleTimeoutMs) {
+    if (serverSide) {
+      throw new IllegalStateException("use Server.setKeepAlive for the connections of a Server");
+    }
+    setKeepAliveSettings(intervalMs, idleTimeoutMs);
+  }
+
+  /**
+   * Set by the Server on its connections, see setKeepAlive.
+   */
+  void setKeepAliveSettings(long intervalMs, long idleTimeoutMs) {
+    if (intervalMs < 0 || (intervalMs > 0 && idleTimeoutMs <= intervalMs)) {
+      throw new IllegalArgumentException("need 0 <= intervalMs < idleTimeoutMs");
+    }
+    this.keepAliveIntervalMs = intervalMs;
+    this.idleTimeoutMs = idleTimeoutMs;
+    nextKeepAliveCheckNanos = System.nanoTime();
+  }
+
+  /**
+   * Probe the endpoint if the connection has been quiet for the keep-alive interval, or close it if it has
+   * been quiet for the idle timeout.
+   *
+   * @return The time in milliseconds until this should be called again, or -1 if the connection is closed
+   * or keep-alive is disabled.
+   */
+  long keepAliveCheck(long nowNanos) {
+    final long intervalMs = keepAliveIntervalMs;
+    if (intervalMs == 0 || state.get() != State.OPEN) {
+      return -1;
+    }
+
+    final long quietMs = (nowNanos - lastReceivedNanos) / NANOS_PER_MS;
+    final long untilTimeoutMs = idleTimeoutMs - quietMs;
+    if (untilTimeoutMs <= 0) {
+      logger.info("closing idle connection, nothing received for " + quietMs + "ms: " + this);
+      close();
+      return -1;
+    }
+
+    if (quietMs < intervalMs) {
+      return Math.min(intervalMs - quietMs, untilTimeoutMs);
+    }
+
+    try {
+      sendControl(ControlType.KEEP_ALIVE, null);
+    } catch (IOException e) {
+      // Counts as lost, we probe again after another interval.
+      logger.log(Level.INFO, "exception when trying to send keep-alive", e);
+    }
+    return Math.min(intervalMs, untilTimeoutMs);
+  }
+
+  /**
+   * @return The largest datagram, including the packet header, that is known to reach the endpoint without
+   * fragmentation. This is Packet.MAX_PACKET_SIZE unless path MTU discovery is enabled.
+   */
+  public int getMaxDatagramSize() {
+    return pathMtuDiscovery.getMaxDatagramSize();
+  }
+
   public void close() {
     // We send a close message and hope the endpoint receives it. We consider this connection closed
     // immediately. If the endpoint doesn't receive it, it will time out eventually.
@@ -178,7 +462,205 @@ public class Connection implements GameStep {
         packet = packet.withAck(ack.get());
       }
     }
-    return socket.sendDirect(packet, getEndPoint());
+    return sendWithoutAck(packet);
+  }
+
+  /**
+   * Send a packet as is, without piggybacking an ack.
+   */
+  private int sendWithoutAck(Packet packet) throws IOException {
+    return sendTo(packet, getEndPoint());
+  }
+
+  private int sendTo(Packet packet, SocketAddress address) throws IOException {
+    if (sendsConnectionId()) {
+      packet = packet.withConnectionId(connectionId);
+    }
+    final int bytesSent = socket.sendDirect(packet, address);
+    sendScheduler.bytesSent(bytesSent);
+    return bytesSent;
+  }
+
+  /**
+   * Send a PMTU_PROBE control packet padded so the whole datagram is exactly size bytes. We never piggyback
+   * an ack on a probe, since the probe is likely to be lost.
+   */
+  private void sendPathMtuProbe(int size) throws IOException {
+    // The header of a control packet is the flags, the unused sequence and possibly the connection id.
+    final int headerSize = 3 + (sendsConnectionId() ? Packet.CONNECTION_ID_SIZE : 0);
+    final ByteBuffer payload = ByteBuffer.allocate(size - headerSize);
+    payload.put(ControlType.PMTU_PROBE.toByte());
+    payload.putShort((short) size);
+    payload.rewind();
+
+    sendWithoutAck(new Packet.Builder().control().payload(payload).build());
+  }
+
+  /**
+   * Send a control packet (see ControlType) to the endpoint. Like unreliable packets, there is no
+   * guarantee it arrives.
+   *
+   * @param type The type of control message.
+   * @param data The type specific data following the type byte, in read mode. May be null.
+   */
+  void sendControl(ControlType type, ByteBuffer data) throws IOException {
+    send(controlPacket(type, data));
+  }
+
+  /**
+   * Same as {@link #sendControl(ControlType, ByteBuffer)}, followed by a body that is written into the
+   * datagram as is, see Packet.Builder.body().
+   *
+   * @param body May be null.
+   * @return The number of bytes sent, 0 if the socket could not send it now.
+   */
+  int sendControl(ControlType type, ByteBuffer data, ByteBuffer body) throws IOException {
+    return send(controlPacket(type, data, body));
+  }
+
+  private static Packet controlPacket(ControlType type, ByteBuffer data) {
+    return controlPacket(type, data, null);
+  }
+
+  private static Packet controlPacket(ControlType type, ByteBuffer data, ByteBuffer body) {
+    final ByteBuffer payload = ByteBuffer.allocate(1 + (data == null ? 0 : data.remaining()));
+    payload.put(type.toByte());
+    if (data != null) {
+      payload.put(data);
+    }
+    payload.flip();
+
+    final Packet.Builder builder = new Packet.Builder().control().payload(payload);
+    if (body != null) {
+      builder.body(body);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Called by the Server, under its lock, for a packet with our connection id from an address other than
+   * the endpoint. Any such packet starts (or repeats, at most every PATH_CHALLENGE_RETRY_MS) a challenge
+   * to that address, and a PATH_RESPONSE from it with the right data completes it. Until then packets
+   * from the address are dropped, and the reliable stream resends anything that mattered.
+   *
+   * @return true if the address is validated, and the Server should move the connection to it.
+   */
+  boolean newPathPacketReceived(SocketAddress from, Packet packet) {
+    if (state.get() != State.OPEN) {
+      return false;
+    }
+
+    if (from.equals(challengedAddress) && packet.isControl() && packet.getPayload().remaining() > 0) {
+      final ByteBuffer payload = packet.getPayload().duplicate();
+      if (payload.get() == ControlType.PATH_RESPONSE.toByte() && payload.remaining() == PATH_CHALLENGE_SIZE) {
+        final byte[] response = new byte[PATH_CHALLENGE_SIZE];
+        payload.get(response);
+        if (Arrays.equals(response, pathChallenge)) {
+          challengedAddress = null;
+          return true;
+        }
+      }
+    }
+
+    if (!from.equals(challengedAddress) || pathChallengeTimer.hasPassed(PATH_CHALLENGE_RETRY_MS)) {
+      // A new address gets new challenge data, so a response to an old challenge can't validate it.
+      if (!from.equals(challengedAddress)) {
+        pathChallengeRandom.nextBytes(pathChallenge);
+        challengedAddress = from;
+      }
+      pathChallengeTimer.restart();
+      try {
+        sendTo(controlPacket(ControlType.PATH_CHALLENGE, ByteBuffer.wrap(pathChallenge)), from);
+      } catch (IOException e) {
+        // We will try again on the next packet from the address.
+        logger.log(Level.INFO, "failed to send path challenge to " + from, e);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Handle a control packet. Called from packetReceived so this executes in the receive thread, which
+   * means replies go out as soon as possible, but any state touched here must be thread-safe.
+   */
+  private void controlReceived(Packet packet) throws IOException {
+    final ByteBuffer payload = packet.getPayload().duplicate();
+    final ControlType type = ControlType.fromByte(payload.get());
+
+    try {
+      switch (type) {
+        case TIME_REQUEST: {
+          final long requestSentNanos = payload.getLong();
+          final ByteBuffer reply = ByteBuffer.allocate(16);
+          reply.putLong(requestSentNanos);
+          reply.putLong(clockSync.serverTimeNanos());
+          reply.flip();
+          sendControl(ControlType.TIME_RESPONSE, reply);
+          break;
+        }
+        case TIME_RESPONSE: {
+          final long receivedNanos = System.nanoTime();
+          final long requestSentNanos = payload.getLong();
+          final long serverNanos = payload.getLong();
+          clockSync.sampleReceived(requestSentNanos, serverNanos, receivedNanos);
+          break;
+        }
+        case UNRELIABLE_ACK:
+          getUnreliableStream().ackReceived(payload.getShort() & 0xFFFF);
+          break;
+        case FEC_PARITY:
+          if (payload.get() == ForwardErrorCorrection.RELIABLE_STREAM_ID) {
+            getReliableStream().fecParityReceived(payload);
+          } else {
+            getUnreliableStream().fecParityReceived(payload);
+          }
+          break;
+        case FEC_REPORT: {
+          final byte streamId = payload.get();
+          final double lossRate = (payload.getShort() & 0xFFFF) / 1000.0;
+          if (streamId == ForwardErrorCorrection.RELIABLE_STREAM_ID) {
+            getReliableStream().getForwardErrorCorrection().lossReported(lossRate);
+          } else {
+            getUnreliableStream().getForwardErrorCorrection().lossReported(lossRate);
+          }
+          break;
+        }
+        case PMTU_PROBE: {
+          final ByteBuffer reply = ByteBuffer.allocate(2);
+          reply.putShort(payload.getShort());
+          reply.flip();
+          sendControl(ControlType.PMTU_ACK, reply);
+          break;
+        }
+        case PMTU_ACK:
+          pathMtuDiscovery.ackReceived(payload.getShort() & 0xFFFF);
+          break;
+        case PATH_CHALLENGE: {
+          final byte[] challenge = new byte[PATH_CHALLENGE_SIZE];
+          payload.get(challenge);
+          sendControl(ControlType.PATH_RESPONSE, ByteBuffer.wrap(challenge));
+          break;
+        }
+        case PATH_RESPONSE:
+          // Only expected from a new address, which the Server passes to newPathPacketReceived.
+          break;
+        case KEEP_ALIVE:
+          sendControl(ControlType.KEEP_ALIVE_ACK, null);
+          break;
+        case KEEP_ALIVE_ACK:
+          // Receiving it is all that matters, see packetReceived.
+          break;
+        case BULK_OFFER:
+        case BULK_ACCEPT:
+        case BULK_DATA:
+        case BULK_ACK:
+        case BULK_CANCEL:
+          bulkTransfer.controlReceived(type, payload);
+          break;
+      }
+    } catch (BufferUnderflowException e) {
+      throw new MalformedPacketException("truncated " + type + " control packet");
+    }
   }
 
   /**
@@ -200,15 +682,44 @@ public class Connection implements GameStep {
       return; // Ignore packets from other sources, since anyone can send to our socket.
     }
 
+    lastReceivedNanos = System.nanoTime();
+
     if (packet.isConnectRequest()) {
       return; // Ignore connection requests, this could be a delayed packet or a rogue sender.
     }
 
+    if (packet.hasWideSequences() && !sequences.isWide()) {
+      logger.info("ignoring packet with wide sequences on a narrow connection: " + packet);
+      return;
+    }
+
     if (packet.isClose()) {
       markClosed();
       return;
     }
 
+    // The connection id was only needed to route the packet here.
+    packet = packet.withoutConnectionId();
+
+    if (packet.isControl()) {
+      if (packet.hasAck()) {
+        try {
+          getReliableStream().packetReceived(packet);
+        } catch (IOException e) {
+          e.printStackTrace();
+          close();
+          return;
+        }
+      }
+      try {
+        controlReceived(packet);
+      } catch (IOException e) {
+        // Control messages are best-effort, so a bad packet or a failed reply is not fatal.
+        logger.log(Level.INFO, "failed to handle control packet from " + from, e);
+      }
+      return;
+    }
+
     // Note the packet may be dispatched to both reliable and unreliable streams if it contains an
     // unreliable payload and an ACK is piggybacked on it.
 
@@ -228,7 +739,12 @@ public class Connection implements GameStep {
   /**
    * A Connection step does the following:
    * 1. Check for timeout (connection dropped).
-   * 2. Call step on the reliable stream.
+   * 2. Send scheduled messages within the bandwidth budget.
+   * 3. Call step on the streams.
+   * 4. Send a clock synchronization request if one is due.
+   * 5. Send a path MTU probe if one is due.
+   * 6. On the client side, check the keep-alive if due.
+   * 7. Step the bulk transfers, with whatever budget the steps above left.
    * <p>
    * It is assumed this method is called by at most one thread.
    *
@@ -249,8 +765,41 @@ public class Connection implements GameStep {
       return;
     }
 
+    sendScheduler.step();
     getUnreliableStream().step(timeDeltaMs);
     getReliableStream().step(timeDeltaMs);
+
+    if (clockSync.needToSendRequest()) {
+      final ByteBuffer request = ByteBuffer.allocate(8);
+      request.putLong(System.nanoTime());
+      request.flip();
+      try {
+        sendControl(ControlType.TIME_REQUEST, request);
+      } catch (IOException e) {
+        // Not fatal, we will try again at the next interval.
+        logger.log(Level.INFO, "exception when trying to send time request", e);
+      }
+    }
+
+    final int probeSize = pathMtuDiscovery.step();
+    if (probeSize != 0) {
+      try {
+        sendPathMtuProbe(probeSize);
+      } catch (IOException e) {
+        // A probe that fails to send counts as lost.
+        logger.log(Level.INFO, "exception when trying to send path MTU probe", e);
+      }
+    }
+
+    if (!serverSide && keepAliveIntervalMs != 0) {
+      final long now = System.nanoTime();
+      if (now - nextKeepAliveCheckNanos >= 0) {
+        nextKeepAliveCheckNanos = now + Math.max(0, keepAliveCheck(now)) * NANOS_PER_MS;
+      }
+    }
+
+    // Bulk data waits while reliable packets are queued, since the stream can't send them any faster.
+    bulkTransfer.step(getReliableStream().hasBacklog() ? 0 : sendScheduler.bulkBudget());
   }
 
   /**
@@ -269,6 +818,34 @@ public class Connection implements GameStep {
    */
   public static Connection open(SocketAddress target, long timeoutMs, ConnectionHandler handler)
       throws IOException, TimeoutException, InterruptedException {
+    return open(target, timeoutMs, handler, false);
+  }
+
+  /**
+   * Same as {@link #open(SocketAddress, long, ConnectionHandler)}, optionally asking the server for a
+   * connection id. With an id the connection survives changes of the client's address, at the cost of 4
+   * bytes in the header of every packet the client sends. If the server doesn't assign one, the connection
+   * is opened without it.
+   *
+   * @param useConnectionId true to ask for a connection id.
+   */
+  public static Connection open(SocketAddress target, long timeoutMs, ConnectionHandler handler,
+      boolean useConnectionId) throws IOException, TimeoutException, InterruptedException {
+    return open(target, timeoutMs, handler, useConnectionId, false);
+  }
+
+  /**
+   * Same as {@link #open(SocketAddress, long, ConnectionHandler, boolean)}, optionally asking for wide
+   * sequences. The 16 bit sequences of the reliable stream limit its window to a few hundred packets in
+   * flight, which is plenty for game state but not for bulk transfers on fast links. Wide sequences are 32
+   * bits and let the window grow to thousands of packets, at the cost of 4 bytes in the header of every
+   * packet. If the server doesn't agree, the connection is opened with narrow sequences.
+   *
+   * @param wideSequences true to ask for wide sequences.
+   */
+  public static Connection open(SocketAddress target, long timeoutMs, ConnectionHandler handler,
+      boolean useConnectionId, boolean wideSequences)
+      throws IOException, TimeoutException, InterruptedException {
     // Create a new socket, 0 selects any open port.
     final Socket socket = SocketProvider.getDefault().createSocket(new InetSocketAddress(0));
 
@@ -283,12 +860,23 @@ public class Connection implements GameStep {
     // These will be the initial sequence numbers for creating the (un)reliable streams.
     // They come randomly from Packet.build.
     int sequenceIn, sequenceOut;
+    int connectionId = NO_CONNECTION_ID;
+    SequenceSpace sequences;
 
+    // The sequence of our latest connect request. The sequence after it is the initial outgoing sequence
+    // number for both streams, in the sequence space the server agrees to.
+    int requestSequence;
     {
-      // Send a connect request. We use the sequence number generated as the initial outgoing
-      // sequence number for both streams.
-      Packet request = new Packet.Builder().randomSequence().connectRequest().build();
-      sequenceOut = Packet.nextSequence(request.getSequence());
+      Packet.Builder builder = new Packet.Builder().randomSequence().connectRequest();
+      if (useConnectionId) {
+        // An id of 0 asks the server to assign one.
+        builder.connectionId(NO_CONNECTION_ID);
+      }
+      if (wideSequences) {
+        builder.wideSequences();
+      }
+      Packet request = builder.build();
+      requestSequence = request.getSequence();
       socket.sendDirect(request, target);
     }
 
@@ -304,8 +892,14 @@ public class Connection implements GameStep {
         Packet packet = Packet.fromBuffer(buffer);
         // We expect a packet that is a connect request and acknowledges our request. In any other
         // case we just keep trying.
-        if (packet.isConnectRequest() && packet.hasAck() && packet.getAckSequence() == sequenceOut) {
-          sequenceIn = Packet.nextSequence(packet.getSequence());
+        sequences = wideSequences && packet.hasWideSequences() ? SequenceSpace.WIDE : SequenceSpace.NARROW;
+        if (packet.isConnectRequest() && packet.hasAck()
+            && packet.getAckSequence() == sequences.next(requestSequence)) {
+          sequenceOut = sequences.next(requestSequence);
+          sequenceIn = sequences.next(packet.getSequence());
+          if (useConnectionId && packet.hasConnectionId()) {
+            connectionId = packet.getConnectionId();
+          }
           break;
         }
       }
@@ -318,10 +912,17 @@ public class Connection implements GameStep {
       if (lastRequestTimer.hasPassed(ReliableStream.DEFAULT_PACKET_LOST_TIMEOUT_MS)) {
         // Assume the first packet was lost, or the server's reply was lost.
         // We send a new request and invalidate the old one by storing the new sequence.
-        Packet request = new Packet.Builder().sequence(Packet.nextSequence(sequenceOut))
-            .connectRequest()
-            .build();
-        sequenceOut = Packet.nextSequence(request.getSequence());
+        Packet.Builder builder = new Packet.Builder()
+            .sequence(Packet.nextSequence(Packet.nextSequence(requestSequence)))
+            .connectRequest();
+        if (useConnectionId) {
+          builder.connectionId(NO_CONNECTION_ID);
+        }
+        if (wideSequences) {
+          builder.wideSequences();
+        }
+        Packet request = builder.build();
+        requestSequence = request.getSequence();
         socket.sendDirect(request, target);
 
         lastRequestTimer.restart();
@@ -333,9 +934,14 @@ public class Connection implements GameStep {
     }
 
     // Send an ACK to finish the connection.
-    socket.sendDirect(new Packet.Builder().ack(sequenceIn).build(), target);
+    Packet.Builder ack = new Packet.Builder().sequences(sequences).ack(sequenceIn);
+    if (connectionId != NO_CONNECTION_ID) {
+      ack.connectionId(connectionId);
+    }
+    socket.sendDirect(ack.build(), target);
 
-    Connection connection = new Connection(socket, target, sequenceIn, sequenceOut, handler);
+    Connection connection = new Connection(socket, target, sequenceIn, sequenceOut, handler, false,
+        connectionId, sequences);
     ReceiveThread receiveThread = new ReceiveThread(socket, connection::packetReceived);
     connection.setReceiveThread(receiveThread);
 
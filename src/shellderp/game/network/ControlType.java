@@ -0,0 +1,113 @@
+package shellderp.game.network;
+
+/**
+ * Types of transport control messages. A control packet carries one of these as the first byte of its
+ * payload, followed by type specific data. Control packets are consumed by the Connection itself and are
+ * never passed to a ConnectionHandler.
+ * <p>
+ * The ordinal is written on the network, so new types must only be appended to the end.
+ */
+enum ControlType {
+  /**
+   * Clock synchronization request: 8 byte local send time (nanoseconds) of the requester.
+   */
+  TIME_REQUEST,
+
+  /**
+   * Clock synchronization reply: the 8 byte request time echoed back, followed by the 8 byte server time
+   * (nanoseconds) at which the reply was sent.
+   */
+  TIME_RESPONSE,
+
+  /**
+   * Acknowledges redundant unreliable packets: 2 byte sequence of the newest unreliable packet received.
+   * The sender stops repeating payloads up to and including this sequence.
+   */
+  UNRELIABLE_ACK,
+
+  /**
+   * Forward error correction parity: 1 byte stream id, 2 byte sequence of the first packet in the group,
+   * 1 byte group size, 2 byte XOR of the packet lengths, then the XOR of the packets. See
+   * ForwardErrorCorrection.
+   */
+  FEC_PARITY,
+
+  /**
+   * Forward error correction feedback from the receiver: 1 byte stream id, 2 byte loss rate measured over
+   * recent parity groups, in parts per thousand. The sender uses it to adapt the group size.
+   */
+  FEC_REPORT,
+
+  /**
+   * Path MTU probe: 2 byte size of the whole datagram, then padding up to that size. See PathMtuDiscovery.
+   */
+  PMTU_PROBE,
+
+  /**
+   * Reply to a PMTU_PROBE: the 2 byte size of the probe received.
+   */
+  PMTU_ACK,
+
+  /**
+   * Sent by the Server to a new address of a client with a connection id: 8 random bytes, which the client
+   * echoes in a PATH_RESPONSE to prove it receives at that address.
+   */
+  PATH_CHALLENGE,
+
+  /**
+   * Reply to a PATH_CHALLENGE: the 8 bytes of the challenge.
+   */
+  PATH_RESPONSE,
+
+  /**
+   * Keep-alive probe, sent when nothing has been received for a while. No data. See Connection.setKeepAlive.
+   */
+  KEEP_ALIVE,
+
+  /**
+   * Reply to a KEEP_ALIVE. No data.
+   */
+  KEEP_ALIVE_ACK,
+
+  /**
+   * Offer of a bulk transfer: 8 byte transfer id, 8 byte length, 2 byte chunk size. Repeated until the
+   * receiver accepts or cancels it. See BulkTransfer.
+   */
+  BULK_OFFER,
+
+  /**
+   * Reply to a BULK_OFFER: 8 byte transfer id, 4 byte index of the first chunk to send. Chunks before it
+   * are already held by the receiver from an earlier attempt.
+   */
+  BULK_ACCEPT,
+
+  /**
+   * A chunk of a bulk transfer: 8 byte transfer id, 4 byte chunk index, then the data of the chunk.
+   */
+  BULK_DATA,
+
+  /**
+   * Acknowledges bulk chunks: 8 byte transfer id, 4 byte count of chunks received in order, then a 64 bit
+   * map of the chunks received after the next missing one.
+   */
+  BULK_ACK,
+
+  /**
+   * Either side gives up on a bulk transfer, or the receiver refuses an offer: 8 byte transfer id.
+   */
+  BULK_CANCEL;
+
+  private static final ControlType[] values = values();
+
+  static ControlType fromByte(byte b) throws MalformedPacketException {
+    final int index = b & 0xFF;
+    if (index >= values.length) {
+      throw new MalformedPacketException("unknown control type: " + index);
+    }
+    return values[index];
+  }
+
+  byte toByte() {
+    return (byte) ordinal();
+  }
+}
@@ -0,0 +1,344 @@
+package shellderp.game.network;
+
+import shellderp.game.Timer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * XOR parity forward error correction (FEC) for one stream of a connection.
+ * <p>
+ * When enabled on the sending side, every group of N consecutive data packets (by sequence) is followed by
+ * a FEC_PARITY control packet holding the XOR of the packets in the group. If exactly one packet of the
+ * group is lost, the receiver XORs the parity with the packets it did receive to rebuild the lost one,
+ * without waiting a round trip for the retransmission.
+ * <p>
+ * The XOR is computed over each packet without its piggybacked ACK, since the ACK can differ between
+ * transmissions of the same packet. Shorter packets are padded with zeros, and the XOR of the lengths is
+ * sent along so the receiver knows the length of the rebuilt packet.
+ * <p>
+ * The group size adapts to the loss rate measured by the receiver, which reports it back in FEC_REPORT
+ * control packets. The aim is for a group to have less than one lost packet on average, with some margin:
+ * smaller groups recover more losses but cost more bandwidth, an overhead of 1 / N.
+ * <p>
+ * The receiving side is always active, so only the sender needs to enable FEC. Receiving happens in the
+ * receive thread while sending can happen in any thread, so all methods are synchronized.
+ */
+public class ForwardErrorCorrection {
+
+  /**
+   * Stream ids used in control packets.
+   */
+  static final byte UNRELIABLE_STREAM_ID = 0;
+  static final byte RELIABLE_STREAM_ID = 1;
+
+  static final int MIN_GROUP_SIZE = 2;
+  static final int MAX_GROUP_SIZE = 32;
+  static final int DEFAULT_GROUP_SIZE = 8;
+
+  /**
+   * The expected number of lost packets per group we aim for. Since we can only recover one loss per group,
+   * keeping this well below 1 makes it unlikely for a group to have two losses.
+   */
+  private static final double TARGET_LOSSES_PER_GROUP = 0.1;
+
+  /**
+   * How much we value previous loss measurements vs the current group.
+   */
+  private static final double LOSS_SMOOTHING = 0.125;
+
+  static final long REPORT_INTERVAL_MS = 1000;
+
+  /**
+   * Header of the FEC_PARITY data: stream id, first sequence, group size and XOR of the lengths.
+   */
+  private static final int PARITY_HEADER_SIZE = 1 + 2 + 1 + 2;
+
+  /**
+   * The parity must fit in a control packet along with the packet header (flags, sequence and a possible
+   * piggybacked ACK), the control type and the parity header.
+   */
+  private static final int MAX_PARITY_LENGTH =
+      Packet.MAX_PACKET_SIZE - Packet.MAX_HEADER_SIZE - 1 - PARITY_HEADER_SIZE;
+
+  /**
+   * Received packets are remembered for two full groups, which is enough for the parity to arrive after
+   * the next group has started.
+   */
+  private static final int RECEIVED_CACHE_SIZE = 2 * MAX_GROUP_SIZE;
+
+  /**
+   * Identifies the stream in control packets.
+   */
+  private final byte streamId;
+
+  /**
+   * The sequences of the stream. Parity packets only carry the low 16 bits of the first sequence of the
+   * group, which we reconstruct from the last packet received.
+   */
+  private final SequenceSpace sequences;
+
+  // Sending side.
+  private boolean enabled = false;
+  private int groupSize = DEFAULT_GROUP_SIZE;
+  private int groupFirstSequence;
+  private int groupCount = 0;
+  private int nextSequenceOut = -1;
+  private int lengthXor;
+  private final byte[] parity = new byte[Packet.MAX_PACKET_SIZE];
+  private int parityLength;
+
+  private long dataBytesSent = 0;
+  private long parityBytesSent = 0;
+
+  // Receiving side.
+  private final Packet[] received = new Packet[RECEIVED_CACHE_SIZE];
+  private int lastReceivedSequence = 0;
+  private boolean peerEnabled = false;
+  private double lossRate = 0;
+  private long packetsRecovered = 0;
+  private final Timer reportTimer = new Timer();
+
+  ForwardErrorCorrection(byte streamId) {
+    this(streamId, SequenceSpace.NARROW);
+  }
+
+  ForwardErrorCorrection(byte streamId, SequenceSpace sequences) {
+    this.streamId = streamId;
+    this.sequences = sequences;
+  }
+
+  /**
+   * Enable or disable sending parity packets.
+   */
+  public synchronized void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+    groupCount = 0;
+    nextSequenceOut = -1;
+    Arrays.fill(parity, (byte) 0);
+  }
+
+  public synchronized boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @return The current number of data packets per parity packet.
+   */
+  public synchronized int getGroupSize() {
+    return groupSize;
+  }
+
+  /**
+   * @return The bytes of data packets sent while FEC was enabled.
+   */
+  public synchronized long getDataBytesSent() {
+    return dataBytesSent;
+  }
+
+  /**
+   * @return The bytes of parity packets sent.
+   */
+  public synchronized long getParityBytesSent() {
+    return parityBytesSent;
+  }
+
+  /**
+   * @return The bandwidth overhead of FEC, as a fraction of the data bytes sent.
+   */
+  public synchronized double getOverhead() {
+    return dataBytesSent == 0 ? 0 : (double) parityBytesSent / dataBytesSent;
+  }
+
+  /**
+   * @return The number of received packets that were lost but rebuilt from parity.
+   */
+  public synchronized long getPacketsRecovered() {
+    return packetsRecovered;
+  }
+
+  /**
+   * @return The loss rate measured by the receiving side over recent parity groups, from 0 to 1.
+   */
+  public synchronized double getMeasuredLossRate() {
+    return lossRate;
+  }
+
+  /**
+   * Called by the stream after sending a data packet for the first time (not for retransmissions).
+   *
+   * @return The FEC_PARITY data to send if this packet completes a group, otherwise null.
+   */
+  synchronized ByteBuffer packetSent(Packet packet) throws MalformedPacketException {
+    if (!enabled) {
+      return null;
+    }
+
+    if (packet.getSequence() != nextSequenceOut) {
+      // Either the first packet, or we skipped sequences while disabled. Start a new group.
+      groupCount = 0;
+    }
+    nextSequenceOut = sequences.next(packet.getSequence());
+
+    if (groupCount == 0) {
+      // Clear the whole parity, since an interrupted group may have left bytes past the parityLength of
+      // the last complete one.
+      groupFirstSequence = packet.getSequence();
+      lengthXor = 0;
+      parityLength = 0;
+      Arrays.fill(parity, (byte) 0);
+    }
+
+    final ByteBuffer bytes = packet.withoutAck().toBuffer();
+    final int length = bytes.remaining();
+    for (int i = 0; i < length; i++) {
+      parity[i] ^= bytes.get(i);
+    }
+    // Bytes past the end of the previous longest packet were zero, so the XOR above left them correct.
+    parityLength = Math.max(parityLength, length);
+    lengthXor ^= length;
+    dataBytesSent += length;
+    groupCount++;
+
+    if (groupCount < groupSize) {
+      return null;
+    }
+
+    final int count = groupCount;
+    groupCount = 0;
+
+    if (parityLength > MAX_PARITY_LENGTH) {
+      // The parity would not fit in a packet, so this group goes unprotected.
+      return null;
+    }
+
+    final ByteBuffer data = ByteBuffer.allocate(PARITY_HEADER_SIZE + parityLength);
+    data.put(streamId);
+    data.putShort((short) groupFirstSequence);
+    data.put((byte) count);
+    data.putShort((short) lengthXor);
+    data.put(parity, 0, parityLength);
+    data.flip();
+
+    // Count the whole control packet: flags, sequence, control type and the parity data.
+    parityBytesSent += 3 + 1 + data.remaining();
+    return data;
+  }
+
+  /**
+   * Called when the receiver reports the loss rate it measured.
+   *
+   * @param lossRate The loss rate, from 0 to 1.
+   */
+  synchronized void lossReported(double lossRate) {
+    if (lossRate <= 0) {
+      groupSize = MAX_GROUP_SIZE;
+    } else {
+      final long size = Math.round(TARGET_LOSSES_PER_GROUP / lossRate);
+      groupSize = (int) Math.max(MIN_GROUP_SIZE, Math.min(MAX_GROUP_SIZE, size));
+    }
+  }
+
+  /**
+   * Called by the stream for every data packet received, before any other processing.
+   */
+  synchronized void packetReceived(Packet packet) {
+    received[cacheIndex(packet.getSequence())] = packet.withoutAck();
+    lastReceivedSequence = packet.getSequence();
+  }
+
+  private static int cacheIndex(int sequence) {
+    // Wide sequences can be negative.
+    return Math.floorMod(sequence, RECEIVED_CACHE_SIZE);
+  }
+
+  /**
+   * @return The received packet with this sequence if it is still remembered, otherwise null.
+   */
+  synchronized Packet getReceived(int sequence) {
+    final Packet packet = received[cacheIndex(sequence)];
+    return (packet != null && packet.getSequence() == sequence) ? packet : null;
+  }
+
+  /**
+   * Called when a FEC_PARITY control packet is received for this stream.
+   *
+   * @param data The parity data, positioned after the stream id.
+   * @return The rebuilt packet if exactly one packet of the group was lost, otherwise null.
+   */
+  synchronized Packet parityReceived(ByteBuffer data) throws MalformedPacketException {
+    peerEnabled = true;
+
+    final int firstSequence = sequences.reconstruct(data.getShort() & 0xFFFF, lastReceivedSequence);
+    final int count = data.get() & 0xFF;
+    int length = data.getShort() & 0xFFFF;
+    if (count < 1 || count > MAX_GROUP_SIZE) {
+      throw new MalformedPacketException("invalid FEC group size: " + count);
+    }
+
+    final byte[] rebuilt = new byte[data.remaining()];
+    data.get(rebuilt);
+
+    int missing = -1;
+    int numMissing = 0;
+    int sequence = firstSequence;
+    for (int i = 0; i < count; i++) {
+      final Packet packet = getReceived(sequence);
+      if (packet == null) {
+        missing = sequence;
+        numMissing++;
+      } else if (numMissing <= 1) {
+        final ByteBuffer bytes = packet.toBuffer();
+        final int packetLength = bytes.remaining();
+        if (packetLength > rebuilt.length) {
+          throw new MalformedPacketException("FEC parity shorter than a packet in its group");
+        }
+        for (int j = 0; j < packetLength; j++) {
+          rebuilt[j] ^= bytes.get(j);
+        }
+        length ^= packetLength;
+      }
+      sequence = sequences.next(sequence);
+    }
+
+    lossRate = (1 - LOSS_SMOOTHING) * lossRate + LOSS_SMOOTHING * numMissing / count;
+
+    if (numMissing != 1) {
+      // Nothing to recover, or too many losses to recover.
+      return null;
+    }
+
+    if (length < 3 || length > rebuilt.length) {
+      throw new MalformedPacketException("invalid FEC rebuilt length: " + length);
+    }
+
+    final Packet packet = Packet.fromBuffer(ByteBuffer.wrap(rebuilt, 0, length));
+    if (packet.getSequence() != missing) {
+      throw new MalformedPacketException("FEC rebuilt the wrong packet");
+    }
+
+    packetsRecovered++;
+    received[cacheIndex(missing)] = packet;
+    return packet;
+  }
+
+  /**
+   * Check if the receiving side should report its measured loss rate. If so, the report timer is
+   * restarted and the FEC_REPORT data is returned, otherwise null.
+   */
+  synchronized ByteBuffer reportToSend() {
+    if (!peerEnabled) {
+      return null;
+    }
+    if (reportTimer.isActive() && !reportTimer.hasPassed(REPORT_INTERVAL_MS)) {
+      return null;
+    }
+    reportTimer.restart();
+
+    final ByteBuffer data = ByteBuffer.allocate(3);
+    data.put(streamId);
+    data.putShort((short) Math.round(lossRate * 1000));
+    data.flip();
+    return data;
+  }
+}
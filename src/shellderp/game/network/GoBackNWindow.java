@@ -17,21 +17,30 @@ class GoBackNWindow {
 
   private static class WindowEntry {
     final Packet packet;
-    Time lastSentTime;
+    long lastSentNanos;
 
     private WindowEntry(Packet packet) {
       this.packet = packet;
-      this.lastSentTime = Time.now();
+      this.lastSentNanos = Time.nowNanos();
     }
 
     public void markResent() {
-      lastSentTime = Time.now();
+      lastSentNanos = Time.nowNanos();
     }
   }
 
   private static final int MIN_WINDOW_SIZE = 5;
   private static final int MAX_WINDOW_SIZE = 100;
 
+  /**
+   * With wide sequences the window can grow much further, for bulk transfers on fast links. It is still far
+   * below half the sequence space.
+   */
+  static final int MAX_WIDE_WINDOW_SIZE = 8192;
+
+  private final SequenceSpace sequences;
+  private final int maxWindowSize;
+
   /**
    * The max number of packets we can send without receiving ACK.
    */
@@ -80,6 +89,12 @@ class GoBackNWindow {
   private int numRepeatedAcks = 0;
 
   public GoBackNWindow(int initialSequenceOut, long initialTimeoutMs) {
+    this(initialSequenceOut, initialTimeoutMs, SequenceSpace.NARROW);
+  }
+
+  public GoBackNWindow(int initialSequenceOut, long initialTimeoutMs, SequenceSpace sequences) {
+    this.sequences = sequences;
+    this.maxWindowSize = sequences.isWide() ? MAX_WIDE_WINDOW_SIZE : MAX_WINDOW_SIZE;
     this.sequenceOut = initialSequenceOut;
     variableTimeout = new VariableTimeout(initialTimeoutMs);
   }
@@ -120,6 +135,17 @@ class GoBackNWindow {
     return timeout;
   }
 
+  public long getRetransmitTimeoutMs() {
+    return variableTimeout.getTimeoutMs();
+  }
+
+  /**
+   * @return The smoothed round trip time, or -1 if no packet was acked yet.
+   */
+  public long getEstimatedRttMs() {
+    return variableTimeout.getEstimatedRttMs();
+  }
+
   public boolean hasPassedSinceLastUsefulAck(long timeoutMs) {
     return closeTimer.hasPassed(timeoutMs);
   }
@@ -138,14 +164,11 @@ class GoBackNWindow {
    * the timer.
    */
   public void ackReceived(int ackSequence) throws ProtocolException {
-    if (!Packet.newerThanExpected(sequenceOut, ackSequence)) {
+    if (!sequences.newerThanExpected(sequenceOut, ackSequence)) {
       return; // Received a delayed ACK for previously ACKed packet.
     }
 
-    int numToRemove = ackSequence - sequenceOut;
-    if (numToRemove < 0) {
-      numToRemove += Packet.MAX_SEQUENCE;
-    }
+    final int numToRemove = sequences.distance(sequenceOut, ackSequence);
 
     if (numToRemove > sent.size()) {
       throw new ProtocolException(
@@ -162,13 +185,13 @@ class GoBackNWindow {
     }
 
     for (int i = 0; i < numToRemove; i++) {
-      long roundTripTimeMs = Time.now().millisSince(sent.getFirst().lastSentTime);
+      long roundTripTimeMs = Time.millisBetween(sent.getFirst().lastSentNanos, Time.nowNanos());
       variableTimeout.updateFromSample(roundTripTimeMs);
 
       sent.removeFirst();
 
       // Increase the window size on a successful ack.
-      windowSize = Math.min(windowSize + 1, MAX_WINDOW_SIZE);
+      windowSize = Math.min(windowSize + 1, maxWindowSize);
     }
 
     sequenceOut = ackSequence;
@@ -188,7 +211,7 @@ class GoBackNWindow {
    * The timer is set unless it is already set.
    */
   public void packetSent(Packet packet) throws ProtocolException {
-    if (!Packet.newerThanExpected(sequenceOut, packet.getSequence())) {
+    if (!sequences.newerThanExpected(sequenceOut, packet.getSequence())) {
       throw new ProtocolException(
           "send window is expecting a higher sequence number; got " + packet.getSequence() +
           ", expected at least: " + sequenceOut);
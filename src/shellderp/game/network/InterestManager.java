@@ -0,0 +1,338 @@
+package shellderp.game.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which entities each client should be sent, so a Server replicates the area around each player
+ * instead of broadcasting the whole world to everyone.
+ * <p>
+ * Entities and interest regions live on a uniform grid of square cells. A client is interested in every
+ * entity in a cell that its region (a circle) overlaps, so the visible sets are cell-granular; make cells
+ * about as large as the smallest region. Each cell knows which clients it is visible to, so:
+ * - An entity moving within its cell costs nothing. Moving to another cell notifies only the clients that
+ * see one cell but not the other.
+ * - A region moving costs a distance check per cell of its bounding box, and only visits the entities of
+ * the cells that came into or went out of view.
+ * Either way the cost per tick is proportional to movement, not to the number of entities.
+ * <p>
+ * Visibility changes are queued per client and coalesced, so an entity that leaves and comes back between
+ * two calls to flush() produces no events. flush() once per tick, and send the entities in getVisible().
+ * <p>
+ * C is the type of the client, usually Connection. Not thread-safe.
+ */
+public class InterestManager<C> {
+
+  public interface Listener<C> {
+    /**
+     * entity became visible to client, so its full state should be sent.
+     */
+    void onEnter(C client, int entity);
+
+    /**
+     * entity is no longer visible to client, so the client should despawn it.
+     */
+    void onLeave(C client, int entity);
+  }
+
+  private static class Cell {
+    final Set<Integer> entities = new HashSet<>();
+    final List<Subscriber<?>> subscribers = new ArrayList<>();
+
+    boolean isEmpty() {
+      return entities.isEmpty() && subscribers.isEmpty();
+    }
+  }
+
+  private static class Entity {
+    final int id;
+    long cell;
+
+    Entity(int id, long cell) {
+      this.id = id;
+      this.cell = cell;
+    }
+  }
+
+  private static class Subscriber<C> {
+    final C client;
+    // The region, in cells: a circle, and the cells of its bounding box, inclusive.
+    float centerX, centerY, radius;
+    int minX, minY, maxX, maxY;
+
+    final Set<Integer> visible = new HashSet<>();
+    final Set<Integer> entered = new LinkedHashSet<>();
+    final Set<Integer> left = new LinkedHashSet<>();
+
+    Subscriber(C client) {
+      this.client = client;
+    }
+
+    boolean covers(int x, int y) {
+      return x >= minX && x <= maxX && y >= minY && y <= maxY && overlaps(centerX, centerY, radius, x, y);
+    }
+
+    void enter(int entity) {
+      visible.add(entity);
+      if (!left.remove(entity)) {
+        entered.add(entity);
+      }
+    }
+
+    void leave(int entity) {
+      visible.remove(entity);
+      if (!entered.remove(entity)) {
+        left.add(entity);
+      }
+    }
+  }
+
+  private final float cellSize;
+  private final Map<Long, Cell> cells = new HashMap<>();
+  private final Map<Integer, Entity> entities = new HashMap<>();
+  private final Map<C, Subscriber<C>> subscribers = new HashMap<>();
+
+  /**
+   * @param cellSize The side of a grid cell, in world units.
+   */
+  public InterestManager(float cellSize) {
+    if (!(cellSize > 0)) {
+      throw new IllegalArgumentException("cellSize must be > 0");
+    }
+    this.cellSize = cellSize;
+  }
+
+  /**
+   * @return true if the circle overlaps cell (x, y), all in cells.
+   */
+  private static boolean overlaps(float centerX, float centerY, float radius, int x, int y) {
+    // From the center to the nearest point of the cell.
+    final float dx = Math.max(0, Math.max(x - centerX, centerX - (x + 1)));
+    final float dy = Math.max(0, Math.max(y - centerY, centerY - (y + 1)));
+    return dx * dx + dy * dy <= radius * radius;
+  }
+
+  private int cellCoordinate(float position) {
+    return (int) Math.floor(position / cellSize);
+  }
+
+  private static long cellKey(int x, int y) {
+    return ((long) x << 32) | (y & 0xFFFFFFFFL);
+  }
+
+  private static int cellX(long key) {
+    return (int) (key >> 32);
+  }
+
+  private static int cellY(long key) {
+    return (int) key;
+  }
+
+  private Cell cell(long key) {
+    return cells.computeIfAbsent(key, k -> new Cell());
+  }
+
+  private void removeIfEmpty(long key, Cell cell) {
+    if (cell.isEmpty()) {
+      cells.remove(key);
+    }
+  }
+
+  public void addEntity(int id, float x, float y) {
+    if (entities.containsKey(id)) {
+      throw new IllegalArgumentException("entity " + id + " already added");
+    }
+    final long key = cellKey(cellCoordinate(x), cellCoordinate(y));
+    entities.put(id, new Entity(id, key));
+    final Cell cell = cell(key);
+    cell.entities.add(id);
+    for (Subscriber<?> subscriber : cell.subscribers) {
+      subscriber.enter(id);
+    }
+  }
+
+  public void moveEntity(int id, float x, float y) {
+    final Entity entity = getEntity(id);
+    final int newX = cellCoordinate(x);
+    final int newY = cellCoordinate(y);
+    final long newKey = cellKey(newX, newY);
+    if (newKey == entity.cell) {
+      return;
+    }
+
+    final long oldKey = entity.cell;
+    final Cell oldCell = cells.get(oldKey);
+    final Cell newCell = cell(newKey);
+    oldCell.entities.remove(id);
+    newCell.entities.add(id);
+    entity.cell = newKey;
+
+    for (Subscriber<?> subscriber : oldCell.subscribers) {
+      if (!subscriber.covers(newX, newY)) {
+        subscriber.leave(id);
+      }
+    }
+    final int oldX = cellX(oldKey);
+    final int oldY = cellY(oldKey);
+    for (Subscriber<?> subscriber : newCell.subscribers) {
+      if (!subscriber.covers(oldX, oldY)) {
+        subscriber.enter(id);
+      }
+    }
+    removeIfEmpty(oldKey, oldCell);
+  }
+
+  public void removeEntity(int id) {
+    final Entity entity = getEntity(id);
+    entities.remove(id);
+    final Cell cell = cells.get(entity.cell);
+    cell.entities.remove(id);
+    for (Subscriber<?> subscriber : cell.subscribers) {
+      subscriber.leave(id);
+    }
+    removeIfEmpty(entity.cell, cell);
+  }
+
+  private Entity getEntity(int id) {
+    final Entity entity = entities.get(id);
+    if (entity == null) {
+      throw new IllegalArgumentException("no entity " + id);
+    }
+    return entity;
+  }
+
+  /**
+   * Add a client interested in the circle of radius around (x, y). Everything in it is reported as entered
+   * by the next flush().
+   */
+  public void addClient(C client, float x, float y, float radius) {
+    if (subscribers.containsKey(client)) {
+      throw new IllegalArgumentException("client " + client + " already added");
+    }
+    final Subscriber<C> subscriber = new Subscriber<>(client);
+    subscribers.put(client, subscriber);
+    // An empty region, so every cell of the new one is added.
+    subscriber.minX = subscriber.minY = 0;
+    subscriber.maxX = subscriber.maxY = -1;
+    subscriber.radius = -1;
+    setRegion(subscriber, x, y, radius);
+  }
+
+  /**
+   * Move the region of a client, e.g. to follow its player.
+   */
+  public void moveClient(C client, float x, float y, float radius) {
+    setRegion(getSubscriber(client), x, y, radius);
+  }
+
+  /**
+   * Forget a client, and any events not flushed yet.
+   */
+  public void removeClient(C client) {
+    final Subscriber<C> subscriber = getSubscriber(client);
+    subscribers.remove(client);
+    for (int x = subscriber.minX; x <= subscriber.maxX; x++) {
+      for (int y = subscriber.minY; y <= subscriber.maxY; y++) {
+        if (!subscriber.covers(x, y)) {
+          continue;
+        }
+        final long key = cellKey(x, y);
+        final Cell cell = cells.get(key);
+        cell.subscribers.remove(subscriber);
+        removeIfEmpty(key, cell);
+      }
+    }
+  }
+
+  private Subscriber<C> getSubscriber(C client) {
+    final Subscriber<C> subscriber = subscribers.get(client);
+    if (subscriber == null) {
+      throw new IllegalArgumentException("no client " + client);
+    }
+    return subscriber;
+  }
+
+  private void setRegion(Subscriber<C> subscriber, float x, float y, float radius) {
+    if (!(radius >= 0)) {
+      throw new IllegalArgumentException("radius must be >= 0");
+    }
+    final float centerX = x / cellSize;
+    final float centerY = y / cellSize;
+    final float cellRadius = radius / cellSize;
+    if (centerX == subscriber.centerX && centerY == subscriber.centerY && cellRadius == subscriber.radius) {
+      return;
+    }
+    final int minX = cellCoordinate(x - radius);
+    final int minY = cellCoordinate(y - radius);
+    final int maxX = cellCoordinate(x + radius);
+    final int maxY = cellCoordinate(y + radius);
+
+    // Cells that went out of view.
+    for (int cx = subscriber.minX; cx <= subscriber.maxX; cx++) {
+      for (int cy = subscriber.minY; cy <= subscriber.maxY; cy++) {
+        if (!subscriber.covers(cx, cy) || (cx >= minX && cx <= maxX && cy >= minY && cy <= maxY
+                                           && overlaps(centerX, centerY, cellRadius, cx, cy))) {
+          continue;
+        }
+        final long key = cellKey(cx, cy);
+        final Cell cell = cells.get(key);
+        cell.subscribers.remove(subscriber);
+        for (int entity : cell.entities) {
+          subscriber.leave(entity);
+        }
+        removeIfEmpty(key, cell);
+      }
+    }
+
+    // Cells that came into view.
+    for (int cx = minX; cx <= maxX; cx++) {
+      for (int cy = minY; cy <= maxY; cy++) {
+        if (!overlaps(centerX, centerY, cellRadius, cx, cy) || subscriber.covers(cx, cy)) {
+          continue;
+        }
+        final Cell cell = cell(cellKey(cx, cy));
+        cell.subscribers.add(subscriber);
+        for (int entity : cell.entities) {
+          subscriber.enter(entity);
+        }
+      }
+    }
+
+    subscriber.centerX = centerX;
+    subscriber.centerY = centerY;
+    subscriber.radius = cellRadius;
+    subscriber.minX = minX;
+    subscriber.minY = minY;
+    subscriber.maxX = maxX;
+    subscriber.maxY = maxY;
+  }
+
+  /**
+   * @return The entities client should currently be sent. The set is live, and must not be modified.
+   */
+  public Set<Integer> getVisible(C client) {
+    return Collections.unmodifiableSet(getSubscriber(client).visible);
+  }
+
+  /**
+   * Report the visibility changes since the last flush(), per client.
+   */
+  public void flush(Listener<C> listener) {
+    for (Subscriber<C> subscriber : subscribers.values()) {
+      for (int entity : subscriber.left) {
+        listener.onLeave(subscriber.client, entity);
+      }
+      for (int entity : subscriber.entered) {
+        listener.onEnter(subscriber.client, entity);
+      }
+      subscriber.left.clear();
+      subscriber.entered.clear();
+    }
+  }
+}
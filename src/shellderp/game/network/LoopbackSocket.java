@@ -0,0 +1,230 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Socket that passes packets to other loopback sockets in the same process through in-memory queues,
+ * without serializing them or going through the kernel. Created by {@link LoopbackSocketProvider}.
+ * <p>
+ * Loopback sockets are identified by port. A packet sent to a loopback or wildcard address is delivered to
+ * the loopback socket with that port, and the receiver sees it as coming from the loopback address
+ * ({@link InetAddress#getLoopbackAddress()}) and the port of the sender. Clients should therefore connect
+ * to the loopback address for the endpoint to match. Packets to a port with no loopback socket are dropped,
+ * like UDP would.
+ * <p>
+ * Optionally a loopback socket is backed by a regular UDP socket bound to the same port, for packets to
+ * any other address. This lets a listen server accept remote clients while a local client takes the fast
+ * path.
+ * <p>
+ * The packet object itself is handed to the receiver, with a duplicate of the payload buffer so that
+ * reading it doesn't disturb the sender. Since the sender must not modify a payload once it is sent, this
+ * is equivalent to copying it.
+ * <p>
+ * Wakeup: the receive thread sleeps in its selector, so a send must wake it up. Waking a selector costs a
+ * system call, so we only do it for the first packet since the receiver last drained the queue.
+ */
+class LoopbackSocket extends Socket {
+
+  /**
+   * All open loopback sockets in this process, by port.
+   */
+  private static final ConcurrentHashMap<Integer, LoopbackSocket> sockets = new ConcurrentHashMap<>();
+
+  /**
+   * Ports handed out when binding to port 0 without a backing UDP socket, from the dynamic port range.
+   */
+  private static final int FIRST_EPHEMERAL_PORT = 49152;
+  private static final int LAST_EPHEMERAL_PORT = 65535;
+  private static final AtomicInteger nextEphemeralPort = new AtomicInteger(FIRST_EPHEMERAL_PORT);
+
+  private static class Message {
+    final SocketAddress source;
+    final Packet packet;
+
+    Message(SocketAddress source, Packet packet) {
+      this.source = source;
+      this.packet = packet;
+    }
+  }
+
+  private final int port;
+
+  /**
+   * The address receivers see packets from.
+   */
+  private final InetSocketAddress address;
+
+  /**
+   * Handles packets to and from other processes, or null if this socket is loopback only.
+   */
+  private final Socket network;
+
+  private final ConcurrentLinkedQueue<Message> inQueue = new ConcurrentLinkedQueue<>();
+
+  private volatile Selector selector;
+
+  /**
+   * Set once a sender has woken the selector, until the receiver drains the queue.
+   */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+  /**
+   * @param bindAddress Only the port is used. 0 picks a free port.
+   * @param network     The UDP socket for other processes, already bound, or null for loopback only. The
+   *                    port of bindAddress is ignored if this is given, we use the port of network.
+   * @throws BindException If the port is taken by another loopback socket.
+   */
+  LoopbackSocket(SocketAddress bindAddress, Socket network) throws IOException {
+    super();
+    this.network = network;
+
+    if (network != null) {
+      port = ((InetSocketAddress) network.getLocalAddress()).getPort();
+      if (sockets.putIfAbsent(port, this) != null) {
+        network.close();
+        throw new BindException("loopback port already in use: " + port);
+      }
+    } else {
+      port = bind(((InetSocketAddress) bindAddress).getPort());
+    }
+
+    address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+  }
+
+  private int bind(int requestedPort) throws BindException {
+    if (requestedPort != 0) {
+      if (sockets.putIfAbsent(requestedPort, this) != null) {
+        throw new BindException("loopback port already in use: " + requestedPort);
+      }
+      return requestedPort;
+    }
+
+    for (int i = FIRST_EPHEMERAL_PORT; i <= LAST_EPHEMERAL_PORT; i++) {
+      final int candidate = nextEphemeralPort.getAndUpdate(
+          p -> p == LAST_EPHEMERAL_PORT ? FIRST_EPHEMERAL_PORT : p + 1);
+      if (sockets.putIfAbsent(candidate, this) == null) {
+        return candidate;
+      }
+    }
+    throw new BindException("no free loopback ports");
+  }
+
+  private static boolean isLocal(InetSocketAddress endPoint) {
+    final InetAddress address = endPoint.getAddress();
+    return address != null && (address.isLoopbackAddress() || address.isAnyLocalAddress());
+  }
+
+  @Override
+  public SelectionKey register(Selector selector, int ops) throws ClosedChannelException {
+    this.selector = selector;
+    // Packets may have been queued before we had a selector to wake.
+    selector.wakeup();
+
+    return network != null ? network.register(selector, ops) : null;
+  }
+
+  @Override
+  boolean awaitReceive(Selector selector) throws IOException {
+    // Senders in this process wake the selector rather than make it select anything. As in receiveBatch,
+    // clear before checking: a packet queued after the check wakes the selector again.
+    final boolean selected = super.awaitReceive(selector);
+    wakeupPending.set(false);
+    return selected || !inQueue.isEmpty();
+  }
+
+  @Override
+  public SocketAddress tryReceive(ByteBuffer dst) throws IOException {
+    final Message m = inQueue.poll();
+    if (m != null) {
+      // Only used before there is a receive thread (e.g. during the connection handshake), so we don't
+      // mind serializing here.
+      dst.put(m.packet.toBuffer());
+      return m.source;
+    }
+    return network != null ? network.tryReceive(dst) : null;
+  }
+
+  @Override
+  void receiveBatch(ReceiveBatch batch) throws IOException {
+    // Clear before draining: a packet queued after this either gets drained below, or its sender wakes
+    // the selector again.
+    wakeupPending.set(false);
+
+    Message m;
+    while (!batch.isFull() && (m = inQueue.poll()) != null) {
+      batch.add(m.source, m.packet);
+    }
+
+    if (network != null) {
+      network.receiveBatch(batch);
+    }
+  }
+
+  @Override
+  public int sendDirect(Packet packet, SocketAddress endPoint) throws IOException {
+    final InetSocketAddress targetAddress = (InetSocketAddress) endPoint;
+    final boolean local = isLocal(targetAddress);
+    final LoopbackSocket target = local ? sockets.get(targetAddress.getPort()) : null;
+
+    if (target == null) {
+      if (network != null) {
+        // Could be another process on this host, or a remote host.
+        return network.sendDirect(packet, endPoint);
+      }
+      if (!local) {
+        throw new IOException("loopback only socket can't send to " + endPoint);
+      }
+    }
+
+    final int size = packet.size();
+    if (size > Packet.MAX_PACKET_SIZE) {
+      throw new MalformedPacketException("payload size exceeds maximum packet size (" + size + " bytes)");
+    }
+
+    if (target != null) {
+      target.enqueue(new Message(address, packet.duplicate()));
+    }
+    // Otherwise nobody is listening on the port, so the packet is lost like it would be with UDP.
+    return size;
+  }
+
+  private void enqueue(Message m) {
+    inQueue.add(m);
+
+    final Selector selector = this.selector;
+    if (!wakeupPending.getAndSet(true) && selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  @Override
+  public SocketAddress getLocalAddress() {
+    return address;
+  }
+
+  @Override
+  public boolean enableDontFragment() throws IOException {
+    // Loopback packets are never fragmented, so this only matters for the network.
+    return network != null && network.enableDontFragment();
+  }
+
+  @Override
+  public void close() throws IOException {
+    sockets.remove(port, this);
+    if (network != null) {
+      network.close();
+    }
+  }
+}
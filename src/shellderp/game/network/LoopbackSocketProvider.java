@@ -0,0 +1,38 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * Provides sockets that talk to each other in memory when they are in the same process, see
+ * {@link LoopbackSocket}. Useful when the client and the Server run in the same JVM, e.g. single-player or
+ * a player hosting a game, so that local traffic skips serialization and the kernel. Connections and
+ * handlers behave the same as over UDP.
+ * <p>
+ * Install it with SocketProvider.setDefault() before creating the Server and opening the local Connection,
+ * and connect to the loopback address.
+ */
+public class LoopbackSocketProvider extends SocketProvider {
+
+  private final boolean network;
+
+  /**
+   * Provide loopback only sockets, which can't reach other processes.
+   */
+  public LoopbackSocketProvider() {
+    this(false);
+  }
+
+  /**
+   * @param network If true, every socket is also bound to a UDP socket on the same port, so that it can
+   *                talk to other processes and hosts as usual. Use this for a listen server.
+   */
+  public LoopbackSocketProvider(boolean network) {
+    this.network = network;
+  }
+
+  @Override
+  public Socket createSocket(SocketAddress bindAddress) throws IOException {
+    return new LoopbackSocket(bindAddress, network ? new Socket(bindAddress) : null);
+  }
+}
@@ -12,35 +12,78 @@ public class Packet {
   private static final int BITFLAG_ACK = 1 << 1;
   private static final int BITFLAG_CONNECT_REQUEST = 1 << 2;
   private static final int BITFLAG_CLOSE = 1 << 3;
+  private static final int BITFLAG_CONTROL = 1 << 4;
+  private static final int BITFLAG_REDUNDANT = 1 << 5;
+  private static final int BITFLAG_CONNECTION_ID = 1 << 6;
+  private static final int BITFLAG_WIDE_SEQUENCES = 1 << 7;
 
   static final int MAX_SEQUENCE = 65536;
   public static final int MAX_PACKET_SIZE = 8192;
 
+  static final int CONNECTION_ID_SIZE = 4;
+
+  /**
+   * The largest header a packet can have: flags, wide sequence, a piggybacked wide ack and a connection id.
+   */
+  public static final int MAX_HEADER_SIZE = 1 + 4 + 4 + CONNECTION_ID_SIZE;
+
+  /**
+   * Payloads longer than this are abbreviated in toString().
+   */
+  private static final int MAX_PRINTED_PAYLOAD = 64;
+
   private final ByteBuffer payload;
+
+  /**
+   * Sending side only: written after the payload without being copied into it first. See Builder.body().
+   */
+  private final ByteBuffer body;
+
   private final int sequence;
 
   private final boolean reliable;
   private final boolean connectRequest;
   private final boolean close;
+  private final boolean control;
+  private final boolean redundant;
 
   private final boolean ack;
   private final int ackSequence;
 
-  private Packet(ByteBuffer payload, int sequence, boolean reliable, boolean connectRequest, boolean ack,
-      int ackSequence, boolean close) {
+  private final boolean hasConnectionId;
+  private final int connectionId;
+
+  /**
+   * Forces the wide header even if the sequences fit in 16 bits. See hasWideSequences().
+   */
+  private final boolean wideSequences;
+
+  private Packet(ByteBuffer payload, ByteBuffer body, int sequence, boolean reliable,
+      boolean connectRequest, boolean ack, int ackSequence, boolean close, boolean control, boolean redundant,
+      boolean hasConnectionId, int connectionId, boolean wideSequences) {
     this.payload = payload;
+    this.body = body;
     this.sequence = sequence;
     this.reliable = reliable;
     this.connectRequest = connectRequest;
     this.ack = ack;
     this.ackSequence = ackSequence;
     this.close = close;
+    this.control = control;
+    this.redundant = redundant;
+    this.hasConnectionId = hasConnectionId;
+    this.connectionId = connectionId;
+    this.wideSequences = wideSequences;
   }
 
   public boolean hasPayload() {
     return payload != null;
   }
 
+  /**
+   * @return The payload. On the sending side this excludes the body, if the packet was built with one.
+   * A received packet has the body at the end of its payload.
+   */
   public ByteBuffer getPayload() {
     return payload;
   }
@@ -69,14 +112,66 @@ public class Packet {
     return close;
   }
 
+  /**
+   * @return true if this packet is a transport control message (see {@link ControlType}), which is
+   * handled by the Connection and never delivered to a stream.
+   */
+  public boolean isControl() {
+    return control;
+  }
+
+  /**
+   * @return true if this is an unreliable packet whose payload bundles previous unacked payloads along
+   * with the new one. See UnreliableStream.setRedundancy().
+   */
+  public boolean isRedundant() {
+    return redundant;
+  }
+
+  /**
+   * @return true if the header carries a connection id, which lets the Server find the connection when the
+   * client's address changes. See Connection.open().
+   */
+  public boolean hasConnectionId() {
+    return hasConnectionId;
+  }
+
+  /**
+   * @return The connection id, only valid if hasConnectionId(). 0 in a connect request asks the server to
+   * assign one.
+   */
+  public int getConnectionId() {
+    return connectionId;
+  }
+
+  /**
+   * @return true if the header has 4 byte sequence and ack fields. This is the case whenever a sequence
+   * doesn't fit in 16 bits, which only happens on connections with wide sequences (see SequenceSpace). A
+   * connect request with a wide header asks for wide sequences, and the reply has one if the server agrees.
+   */
+  public boolean hasWideSequences() {
+    return wideSequences || !fitsNarrow(sequence) || (ack && !fitsNarrow(ackSequence));
+  }
+
+  private static boolean fitsNarrow(int sequence) {
+    return (sequence & ~(MAX_SEQUENCE - 1)) == 0;
+  }
+
   public static class Builder {
     private ByteBuffer payload = null;
+    private ByteBuffer body = null;
     private int sequence;
     private boolean connectRequest = false;
     private boolean reliable = false;
     private boolean close = false;
+    private boolean control = false;
+    private boolean redundant = false;
     private boolean hasAck = false;
     private int ackSequence;
+    private boolean hasConnectionId = false;
+    private int connectionId;
+    private boolean wideSequences = false;
+    private SequenceSpace sequences = SequenceSpace.NARROW;
 
     // Below are used to verify that the packet is constructed correctly.
     private boolean sequenceSet = false;
@@ -96,26 +191,75 @@ public class Packet {
       return this;
     }
 
-    public Builder ack(int ackSequence) {
-      if (ackSequence < 0 || ackSequence >= MAX_SEQUENCE) {
+    /**
+     * Append body to the payload when the packet is written, without copying it into the payload buffer
+     * first. Lets a large buffer (e.g. a slice of a mapped file) be copied once, straight into the datagram.
+     * The receiver sees a single payload. A payload must also be set.
+     *
+     * @param body The remaining bytes are sent. Owned by the Packet once passed in.
+     */
+    Builder body(ByteBuffer body) {
+      this.body = body;
+      return this;
+    }
+
+    /**
+     * The sequence space of the connection the packet is for, which sequence() and ack() must be in.
+     * NARROW, from 0 to MAX_SEQUENCE - 1, unless set. Any WIDE sequence is valid, and those that don't fit
+     * in 16 bits are sent in the wide header.
+     */
+    Builder sequences(SequenceSpace sequences) {
+      this.sequences = sequences;
+      if (sequenceSet) {
+        checkSequence(sequence);
+      }
+      if (hasAck) {
+        checkSequence(ackSequence);
+      }
+      return this;
+    }
+
+    private void checkSequence(int sequence) {
+      if (!sequences.contains(sequence)) {
         throw new IllegalArgumentException("sequence numbers must be from 0 to " + MAX_SEQUENCE);
       }
+    }
 
+    /**
+     * See sequences() for the valid values.
+     */
+    public Builder ack(int ackSequence) {
+      checkSequence(ackSequence);
       this.hasAck = true;
       this.ackSequence = ackSequence;
       return this;
     }
 
-    public Builder sequence(int sequence) {
-      if (sequence < 0 || sequence >= MAX_SEQUENCE) {
-        throw new IllegalArgumentException("sequence numbers must be from 0 to " + MAX_SEQUENCE);
-      }
+    public Builder connectionId(int connectionId) {
+      this.hasConnectionId = true;
+      this.connectionId = connectionId;
+      return this;
+    }
 
+    /**
+     * See sequences() for the valid values.
+     */
+    public Builder sequence(int sequence) {
+      checkSequence(sequence);
       this.sequence = sequence;
       sequenceSet = true;
       return this;
     }
 
+    /**
+     * Use the wide header even if the sequences fit in 16 bits. Used on connect requests to negotiate wide
+     * sequences.
+     */
+    public Builder wideSequences() {
+      this.wideSequences = true;
+      return this;
+    }
+
     public Builder connectRequest() {
       this.connectRequest = true;
       return this;
@@ -140,6 +284,23 @@ public class Packet {
       return this;
     }
 
+    /**
+     * Marks the packet as a control message. The first byte of the payload must be a ControlType.
+     * Control packets are unreliable and do not use the sequence number.
+     */
+    Builder control() {
+      this.control = true;
+      return this;
+    }
+
+    /**
+     * Marks the payload as a redundant bundle built by UnreliableStream. Only valid for unreliable packets.
+     */
+    Builder redundant() {
+      this.redundant = true;
+      return this;
+    }
+
     public Packet build() {
       if (payload != null && connectRequest) {
         throw new IllegalArgumentException("CONNECT REQUEST packet cannot have a payload");
@@ -150,10 +311,20 @@ public class Packet {
       if (connectRequest && close) {
         throw new IllegalArgumentException("packet cannot be CLOSE and CONNECT REQUEST");
       }
-      if (payload != null && !sequenceSet) {
+      if (control && (payload == null || reliable || connectRequest || close)) {
+        throw new IllegalArgumentException("CONTROL packet must be unreliable and have a payload");
+      }
+      if (redundant && (payload == null || reliable || control)) {
+        throw new IllegalArgumentException("REDUNDANT packet must be unreliable and have a payload");
+      }
+      if (payload != null && !sequenceSet && !control) {
         throw new IllegalArgumentException("packet with a payload must have sequence set");
       }
-      return new Packet(payload, sequence, reliable, connectRequest, hasAck, ackSequence, close);
+      if (body != null && payload == null) {
+        throw new IllegalArgumentException("packet with a body must have a payload");
+      }
+      return new Packet(payload, body, sequence, reliable, connectRequest, hasAck, ackSequence, close,
+          control, redundant, hasConnectionId, connectionId, wideSequences);
     }
   }
 
@@ -161,7 +332,42 @@ public class Packet {
    * @return A new packet that is identical to this one but also has an ACK. Used by ACK-piggybacking.
    */
   public Packet withAck(int ackSequence) {
-    return new Packet(payload, sequence, reliable, connectRequest, true, ackSequence, close);
+    return new Packet(payload, body, sequence, reliable, connectRequest, true, ackSequence, close, control,
+        redundant, hasConnectionId, connectionId, wideSequences);
+  }
+
+  /**
+   * @return A new packet that is identical to this one but carries the connection id. Added by Connection
+   * when sending, so streams never see it.
+   */
+  Packet withConnectionId(int connectionId) {
+    return new Packet(payload, body, sequence, reliable, connectRequest, ack, ackSequence, close, control,
+        redundant, true, connectionId, wideSequences);
+  }
+
+  /**
+   * @return This packet without the connection id, or this packet if it has none. Used by Connection once
+   * the packet is routed.
+   */
+  Packet withoutConnectionId() {
+    if (!hasConnectionId) {
+      return this;
+    }
+    return new Packet(payload, body, sequence, reliable, connectRequest, ack, ackSequence, close, control,
+        redundant, false, 0, wideSequences);
+  }
+
+  /**
+   * @return This packet without a piggybacked ACK, or this packet if it has none. The ACK is not part of
+   * the data of a packet, so this gives the same packet no matter when it was (re)sent. Used by FEC.
+   * The header is only wide if the sequence needs it, since a wide ACK may have made it wide.
+   */
+  public Packet withoutAck() {
+    if (!ack && !wideSequences) {
+      return this;
+    }
+    return new Packet(payload, body, sequence, reliable, connectRequest, false, 0, close, control, redundant,
+        hasConnectionId, connectionId, false);
   }
 
   /**
@@ -177,23 +383,40 @@ public class Packet {
     }
 
     final byte flags = buffer.get();
-    final int sequence = buffer.getShort() & 0xFFFF; // Make sure it isn't negative.
+    final boolean wideSequences = (flags & BITFLAG_WIDE_SEQUENCES) != 0;
+    if (wideSequences && buffer.remaining() < 4) {
+      throw new MalformedPacketException();
+    }
+    final int sequence = readSequence(buffer, wideSequences);
 
     final boolean reliable = (flags & BITFLAG_RELIABLE) != 0;
     final boolean connectRequest = (flags & BITFLAG_CONNECT_REQUEST) != 0;
     final boolean ack = (flags & BITFLAG_ACK) != 0;
     final boolean close = (flags & BITFLAG_CLOSE) != 0;
+    final boolean control = (flags & BITFLAG_CONTROL) != 0;
+    final boolean redundant = (flags & BITFLAG_REDUNDANT) != 0;
+    final boolean hasConnectionId = (flags & BITFLAG_CONNECTION_ID) != 0;
 
     final int ackSequence;
     if (ack) {
-      if (buffer.remaining() < 2) {
+      if (buffer.remaining() < (wideSequences ? 4 : 2)) {
         throw new MalformedPacketException();
       }
-      ackSequence = buffer.getShort() & 0xFFFF;
+      ackSequence = readSequence(buffer, wideSequences);
     } else {
       ackSequence = 0;
     }
 
+    final int connectionId;
+    if (hasConnectionId) {
+      if (buffer.remaining() < CONNECTION_ID_SIZE) {
+        throw new MalformedPacketException();
+      }
+      connectionId = buffer.getInt();
+    } else {
+      connectionId = 0;
+    }
+
     ByteBuffer payload = null;
     if (buffer.hasRemaining()) {
       payload = ByteBuffer.allocate(buffer.remaining());
@@ -202,14 +425,49 @@ public class Packet {
       payload.flip();
     }
 
-    return new Packet(payload, sequence, reliable, connectRequest, ack, ackSequence, close);
+    if ((control || redundant) && payload == null) {
+      throw new MalformedPacketException("control or redundant packet with no payload");
+    }
+
+    return new Packet(payload, null, sequence, reliable, connectRequest, ack, ackSequence, close, control,
+        redundant, hasConnectionId, connectionId, wideSequences);
+  }
+
+  private static int readSequence(ByteBuffer buffer, boolean wide) {
+    return wide ? buffer.getInt() : buffer.getShort() & 0xFFFF; // Make sure a narrow one isn't negative.
+  }
+
+  /**
+   * @return A packet identical to this one whose payload has its own position and limit, but shares the
+   * contents. Used to hand a packet to a receiver in the same process without serializing it, since the
+   * receiver reads the payload while the sender may still hold the packet (e.g. to resend it). A body is
+   * copied to the end of the payload, as the receiver would see it.
+   */
+  Packet duplicate() {
+    ByteBuffer duplicatePayload = payload == null ? null : payload.duplicate();
+    if (body != null) {
+      duplicatePayload = ByteBuffer.allocate(payload.remaining() + body.remaining());
+      duplicatePayload.put(payload.duplicate()).put(body.duplicate()).flip();
+    }
+    return new Packet(duplicatePayload, null, sequence, reliable, connectRequest, ack, ackSequence, close,
+        control, redundant, hasConnectionId, connectionId, wideSequences);
+  }
+
+  /**
+   * @return The number of bytes toBuffer() will produce.
+   */
+  int size() {
+    final int sequenceSize = hasWideSequences() ? 4 : 2;
+    return ((payload == null) ? 0 : payload.limit())
+           + ((body == null) ? 0 : body.remaining())
+           + 1 /* 1 byte flags */
+           + sequenceSize /* 2 or 4 byte sequence */
+           + (ack ? sequenceSize : 0) /* optional ack sequence */
+           + (hasConnectionId ? CONNECTION_ID_SIZE : 0); /* optional 4 byte connection id */
   }
 
   public ByteBuffer toBuffer() throws MalformedPacketException {
-    final int size = ((payload == null) ? 0 : payload.limit())
-                     + 1 /* 1 byte flags */
-                     + 2 /* 2 byte sequence */
-                     + (ack ? 2 : 0); /* optional 2 byte ack sequence */
+    final int size = size();
 
     if (size > MAX_PACKET_SIZE) {
       throw new MalformedPacketException(
@@ -217,37 +475,78 @@ public class Packet {
     }
 
     ByteBuffer buffer = ByteBuffer.allocate(size);
+    writeTo(buffer);
+
+    // Done writing, return the buffer in read mode.
+    buffer.flip();
+    return buffer;
+  }
 
+  /**
+   * Write the packet as toBuffer() would, at the position of dst, which must have size() bytes remaining.
+   * Lets a Socket serialize straight into its own buffer.
+   */
+  void writeTo(ByteBuffer dst) {
+    final boolean wide = hasWideSequences();
     final int flags = (reliable ? BITFLAG_RELIABLE : 0)
                       | (connectRequest ? BITFLAG_CONNECT_REQUEST : 0)
                       | (ack ? BITFLAG_ACK : 0)
-                      | (close ? BITFLAG_CLOSE : 0);
-    buffer.put((byte) flags);
+                      | (close ? BITFLAG_CLOSE : 0)
+                      | (control ? BITFLAG_CONTROL : 0)
+                      | (redundant ? BITFLAG_REDUNDANT : 0)
+                      | (hasConnectionId ? BITFLAG_CONNECTION_ID : 0)
+                      | (wide ? BITFLAG_WIDE_SEQUENCES : 0);
+    dst.put((byte) flags);
 
-    buffer.putShort((short) sequence);
+    writeSequence(dst, sequence, wide);
 
     if (ack) {
-      buffer.putShort((short) ackSequence);
+      writeSequence(dst, ackSequence, wide);
+    }
+
+    if (hasConnectionId) {
+      dst.putInt(connectionId);
     }
 
     if (payload != null) {
       // Create a duplicate to avoid altering the original (also keeps this class entirely immutable).
-      buffer.put(payload.duplicate());
+      dst.put(payload.duplicate());
     }
+    if (body != null) {
+      dst.put(body.duplicate());
+    }
+  }
 
-    // Done writing, return the buffer in read mode.
-    buffer.flip();
-    return buffer;
+  private static void writeSequence(ByteBuffer dst, int sequence, boolean wide) {
+    if (wide) {
+      dst.putInt(sequence);
+    } else {
+      dst.putShort((short) sequence);
+    }
   }
 
   @Override
   public String toString() {
-    return "[" + (payload == null ? "" : Util.byteBufferToHex(payload)) + "]"
+    return "[" + (payload == null ? "" : payloadToString()) + "]"
+           + (body == null ? "" : " (body = " + body.remaining() + " bytes)")
            + " (sequence = " + sequence + ")"
            + (reliable ? " (reliable)" : "")
            + (connectRequest ? " (connectRequest)" : "")
            + (close ? " (close)" : "")
-           + (ack ? " (ack = " + ackSequence + ")" : "");
+           + (control ? " (control)" : "")
+           + (redundant ? " (redundant)" : "")
+           + (ack ? " (ack = " + ackSequence + ")" : "")
+           + (hasConnectionId ? " (connectionId = " + connectionId + ")" : "")
+           + (wideSequences ? " (wideSequences)" : "");
+  }
+
+  private String payloadToString() {
+    if (payload.remaining() <= MAX_PRINTED_PAYLOAD) {
+      return Util.byteBufferToHex(payload);
+    }
+    final ByteBuffer start = payload.duplicate();
+    start.limit(start.position() + MAX_PRINTED_PAYLOAD);
+    return Util.byteBufferToHex(start) + " ... (" + payload.remaining() + " bytes)";
   }
 
   public static int nextSequence(int sequence) {
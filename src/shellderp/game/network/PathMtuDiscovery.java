@@ -0,0 +1,216 @@
+package shellderp.game.network;
+
+import shellderp.game.Time;
+import shellderp.game.Timer;
+
+/**
+ * Discovers the largest datagram that can be sent to the endpoint without IP fragmentation, in the style of
+ * DPLPMTUD (RFC 8899). A fragmented datagram is lost if any one of its fragments is lost, so staying under
+ * the path MTU noticeably improves throughput on lossy links.
+ * <p>
+ * We send PMTU_PROBE control packets padded to a candidate size, and the endpoint replies with a small
+ * PMTU_ACK. An acked probe proves the size works. A probe that is lost MAX_PROBES times in a row is taken
+ * to mean the size doesn't fit. Probes are separate from the reliable stream, since a lost probe is an
+ * expected outcome and must not be retransmitted or stall other data. This only works if the socket sets
+ * the don't fragment bit, otherwise oversized probes are fragmented and arrive anyway.
+ * <p>
+ * The search first confirms the base size, then tries the common Ethernet size, then binary searches the
+ * remaining range. Once the search completes, it is restarted after RAISE_INTERVAL_MS in case the path
+ * changed to allow larger datagrams.
+ * <p>
+ * Driven by Connection::step(), except ackReceived which is called from the receive thread.
+ */
+class PathMtuDiscovery {
+
+  /**
+   * A datagram size assumed to fit every path. This is the DPLPMTUD BASE_PLPMTU, which fits in the IPv6
+   * minimum MTU of 1280 bytes with room for IP and UDP headers.
+   */
+  static final int BASE_SIZE = 1200;
+
+  /**
+   * Ethernet MTU of 1500 bytes minus the IPv4 and UDP headers, the most likely result on the internet.
+   */
+  static final int ETHERNET_SIZE = 1472;
+
+  static final int MAX_SIZE = Packet.MAX_PACKET_SIZE;
+
+  /**
+   * Number of lost probes of one size before we decide that size doesn't fit.
+   */
+  static final int MAX_PROBES = 2;
+
+  /**
+   * Stop the search once the bounds are this close. A few bytes are not worth more probes.
+   */
+  private static final int SEARCH_PRECISION = 8;
+
+  /**
+   * Until we have a round trip sample from an acked probe we can't do better than the default.
+   */
+  private static final long INITIAL_PROBE_TIMEOUT_MS = ReliableStream.DEFAULT_PACKET_LOST_TIMEOUT_MS;
+  private static final long MIN_PROBE_TIMEOUT_MS = 50;
+
+  static final long RAISE_INTERVAL_MS = 10 * 60 * 1000;
+
+  private volatile boolean enabled = false;
+
+  /**
+   * Largest size known to work, and smallest size known not to work (or MAX_SIZE + 1).
+   */
+  private int low = BASE_SIZE;
+  private int high = MAX_SIZE + 1;
+
+  private boolean baseConfirmed = false;
+  private boolean searchComplete = false;
+
+  /**
+   * The size of the outstanding probe, or 0 if none.
+   */
+  private volatile int probeSize = 0;
+  private int probeCount = 0;
+  private final Timer probeTimer = new Timer();
+  private volatile long probeSentNanos;
+  private long probeTimeoutMs = INITIAL_PROBE_TIMEOUT_MS;
+
+  private final Timer raiseTimer = new Timer();
+
+  /**
+   * Set by the receive thread when a probe is acked, consumed by step.
+   */
+  private volatile int ackedSize = 0;
+  private volatile long ackedRttMs = 0;
+
+  /**
+   * The discovered size. Read by streams in any thread.
+   */
+  private volatile int maxDatagramSize = MAX_SIZE;
+
+  /**
+   * Start probing. Until the search finds something better, the max datagram size is the base size.
+   */
+  void enable() {
+    if (enabled) {
+      return;
+    }
+    enabled = true;
+    maxDatagramSize = BASE_SIZE;
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  boolean isSearchComplete() {
+    return searchComplete;
+  }
+
+  /**
+   * @return The largest datagram size that is known to reach the endpoint. If discovery is not enabled,
+   * this is the max packet size.
+   */
+  int getMaxDatagramSize() {
+    return maxDatagramSize;
+  }
+
+  /**
+   * Called from the receive thread when a PMTU_ACK is received.
+   */
+  void ackReceived(int size) {
+    final int outstanding = probeSize;
+    if (outstanding != 0 && size == outstanding) {
+      ackedRttMs = Time.millisBetween(probeSentNanos, Time.nowNanos());
+      ackedSize = size;
+    }
+  }
+
+  /**
+   * Advance the search. Called every step.
+   *
+   * @return The size of a probe to send now, or 0 if none.
+   */
+  int step() {
+    if (!enabled) {
+      return 0;
+    }
+
+    if (probeSize != 0) {
+      if (ackedSize == probeSize) {
+        probeSucceeded();
+      } else if (probeTimer.hasPassed(probeTimeoutMs)) {
+        if (probeCount < MAX_PROBES) {
+          return resendProbe();
+        }
+        probeFailed();
+      } else {
+        return 0; // Still waiting on the probe.
+      }
+    }
+
+    if (searchComplete) {
+      if (!raiseTimer.hasPassed(RAISE_INTERVAL_MS)) {
+        return 0;
+      }
+      // See if the path allows more now.
+      searchComplete = false;
+      high = MAX_SIZE + 1;
+    }
+
+    final int candidate = nextCandidate();
+    if (candidate == 0) {
+      searchComplete = true;
+      raiseTimer.restart();
+      return 0;
+    }
+
+    ackedSize = 0;
+    probeSize = candidate;
+    probeCount = 0;
+    return resendProbe();
+  }
+
+  private int resendProbe() {
+    probeCount++;
+    final long now = Time.nowNanos();
+    probeTimer.restart(now);
+    probeSentNanos = now;
+    return probeSize;
+  }
+
+  private int nextCandidate() {
+    if (!baseConfirmed) {
+      return BASE_SIZE;
+    }
+    if (high - low <= SEARCH_PRECISION) {
+      return 0;
+    }
+    if (low < ETHERNET_SIZE && ETHERNET_SIZE < high) {
+      return ETHERNET_SIZE;
+    }
+    return (low + high) / 2;
+  }
+
+  private void probeSucceeded() {
+    // Loss of a probe costs a full timeout, so keep it close to the round trip once we know it.
+    probeTimeoutMs = Math.max(MIN_PROBE_TIMEOUT_MS, 3 * ackedRttMs);
+
+    if (probeSize == BASE_SIZE) {
+      baseConfirmed = true;
+    }
+    low = Math.max(low, probeSize);
+    maxDatagramSize = low;
+    probeSize = 0;
+  }
+
+  private void probeFailed() {
+    if (probeSize == BASE_SIZE) {
+      // The base size should always work, so the endpoint is likely not responding at all. The connection
+      // timeout will handle that, we just try again later.
+      searchComplete = true;
+      raiseTimer.restart();
+    } else {
+      high = probeSize;
+    }
+    probeSize = 0;
+  }
+}
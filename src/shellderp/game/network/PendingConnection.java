@@ -17,9 +17,25 @@ class PendingConnection {
   // Not used in comparison, but for removing old entries.
   final Timer addedTimer;
 
+  // Not used in comparison, the state needed to create the connection.
+  final int clientSequence;
+  final int connectionId;
+  final SequenceSpace sequences;
+
+  /**
+   * Create a dummy to probe the set of pending connections.
+   */
   PendingConnection(SocketAddress socketAddress, int serverSequence) {
+    this(socketAddress, serverSequence, 0, Connection.NO_CONNECTION_ID, SequenceSpace.NARROW);
+  }
+
+  PendingConnection(SocketAddress socketAddress, int serverSequence, int clientSequence, int connectionId,
+      SequenceSpace sequences) {
     this.socketAddress = socketAddress;
     this.serverSequence = serverSequence;
+    this.clientSequence = clientSequence;
+    this.connectionId = connectionId;
+    this.sequences = sequences;
 
     addedTimer = new Timer();
     addedTimer.restart();
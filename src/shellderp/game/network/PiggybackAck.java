@@ -1,7 +1,5 @@
 package shellderp.game.network;
 
-import shellderp.game.Timer;
-
 import java.util.Optional;
 
 /**
@@ -21,6 +19,15 @@ import java.util.Optional;
  * If a timer is already running and the reliable stream wants to send a new ack, we just update the ack value
  * and continue to run the timer from its old start time.
  * <p>
+ * The delay adapts to the connection, as in TCP delayed acks:
+ * 1. Every ackEvery packets received without an ack sent, we ack immediately, so a sender with a burst
+ * of data is never held back by more than one packet.
+ * 2. Otherwise we wait about as long as the peer's observed send interval, since the next packet from the
+ * peer will likely trigger rule 1, and waiting longer only delays the ack.
+ * 3. The delay is capped at a fraction of the RTT, since it adds directly to the peer's RTT samples, and
+ * at a fraction of the retransmit timeout, so a delayed ack never causes a spurious retransmission. We
+ * use our own retransmit timeout for the peer's, which holds for a symmetric path.
+ * <p>
  * All methods are thread safe since this is intended to be called from the ReliableStream::packetReceived
  * which executes in ReceiveThread, and in Connection::send which can execute in any thread.
  * <p>
@@ -29,44 +36,187 @@ import java.util.Optional;
 public class PiggybackAck {
 
   /**
-   * How long we wait after the first ack was set until sending a payload-less packet.
-   * Since we expect the game to send frequent location packets, we keep this close to the game tick rate.
-   * This should be kept low, since we are limiting what the other end can send by not sending an ack.
+   * How long we wait after the first ack was set until sending a payload-less packet, until we have
+   * observed the peer. Since we expect the game to send frequent location packets, we keep this close to
+   * the game tick rate.
+   */
+  static final long DEFAULT_DELAY_MS = 50;
+
+  /**
+   * The delay never goes below this, otherwise every packet on a low latency link gets a bare ack.
+   */
+  static final long MIN_DELAY_MS = 1;
+
+  static final int DEFAULT_ACK_EVERY = 2;
+
+  private static final double RTT_FRACTION = 0.5;
+  private static final double RETRANSMIT_TIMEOUT_FRACTION = 0.25;
+
+  /**
+   * How much we value the current send interval sample vs the previous estimate.
    */
-  private final static long timeoutMs = 50;
+  private static final double INTERVAL_SMOOTHING = 0.125;
 
-  private final Timer timer = new Timer();
+  private static final long NANOS_PER_MS = 1_000_000;
 
   private boolean hasAck = false;
 
   private int ackSequence;
 
+  /**
+   * When the pending ack was first set, and how many packets it covers.
+   */
+  private long ackSetNanos;
+  private int unackedPackets = 0;
+
+  private int ackEvery = DEFAULT_ACK_EVERY;
+
+  /**
+   * Smoothed time between packets from the peer, or negative until we have two packets.
+   */
+  private double peerSendIntervalMs = -1;
+  private long lastPacketNanos;
+  private boolean hasLastPacket = false;
+
+  /**
+   * From the reliable stream's send window. The RTT is negative until there is a sample.
+   */
+  private long rttMs = -1;
+  private long retransmitTimeoutMs = ReliableStream.DEFAULT_PACKET_LOST_TIMEOUT_MS;
+
+  private long delayMs = DEFAULT_DELAY_MS;
+
+  private long acksPiggybacked = 0;
+  private long acksSentBare = 0;
+
+  /**
+   * @param ackEvery Ack immediately once this many packets are waiting for an ack. 1 disables delayed acks.
+   */
+  public synchronized void setAckEvery(int ackEvery) {
+    if (ackEvery < 1) {
+      throw new IllegalArgumentException("ackEvery must be >= 1");
+    }
+    this.ackEvery = ackEvery;
+  }
+
+  public synchronized int getAckEvery() {
+    return ackEvery;
+  }
+
+  /**
+   * @return The current delay before a pending ack is sent without a payload to piggyback on.
+   */
+  public synchronized long getDelayMs() {
+    return delayMs;
+  }
+
+  /**
+   * @return The number of acks sent on packets that were sent anyway.
+   */
+  public synchronized long getAcksPiggybacked() {
+    return acksPiggybacked;
+  }
+
+  /**
+   * @return The number of acks sent in packets of their own.
+   */
+  public synchronized long getAcksSentBare() {
+    return acksSentBare;
+  }
+
+  /**
+   * Take the pending ack to piggyback on a packet that is being sent.
+   */
   public synchronized Optional<Integer> getAndClearAck() {
     if (!hasAck) {
       return Optional.empty();
     }
 
-    hasAck = false;
-    timer.stop();
+    clear();
+    acksPiggybacked++;
 
     return Optional.of(ackSequence);
   }
 
-  public synchronized Optional<Integer> getAndClearAckIfTimeoutPassed() {
-    if (timer.hasPassed(timeoutMs)) {
-      return getAndClearAck();
+  /**
+   * Take the pending ack if it must be sent now in a payload-less packet, because enough packets are
+   * waiting for it or it was delayed long enough.
+   */
+  public Optional<Integer> getAndClearAckIfDue() {
+    return getAndClearAckIfDue(System.nanoTime());
+  }
+
+  synchronized Optional<Integer> getAndClearAckIfDue(long nowNanos) {
+    if (!hasAck || (unackedPackets < ackEvery && nowNanos - ackSetNanos < delayMs * NANOS_PER_MS)) {
+      return Optional.empty();
     }
 
-    return Optional.empty();
+    clear();
+    acksSentBare++;
+
+    return Optional.of(ackSequence);
   }
 
-  public synchronized void setAckSequence(int ackSequence) {
+  /**
+   * Discard the pending ack, because the reliable stream is sending a payload-less ack of its own right now.
+   */
+  public synchronized void clearForBareAck() {
+    clear();
+    acksSentBare++;
+  }
+
+  private void clear() {
+    hasAck = false;
+    unackedPackets = 0;
+  }
+
+  /**
+   * Called for every reliable packet received in order, with the sequence to ack.
+   */
+  public void setAckSequence(int ackSequence) {
+    setAckSequence(ackSequence, System.nanoTime());
+  }
+
+  synchronized void setAckSequence(int ackSequence, long nowNanos) {
+    if (hasLastPacket) {
+      // Gaps longer than the retransmit timeout are capped anyway, so don't let an idle period skew the
+      // estimate for long.
+      final double sampleMs = Math.min((nowNanos - lastPacketNanos) / (double) NANOS_PER_MS,
+          retransmitTimeoutMs);
+      peerSendIntervalMs = peerSendIntervalMs < 0 ? sampleMs
+          : (1 - INTERVAL_SMOOTHING) * peerSendIntervalMs + INTERVAL_SMOOTHING * sampleMs;
+      updateDelay();
+    }
+    lastPacketNanos = nowNanos;
+    hasLastPacket = true;
+
     this.ackSequence = ackSequence;
-    hasAck = true;
+    if (!hasAck) {
+      hasAck = true;
+      ackSetNanos = nowNanos;
+    }
+    unackedPackets++;
+  }
+
+  /**
+   * Called by the reliable stream with the current estimates of its send window.
+   *
+   * @param rttMs               The smoothed round trip time, or negative if there is no sample yet.
+   * @param retransmitTimeoutMs The current retransmit timeout.
+   */
+  synchronized void roundTripUpdated(long rttMs, long retransmitTimeoutMs) {
+    this.rttMs = rttMs;
+    this.retransmitTimeoutMs = retransmitTimeoutMs;
+    updateDelay();
+  }
 
-    if (!timer.isActive()) {
-      timer.restart();
+  private void updateDelay() {
+    double delay = peerSendIntervalMs < 0 ? DEFAULT_DELAY_MS : peerSendIntervalMs;
+    if (rttMs >= 0) {
+      delay = Math.min(delay, RTT_FRACTION * rttMs);
     }
+    delay = Math.min(delay, RETRANSMIT_TIMEOUT_FRACTION * retransmitTimeoutMs);
+    delayMs = Math.max(MIN_DELAY_MS, (long) delay);
   }
 
 }
@@ -0,0 +1,158 @@
+package shellderp.game.network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A batch of received packets, filled by Socket.receiveBatch() and dispatched by ReceiveThread in one call
+ * to the Receiver. The read buffers are allocated once and reused for every batch.
+ * <p>
+ * A socket drains datagrams into the buffers first and they are decoded afterwards, so the socket is
+ * emptied as fast as possible and decoding happens before the receiver takes any locks. Sockets that
+ * already have Packet objects (e.g. LoopbackSocket) add them directly.
+ * <p>
+ * Only used by the receive thread, so not thread-safe.
+ */
+class ReceiveBatch {
+  private static final Logger logger = Logger.getLogger(ReceiveBatch.class.getName());
+
+  private final ByteBuffer[] buffers;
+  private final SocketAddress[] sources;
+  private final Packet[] packets;
+  private int size = 0;
+
+  ReceiveBatch(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be >= 1");
+    }
+    buffers = new ByteBuffer[capacity];
+    sources = new SocketAddress[capacity];
+    packets = new Packet[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  boolean isFull() {
+    return size == sources.length;
+  }
+
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      // Don't hold on to packets after they are dispatched.
+      sources[i] = null;
+      packets[i] = null;
+    }
+    size = 0;
+  }
+
+  /**
+   * @return The cleared buffer to read the next datagram into. Call addReceived() if a datagram was read.
+   */
+  ByteBuffer nextBuffer() {
+    ByteBuffer buffer = buffers[size];
+    if (buffer == null) {
+      buffer = ByteBuffer.allocate(Packet.MAX_PACKET_SIZE);
+      buffers[size] = buffer;
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Add the datagram read into nextBuffer(), in write mode. It is decoded by decode().
+   */
+  void addReceived(SocketAddress source) {
+    buffers[size].flip();
+    sources[size] = source;
+    packets[size] = null;
+    size++;
+  }
+
+  /**
+   * Add a packet that is already decoded.
+   */
+  void add(SocketAddress source, Packet packet) {
+    sources[size] = source;
+    packets[size] = packet;
+    size++;
+  }
+
+  /**
+   * Decode the datagrams added with addReceived. Malformed datagrams are logged and removed from the batch,
+   * so one bad datagram doesn't cost the others in the batch.
+   */
+  void decode() {
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      Packet packet = packets[i];
+      if (packet == null) {
+        try {
+          packet = Packet.fromBuffer(buffers[i]);
+        } catch (MalformedPacketException e) {
+          logger.log(Level.FINE, "dropping malformed packet from " + sources[i], e);
+          continue;
+        }
+      }
+      if (kept != i) {
+        // Swap the buffer into the hole, so the batch keeps all of its buffers.
+        final ByteBuffer buffer = buffers[kept];
+        buffers[kept] = buffers[i];
+        buffers[i] = buffer;
+        sources[kept] = sources[i];
+      }
+      packets[kept] = packet;
+      kept++;
+    }
+    for (int i = kept; i < size; i++) {
+      sources[i] = null;
+      packets[i] = null;
+    }
+    size = kept;
+  }
+
+  SocketAddress getSource(int index) {
+    return sources[index];
+  }
+
+  /**
+   * Only valid after decode().
+   */
+  Packet getPacket(int index) {
+    return packets[index];
+  }
+
+  /**
+   * Reorder the batch so that packets from the same source are next to each other, keeping the order of
+   * the packets from each source. The order between sources doesn't matter, since they are independent.
+   * Batches are small, so a quadratic scan beats hashing.
+   */
+  void groupBySource() {
+    int grouped = 0;
+    while (grouped < size) {
+      final SocketAddress source = sources[grouped];
+      grouped++;
+      // Move later packets from this source up to the end of the group, shifting the others down.
+      for (int i = grouped; i < size; i++) {
+        if (sources[i].equals(source)) {
+          final Packet packet = packets[i];
+          final ByteBuffer buffer = buffers[i];
+          System.arraycopy(sources, grouped, sources, grouped + 1, i - grouped);
+          System.arraycopy(packets, grouped, packets, grouped + 1, i - grouped);
+          System.arraycopy(buffers, grouped, buffers, grouped + 1, i - grouped);
+          sources[grouped] = source;
+          packets[grouped] = packet;
+          buffers[grouped] = buffer;
+          grouped++;
+        }
+      }
+    }
+  }
+}
@@ -1,8 +1,6 @@
 package shellderp.game.network;
 
 import java.io.IOException;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 
@@ -13,20 +11,43 @@ import java.nio.channels.Selector;
  * we would only reply with ACKs in 100ms intervals, leading to high latency and restricting the usable
  * range of tick rates.
  * <p>
+ * Packets are read in batches of up to BATCH_SIZE, which the receiver gets in one call. This lets the
+ * Server take its lock and look up each connection once per batch rather than once per packet. Under light
+ * load a batch is a single packet, so there is no added latency.
+ * <p>
+ * A busy polling Server doesn't start the thread, and calls poll() from its own loop instead, which saves
+ * the handoff between threads. A Server that does start it still polls at the start of each step, so that
+ * every packet that arrived before the step is handled in it. Receiving and dispatching then happen under
+ * the Server's lock, or the thread could take a packet off the socket and only dispatch it after the step.
+ * The thread takes the lock for one batch at a time, and only once the socket says there may be packets.
+ * <p>
  * Created by: Mike
  */
 class ReceiveThread implements Runnable {
 
+  static final int BATCH_SIZE = 32;
+
   private final Socket socket;
   private final Receiver receiver;
+  private final Object lock;
 
   private final Selector selector;
 
+  private final ReceiveBatch batch = new ReceiveBatch(BATCH_SIZE);
+
   private volatile boolean running = true;
 
   public ReceiveThread(Socket socket, Receiver receiver) throws IOException {
+    this(socket, receiver, null);
+  }
+
+  /**
+   * @param lock Held while receiving and dispatching a batch, and while closing the socket. Null for this.
+   */
+  ReceiveThread(Socket socket, Receiver receiver, Object lock) throws IOException {
     this.socket = socket;
     this.receiver = receiver;
+    this.lock = lock != null ? lock : this;
 
     selector = Selector.open();
 
@@ -35,26 +56,51 @@ class ReceiveThread implements Runnable {
 
   @Override
   public void run() {
-    ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_PACKET_SIZE);
-
-    while (true) {
+    while (running) {
       try {
-        selector.select();
-
-        if (!running) {
-          break;
+        if (!socket.awaitReceive(selector)) {
+          continue;
         }
-
-        // We only have one socket to worry about, so no need to iterate over selectedKeys.
-        selector.selectedKeys().clear();
-
-        readSocketUntilDone(buffer);
+        // Take the lock once per batch rather than for the whole drain, so that a flood of packets can't
+        // keep the Server waiting to step.
+        while (receiveBatch()) {
+        }
+        // Don't hold on to the packets until the next wakeup.
+        batch.clear();
       } catch (IOException e) {
         running = false;
         e.printStackTrace();
       }
     }
 
+    synchronized (lock) {
+      close();
+    }
+  }
+
+  /**
+   * Receive and dispatch one batch under the lock.
+   *
+   * @return false if there was nothing to receive, or we were stopped.
+   */
+  private boolean receiveBatch() throws IOException {
+    synchronized (lock) {
+      if (!running) {
+        return false;
+      }
+      batch.clear();
+      socket.receiveBatch(batch);
+      if (batch.isEmpty()) {
+        return false;
+      }
+
+      batch.decode();
+      receiver.packetsReceived(batch);
+      return true;
+    }
+  }
+
+  private void close() {
     try {
       selector.close();
       socket.close();
@@ -63,19 +109,31 @@ class ReceiveThread implements Runnable {
     }
   }
 
-  private void readSocketUntilDone(ByteBuffer buffer) throws IOException {
-    while (true) {
-      SocketAddress socketAddress = socket.tryReceive(buffer);
-      if (socketAddress == null) {
-        break;
+  /**
+   * Receive and dispatch everything waiting on the socket, on the calling thread, without blocking.
+   */
+  void poll() throws IOException {
+    synchronized (lock) {
+      if (running) {
+        receiveUntilDone();
       }
+    }
+  }
 
-      buffer.flip();
+  /**
+   * Close the socket of a ReceiveThread that was never started.
+   */
+  void stopPolling() {
+    if (running) {
+      running = false;
+      close();
+    }
+  }
 
-      Packet packet = Packet.fromBuffer(buffer);
-      receiver.packetReceived(socketAddress, packet);
-      buffer.clear(); // Reset for the next read.
+  private void receiveUntilDone() throws IOException {
+    while (receiveBatch()) {
     }
+    batch.clear();
   }
 
   public void stop() {
@@ -8,4 +8,14 @@ import java.net.SocketAddress;
  */
 interface Receiver {
   void packetReceived(SocketAddress from, Packet packet) throws IOException;
+
+  /**
+   * Called with every batch of packets ReceiveThread reads. Receivers with per-packet overhead, such as
+   * taking a lock, can override this to pay it once per batch.
+   */
+  default void packetsReceived(ReceiveBatch batch) throws IOException {
+    for (int i = 0; i < batch.size(); i++) {
+      packetReceived(batch.getSource(i), batch.getPacket(i));
+    }
+  }
 }
@@ -35,6 +35,8 @@ public class ReliableStream implements GameStep, SendableStream {
 
   private final PiggybackAck piggybackAck;
 
+  private final SequenceSpace sequences;
+
   private final GoBackNWindow window;
 
   // TODO: think about adding an inQueue size limit so rogue clients can't result in out-of-memory crashes
@@ -43,6 +45,8 @@ public class ReliableStream implements GameStep, SendableStream {
 
   private long sendTimeoutMs = 5000;
 
+  private final ForwardErrorCorrection fec;
+
   /**
    * Create a reliable stream from this connection. Note there can only ever be one per connection,
    * and conceptually a reliable stream cannot exist without a connection, so to enforce this we take
@@ -55,16 +59,19 @@ public class ReliableStream implements GameStep, SendableStream {
    * @param initialSequenceOut The next expected outgoing sequence number, obtained from the connect
    *                           handshake.
    * @param piggybackAck       The ack piggyback handler owned by connection.
+   * @param sequences          The sequence space negotiated in the connect handshake.
    */
   ReliableStream(Connection connection, ConnectionHandler handler, int initialSequenceIn,
-      int initialSequenceOut, PiggybackAck piggybackAck) {
+      int initialSequenceOut, PiggybackAck piggybackAck, SequenceSpace sequences) {
     this.connection = connection;
     this.handler = handler;
     this.sequenceIn = initialSequenceIn;
     this.sequenceOut = initialSequenceOut;
     this.piggybackAck = piggybackAck;
+    this.sequences = sequences;
 
-    window = new GoBackNWindow(initialSequenceOut, DEFAULT_PACKET_LOST_TIMEOUT_MS);
+    window = new GoBackNWindow(initialSequenceOut, DEFAULT_PACKET_LOST_TIMEOUT_MS, sequences);
+    fec = new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID, sequences);
   }
 
   /**
@@ -74,6 +81,15 @@ public class ReliableStream implements GameStep, SendableStream {
     this.sendTimeoutMs = sendTimeoutMs;
   }
 
+  /**
+   * Forward error correction for this stream, disabled by default. When a lost packet is rebuilt from
+   * parity, it is delivered right away along with the packets received after it, instead of waiting for
+   * the Go-Back-N retransmission.
+   */
+  public ForwardErrorCorrection getForwardErrorCorrection() {
+    return fec;
+  }
+
   /**
    * Attempt to send immediately, but with no guarantee that the endpoint has received the message after
    * this method returns. The packet will be delivered eventually as long as there is no connection error.
@@ -92,11 +108,12 @@ public class ReliableStream implements GameStep, SendableStream {
     }
 
     Packet packet = new Packet.Builder()
+        .sequences(sequences)
         .reliable()
         .payload(payload)
         .sequence(sequenceOut)
         .build();
-    sequenceOut = Packet.nextSequence(sequenceOut);
+    sequenceOut = sequences.next(sequenceOut);
 
     if (!outQueue.isEmpty()) {
       // If there is already something on the outqueue, we can't send immediately, else we violate
@@ -113,6 +130,7 @@ public class ReliableStream implements GameStep, SendableStream {
         if (bytesSent != 0) {
           // Tell the window that we've sent this packet, so that it ensures we get an ACK for it.
           window.packetSent(packet);
+          firstTransmission(packet);
         } else {
           // The kernel outqueue was full, so queue this packet for write when possible.
           outQueue.add(packet);
@@ -126,12 +144,24 @@ public class ReliableStream implements GameStep, SendableStream {
     // TODO: have a log warning when send queue is large, however ConcurrentLinkedQueue.size() is O(n)
   }
 
+  /**
+   * @return true if there are packets waiting to be sent, e.g. because the window is full.
+   */
+  boolean hasBacklog() {
+    return !outQueue.isEmpty();
+  }
+
   @Override
   public int maxSupportedPacketSize() {
-    return Packet.MAX_PACKET_SIZE;
+    return connection.getMaxDatagramSize() - Packet.MAX_HEADER_SIZE;
   }
 
   void packetReceived(Packet packet) throws IOException {
+    if (packet.isReliable() && packet.hasPayload()) {
+      // Remember the packet even if we discard it below, it may be needed to rebuild a lost packet.
+      fec.packetReceived(packet);
+    }
+
     if (packet.hasAck()) {
       synchronized (window) {
         window.ackReceived(packet.getAckSequence());
@@ -157,15 +187,15 @@ public class ReliableStream implements GameStep, SendableStream {
     // Otherwise, we discard it, since it is out of order and we will receive it later correctly.
     if (packet.getSequence() == sequenceIn) {
       inQueue.add(packet);
-      sequenceIn = Packet.nextSequence(packet.getSequence());
-    } else if (Packet.newerThanExpected(sequenceIn, packet.getSequence())) {
+      sequenceIn = sequences.next(packet.getSequence());
+    } else if (sequences.newerThanExpected(sequenceIn, packet.getSequence())) {
       // This packet is AHEAD of what we expect. It is very likely the packet we expect was lost,
       // so immediately send an ACK.
 
       // First we need to clear the piggyback ack value in case one is set.
-      piggybackAck.getAndClearAck();
+      piggybackAck.clearForBareAck();
 
-      Packet ack = new Packet.Builder().ack(sequenceIn).build();
+      Packet ack = new Packet.Builder().sequences(sequences).ack(sequenceIn).build();
       connection.send(ack);
 
       return;
@@ -173,6 +203,33 @@ public class ReliableStream implements GameStep, SendableStream {
 
     // Update the piggyback handler with the latest sequence to ack.
     piggybackAck.setAckSequence(sequenceIn);
+
+    // Enough packets may be waiting for the ack that we shouldn't wait for something to piggyback on.
+    sendAckIfDue();
+  }
+
+  private void sendAckIfDue() {
+    Optional<Integer> ack = piggybackAck.getAndClearAckIfDue();
+    if (ack.isPresent()) {
+      Packet ackPacket = new Packet.Builder().sequences(sequences).ack(ack.get()).build();
+      try {
+        connection.send(ackPacket);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Called when a FEC_PARITY control packet is received for this stream. If a lost packet is rebuilt, we
+   * process it along with the packets received after it, which were discarded for being out of order.
+   */
+  void fecParityReceived(ByteBuffer data) throws IOException {
+    Packet packet = fec.parityReceived(data);
+    while (packet != null) {
+      packetReceived(packet);
+      packet = fec.getReceived(sequences.next(packet.getSequence()));
+    }
   }
 
   /**
@@ -180,6 +237,8 @@ public class ReliableStream implements GameStep, SendableStream {
    * 1. Check if any packets need to be re-sent because we didn't receive an ACK in the alloted time.
    * 2. Attempt to send any queued writes (see sendAsync for possible reasons).
    * 3. Callback for any queued reads.
+   * 4. Report the FEC loss rate to the sender, if it is using FEC.
+   * 5. Send a payload-less ack if one was delayed too long (see PiggybackAck).
    * <p>
    * This method should only be called by one thread at a time.
    *
@@ -211,6 +270,8 @@ public class ReliableStream implements GameStep, SendableStream {
         }
 
         sendQueuedPackets();
+
+        piggybackAck.roundTripUpdated(window.getEstimatedRttMs(), window.getRetransmitTimeoutMs());
       } catch (IOException e) {
         // An exception in sending at any point invalidates our connection, so close it.
         e.printStackTrace();
@@ -218,17 +279,17 @@ public class ReliableStream implements GameStep, SendableStream {
       }
     }
 
-    Optional<Integer> ack = piggybackAck.getAndClearAckIfTimeoutPassed();
-    if (ack.isPresent()) {
-      // We didn't send any packets to piggyback on within the timer, so we have to send a
-      // payload-less ack.
-      Packet ackPacket = new Packet.Builder().ack(ack.get()).build();
+    final ByteBuffer fecReport = fec.reportToSend();
+    if (fecReport != null) {
       try {
-        connection.send(ackPacket);
+        connection.sendControl(ControlType.FEC_REPORT, fecReport);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
+
+    // If we didn't send any packets to piggyback on within the delay, we have to send a payload-less ack.
+    sendAckIfDue();
   }
 
   /**
@@ -258,6 +319,22 @@ public class ReliableStream implements GameStep, SendableStream {
       }
 
       window.packetSent(packet);
+      firstTransmission(packet);
+    }
+  }
+
+  /**
+   * Called when a packet is sent for the first time, i.e. in order of sequence.
+   */
+  private void firstTransmission(Packet packet) {
+    try {
+      final ByteBuffer parity = fec.packetSent(packet);
+      if (parity != null) {
+        connection.sendControl(ControlType.FEC_PARITY, parity);
+      }
+    } catch (IOException e) {
+      // Parity is best-effort, the packet itself was sent fine.
+      e.printStackTrace();
     }
   }
 
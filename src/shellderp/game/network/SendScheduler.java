@@ -0,0 +1,273 @@
+package shellderp.game.network;
+
+import shellderp.game.Time;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules outgoing messages of a connection within a bandwidth budget, sending the most important ones
+ * first. This is an alternative to sending directly on a stream, meant for games that replicate more
+ * state than a client's link can take (e.g. many entity updates of varying relevance).
+ * <p>
+ * Each message has a priority, and every step the scheduler sends the queued messages with the highest
+ * effective priority until the budget for the step is used up. The rest are deferred to later steps.
+ * Deferred unreliable messages are dropped once they are older than the unreliable expiry, since they are
+ * likely obsolete by then. Reliable messages are never dropped.
+ * <p>
+ * Starvation protection: the effective priority of a message grows with the time it has been waiting
+ * (priority + ageBoostPerSecond * age), so a low priority message eventually outranks new high priority
+ * messages. Since every message gets the same boost over time, the order of two queued messages never
+ * changes as they age, which lets us keep the queue in a heap keyed by (priority - boost * enqueueTime)
+ * rather than re-sorting every step. Messages with equal priority are sent in the order they were queued.
+ * <p>
+ * The budget is a token bucket refilled at bytesPerSecond. All bytes the connection sends count against it,
+ * including acks, retransmissions and direct stream sends, so scheduled messages get what is left. A
+ * message is sent whenever the bucket is not empty, even if it is larger than what remains, and the bucket
+ * goes into debt; otherwise a large message could be deferred forever. Reliable messages are deferred
+ * while the reliable stream has a backlog (e.g. its window is full), since the stream would only queue
+ * them without regard for priority.
+ * <p>
+ * This class is thread-safe; messages can be queued from any thread. Connection calls step().
+ */
+public class SendScheduler {
+  private static final Logger logger = Logger.getLogger(SendScheduler.class.getName());
+
+  /**
+   * The bucket holds at most this much time worth of budget, so an idle connection can't save up for a
+   * large burst. It always holds at least one max size packet.
+   */
+  private static final long MAX_BURST_MS = 100;
+
+  private static class ScheduledMessage implements Comparable<ScheduledMessage> {
+    final SendableStream stream;
+    final ByteBuffer payload;
+    final long enqueueNanos;
+    final double key;
+    final long order;
+
+    ScheduledMessage(SendableStream stream, ByteBuffer payload, long enqueueNanos, double key,
+        long order) {
+      this.stream = stream;
+      this.payload = payload;
+      this.enqueueNanos = enqueueNanos;
+      this.key = key;
+      this.order = order;
+    }
+
+    @Override
+    public int compareTo(ScheduledMessage o) {
+      // Highest key first, then oldest first.
+      final int byKey = Double.compare(o.key, key);
+      return byKey != 0 ? byKey : Long.compare(order, o.order);
+    }
+  }
+
+  private final Connection connection;
+
+  private final PriorityQueue<ScheduledMessage> queue = new PriorityQueue<>();
+
+  /**
+   * Reference time for enqueue times, so that the heap keys stay small enough for doubles.
+   */
+  private final long epochNanos = Time.nowNanos();
+
+  private long nextOrder = 0;
+
+  private long bytesPerSecond = 0;
+  private double ageBoostPerSecond = 1;
+  private long unreliableExpiryMs = 250;
+
+  private double tokens = 0;
+
+  /**
+   * Bytes sent by the connection that have not been taken out of tokens yet.
+   */
+  private final AtomicLong unchargedBytes = new AtomicLong();
+
+  private long lastStepNanos = 0;
+  private boolean stepped = false;
+
+  private long messagesSent = 0;
+  private long messagesDropped = 0;
+
+  SendScheduler(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @param bytesPerSecond The bandwidth budget of this connection. 0 means unlimited, in which case all
+   *                       queued messages are sent (in priority order) each step.
+   */
+  public synchronized void setBytesPerSecond(long bytesPerSecond) {
+    if (bytesPerSecond < 0) {
+      throw new IllegalArgumentException("bytesPerSecond must be >= 0");
+    }
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  public synchronized long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Set how fast the priority of a waiting message grows. Only applies to messages queued after this call.
+   *
+   * @param ageBoostPerSecond The priority added per second of waiting. Must be positive, since this is what
+   *                          prevents starvation.
+   */
+  public synchronized void setAgeBoostPerSecond(double ageBoostPerSecond) {
+    if (!(ageBoostPerSecond > 0)) {
+      throw new IllegalArgumentException("ageBoostPerSecond must be > 0");
+    }
+    this.ageBoostPerSecond = ageBoostPerSecond;
+  }
+
+  /**
+   * @param unreliableExpiryMs How long an unreliable message may be deferred before it is dropped.
+   */
+  public synchronized void setUnreliableExpiry(long unreliableExpiryMs) {
+    this.unreliableExpiryMs = unreliableExpiryMs;
+  }
+
+  /**
+   * Queue a message to be sent on the reliable stream of this connection.
+   *
+   * @param payload  The contents of the message. Owned by the scheduler once passed in.
+   * @param priority Higher priority messages are sent first.
+   */
+  public void sendReliable(ByteBuffer payload, double priority) {
+    enqueue(connection.getReliableStream(), payload, priority);
+  }
+
+  /**
+   * Queue a message to be sent on the unreliable stream of this connection. The message is dropped if it
+   * can't be sent within the unreliable expiry.
+   *
+   * @param payload  The contents of the message. Owned by the scheduler once passed in.
+   * @param priority Higher priority messages are sent first.
+   */
+  public void sendUnreliable(ByteBuffer payload, double priority) {
+    enqueue(connection.getUnreliableStream(), payload, priority);
+  }
+
+  private synchronized void enqueue(SendableStream stream, ByteBuffer payload, double priority) {
+    final long enqueueNanos = Time.nowNanos() - epochNanos;
+    final double key = priority - ageBoostPerSecond * (enqueueNanos / 1e9);
+    queue.add(new ScheduledMessage(stream, payload, enqueueNanos, key, nextOrder++));
+  }
+
+  /**
+   * @return The number of messages waiting to be sent.
+   */
+  public synchronized int getQueuedMessages() {
+    return queue.size();
+  }
+
+  public synchronized long getMessagesSent() {
+    return messagesSent;
+  }
+
+  /**
+   * @return The number of unreliable messages dropped because they expired before there was budget.
+   */
+  public synchronized long getMessagesDropped() {
+    return messagesDropped;
+  }
+
+  /**
+   * Called by Connection for every packet sent, scheduled or not, to charge it to the budget. This may be
+   * called from any thread while holding stream locks, so it must not take the scheduler lock.
+   */
+  void bytesSent(int bytes) {
+    unchargedBytes.addAndGet(bytes);
+  }
+
+  /**
+   * Refill the budget and send queued messages in priority order until it is used up.
+   * Called by Connection::step().
+   */
+  synchronized void step() {
+    final long now = Time.nowNanos();
+    if (bytesPerSecond != 0) {
+      final double maxTokens = Math.max(bytesPerSecond * MAX_BURST_MS / 1000.0, Packet.MAX_PACKET_SIZE);
+      if (!stepped) {
+        tokens = maxTokens;
+      } else {
+        tokens = Math.min(maxTokens, tokens + bytesPerSecond * ((now - lastStepNanos) / 1e9));
+      }
+    }
+    lastStepNanos = now;
+    stepped = true;
+    chargeSentBytes();
+
+    final long nowNanos = now - epochNanos;
+    final long expiryNanos = unreliableExpiryMs * 1_000_000;
+
+    // Reliable messages that can't go out yet because the reliable stream is backed up. We put them back
+    // in the queue after this step, so they don't block the unreliable messages behind them.
+    final List<ScheduledMessage> blocked = new ArrayList<>();
+
+    while (!queue.isEmpty() && (bytesPerSecond == 0 || tokens > 0)) {
+      final ScheduledMessage message = queue.poll();
+      final boolean reliable = message.stream == connection.getReliableStream();
+
+      if (!reliable && nowNanos - message.enqueueNanos > expiryNanos) {
+        messagesDropped++;
+        continue;
+      }
+
+      if (reliable && connection.getReliableStream().hasBacklog()) {
+        // The stream would only queue it, and we would lose control over its priority.
+        blocked.add(message);
+        continue;
+      }
+
+      try {
+        message.stream.sendAsync(message.payload);
+        messagesSent++;
+      } catch (IOException e) {
+        logger.log(Level.INFO, "failed to send scheduled message", e);
+      }
+      chargeSentBytes();
+    }
+
+    queue.addAll(blocked);
+
+    // Expire unreliable messages that are still waiting, so a saturated link doesn't build up a backlog of
+    // obsolete data. Reliable ones stay queued.
+    final int sizeBefore = queue.size();
+    queue.removeIf(m -> m.stream != connection.getReliableStream()
+                        && nowNanos - m.enqueueNanos > expiryNanos);
+    messagesDropped += sizeBefore - queue.size();
+  }
+
+  /**
+   * @return How many bytes bulk transfers may send now: what is left of the budget after step() sent the
+   * queued messages, or 0 while messages are still waiting, since bulk data comes after all game traffic.
+   * Long.MAX_VALUE if the budget is unlimited. Called by Connection::step() after step().
+   */
+  synchronized long bulkBudget() {
+    if (!queue.isEmpty()) {
+      return 0;
+    }
+    if (bytesPerSecond == 0) {
+      return Long.MAX_VALUE;
+    }
+    chargeSentBytes();
+    return Math.max(0, (long) tokens);
+  }
+
+  private void chargeSentBytes() {
+    final long bytes = unchargedBytes.getAndSet(0);
+    if (bytesPerSecond != 0) {
+      tokens -= bytes;
+    }
+  }
+}
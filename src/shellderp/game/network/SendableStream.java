@@ -17,5 +17,9 @@ public interface SendableStream {
    */
   void sendAsync(ByteBuffer payload) throws IOException;
 
+  /**
+   * @return The largest payload that can be sent in one packet. This may shrink while the connection is
+   * open, see {@link Connection#getMaxDatagramSize()}.
+   */
   int maxSupportedPacketSize();
 }
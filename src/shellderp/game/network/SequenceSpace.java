@@ -0,0 +1,98 @@
+package shellderp.game.network;
+
+/**
+ * The arithmetic of the sequence numbers of a reliable stream, which wrap around.
+ * <p>
+ * A sequence is compared to the one we expect by the half-space rule: it is newer if it is less than half
+ * the space ahead. So at most half the space can be in flight at once, which for the 16 bit NARROW space is
+ * 32768 packets. That is plenty for a game at a few dozen packets per round trip, but not for bulk
+ * transfers on fast links. WIDE sequences are 32 bits, allowing far larger windows at the cost of 4 bytes
+ * per header. A connection negotiates WIDE in the handshake, see Connection.open().
+ * <p>
+ * Where only 16 bits of a WIDE sequence are sent (e.g. inside control messages), the full value is
+ * reconstructed from a recent sequence, see reconstruct().
+ */
+enum SequenceSpace {
+  NARROW {
+    @Override
+    int next(int sequence) {
+      return Packet.nextSequence(sequence);
+    }
+
+    @Override
+    boolean newerThanExpected(int expected, int sequence) {
+      return Packet.newerThanExpected(expected, sequence);
+    }
+
+    @Override
+    int distance(int from, int to) {
+      return (to - from) & (Packet.MAX_SEQUENCE - 1);
+    }
+
+    @Override
+    int reconstruct(int low16, int reference) {
+      return low16 & 0xFFFF;
+    }
+
+    @Override
+    boolean contains(int sequence) {
+      return sequence >= 0 && sequence < Packet.MAX_SEQUENCE;
+    }
+  },
+
+  WIDE {
+    @Override
+    int next(int sequence) {
+      return sequence + 1; // Wraps around at 2^32 like any int.
+    }
+
+    @Override
+    boolean newerThanExpected(int expected, int sequence) {
+      return sequence - expected >= 0;
+    }
+
+    @Override
+    int distance(int from, int to) {
+      return to - from;
+    }
+
+    @Override
+    int reconstruct(int low16, int reference) {
+      // The value with these low bits that is closest to the reference.
+      return reference + (short) (low16 - reference);
+    }
+
+    @Override
+    boolean contains(int sequence) {
+      return true;
+    }
+  };
+
+  abstract int next(int sequence);
+
+  /**
+   * @return true if sequence is in [expected, expected + half the space), modulo the space.
+   */
+  abstract boolean newerThanExpected(int expected, int sequence);
+
+  /**
+   * @return How many sequences from is behind to, modulo the space. Only meaningful if to is newer.
+   */
+  abstract int distance(int from, int to);
+
+  /**
+   * @param low16     The low 16 bits of a sequence.
+   * @param reference A sequence within 32768 of the one to reconstruct.
+   * @return The full sequence.
+   */
+  abstract int reconstruct(int low16, int reference);
+
+  /**
+   * @return true if sequence is a valid sequence of this space.
+   */
+  abstract boolean contains(int sequence);
+
+  boolean isWide() {
+    return this == WIDE;
+  }
+}
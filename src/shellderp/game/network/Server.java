@@ -1,12 +1,16 @@
 package shellderp.game.network;
 
 import shellderp.game.GameStep;
+import shellderp.game.Pollable;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.logging.Level;
@@ -15,26 +19,70 @@ import java.util.logging.Logger;
 /**
  * Manages connections from multiple clients and implements connection establishment protocol.
  */
-public class Server implements GameStep {
+public class Server implements GameStep, Pollable {
   private static final Logger logger = Logger.getLogger(Server.class.getName());
 
   private final Socket socket;
 
   private final ReceiveThread receiveThread;
 
+  /**
+   * If true, there is no receive thread, and packets are received by poll() and step().
+   */
+  private final boolean busyPoll;
+
   private final Supplier<ConnectionHandler> connectionHandlerProvider;
 
   private final Predicate<SocketAddress> allowConnection;
 
   private final HashMap<SocketAddress, Connection> clients = new HashMap<>();
 
+  /**
+   * Connections that use connection ids, by id. When a packet with one of these ids arrives from an address
+   * we don't know, the client's address has likely changed (e.g. NAT rebinding or switching networks), and
+   * the connection validates the new address so it can move there. See Connection::newPathPacketReceived.
+   */
+  private final HashMap<Integer, Connection> clientsById = new HashMap<>();
+
+  private final SecureRandom connectionIdRandom = new SecureRandom();
+
   /**
    * We keep track of pending connections - entries in the set indicate that a certain (host, port)
-   * has requested a connection, with the value being the client's sequence number from that request.
+   * has requested a connection, with the value holding the client's sequence number from that request.
    * Upon receiving an ACK from one of these addresses, with the correct sequence number, we
    * accept the new connection.
    */
-  private final LinkedHashMap<PendingConnection, Integer> pendingConnections = new LinkedHashMap<>();
+  private final LinkedHashMap<PendingConnection, PendingConnection> pendingConnections =
+      new LinkedHashMap<>();
+
+  /**
+   * Resolution and size of the keep-alive wheel. Checks run up to a tick late, which is nothing compared to
+   * keep-alive intervals, and one turn covers the usual intervals.
+   */
+  private static final long KEEP_ALIVE_TICK_MS = 50;
+  private static final int KEEP_ALIVE_SLOTS = 512;
+
+  /**
+   * Keep-alive checks of the connections, so step() only looks at the connections that are due instead of
+   * polling every one.
+   */
+  private final TimingWheel<KeepAliveCheck> keepAliveWheel =
+      new TimingWheel<>(KEEP_ALIVE_TICK_MS, KEEP_ALIVE_SLOTS);
+
+  /**
+   * An entry in the keep-alive wheel. The wheel can't cancel, so rescheduling a connection adds a new check
+   * and the old one is ignored when it fires, see Connection.keepAliveEntry.
+   */
+  private static class KeepAliveCheck {
+    final Connection client;
+
+    KeepAliveCheck(Connection client) {
+      this.client = client;
+    }
+  }
+
+  private long keepAliveIntervalMs = 0;
+  private long idleTimeoutMs = 0;
 
   /**
    * Maximum time to keep track of a connection request. Default is abitrary.
@@ -50,37 +98,154 @@ public class Server implements GameStep {
   public Server(SocketAddress bindAddress,
       Supplier<ConnectionHandler> connectionHandlerProvider,
       Predicate<SocketAddress> allowConnection) throws IOException {
+    this(bindAddress, connectionHandlerProvider, allowConnection, false);
+  }
+
+  /**
+   * @param busyPoll If true, no receive thread is started; packets are received on the caller's thread by
+   *                 poll(), and at the start of every step(). Call poll() whenever the loop would otherwise
+   *                 wait, e.g. with ServerLoop.setBusyPoll(), or ACKs will only go out once per step.
+   */
+  public Server(SocketAddress bindAddress,
+      Supplier<ConnectionHandler> connectionHandlerProvider,
+      Predicate<SocketAddress> allowConnection,
+      boolean busyPoll) throws IOException {
     this.connectionHandlerProvider = connectionHandlerProvider;
     this.allowConnection = allowConnection;
+    this.busyPoll = busyPoll;
 
     socket = SocketProvider.getDefault().createSocket(bindAddress);
 
-    receiveThread = new ReceiveThread(socket, this::packetReceived);
-    new Thread(receiveThread).start();
+    receiveThread = new ReceiveThread(socket, new Receiver() {
+      @Override
+      public void packetReceived(SocketAddress from, Packet packet) {
+        Server.this.packetReceived(from, packet);
+      }
+
+      @Override
+      public void packetsReceived(ReceiveBatch batch) {
+        Server.this.packetsReceived(batch);
+      }
+    }, this);
+    if (!busyPoll) {
+      new Thread(receiveThread).start();
+    }
+  }
+
+  public boolean isBusyPolling() {
+    return busyPoll;
+  }
+
+  /**
+   * Receive and handle every packet waiting on the socket, without blocking. Only for a busy polling Server.
+   */
+  @Override
+  public synchronized void poll() throws IOException {
+    if (!busyPoll) {
+      throw new IllegalStateException("packets are received by the receive thread");
+    }
+    receiveThread.poll();
   }
 
   public void setTimeToKeepPendingConnections(long timeToKeepPendingConnsMs) {
     this.timeToKeepPendingConnectionsMs = timeToKeepPendingConnsMs;
   }
 
+  /**
+   * Enable keep-alive on all current and future connections, so that clients that disappear without
+   * closing are detected and removed. See {@link Connection#setKeepAlive(long, long)}.
+   *
+   * @param intervalMs    How long a connection may be quiet before we probe the client. 0 disables
+   *                      keep-alive.
+   * @param idleTimeoutMs How long a connection may be quiet before it is closed.
+   */
+  public synchronized void setKeepAlive(long intervalMs, long idleTimeoutMs) {
+    if (intervalMs < 0 || (intervalMs > 0 && idleTimeoutMs <= intervalMs)) {
+      throw new IllegalArgumentException("need 0 <= intervalMs < idleTimeoutMs");
+    }
+    this.keepAliveIntervalMs = intervalMs;
+    this.idleTimeoutMs = idleTimeoutMs;
+
+    // Replace the checks already scheduled, which were computed from the old interval and could be further
+    // away than the new one.
+    for (Connection client : clients.values()) {
+      client.setKeepAliveSettings(intervalMs, idleTimeoutMs);
+      client.keepAliveEntry = null;
+      scheduleKeepAlive(client, 0);
+    }
+  }
+
+  /**
+   * Must hold the lock.
+   */
+  private void scheduleKeepAlive(Connection client, long delayMs) {
+    if (keepAliveIntervalMs != 0) {
+      final KeepAliveCheck check = new KeepAliveCheck(client);
+      client.keepAliveEntry = check;
+      keepAliveWheel.schedule(check, delayMs);
+    }
+  }
+
+  private void keepAliveDue(KeepAliveCheck check) {
+    final Connection client = check.client;
+    if (client.keepAliveEntry != check) {
+      return; // Replaced by a later setKeepAlive.
+    }
+    client.keepAliveEntry = null;
+    // Traffic since the check was scheduled just pushes the next one out, there is nothing to cancel.
+    final long nextCheckMs = client.keepAliveCheck(System.nanoTime());
+    if (nextCheckMs >= 0) {
+      scheduleKeepAlive(client, nextCheckMs);
+    }
+  }
+
+  /**
+   * @return A snapshot of the currently established connections.
+   */
+  public synchronized List<Connection> getConnections() {
+    return new ArrayList<>(clients.values());
+  }
+
   public synchronized void stop() throws IOException {
-    receiveThread.stop();
+    if (!busyPoll) {
+      receiveThread.stop();
+    }
 
     for (Iterator<Connection> iterator = clients.values().iterator(); iterator.hasNext(); ) {
       final Connection client = iterator.next();
       client.close();
       iterator.remove();
+      socket.endpointClosed(client.getEndPoint());
+    }
+    clientsById.clear();
+
+    if (busyPoll) {
+      // After the clients, whose close packets still go out on the socket.
+      receiveThread.stopPolling();
     }
   }
 
   public synchronized void step(long timeDeltaMs) {
+    // Also without busy polling: the receive thread may not have woken up yet for packets that arrived
+    // before this step, and they should be handled in it.
+    try {
+      receiveThread.poll();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "failed to receive", e);
+    }
+
     removeExpiredPendingConnections();
 
+    // Before stepping the connections, so an idle connection closed here is removed in this step.
+    keepAliveWheel.advance(this::keepAliveDue);
+
     for (Iterator<Connection> iterator = clients.values().iterator(); iterator.hasNext(); ) {
       Connection client = iterator.next();
       client.step(timeDeltaMs);
       if (!client.isOpen()) {
         iterator.remove();
+        clientsById.remove(client.getConnectionId());
+        socket.endpointClosed(client.getEndPoint());
       }
     }
   }
@@ -112,44 +277,118 @@ public class Server implements GameStep {
    */
   synchronized void packetReceived(SocketAddress fromAddress, Packet packet) {
     // If this address is already connected, we dispatch to the connection instance.
-    if (clients.containsKey(fromAddress)) {
-      final Connection connection = clients.get(fromAddress);
-      try {
-        connection.packetReceived(fromAddress, packet);
-      } catch (Throwable t) {
-        // Catch any exception thrown in client processing so that it doesn't crash the server.
-        logger.log(Level.WARNING,
-            "uncaught Throwable in Connection packet processing, closing connection " + connection, t);
-        connection.close();
-      }
+    final Connection connection = clients.get(fromAddress);
+    if (connection != null) {
+      dispatch(connection, fromAddress, packet);
       return;
     }
 
+    unconnectedPacketReceived(fromAddress, packet);
+  }
+
+  /**
+   * Called by ReceiveThread with a batch of packets. Same as packetReceived for each packet, but we only
+   * take the lock once, and only look up the connection once per source.
+   */
+  synchronized void packetsReceived(ReceiveBatch batch) {
+    batch.groupBySource();
+
+    final int size = batch.size();
+    int i = 0;
+    while (i < size) {
+      final SocketAddress fromAddress = batch.getSource(i);
+      Connection connection = clients.get(fromAddress);
+      do {
+        if (connection != null) {
+          dispatch(connection, fromAddress, batch.getPacket(i));
+        } else {
+          // The handshake may complete partway through the group.
+          unconnectedPacketReceived(fromAddress, batch.getPacket(i));
+          connection = clients.get(fromAddress);
+        }
+        i++;
+      } while (i < size && batch.getSource(i).equals(fromAddress));
+    }
+  }
+
+  private void dispatch(Connection connection, SocketAddress fromAddress, Packet packet) {
+    try {
+      connection.packetReceived(fromAddress, packet);
+    } catch (Throwable t) {
+      // Catch any exception thrown in client processing so that it doesn't crash the server.
+      logger.log(Level.WARNING,
+          "uncaught Throwable in Connection packet processing, closing connection " + connection, t);
+      connection.close();
+    }
+  }
+
+  /**
+   * Handle a packet from an address with no connection, which is part of the connection handshake.
+   */
+  private void unconnectedPacketReceived(SocketAddress fromAddress, Packet packet) {
+    // A connection id we know from a new address? The client has likely moved. Connection requests with
+    // an id are new clients asking for one.
+    if (packet.hasConnectionId() && !packet.isConnectRequest()) {
+      final Connection connection = clientsById.get(packet.getConnectionId());
+      if (connection != null) {
+        if (connection.newPathPacketReceived(fromAddress, packet)) {
+          logger.info("connection " + connection + " moved to " + fromAddress);
+          clients.remove(connection.getEndPoint());
+          socket.endpointClosed(connection.getEndPoint());
+          connection.setEndPoint(fromAddress);
+          clients.put(fromAddress, connection);
+        }
+        return;
+      }
+    }
+
     // Not connected and an ACK? This is likely a pending connection, unless this is a rogue client or
     // the pending connection has expired.
     if (packet.hasAck()) {
       // Create a dummy to probe the set of pending connections.
       final PendingConnection probe = new PendingConnection(fromAddress, packet.getAckSequence());
-      if (pendingConnections.containsKey(probe)) {
-        final int clientSequence = pendingConnections.remove(probe);
-        final Connection client = new Connection(socket, fromAddress, clientSequence,
-            packet.getAckSequence(), connectionHandlerProvider.get());
+      final PendingConnection pending = pendingConnections.get(probe);
+      if (pending != null && packet.hasWideSequences() && !pending.sequences.isWide()) {
+        logger.info("got ACK with wide sequences for narrow pending connection " + probe);
+      } else if (pending != null) {
+        pendingConnections.remove(probe);
+        final Connection client = new Connection(socket, fromAddress, pending.clientSequence,
+            packet.getAckSequence(), connectionHandlerProvider.get(), true, pending.connectionId,
+            pending.sequences);
         clients.put(fromAddress, client);
+        if (pending.connectionId != Connection.NO_CONNECTION_ID) {
+          clientsById.put(pending.connectionId, client);
+        }
+        if (keepAliveIntervalMs != 0) {
+          client.setKeepAliveSettings(keepAliveIntervalMs, idleTimeoutMs);
+          scheduleKeepAlive(client, keepAliveIntervalMs);
+        }
       } else {
         logger.info("got ACK with no corresponding pending connection " + probe);
       }
     } else if (packet.isConnectRequest()) {
       if (allowConnection.test(fromAddress)) {
-        final Packet reply = new Packet.Builder().randomSequence()
+        // A request with a wide header asks for wide sequences, which we always agree to.
+        final SequenceSpace sequences = packet.hasWideSequences() ? SequenceSpace.WIDE : SequenceSpace.NARROW;
+        final Packet.Builder replyBuilder = new Packet.Builder().sequences(sequences).randomSequence()
             .connectRequest()
-            .ack(Packet.nextSequence(packet.getSequence()))
-            .build();
+            .ack(sequences.next(packet.getSequence()));
+        if (sequences.isWide()) {
+          replyBuilder.wideSequences();
+        }
+        // A request with a connection id asks us to assign one.
+        final int connectionId = packet.hasConnectionId() ? newConnectionId() : Connection.NO_CONNECTION_ID;
+        if (connectionId != Connection.NO_CONNECTION_ID) {
+          replyBuilder.connectionId(connectionId);
+        }
+        final Packet reply = replyBuilder.build();
         // Track that we received a connect request from this address,
         // so we know that on a follow up ACK the connection is established.
         // We track it with our outgoing sequence since that is the ACK we expect back.
-        pendingConnections.put(new PendingConnection(fromAddress,
-                Packet.nextSequence(reply.getSequence())),
-            Packet.nextSequence(packet.getSequence()));
+        final PendingConnection pending = new PendingConnection(fromAddress,
+            sequences.next(reply.getSequence()), sequences.next(packet.getSequence()), connectionId,
+            sequences);
+        pendingConnections.put(pending, pending);
         // Then reply with a connect request + ACK
         try {
           socket.sendDirect(reply, fromAddress);
@@ -169,4 +408,17 @@ public class Server implements GameStep {
       logger.fine("can't handle packet from unconnected source: " + packet);
     }
   }
+
+  /**
+   * @return A random connection id that is not in use. Ids are random so that they can't be guessed to
+   * hijack a connection, though path validation is what actually prevents that.
+   */
+  private int newConnectionId() {
+    while (true) {
+      final int id = connectionIdRandom.nextInt();
+      if (id != Connection.NO_CONNECTION_ID && !clientsById.containsKey(id)) {
+        return id;
+      }
+    }
+  }
 }
@@ -0,0 +1,273 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A single producer, single consumer ring buffer of packets in a memory-mapped file, so that the producer
+ * and consumer can be in different processes. Used by SharedMemorySocket, with one ring per direction of
+ * each pair of sockets.
+ * <p>
+ * Layout: a header with the write position and the read position on separate cache lines, so the producer
+ * and consumer don't invalidate each other's cache line on every packet, then the data area. Positions
+ * only grow; the offset in the data area is the position modulo the capacity, which is a power of two.
+ * Each record is a 4 byte length followed by the packet bytes, padded to 8 bytes. A record never wraps:
+ * if it doesn't fit before the end of the data area, a padding marker fills the rest and the record starts
+ * at the beginning.
+ * <p>
+ * The producer writes the record and then publishes it with a release store of the write position. The
+ * consumer reads the write position with an acquire load, which makes the record visible, and frees the
+ * space with a release store of the read position. These are plain memory accesses, so neither side makes
+ * a system call per packet.
+ * <p>
+ * Not thread-safe: the owner must ensure one thread at a time produces, and one consumes.
+ */
+class SharedMemoryRing {
+
+  private static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+  private static final VarHandle INTS =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+  /**
+   * Written last by the creator, so a consumer never uses a half initialized ring.
+   */
+  private static final int MAGIC = 0x52494E47;
+
+  private static final int MAGIC_OFFSET = 0;
+  private static final int CAPACITY_OFFSET = 4;
+  private static final int WRITE_POSITION_OFFSET = 64;
+  private static final int READ_POSITION_OFFSET = 128;
+  private static final int HEADER_SIZE = 192;
+
+  private static final int LENGTH_SIZE = 4;
+  private static final int ALIGNMENT = 8;
+  private static final int PADDING = -1;
+
+  static final int DEFAULT_CAPACITY = 1 << 20;
+
+  /**
+   * Unsafe.invokeCleaner bound to the Unsafe instance, or null if this JVM doesn't let us have it. The
+   * standard API can only unmap a file once the buffer is garbage collected, which could keep the rings of
+   * long gone peers mapped indefinitely.
+   */
+  private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+  private static MethodHandle findInvokeCleaner() {
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      return MethodHandles.lookup()
+          .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+          .bindTo(theUnsafe.get(null));
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  private final MappedByteBuffer buffer;
+
+  /**
+   * The data area. The producer writes records through this view, the consumer reads through readView.
+   */
+  private final ByteBuffer data;
+  private final ByteBuffer readView;
+  private final int capacity;
+  private final int mask;
+
+  /**
+   * Cached positions of this side, and the last seen position of the other side. The producer only needs
+   * to load the read position when the cached one says the ring is full, and vice versa.
+   */
+  private long writePosition;
+  private long readPosition;
+
+  private SharedMemoryRing(MappedByteBuffer buffer, int capacity) {
+    this.buffer = buffer;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+
+    buffer.position(HEADER_SIZE);
+    buffer.limit(HEADER_SIZE + capacity);
+    this.data = buffer.slice();
+    this.readView = data.duplicate();
+    buffer.clear();
+
+    writePosition = (long) LONGS.getAcquire(buffer, WRITE_POSITION_OFFSET);
+    readPosition = (long) LONGS.getAcquire(buffer, READ_POSITION_OFFSET);
+  }
+
+  /**
+   * Open the ring in file for producing, creating it if it doesn't exist.
+   *
+   * @param capacity The size of the data area if the ring is created. Must be a power of two.
+   */
+  static SharedMemoryRing openProducer(Path file, int capacity) throws IOException {
+    if (Integer.bitCount(capacity) != 1 || capacity < Packet.MAX_PACKET_SIZE * 2) {
+      throw new IllegalArgumentException("capacity must be a power of two of at least two packets");
+    }
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      final MappedByteBuffer existing = map(channel);
+      if (existing != null) {
+        return new SharedMemoryRing(existing, (int) INTS.get(existing, CAPACITY_OFFSET));
+      }
+
+      // Mapping past the end extends the file with zeros, so both positions start at 0.
+      final MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+      INTS.set(buffer, CAPACITY_OFFSET, capacity);
+      INTS.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+      return new SharedMemoryRing(buffer, capacity);
+    }
+  }
+
+  /**
+   * Open an existing ring for consuming.
+   *
+   * @return The ring, or null if the producer has not finished creating it yet.
+   */
+  static SharedMemoryRing openConsumer(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      final MappedByteBuffer buffer = map(channel);
+      return buffer == null ? null : new SharedMemoryRing(buffer, (int) INTS.get(buffer, CAPACITY_OFFSET));
+    }
+  }
+
+  /**
+   * @return The whole ring if the file holds an initialized one, otherwise null.
+   */
+  private static MappedByteBuffer map(FileChannel channel) throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      return null;
+    }
+    final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if ((int) INTS.getAcquire(header, MAGIC_OFFSET) != MAGIC) {
+      return null;
+    }
+    final int capacity = (int) INTS.get(header, CAPACITY_OFFSET);
+    if (channel.size() < HEADER_SIZE + (long) capacity) {
+      return null;
+    }
+    return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+  }
+
+  private static int recordSize(int length) {
+    return (LENGTH_SIZE + length + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  /**
+   * Append a packet. Producer only.
+   *
+   * @return false if the ring is full, in which case nothing is written.
+   */
+  boolean offer(Packet packet) {
+    final int length = packet.size();
+    final int size = recordSize(length);
+    final int offset = (int) (writePosition & mask);
+    final int untilEnd = capacity - offset;
+    final int needed = size <= untilEnd ? size : untilEnd + size;
+
+    if (writePosition + needed - readPosition > capacity) {
+      readPosition = (long) LONGS.getAcquire(buffer, READ_POSITION_OFFSET);
+      if (writePosition + needed - readPosition > capacity) {
+        return false;
+      }
+    }
+
+    int recordOffset = offset;
+    if (size > untilEnd) {
+      data.putInt(offset, PADDING);
+      recordOffset = 0;
+    }
+
+    data.putInt(recordOffset, length);
+    data.position(recordOffset + LENGTH_SIZE);
+    packet.writeTo(data);
+    data.clear();
+
+    writePosition += needed;
+    LONGS.setRelease(buffer, WRITE_POSITION_OFFSET, writePosition);
+    return true;
+  }
+
+  /**
+   * @return true if there is nothing to read. Consumer only.
+   */
+  boolean isEmpty() {
+    if (readPosition != writePosition) {
+      return false;
+    }
+    writePosition = (long) LONGS.getAcquire(buffer, WRITE_POSITION_OFFSET);
+    return readPosition == writePosition;
+  }
+
+  /**
+   * Copy the next packet into dst and remove it from the ring. Consumer only.
+   *
+   * @param dst A buffer with room for Packet.MAX_PACKET_SIZE bytes.
+   * @return false if the ring is empty.
+   */
+  boolean poll(ByteBuffer dst) throws MalformedPacketException {
+    if (isEmpty()) {
+      return false;
+    }
+
+    int offset = (int) (readPosition & mask);
+    int length = data.getInt(offset);
+    if (length == PADDING) {
+      readPosition += capacity - offset;
+      offset = 0;
+      length = data.getInt(0);
+    }
+    if (length < 0 || length > Packet.MAX_PACKET_SIZE) {
+      throw new MalformedPacketException("corrupt shared memory ring, record length " + length);
+    }
+
+    readView.clear();
+    readView.position(offset + LENGTH_SIZE);
+    readView.limit(offset + LENGTH_SIZE + length);
+    dst.put(readView);
+
+    readPosition += recordSize(length);
+    LONGS.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+    return true;
+  }
+
+  /**
+   * Discard everything in the ring. Consumer only. Used when binding, so we don't receive packets that
+   * were sent to a previous owner of the port.
+   */
+  void clear() {
+    writePosition = (long) LONGS.getAcquire(buffer, WRITE_POSITION_OFFSET);
+    readPosition = writePosition;
+    LONGS.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+  }
+
+  /**
+   * Unmap the ring. It must not be used afterwards, by either side of this process: any access could crash
+   * the JVM. The file and the other process's mapping are not affected.
+   */
+  void close() {
+    if (INVOKE_CLEANER == null) {
+      return; // Unmapped when the buffer is garbage collected.
+    }
+    try {
+      INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+    } catch (Throwable t) {
+      // Same as above.
+    }
+  }
+}
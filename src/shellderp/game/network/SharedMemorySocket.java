@@ -0,0 +1,452 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A Socket for processes on the same host, which exchanges packets through memory-mapped ring buffers
+ * (see SharedMemoryRing) in a shared directory instead of UDP. Created by {@link SharedMemorySocketProvider}.
+ * <p>
+ * Like LoopbackSocket, sockets are identified by port and packets appear to come from the loopback
+ * address. A socket owns its port by holding a file lock on "port.lock" in the directory. Every pair of
+ * sockets has one ring per direction, "to-from.ring", written only by the sending socket and read only by
+ * the receiving one, which keeps each ring single producer and single consumer. The sender creates the
+ * ring on its first packet, and the receiver finds new rings by listing the directory every
+ * DISCOVERY_INTERVAL_MS, so the first packet from a new peer (normally a connect request) can take that
+ * long to arrive.
+ * <p>
+ * A full ring drops the packet, as UDP would when the receiver falls behind.
+ * <p>
+ * A socket deletes its rings when it closes, and a new socket on the port gets new ones, so the sender
+ * checks every DISCOVERY_INTERVAL_MS, and whenever a ring is full, that the file of a ring it writes to is
+ * still the one it mapped. Otherwise it reopens the ring, rather than keep writing to a deleted mapping.
+ * When the Server drops a connection, it calls endpointClosed and we unmap the rings of that peer, so a
+ * long running server doesn't keep a mapping for every client it ever had.
+ * <p>
+ * Wakeup: a process can't wake a thread in another process without a system call on both sides, which is
+ * what we want to avoid. So senders never signal, and the receive thread polls: it spins for a while after
+ * receiving, since more packets usually follow soon, then parks for increasing periods up to
+ * MAX_PARK_NANOS. Busy peers get memory speed latency, idle ones cost little CPU, and a crashed peer can
+ * never leave the other side blocked.
+ */
+class SharedMemorySocket extends Socket {
+  private static final Logger logger = Logger.getLogger(SharedMemorySocket.class.getName());
+
+  private static final int FIRST_EPHEMERAL_PORT = 49152;
+  private static final int LAST_EPHEMERAL_PORT = 65535;
+
+  static final long DISCOVERY_INTERVAL_MS = 20;
+
+  /**
+   * Number of empty polls to spin through before parking.
+   */
+  private static final int SPIN_ROUNDS = 1000;
+  private static final long MIN_PARK_NANOS = 10_000;
+  private static final long MAX_PARK_NANOS = 1_000_000;
+
+  private static class InRing {
+    final SharedMemoryRing ring;
+    final SocketAddress source;
+
+    InRing(SharedMemoryRing ring, SocketAddress source) {
+      this.ring = ring;
+      this.source = source;
+    }
+  }
+
+  private static class OutRing {
+    final SharedMemoryRing ring;
+    /**
+     * Identifies the file the ring is mapped from, see fileIdentity().
+     */
+    final Object identity;
+    long nextCheckNanos;
+
+    OutRing(SharedMemoryRing ring, Object identity) {
+      this.ring = ring;
+      this.identity = identity;
+      nextCheckNanos = System.nanoTime() + DISCOVERY_INTERVAL_MS * 1_000_000;
+    }
+  }
+
+  private final Path directory;
+  private final int ringCapacity;
+
+  private final int port;
+  private final InetSocketAddress address;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+
+  /**
+   * Rings we write to, by destination port. Guarded by itself, which also keeps each ring to one producer.
+   */
+  private final Map<Integer, OutRing> outRings = new HashMap<>();
+
+  /**
+   * Rings we read from. Guarded by receiveLock, though normally only the receive thread uses them.
+   */
+  private final Object receiveLock = new Object();
+  private final List<InRing> inRings = new ArrayList<>();
+  private final Set<Integer> inRingPorts = new HashSet<>();
+  private long nextDiscoveryNanos = 0;
+
+  /**
+   * The ring to read first in the next batch. We rotate it so a busy peer can't starve the others.
+   */
+  private int nextInRing = 0;
+
+  private int idleRounds = 0;
+
+  /**
+   * @param directory    The directory shared by all processes, which must exist.
+   * @param bindAddress  Only the port is used. 0 picks a free port.
+   * @param ringCapacity The size of the rings we create. See SharedMemoryRing.
+   * @throws BindException If the port is taken by another socket.
+   */
+  SharedMemorySocket(Path directory, SocketAddress bindAddress, int ringCapacity) throws IOException {
+    super();
+    this.directory = directory;
+    this.ringCapacity = ringCapacity;
+
+    final int requestedPort = ((InetSocketAddress) bindAddress).getPort();
+    FileChannel channel = null;
+    FileLock fileLock = null;
+    int boundPort = requestedPort;
+    if (requestedPort != 0) {
+      channel = openLockFile(requestedPort);
+      fileLock = tryLock(channel);
+    } else {
+      for (int candidate = FIRST_EPHEMERAL_PORT; candidate <= LAST_EPHEMERAL_PORT; candidate++) {
+        channel = openLockFile(candidate);
+        fileLock = tryLock(channel);
+        if (fileLock != null) {
+          boundPort = candidate;
+          break;
+        }
+        channel.close();
+      }
+    }
+    if (fileLock == null) {
+      if (channel != null) {
+        channel.close();
+      }
+      throw new BindException("shared memory port already in use: " + requestedPort);
+    }
+
+    port = boundPort;
+    lockChannel = channel;
+    lock = fileLock;
+    address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+    // Packets left in our rings were sent to a previous owner of this port.
+    synchronized (receiveLock) {
+      discoverRings();
+      for (InRing in : inRings) {
+        in.ring.clear();
+      }
+    }
+  }
+
+  /**
+   * @return The lock, or null if another socket holds it.
+   */
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null; // Held by a socket in this process.
+    }
+  }
+
+  private Path lockFile(int port) {
+    return directory.resolve(port + ".lock");
+  }
+
+  private FileChannel openLockFile(int port) throws IOException {
+    return FileChannel.open(lockFile(port), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  private Path ringFile(int to, int from) {
+    return directory.resolve(to + "-" + from + ".ring");
+  }
+
+  /**
+   * Open any rings other sockets have created for us since the last call. Must hold receiveLock.
+   */
+  private void discoverRings() throws IOException {
+    nextDiscoveryNanos = System.nanoTime() + DISCOVERY_INTERVAL_MS * 1_000_000;
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, port + "-*.ring")) {
+      for (Path file : files) {
+        final String name = file.getFileName().toString();
+        final int from;
+        try {
+          from = Integer.parseInt(name.substring(name.indexOf('-') + 1, name.length() - ".ring".length()));
+        } catch (NumberFormatException e) {
+          continue; // Not one of ours.
+        }
+        if (inRingPorts.contains(from)) {
+          continue;
+        }
+
+        final SharedMemoryRing ring = SharedMemoryRing.openConsumer(file);
+        if (ring != null) {
+          inRings.add(new InRing(ring, new InetSocketAddress(InetAddress.getLoopbackAddress(), from)));
+          inRingPorts.add(from);
+        }
+      }
+    }
+  }
+
+  private void discoverRingsIfDue() throws IOException {
+    if (System.nanoTime() - nextDiscoveryNanos >= 0) {
+      discoverRings();
+    }
+  }
+
+  @Override
+  public SelectionKey register(Selector selector, int ops) throws ClosedChannelException {
+    // Nothing to select on, see awaitReceive.
+    return null;
+  }
+
+  @Override
+  boolean awaitReceive(Selector selector) throws IOException {
+    synchronized (receiveLock) {
+      if (!lockChannel.isOpen()) {
+        return false;
+      }
+      discoverRingsIfDue();
+      for (InRing in : inRings) {
+        if (!in.ring.isEmpty()) {
+          return true;
+        }
+      }
+    }
+
+    if (idleRounds < SPIN_ROUNDS) {
+      Thread.onSpinWait();
+    } else {
+      final int doublings = Math.min(idleRounds - SPIN_ROUNDS, 16);
+      LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << doublings));
+    }
+    idleRounds++;
+    return false;
+  }
+
+  @Override
+  public SocketAddress tryReceive(ByteBuffer dst) throws IOException {
+    synchronized (receiveLock) {
+      if (!lockChannel.isOpen()) {
+        throw new ClosedChannelException();
+      }
+      discoverRingsIfDue();
+      for (InRing in : inRings) {
+        if (in.ring.poll(dst)) {
+          return in.source;
+        }
+      }
+      return null;
+    }
+  }
+
+  @Override
+  void receiveBatch(ReceiveBatch batch) throws IOException {
+    synchronized (receiveLock) {
+      if (!lockChannel.isOpen()) {
+        throw new ClosedChannelException();
+      }
+      discoverRingsIfDue();
+      final int numRings = inRings.size();
+      for (int i = 0; i < numRings && !batch.isFull(); i++) {
+        final InRing in = inRings.get((nextInRing + i) % numRings);
+        while (!batch.isFull() && in.ring.poll(batch.nextBuffer())) {
+          batch.addReceived(in.source);
+          idleRounds = 0;
+        }
+      }
+      nextInRing = numRings == 0 ? 0 : (nextInRing + 1) % numRings;
+    }
+  }
+
+  @Override
+  public int sendDirect(Packet packet, SocketAddress endPoint) throws IOException {
+    final InetSocketAddress target = (InetSocketAddress) endPoint;
+    final InetAddress targetAddress = target.getAddress();
+    if (targetAddress == null || !(targetAddress.isLoopbackAddress() || targetAddress.isAnyLocalAddress())) {
+      throw new IOException("shared memory socket can't send to " + endPoint);
+    }
+
+    final int size = packet.size();
+    if (size > Packet.MAX_PACKET_SIZE) {
+      throw new MalformedPacketException("payload size exceeds maximum packet size (" + size + " bytes)");
+    }
+
+    synchronized (outRings) {
+      if (!lockChannel.isOpen()) {
+        throw new ClosedChannelException();
+      }
+      OutRing out = outRings.get(target.getPort());
+      if (out != null && System.nanoTime() - out.nextCheckNanos >= 0 && !isCurrent(out, target.getPort())) {
+        out = null;
+      }
+      if (out == null) {
+        out = openOutRing(target.getPort());
+        if (out == null) {
+          // No socket ever bound the port, so the packet is lost like it would be with UDP.
+          return size;
+        }
+      }
+      if (!out.ring.offer(packet) && !isCurrent(out, target.getPort())) {
+        // The ring was full because nobody reads it anymore; the packet goes to the new one.
+        out = openOutRing(target.getPort());
+        if (out != null) {
+          out.ring.offer(packet);
+        }
+      }
+      // Otherwise the receiver is falling behind, and we drop the packet.
+    }
+    return size;
+  }
+
+  /**
+   * Open the ring to the given port, replacing the one we had. Must hold outRings.
+   *
+   * @return The ring, or null if no socket ever bound the port.
+   */
+  private OutRing openOutRing(int to) throws IOException {
+    outRings.remove(to);
+    if (!Files.exists(lockFile(to))) {
+      return null;
+    }
+    final Path file = ringFile(to, port);
+    final SharedMemoryRing ring = SharedMemoryRing.openProducer(file, ringCapacity);
+    final OutRing out = new OutRing(ring, fileIdentity(file));
+    outRings.put(to, out);
+    return out;
+  }
+
+  /**
+   * @return false if the file of the ring was deleted or replaced since we mapped it.
+   */
+  private boolean isCurrent(OutRing out, int to) throws IOException {
+    out.nextCheckNanos = System.nanoTime() + DISCOVERY_INTERVAL_MS * 1_000_000;
+    try {
+      return out.identity.equals(fileIdentity(ringFile(to, port)));
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The inode of the file where the file system has one. Our mapping keeps the inode of a deleted file
+   * from being reused, so a different one means a different file.
+   */
+  private static Object fileIdentity(Path file) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+  }
+
+  /**
+   * @return The number of peers we have a ring from.
+   */
+  int getInRingCount() {
+    synchronized (receiveLock) {
+      return inRings.size();
+    }
+  }
+
+  /**
+   * Unmap the rings to and from the peer. If it sends again, we find its ring again like any new peer's.
+   */
+  @Override
+  void endpointClosed(SocketAddress endPoint) {
+    final int peer = ((InetSocketAddress) endPoint).getPort();
+    synchronized (receiveLock) {
+      if (inRingPorts.remove(peer)) {
+        for (Iterator<InRing> iterator = inRings.iterator(); iterator.hasNext(); ) {
+          final InRing in = iterator.next();
+          if (((InetSocketAddress) in.source).getPort() == peer) {
+            iterator.remove();
+            in.ring.close();
+          }
+        }
+        nextInRing = 0;
+      }
+    }
+    synchronized (outRings) {
+      final OutRing out = outRings.remove(peer);
+      if (out != null) {
+        out.ring.close();
+      }
+    }
+  }
+
+  @Override
+  public SocketAddress getLocalAddress() {
+    return address;
+  }
+
+  @Override
+  public boolean enableDontFragment() {
+    return false; // Nothing is fragmented.
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.release();
+    lockChannel.close();
+
+    synchronized (receiveLock) {
+      for (InRing in : inRings) {
+        in.ring.close();
+      }
+      inRings.clear();
+      inRingPorts.clear();
+    }
+    synchronized (outRings) {
+      for (OutRing out : outRings.values()) {
+        out.ring.close();
+      }
+      outRings.clear();
+    }
+
+    // Our rings are useless without us. The mappings stay valid for any peer that still has them open.
+    // We leave the lock file, since deleting it could let two sockets lock different files for one port.
+    try {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, port + "-*.ring")) {
+        for (Path file : files) {
+          Files.deleteIfExists(file);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.INFO, "failed to clean up shared memory files of port " + port, e);
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package shellderp.game.network;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Provides sockets that talk to sockets in other processes on the same host through shared memory, see
+ * {@link SharedMemorySocket}. Useful for server processes that run side by side (e.g. a gateway and zone
+ * servers), so their traffic skips the network stack. Connections and handlers behave the same as over
+ * UDP, but these sockets can only reach each other.
+ * <p>
+ * Every process installs it with SocketProvider.setDefault() using the same directory, and connects to the
+ * loopback address. A directory on a memory backed file system (e.g. /dev/shm on Linux) avoids any disk
+ * writes.
+ */
+public class SharedMemorySocketProvider extends SocketProvider {
+
+  private final Path directory;
+  private final int ringCapacity;
+
+  public SharedMemorySocketProvider(Path directory) {
+    this(directory, SharedMemoryRing.DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param directory    The directory shared by the processes. Created if it doesn't exist.
+   * @param ringCapacity The bytes of packets that can be in flight from one socket to another. Must be a
+   *                     power of two of at least 2 * Packet.MAX_PACKET_SIZE. Packets sent while the ring is
+   *                     full are dropped.
+   */
+  public SharedMemorySocketProvider(Path directory, int ringCapacity) {
+    if (Integer.bitCount(ringCapacity) != 1 || ringCapacity < Packet.MAX_PACKET_SIZE * 2) {
+      throw new IllegalArgumentException("ringCapacity must be a power of two of at least two packets");
+    }
+    this.directory = directory;
+    this.ringCapacity = ringCapacity;
+  }
+
+  @Override
+  public Socket createSocket(SocketAddress bindAddress) throws IOException {
+    Files.createDirectories(directory);
+    return new SharedMemorySocket(directory, bindAddress, ringCapacity);
+  }
+}
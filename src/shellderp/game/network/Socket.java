@@ -2,6 +2,7 @@ package shellderp.game.network;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.net.SocketOption;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
@@ -19,6 +20,14 @@ public class Socket {
 
   private final DatagramChannel datagramChannel;
 
+  /**
+   * Packets are written here to be sent, so a bulk chunk goes from its file mapping into this buffer and
+   * from there to the kernel. A heap buffer would cost two more copies: toBuffer() into the heap, then the
+   * channel into a temporary direct buffer. Null for the subclasses, which send their own way. Guarded by
+   * itself.
+   */
+  private final ByteBuffer sendBuffer;
+
   /**
    * @param bindAddress The local address to listen on.
    * @throws IOException If binding to bindAddress fails.
@@ -27,6 +36,7 @@ public class Socket {
     datagramChannel = DatagramChannel.open();
     datagramChannel.bind(bindAddress);
     datagramChannel.configureBlocking(false);
+    sendBuffer = ByteBuffer.allocateDirect(Packet.MAX_PACKET_SIZE);
   }
 
   /**
@@ -34,6 +44,7 @@ public class Socket {
    */
   protected Socket() {
     datagramChannel = null;
+    sendBuffer = null;
   }
 
   public SelectionKey register(Selector selector, int ops) throws ClosedChannelException {
@@ -51,11 +62,40 @@ public class Socket {
     return datagramChannel.receive(dst);
   }
 
+  /**
+   * Block until there may be packets to receive, or the selector is woken up. Called by ReceiveThread.
+   * Spurious returns are fine.
+   *
+   * @param selector The selector this socket is registered with.
+   * @return false if there is certainly nothing to receive yet, so the caller can skip taking its lock.
+   */
+  boolean awaitReceive(Selector selector) throws IOException {
+    final boolean selected = selector.select() > 0;
+    // We only have one socket to worry about, so no need to iterate over selectedKeys.
+    selector.selectedKeys().clear();
+    return selected;
+  }
+
+  /**
+   * Receive packets without blocking until the batch is full or there are none left. Called by
+   * ReceiveThread whenever awaitReceive returns.
+   */
+  void receiveBatch(ReceiveBatch batch) throws IOException {
+    while (!batch.isFull()) {
+      final SocketAddress socketAddress = tryReceive(batch.nextBuffer());
+      if (socketAddress == null) {
+        break;
+      }
+      batch.addReceived(socketAddress);
+    }
+  }
+
   /**
    * Send a packet unreliably with no delay.
    * If successful, the buffer is guaranteed to be sent whole in one packet.
    * <p>
-   * This method is thread-safe since DatagramChannel.send is thread-safe.
+   * This method is thread-safe. Senders take turns on the send buffer, as they would on the channel's own
+   * write lock.
    *
    * @param packet   The packet to send.
    * @param endPoint The target to send to.
@@ -63,7 +103,52 @@ public class Socket {
    * @throws IOException
    */
   public int sendDirect(Packet packet, SocketAddress endPoint) throws IOException {
-    return datagramChannel.send(packet.toBuffer(), endPoint);
+    final int size = packet.size();
+    if (size > Packet.MAX_PACKET_SIZE) {
+      throw new MalformedPacketException("payload size exceeds maximum packet size (" + size + " bytes)");
+    }
+
+    synchronized (sendBuffer) {
+      sendBuffer.clear();
+      packet.writeTo(sendBuffer);
+      sendBuffer.flip();
+      return datagramChannel.send(sendBuffer, endPoint);
+    }
+  }
+
+  /**
+   * @return The local address this socket is bound to.
+   */
+  public SocketAddress getLocalAddress() throws IOException {
+    return datagramChannel.getLocalAddress();
+  }
+
+  /**
+   * Set the don't fragment bit on outgoing datagrams, so that datagrams larger than the path MTU are dropped
+   * rather than fragmented. Needed for path MTU discovery.
+   * <p>
+   * There is no standard socket option for this, so we look for the IP_DONTFRAGMENT extended option
+   * (available since Java 19) by name.
+   *
+   * @return true if the option is now set, false if it is not supported on this platform.
+   * @throws IOException If setting the option fails.
+   */
+  @SuppressWarnings("unchecked")
+  public boolean enableDontFragment() throws IOException {
+    for (SocketOption<?> option : datagramChannel.supportedOptions()) {
+      if (option.name().equals("IP_DONTFRAGMENT") && option.type() == Boolean.class) {
+        datagramChannel.setOption((SocketOption<Boolean>) option, true);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Called by the Server when it drops its connection to endPoint, whether it was closed or timed out, so
+   * the socket can free anything it keeps per peer. UDP keeps nothing.
+   */
+  void endpointClosed(SocketAddress endPoint) {
   }
 
   public void close() throws IOException {
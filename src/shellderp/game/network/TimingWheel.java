@@ -0,0 +1,137 @@
+package shellderp.game.network;
+
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel, for timers on many objects where checking each object every step would be too
+ * costly (e.g. keep-alives of tens of thousands of connections on a Server).
+ * <p>
+ * Time is divided into ticks of tickMs, and an item scheduled for a tick goes in the slot of that tick
+ * modulo the number of slots. Scheduling is O(1), and advancing only looks at the slots of the ticks that
+ * passed, so the cost is proportional to the number of timers that expire rather than the number that
+ * exist. Deadlines further away than one turn of the wheel stay in their slot until their turn comes.
+ * Timers fire up to one tick late, never early.
+ * <p>
+ * There is no cancellation: the owner should check, when an item fires, whether it still wants it, and
+ * schedule it again if its deadline moved. This makes postponing a timer free, which suits timers that are
+ * postponed by every packet and rarely fire.
+ * <p>
+ * Not thread-safe.
+ */
+class TimingWheel<T> {
+
+  private static class Entry<T> {
+    final T item;
+    final long deadlineTick;
+    Entry<T> next;
+
+    Entry(T item, long deadlineTick) {
+      this.item = item;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final long tickNanos;
+  private final Entry<T>[] slots;
+  private final int mask;
+  private final long startNanos;
+
+  /**
+   * The last tick advance() processed.
+   */
+  private long currentTick = 0;
+
+  private int size = 0;
+
+  /**
+   * @param tickMs The resolution of the wheel.
+   * @param slots  The number of slots, a power of two. Together with tickMs this should cover the usual
+   *               delays, so most entries are visited only once.
+   */
+  TimingWheel(long tickMs, int slots) {
+    this(tickMs, slots, System.nanoTime());
+  }
+
+  @SuppressWarnings("unchecked")
+  TimingWheel(long tickMs, int slots, long nowNanos) {
+    if (tickMs < 1) {
+      throw new IllegalArgumentException("tickMs must be >= 1");
+    }
+    if (Integer.bitCount(slots) != 1) {
+      throw new IllegalArgumentException("slots must be a power of two");
+    }
+    this.tickNanos = tickMs * 1_000_000;
+    this.slots = (Entry<T>[]) new Entry<?>[slots];
+    this.mask = slots - 1;
+    this.startNanos = nowNanos;
+  }
+
+  /**
+   * @return The number of scheduled items.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Schedule item to expire after delayMs from the last advance().
+   */
+  void schedule(T item, long delayMs) {
+    // Round up, so we never fire early.
+    final long ticks = Math.max(1, (delayMs * 1_000_000 + tickNanos - 1) / tickNanos);
+    final long deadlineTick = currentTick + ticks;
+    final int slot = (int) (deadlineTick & mask);
+
+    final Entry<T> entry = new Entry<>(item, deadlineTick);
+    entry.next = slots[slot];
+    slots[slot] = entry;
+    size++;
+  }
+
+  /**
+   * Advance the wheel to the current time, passing every expired item to expired. expired may schedule
+   * items again.
+   */
+  void advance(Consumer<T> expired) {
+    advance(System.nanoTime(), expired);
+  }
+
+  void advance(long nowNanos, Consumer<T> expired) {
+    final long nowTick = (nowNanos - startNanos) / tickNanos;
+    if (nowTick <= currentTick) {
+      return;
+    }
+
+    // If we fell more than a turn behind, every slot is due, but each only needs one visit.
+    final long firstTick = Math.max(currentTick + 1, nowTick - mask);
+    currentTick = nowTick;
+
+    Entry<T> due = null;
+    for (long tick = firstTick; tick <= nowTick; tick++) {
+      final int slot = (int) (tick & mask);
+      Entry<T> previous = null;
+      Entry<T> entry = slots[slot];
+      while (entry != null) {
+        final Entry<T> next = entry.next;
+        if (entry.deadlineTick <= nowTick) {
+          // Unlink, and collect so that items scheduled by expired don't land in a slot we are walking.
+          if (previous == null) {
+            slots[slot] = next;
+          } else {
+            previous.next = next;
+          }
+          entry.next = due;
+          due = entry;
+          size--;
+        } else {
+          previous = entry;
+        }
+        entry = next;
+      }
+    }
+
+    for (Entry<T> entry = due; entry != null; entry = entry.next) {
+      expired.accept(entry.item);
+    }
+  }
+}
@@ -3,8 +3,11 @@ package shellderp.game.network;
 import shellderp.game.GameStep;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
@@ -13,10 +16,30 @@ import java.util.logging.Logger;
  * provide lower latency. Old packets are ignored after newer ones have been received. The packets received
  * are buffered until a call to step(), in which the ConnectionHandler.onUnreliableRead callback is made.
  * <p>
+ * Redundant mode: for traffic where every payload matters but a reliable round trip is too slow (e.g.
+ * player input sent every tick), the sender can enable redundancy with {@link #setRedundancy(int)}. Each
+ * new packet then also carries up to K previous payloads that the endpoint has not acknowledged yet, so a
+ * payload is only lost if K + 1 packets in a row are lost. The receiving stream delivers each payload at
+ * most once and in order, and acknowledges the newest sequence it has seen with an UNRELIABLE_ACK control
+ * packet once per step, which is what lets the sender stop repeating old payloads.
+ * <p>
  * Created by: Mike
  */
 public class UnreliableStream implements GameStep, SendableStream {
 
+  /**
+   * Redundant bundle layout: a 1 byte count of old payloads, then each old payload as a 2 byte length
+   * followed by the data (oldest first), then the new payload filling the rest of the packet. Old payload i
+   * (0 being the oldest) has the sequence (packet sequence - count + i).
+   */
+  private static final int BUNDLE_COUNT_SIZE = 1;
+  private static final int BUNDLE_LENGTH_SIZE = 2;
+
+  /**
+   * The count is stored in one byte.
+   */
+  public static final int MAX_REDUNDANCY = 255;
+
   private final Connection connection;
   private final ConnectionHandler handler;
 
@@ -29,6 +52,42 @@ public class UnreliableStream implements GameStep, SendableStream {
   // TODO: think about adding an inQueue size limit so rogue clients can't result in out-of-memory crashes
   final ConcurrentLinkedQueue<Packet> inQueue = new ConcurrentLinkedQueue<>();
 
+  private static class SentPayload {
+    final int sequence;
+    final ByteBuffer payload;
+
+    SentPayload(int sequence, ByteBuffer payload) {
+      this.sequence = sequence;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * The number of previous unacked payloads to repeat in each packet. 0 disables redundancy.
+   */
+  private int redundancy = 0;
+
+  /**
+   * Payloads sent but not yet acknowledged, oldest first. At most redundancy entries. Guarded by this.
+   */
+  final ArrayDeque<SentPayload> unacked = new ArrayDeque<>();
+
+  /**
+   * Set by the receive thread once the endpoint sends redundant packets, so that we know it wants acks.
+   * The sequence to ack is the one before sequenceIn, which we publish for step() in ackSequence.
+   */
+  private volatile boolean peerRedundant = false;
+  private volatile int ackSequence = -1;
+  private int lastAckSent = -1;
+
+  /**
+   * Number of payloads that were lost in their own packet but delivered from a later redundant packet.
+   */
+  private volatile long redundantRecoveries = 0;
+
+  private final ForwardErrorCorrection fec =
+      new ForwardErrorCorrection(ForwardErrorCorrection.UNRELIABLE_STREAM_ID);
+
   /**
    * Create an unreliable stream from this connection. Note there can only ever be one per connection,
    * and conceptually an unreliable stream cannot exist without a connection, so to enforce this we take
@@ -49,6 +108,39 @@ public class UnreliableStream implements GameStep, SendableStream {
     this.sequenceOut = initialSequenceOut;
   }
 
+  /**
+   * Enable or disable redundant mode. Only the sending side needs to enable it, the endpoint detects it.
+   *
+   * @param redundancy The number of previous unacked payloads to repeat in each packet, from 0 (disabled)
+   *                   to MAX_REDUNDANCY. Old payloads that don't fit in the packet are not repeated.
+   */
+  public synchronized void setRedundancy(int redundancy) {
+    if (redundancy < 0 || redundancy > MAX_REDUNDANCY) {
+      throw new IllegalArgumentException("redundancy must be from 0 to " + MAX_REDUNDANCY);
+    }
+    this.redundancy = redundancy;
+    while (unacked.size() > redundancy) {
+      unacked.removeFirst();
+    }
+  }
+
+  /**
+   * @return The number of received payloads that were only delivered thanks to redundancy, i.e. whose own
+   * packet was lost.
+   */
+  public long getRedundantRecoveries() {
+    return redundantRecoveries;
+  }
+
+  /**
+   * Forward error correction for this stream, disabled by default. Since unreliable packets older than the
+   * newest one received are ignored, a rebuilt packet is only delivered if nothing newer was received in
+   * the meantime, e.g. if it was the last packet of its group.
+   */
+  public ForwardErrorCorrection getForwardErrorCorrection() {
+    return fec;
+  }
+
   /**
    * Send a packet asynchronously. There is no guarantee this packet will arrive at the endpoint.
    * This method is thread-safe.
@@ -61,17 +153,88 @@ public class UnreliableStream implements GameStep, SendableStream {
       throw new ClosedChannelException();
     }
 
-    Packet packet = new Packet.Builder().payload(payload).sequence(sequenceOut).build();
+    final Packet packet;
+    if (redundancy == 0) {
+      packet = new Packet.Builder().payload(payload).sequence(sequenceOut).build();
+    } else {
+      packet = new Packet.Builder()
+          .redundant()
+          .payload(buildBundle(payload))
+          .sequence(sequenceOut)
+          .build();
+
+      // Keep our own copy, the caller is free to reuse its buffer once we return.
+      final ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+      copy.put(payload.duplicate());
+      copy.flip();
+      if (unacked.size() == redundancy) {
+        unacked.removeFirst();
+      }
+      unacked.addLast(new SentPayload(sequenceOut, copy));
+    }
 
     // Note we ignore the return value of send, since we are ok with failing to send the packet.
     connection.send(packet);
 
+    try {
+      final ByteBuffer parity = fec.packetSent(packet);
+      if (parity != null) {
+        connection.sendControl(ControlType.FEC_PARITY, parity);
+      }
+    } catch (IOException e) {
+      logger.info("failed to send FEC parity: " + e);
+    }
+
     sequenceOut = Packet.nextSequence(sequenceOut);
   }
 
+  /**
+   * Build the payload of a redundant packet from the unacked payloads and the new payload. Old payloads are
+   * dropped (oldest first) if the bundle would not fit in a packet.
+   */
+  private ByteBuffer buildBundle(ByteBuffer payload) {
+    final int maxBundleSize = maxSupportedPacketSize();
+
+    int size = BUNDLE_COUNT_SIZE + payload.remaining();
+    int count = 0;
+    for (Iterator<SentPayload> it = unacked.descendingIterator(); it.hasNext(); ) {
+      final int entrySize = BUNDLE_LENGTH_SIZE + it.next().payload.remaining();
+      if (size + entrySize > maxBundleSize) {
+        break;
+      }
+      size += entrySize;
+      count++;
+    }
+
+    final ByteBuffer bundle = ByteBuffer.allocate(size);
+    bundle.put((byte) count);
+    int skip = unacked.size() - count;
+    for (SentPayload sent : unacked) {
+      if (skip > 0) {
+        skip--;
+        continue;
+      }
+      bundle.putShort((short) sent.payload.remaining());
+      bundle.put(sent.payload.duplicate());
+    }
+    bundle.put(payload.duplicate());
+    bundle.flip();
+    return bundle;
+  }
+
+  /**
+   * Called when the endpoint acknowledges our redundant packets up to and including ackSequence.
+   */
+  synchronized void ackReceived(int ackSequence) {
+    final int firstUnacked = Packet.nextSequence(ackSequence);
+    while (!unacked.isEmpty() && !Packet.newerThanExpected(firstUnacked, unacked.getFirst().sequence)) {
+      unacked.removeFirst();
+    }
+  }
+
   @Override
   public int maxSupportedPacketSize() {
-    return Packet.MAX_PACKET_SIZE;
+    return connection.getMaxDatagramSize() - Packet.MAX_HEADER_SIZE;
   }
 
   /**
@@ -85,6 +248,21 @@ public class UnreliableStream implements GameStep, SendableStream {
     if (packet.isReliable()) {  // sanity check for packet dispatching logic
       throw new IllegalArgumentException("unreliable stream got reliable packet");
     }
+    if (!SequenceSpace.NARROW.contains(packet.getSequence())) {
+      logger.info("ignoring unreliable packet with a wide sequence: " + packet);
+      return;
+    }
+
+    fec.packetReceived(packet);
+
+    if (packet.isRedundant()) {
+      try {
+        redundantPacketReceived(packet);
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        logger.info("received malformed redundant packet: " + packet);
+      }
+      return;
+    }
 
     // In the unreliable stream, we only want to receive the latest data. As long as this packet is newer
     // than the last packet we've seen, we use it, even if we missed some packets on the way.
@@ -104,7 +282,89 @@ public class UnreliableStream implements GameStep, SendableStream {
   }
 
   /**
-   * At each step we simply callback for any queued reads.
+   * Called when a FEC_PARITY control packet is received for this stream.
+   */
+  void fecParityReceived(ByteBuffer data) throws MalformedPacketException {
+    final Packet packet = fec.parityReceived(data);
+    if (packet != null) {
+      packetReceived(packet);
+    }
+  }
+
+  /**
+   * Unpack a redundant bundle, queueing each payload we haven't already delivered, oldest first. Since
+   * the old payloads are consecutive sequences ending right before the packet's own, this keeps the
+   * delivery in order while skipping duplicates.
+   */
+  private void redundantPacketReceived(Packet packet) {
+    final ByteBuffer bundle = packet.getPayload().duplicate();
+    final int count = bundle.get() & 0xFF;
+
+    // Check the whole bundle before delivering any of it, so a malformed one is dropped as a whole. Empty
+    // payloads are never sent, so an empty entry or new payload also makes the bundle malformed.
+    final int start = bundle.position();
+    for (int i = 0; i < count; i++) {
+      final int length = bundle.getShort() & 0xFFFF;
+      if (length > bundle.remaining()) {
+        throw new BufferUnderflowException();
+      }
+      if (length == 0) {
+        throw new IllegalArgumentException("empty payload in redundant bundle");
+      }
+      bundle.position(bundle.position() + length);
+    }
+    if (!bundle.hasRemaining()) {
+      throw new IllegalArgumentException("empty payload in redundant bundle");
+    }
+    bundle.position(start);
+
+    peerRedundant = true;
+
+    int sequence = packet.getSequence() - count;
+    if (sequence < 0) {
+      sequence += Packet.MAX_SEQUENCE;
+    }
+
+    for (int i = 0; i <= count; i++) {
+      final ByteBuffer payload;
+      if (i < count) {
+        final int length = bundle.getShort() & 0xFFFF;
+        payload = bundle.slice();
+        payload.limit(length);
+        bundle.position(bundle.position() + length);
+      } else {
+        payload = bundle.slice();
+      }
+
+      if (Packet.newerThanExpected(sequenceIn, sequence)) {
+        if (i < count) {
+          redundantRecoveries++;
+        }
+        inQueue.add(new Packet.Builder().payload(payload).sequence(sequence).build());
+        sequenceIn = Packet.nextSequence(sequence);
+      }
+
+      sequence = Packet.nextSequence(sequence);
+    }
+
+    // A reordered old packet must not move the ack back, or the sender would repeat payloads we already
+    // delivered.
+    final int ack = ackSequence;
+    if (ack == -1 || Packet.newerThanExpected(Packet.nextSequence(ack), packet.getSequence())) {
+      ackSequence = packet.getSequence();
+    }
+  }
+
+  /**
+   * @return The newest redundant sequence received, which step() acknowledges, or -1 if none.
+   */
+  int getAckSequence() {
+    return ackSequence;
+  }
+
+  /**
+   * At each step we callback for any queued reads, then send FEC reports and acknowledge redundant packets
+   * if needed.
    *
    * @param timeDeltaMs The time in milliseconds since the last step.
    */
@@ -117,6 +377,30 @@ public class UnreliableStream implements GameStep, SendableStream {
       }
       handler.onUnreliableRead(connection, packet.getPayload());
     }
+
+    final ByteBuffer fecReport = fec.reportToSend();
+    if (fecReport != null) {
+      try {
+        connection.sendControl(ControlType.FEC_REPORT, fecReport);
+      } catch (IOException e) {
+        logger.info("failed to send FEC report: " + e);
+      }
+    }
+
+    // Ack the newest redundant packet at most once per step, and only if it changed, which keeps acks to
+    // one small packet per tick regardless of how many packets came in.
+    final int ack = ackSequence;
+    if (peerRedundant && ack != lastAckSent) {
+      final ByteBuffer data = ByteBuffer.allocate(2);
+      data.putShort((short) ack);
+      data.flip();
+      try {
+        connection.sendControl(ControlType.UNRELIABLE_ACK, data);
+        lastAckSent = ack;
+      } catch (IOException e) {
+        logger.info("failed to send unreliable ack: " + e);
+      }
+    }
   }
 
   private static final Logger logger = Logger.getLogger(UnreliableStream.class.getName());
@@ -42,6 +42,13 @@ public class VariableTimeout {
     return (timeoutMs < 10) ? 10 : timeoutMs;
   }
 
+  /**
+   * @return The smoothed round trip time, or -1 if there are no samples yet.
+   */
+  public long getEstimatedRttMs() {
+    return gotSample ? estimatedRtt : -1;
+  }
+
   public void updateFromSample(long sampleRttMs) {
     estimatedRtt = (long) ((1 - alpha) * estimatedRtt + alpha * sampleRttMs);
     deviationRtt = (long) ((1 - beta) * deviationRtt + beta * Math.abs(sampleRttMs - estimatedRtt));
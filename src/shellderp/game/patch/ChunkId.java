@@ -0,0 +1,82 @@
+package shellderp.game.patch;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The SHA-256 of some content (a chunk, or a whole file), which identifies it: two chunks with the same id
+ * are treated as the same data.
+ */
+public final class ChunkId {
+  public static final int SIZE = 32;
+
+  private final byte[] hash;
+
+  private ChunkId(byte[] hash) {
+    this.hash = hash;
+  }
+
+  /**
+   * @return The id of the remaining bytes of data, which is not modified.
+   */
+  public static ChunkId of(ByteBuffer data) {
+    final MessageDigest digest = newDigest();
+    digest.update(data.duplicate());
+    return new ChunkId(digest.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("every JVM has SHA-256", e);
+    }
+  }
+
+  static ChunkId fromDigest(MessageDigest digest) {
+    return new ChunkId(digest.digest());
+  }
+
+  static ChunkId read(ByteBuffer buffer) {
+    final byte[] hash = new byte[SIZE];
+    buffer.get(hash);
+    return new ChunkId(hash);
+  }
+
+  void write(ByteBuffer buffer) {
+    buffer.put(hash);
+  }
+
+  /**
+   * @return The first 8 bytes of the hash, which are as random as any other 8.
+   */
+  long shortId() {
+    return ByteBuffer.wrap(hash).getLong();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ChunkId && Arrays.equals(hash, ((ChunkId) o).hash);
+  }
+
+  @Override
+  public int hashCode() {
+    // The hash is already uniformly distributed.
+    return (hash[0] << 24) | ((hash[1] & 0xFF) << 16) | ((hash[2] & 0xFF) << 8) | (hash[3] & 0xFF);
+  }
+
+  /**
+   * @return The hash in lowercase hex, e.g. for file names.
+   */
+  @Override
+  public String toString() {
+    final StringBuilder builder = new StringBuilder(SIZE * 2);
+    for (byte b : hash) {
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+      builder.append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,79 @@
+package shellderp.game.patch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A local cache of chunks, one file per chunk named by its id. Chunks downloaded by a PatchClient are kept
+ * here, so an interrupted patch doesn't download them again, and chunks shared by several versions of the
+ * data are only downloaded once.
+ * <p>
+ * Chunks are only added once verified, and written to a temporary file first, so the store never holds a
+ * partial or corrupt chunk under its id.
+ */
+public class ChunkStore {
+  private final Path directory;
+
+  public ChunkStore(Path directory) throws IOException {
+    this.directory = directory;
+    Files.createDirectories(directory);
+  }
+
+  Path getDirectory() {
+    return directory;
+  }
+
+  private Path pathOf(ChunkId id) {
+    return directory.resolve(id + ".chunk");
+  }
+
+  public boolean contains(ChunkId id) {
+    return Files.isRegularFile(pathOf(id));
+  }
+
+  /**
+   * Add a chunk, after checking that data has the given id. data is not modified.
+   *
+   * @throws IOException If the data doesn't match the id.
+   */
+  public void put(ChunkId id, ByteBuffer data) throws IOException {
+    if (!ChunkId.of(data).equals(id)) {
+      throw new IOException("chunk data doesn't match its id " + id);
+    }
+    if (contains(id)) {
+      return;
+    }
+
+    final Path temporary = directory.resolve(id + ".tmp");
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final ByteBuffer source = data.duplicate();
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+    }
+    Files.move(temporary, pathOf(id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return The chunk mapped into memory, or null if the store doesn't have it.
+   */
+  public ByteBuffer get(ChunkId id) throws IOException {
+    if (!contains(id)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(pathOf(id), StandardOpenOption.READ)) {
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  public void remove(ChunkId id) throws IOException {
+    Files.deleteIfExists(pathOf(id));
+  }
+}
@@ -0,0 +1,112 @@
+package shellderp.game.patch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Splits data into content-defined chunks, so that an insertion or deletion in a file only changes the
+ * chunks around it. With fixed-size chunks, every chunk after the edit would shift and change.
+ * <p>
+ * A chunk ends where a rolling hash of the last 64 bytes has its top bits all zero, which happens on
+ * average once every averageSize bytes. The hash is a Gear hash (as in FastCDC): for every byte,
+ * hash = (hash << 1) + GEAR[byte], so a byte falls out of the top of the hash after 64 more bytes, which
+ * makes it rolling for free. Chunks are kept between minSize and maxSize: the first minSize bytes of a chunk
+ * are skipped, which also saves hashing them.
+ * <p>
+ * Both ends of a patch must use the same parameters, since chunk boundaries depend on them. The GEAR table is
+ * generated from a fixed seed, so it is the same in every JVM.
+ */
+public class ContentChunker {
+  public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+  public static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+  public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+  private static final long[] GEAR = new long[256];
+
+  static {
+    final Random random = new Random(0x5EED_C0DEL);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  /**
+   * A chunk of the data passed to chunks().
+   */
+  public static class Chunk {
+    public final int offset;
+    public final int length;
+    public final ChunkId id;
+
+    Chunk(int offset, int length, ChunkId id) {
+      this.offset = offset;
+      this.length = length;
+      this.id = id;
+    }
+  }
+
+  private final int minSize;
+  private final int maxSize;
+  private final long mask;
+
+  public ContentChunker() {
+    this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param averageSize A power of two, between minSize and maxSize.
+   */
+  public ContentChunker(int minSize, int averageSize, int maxSize) {
+    if (Integer.bitCount(averageSize) != 1 || minSize < 1 || minSize > averageSize || averageSize > maxSize) {
+      throw new IllegalArgumentException(
+          "need 1 <= minSize <= averageSize <= maxSize, averageSize a power of 2");
+    }
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+
+    // The top bits, since the low bits of a Gear hash only depend on the last few bytes.
+    final int bits = Integer.numberOfTrailingZeros(averageSize);
+    this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return The end (exclusive) of the chunk of data that starts at start, where data ends at end.
+   */
+  public int chunkEnd(ByteBuffer data, int start, int end) {
+    if (end - start <= minSize) {
+      return end;
+    }
+    final int limit = Math.min(end, start + maxSize);
+    long hash = 0;
+    for (int i = start + minSize; i < limit; i++) {
+      hash = (hash << 1) + GEAR[data.get(i) & 0xFF];
+      if ((hash & mask) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Split data, from its position to its limit, into chunks. Offsets are relative to the position.
+   */
+  public List<Chunk> chunks(ByteBuffer data) {
+    final List<Chunk> chunks = new ArrayList<>();
+    final int base = data.position();
+    int start = base;
+    while (start < data.limit()) {
+      final int end = chunkEnd(data, start, data.limit());
+      final ByteBuffer chunk = data.duplicate();
+      chunk.limit(end).position(start);
+      chunks.add(new Chunk(start - base, end - start, ChunkId.of(chunk)));
+      start = end;
+    }
+    return chunks;
+  }
+}
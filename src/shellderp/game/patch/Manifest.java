@@ -0,0 +1,142 @@
+package shellderp.game.patch;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The contents of a directory of data files, as the chunks of each file. Built by scanning the directory
+ * (see scan()), or received from a PatchServer.
+ */
+public class Manifest {
+
+  /**
+   * A chunk of a file.
+   */
+  public static class ChunkRef {
+    public final ChunkId id;
+    public final long offset;
+    public final int length;
+
+    ChunkRef(ChunkId id, long offset, int length) {
+      this.id = id;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  public static class FileEntry {
+    /**
+     * Relative to the root, with '/' separators on every platform.
+     */
+    public final String path;
+    public final long length;
+
+    /**
+     * The hash of the whole file, to verify it once assembled.
+     */
+    public final ChunkId hash;
+    public final List<ChunkRef> chunks;
+
+    FileEntry(String path, long length, ChunkId hash, List<ChunkRef> chunks) {
+      this.path = path;
+      this.length = length;
+      this.hash = hash;
+      this.chunks = Collections.unmodifiableList(chunks);
+    }
+  }
+
+  private final List<FileEntry> files;
+
+  Manifest(List<FileEntry> files) {
+    this.files = Collections.unmodifiableList(files);
+  }
+
+  /**
+   * @return The files, sorted by path.
+   */
+  public List<FileEntry> getFiles() {
+    return files;
+  }
+
+  public FileEntry getFile(String path) {
+    for (FileEntry file : files) {
+      if (file.path.equals(path)) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Chunk every regular file under root. Files are read through memory maps, so each must be under 2 GB.
+   * A root that doesn't exist gives an empty manifest.
+   */
+  public static Manifest scan(Path root, ContentChunker chunker) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return new Manifest(new ArrayList<>());
+    }
+
+    final List<Path> paths;
+    try (Stream<Path> walk = Files.walk(root)) {
+      paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+
+    final List<FileEntry> files = new ArrayList<>();
+    for (Path path : paths) {
+      files.add(scanFile(root, path, chunker));
+    }
+    return new Manifest(files);
+  }
+
+  private static FileEntry scanFile(Path root, Path path, ContentChunker chunker) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long length = channel.size();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("data files are mapped in one piece, so must be under 2 GB: " + path);
+      }
+      final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+      final List<ChunkRef> chunks = new ArrayList<>();
+      for (ContentChunker.Chunk chunk : chunker.chunks(data)) {
+        chunks.add(new ChunkRef(chunk.id, chunk.offset, chunk.length));
+      }
+
+      final MessageDigest digest = ChunkId.newDigest();
+      digest.update(data);
+      return new FileEntry(relativePath(root, path), length, ChunkId.fromDigest(digest), chunks);
+    }
+  }
+
+  static String relativePath(Path root, Path path) {
+    final StringBuilder builder = new StringBuilder();
+    for (Path name : root.relativize(path)) {
+      if (builder.length() > 0) {
+        builder.append('/');
+      }
+      builder.append(name);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @return The path of a manifest entry under root. Throws if the entry would escape root, since entries
+   * come from the network.
+   */
+  static Path resolve(Path root, String path) throws IOException {
+    final Path resolved = root.resolve(path).normalize();
+    if (!resolved.startsWith(root.normalize()) || resolved.equals(root.normalize())) {
+      throw new IOException("manifest path outside of the data directory: " + path);
+    }
+    return resolved;
+  }
+}
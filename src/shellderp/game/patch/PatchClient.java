@@ -0,0 +1,450 @@
+package shellderp.game.patch;
+
+import shellderp.game.network.BulkTransferHandler;
+import shellderp.game.network.Connection;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates the data files under a local directory to the version of a PatchServer, downloading only the
+ * chunks it doesn't have, see PatchProtocol.
+ * <p>
+ * 1. start() scans the local files, and asks the server for its manifest.
+ * 2. Chunks of the manifest that are neither in a local file nor in the ChunkStore are requested, and
+ * arrive as bulk transfers (packs) of up to the server's pack size limit, one after the other. The transfer
+ * id of a pack is derived from its chunks, so if the patch is interrupted and started again, the chunks of
+ * the finished packs are in the ChunkStore, and the pack it stopped in resumes.
+ * 3. Every downloaded chunk is checked against its hash and added to the ChunkStore.
+ * 4. Every changed file is assembled in a temporary file next to it, written through a memory map, and its
+ * hash checked. Only once all of them are done are they moved over the old files, so a failed patch leaves
+ * the old version intact.
+ * <p>
+ * Files that are not in the manifest are left alone.
+ * <p>
+ * Usage: call onReliableRead() first in ConnectionHandler.onReliableRead(). Game messages on the reliable
+ * stream must not start with PatchServer.RESERVED_PREFIX. This takes over the BulkTransferHandler of the
+ * connection. All work happens in those callbacks, so inside Connection::step(),
+ * and assembling large files will make a step take a while; patch at a loading screen.
+ */
+public class PatchClient implements BulkTransferHandler {
+
+  public interface Listener {
+    /**
+     * The local files now match the server's manifest.
+     */
+    void onPatched(PatchClient client);
+
+    void onFailed(PatchClient client, IOException cause);
+  }
+
+  private enum State {
+    IDLE,
+    RECEIVING_MANIFEST,
+    DOWNLOADING,
+    DONE,
+    FAILED,
+  }
+
+  private static class LocalChunk {
+    final Path path;
+    final Manifest.ChunkRef chunk;
+
+    LocalChunk(Path path, Manifest.ChunkRef chunk) {
+      this.path = path;
+      this.chunk = chunk;
+    }
+  }
+
+  private final Connection connection;
+  private final Path root;
+  private final ChunkStore store;
+  private final ContentChunker chunker;
+  private final Listener listener;
+
+  private State state = State.IDLE;
+
+  private Manifest localManifest;
+  private final Map<ChunkId, LocalChunk> localChunks = new HashMap<>();
+
+  // The manifest as it is received.
+  private final List<Manifest.FileEntry> files = new ArrayList<>();
+  private String filePath;
+  private long fileLength;
+  private ChunkId fileHash;
+  private int fileChunkCount;
+  private List<Manifest.ChunkRef> fileChunks;
+  private long fileOffset;
+
+  private Manifest manifest;
+  private long maxPackSize;
+
+  /**
+   * The chunks to download, with their lengths, split into packs in the order they are requested.
+   */
+  private final List<Map<ChunkId, Integer>> packsToDownload = new ArrayList<>();
+  private int packIndex = 0;
+  private long bytesToDownload = 0;
+
+  // The pack being downloaded.
+  private long transferId;
+  private long packLength;
+  private Path packPath;
+  private FileChannel pack;
+
+  public PatchClient(Connection connection, Path root, ChunkStore store, Listener listener) {
+    this(connection, root, store, new ContentChunker(), listener);
+  }
+
+  /**
+   * @param chunker Must have the same parameters as the server's.
+   */
+  public PatchClient(Connection connection, Path root, ChunkStore store, ContentChunker chunker,
+      Listener listener) {
+    this.connection = connection;
+    this.root = root;
+    this.store = store;
+    this.chunker = chunker;
+    this.listener = listener;
+  }
+
+  /**
+   * Scan the local files and ask the server for its manifest.
+   */
+  public void start() throws IOException {
+    if (state != State.IDLE) {
+      throw new IllegalStateException("patch already started");
+    }
+    localManifest = Manifest.scan(root, chunker);
+    for (Manifest.FileEntry file : localManifest.getFiles()) {
+      final Path path = Manifest.resolve(root, file.path);
+      for (Manifest.ChunkRef chunk : file.chunks) {
+        localChunks.putIfAbsent(chunk.id, new LocalChunk(path, chunk));
+      }
+    }
+
+    connection.getBulkTransfer().setHandler(this);
+    PatchProtocol.send(connection, PatchProtocol.message(PatchProtocol.MANIFEST_REQUEST, 0));
+    state = State.RECEIVING_MANIFEST;
+  }
+
+  public boolean isDone() {
+    return state == State.DONE;
+  }
+
+  /**
+   * @return The manifest of the server, once received.
+   */
+  public Manifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * @return The bytes of chunks that had to be downloaded, once the manifest is received.
+   */
+  public long getBytesToDownload() {
+    return bytesToDownload;
+  }
+
+  /**
+   * Handle a patch message from the server.
+   *
+   * @return true if payload was a patch message, false if it is for the game.
+   */
+  public boolean onReliableRead(ByteBuffer payload) {
+    if (!PatchProtocol.isPatchMessage(payload)) {
+      return false;
+    }
+    if (state == State.DONE || state == State.FAILED) {
+      return true;
+    }
+
+    final ByteBuffer message = payload.duplicate();
+    try {
+      final byte type = PatchProtocol.readType(message);
+      switch (type) {
+        case PatchProtocol.MANIFEST_FILE:
+          finishFile();
+          filePath = PatchProtocol.readPath(message);
+          fileLength = message.getLong();
+          if (fileLength < 0 || fileLength > Integer.MAX_VALUE) {
+            // Assembled files are mapped in one piece.
+            throw new IOException("manifest entry of " + filePath + " is not under 2 GB");
+          }
+          fileHash = ChunkId.read(message);
+          fileChunkCount = message.getInt();
+          fileChunks = new ArrayList<>();
+          fileOffset = 0;
+          break;
+        case PatchProtocol.MANIFEST_CHUNKS:
+          if (fileChunks == null) {
+            throw new IOException("manifest chunks before a file");
+          }
+          while (message.remaining() >= ChunkId.SIZE + 4) {
+            final ChunkId id = ChunkId.read(message);
+            final int length = message.getInt();
+            if (length < 1 || length > chunker.getMaxSize()) {
+              throw new IOException("manifest chunk of " + length + " bytes in " + filePath);
+            }
+            fileChunks.add(new Manifest.ChunkRef(id, fileOffset, length));
+            fileOffset += length;
+          }
+          break;
+        case PatchProtocol.MANIFEST_END:
+          finishFile();
+          if (message.getInt() != files.size()) {
+            throw new IOException("manifest is missing files");
+          }
+          maxPackSize = message.getLong();
+          if (maxPackSize < chunker.getMaxSize() || maxPackSize > PatchProtocol.MAX_PACK_SIZE) {
+            throw new IOException("invalid pack size limit " + maxPackSize);
+          }
+          manifest = new Manifest(files);
+          manifestReceived();
+          break;
+        case PatchProtocol.CHUNKS_UNAVAILABLE:
+          throw new IOException("server doesn't have the chunks of its own manifest");
+        case PatchProtocol.REQUEST_REJECTED:
+          throw new IOException("server rejected the chunk request");
+        default:
+          throw new IOException("unexpected patch message " + type);
+      }
+    } catch (IOException e) {
+      fail(e);
+    } catch (BufferUnderflowException e) {
+      fail(new IOException("truncated patch message", e));
+    }
+    return true;
+  }
+
+  private void finishFile() throws IOException {
+    if (fileChunks == null) {
+      return;
+    }
+    if (fileChunks.size() != fileChunkCount || fileOffset != fileLength) {
+      throw new IOException("manifest entry of " + filePath + " doesn't add up");
+    }
+    Manifest.resolve(root, filePath); // Check it stays under root before we trust it.
+    files.add(new Manifest.FileEntry(filePath, fileLength, fileHash, fileChunks));
+    fileChunks = null;
+  }
+
+  private boolean isUpToDate(Manifest.FileEntry file) {
+    final Manifest.FileEntry local = localManifest.getFile(file.path);
+    return local != null && local.length == file.length && local.hash.equals(file.hash);
+  }
+
+  private void manifestReceived() throws IOException {
+    final Map<ChunkId, Integer> missing = new LinkedHashMap<>();
+    for (Manifest.FileEntry file : manifest.getFiles()) {
+      if (isUpToDate(file)) {
+        continue;
+      }
+      for (Manifest.ChunkRef chunk : file.chunks) {
+        if (!localChunks.containsKey(chunk.id) && !store.contains(chunk.id)) {
+          missing.putIfAbsent(chunk.id, chunk.length);
+        }
+      }
+    }
+
+    // Split in order, so that a restarted patch splits what is still missing the same way.
+    Map<ChunkId, Integer> pack = new LinkedHashMap<>();
+    long packSize = 0;
+    for (Map.Entry<ChunkId, Integer> chunk : missing.entrySet()) {
+      if (packSize + chunk.getValue() > maxPackSize) {
+        packsToDownload.add(pack);
+        pack = new LinkedHashMap<>();
+        packSize = 0;
+      }
+      pack.put(chunk.getKey(), chunk.getValue());
+      packSize += chunk.getValue();
+      bytesToDownload += chunk.getValue();
+    }
+    if (!pack.isEmpty()) {
+      packsToDownload.add(pack);
+    }
+
+    state = State.DOWNLOADING;
+    requestNextPack();
+  }
+
+  /**
+   * Request the next pack, or assemble the files if all are downloaded.
+   */
+  private void requestNextPack() throws IOException {
+    if (packIndex == packsToDownload.size()) {
+      assemble();
+      return;
+    }
+    final Map<ChunkId, Integer> requested = packsToDownload.get(packIndex);
+    final MessageDigest requestDigest = ChunkId.newDigest();
+    packLength = 0;
+    for (Map.Entry<ChunkId, Integer> chunk : requested.entrySet()) {
+      requestDigest.update(chunk.getKey().toString().getBytes());
+      packLength += chunk.getValue();
+    }
+    transferId = ChunkId.fromDigest(requestDigest).shortId();
+    PatchProtocol.sendChunkRequest(connection, new ArrayList<>(requested.keySet()), transferId);
+  }
+
+  @Override
+  public FileChannel onOffer(Connection connection, long transferId, long length) throws IOException {
+    if (state != State.DOWNLOADING || transferId != this.transferId || length != packLength) {
+      return null;
+    }
+    if (pack == null) {
+      // Not truncated: what an interrupted attempt wrote is resumed from.
+      packPath = store.getDirectory().resolve(Long.toHexString(transferId) + ".pack");
+      pack = FileChannel.open(packPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+    }
+    return pack;
+  }
+
+  @Override
+  public void onReceived(Connection connection, long transferId) {
+    if (state != State.DOWNLOADING || transferId != this.transferId) {
+      return;
+    }
+    try {
+      // Under 2 GB, since packs are at most maxPackSize.
+      final MappedByteBuffer data = pack.map(FileChannel.MapMode.READ_ONLY, 0, packLength);
+      for (Map.Entry<ChunkId, Integer> chunk : packsToDownload.get(packIndex).entrySet()) {
+        final ByteBuffer slice = data.slice();
+        slice.limit(chunk.getValue());
+        store.put(chunk.getKey(), slice);
+        data.position(data.position() + chunk.getValue());
+      }
+      closePack(true);
+      packIndex++;
+      requestNextPack();
+    } catch (IOException e) {
+      // A pack with a corrupt chunk would fail the same way when resumed, so it is downloaded anew.
+      try {
+        closePack(true);
+      } catch (IOException closeFailure) {
+        e.addSuppressed(closeFailure);
+      }
+      fail(e);
+    }
+  }
+
+  @Override
+  public void onSent(Connection connection, long transferId) {
+  }
+
+  @Override
+  public void onCancelled(Connection connection, long transferId) {
+    if (state == State.DOWNLOADING && transferId == this.transferId) {
+      fail(new IOException("the server cancelled the download"));
+    }
+  }
+
+  /**
+   * Assemble every changed file next to the old one, then move them all into place.
+   */
+  private void assemble() throws IOException {
+    final Map<Path, MappedByteBuffer> localFiles = new HashMap<>();
+    final Map<Path, Path> assembled = new LinkedHashMap<>();
+    try {
+      for (Manifest.FileEntry file : manifest.getFiles()) {
+        if (isUpToDate(file)) {
+          continue;
+        }
+        final Path target = Manifest.resolve(root, file.path);
+        final Path temporary = target.resolveSibling(target.getFileName() + ".patch");
+        assembled.put(temporary, target);
+        assembleFile(file, temporary, localFiles);
+      }
+    } catch (IOException e) {
+      for (Path temporary : assembled.keySet()) {
+        Files.deleteIfExists(temporary);
+      }
+      throw e;
+    }
+
+    for (Map.Entry<Path, Path> file : assembled.entrySet()) {
+      Files.move(file.getKey(), file.getValue(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    state = State.DONE;
+    listener.onPatched(this);
+  }
+
+  private void assembleFile(Manifest.FileEntry file, Path temporary, Map<Path, MappedByteBuffer> localFiles)
+      throws IOException {
+    Files.createDirectories(temporary.getParent());
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      final MappedByteBuffer output = channel.map(FileChannel.MapMode.READ_WRITE, 0, file.length);
+      for (Manifest.ChunkRef chunk : file.chunks) {
+        output.put(chunkData(chunk, localFiles));
+      }
+      output.force();
+
+      output.flip();
+      final MessageDigest digest = ChunkId.newDigest();
+      digest.update(output);
+      if (!ChunkId.fromDigest(digest).equals(file.hash)) {
+        throw new IOException("assembled " + file.path + " doesn't match its hash");
+      }
+    }
+  }
+
+  private ByteBuffer chunkData(Manifest.ChunkRef chunk, Map<Path, MappedByteBuffer> localFiles)
+      throws IOException {
+    final LocalChunk local = localChunks.get(chunk.id);
+    if (local != null) {
+      MappedByteBuffer data = localFiles.get(local.path);
+      if (data == null) {
+        try (FileChannel channel = FileChannel.open(local.path, StandardOpenOption.READ)) {
+          data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        localFiles.put(local.path, data);
+      }
+      final ByteBuffer slice = data.duplicate();
+      slice.limit((int) local.chunk.offset + local.chunk.length);
+      slice.position((int) local.chunk.offset);
+      return slice;
+    }
+
+    final ByteBuffer stored = store.get(chunk.id);
+    if (stored == null || stored.remaining() != chunk.length) {
+      throw new IOException("chunk " + chunk.id + " is missing from the store");
+    }
+    return stored;
+  }
+
+  private void closePack(boolean delete) throws IOException {
+    if (pack != null) {
+      pack.close();
+      pack = null;
+      if (delete) {
+        Files.deleteIfExists(packPath);
+      }
+    }
+  }
+
+  private void fail(IOException cause) {
+    state = State.FAILED;
+    try {
+      closePack(false); // Kept, so starting again resumes the download.
+    } catch (IOException e) {
+      cause.addSuppressed(e);
+    }
+    listener.onFailed(this, cause);
+  }
+}
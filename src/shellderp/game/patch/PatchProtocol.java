@@ -0,0 +1,154 @@
+package shellderp.game.patch;
+
+import shellderp.game.network.Connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The messages of a patch, sent on the reliable stream. Every message starts with a header: the 4 byte
+ * MAGIC, a type byte, and the 4 byte length of the rest of the message. A game message is only taken for a
+ * patch message if it starts with MAGIC and its length matches, so the ConnectionHandler can tell them
+ * apart (see PatchClient.onReliableRead()). Games must not send reliable messages that start with MAGIC.
+ * <p>
+ * 1. The client sends MANIFEST_REQUEST.
+ * 2. The server sends, for every file, MANIFEST_FILE: 2 byte path length, the UTF-8 path, 8 byte length,
+ * the file hash and 4 byte chunk count, followed by MANIFEST_CHUNKS messages with as many (hash, 4 byte
+ * length) entries as fit. Then MANIFEST_END: 4 byte file count, and the 8 byte size limit of a pack.
+ * 3. The client sends the hashes of the chunks it is missing in CHUNK_REQUEST messages, then
+ * CHUNK_REQUEST_END: the 8 byte transfer id it wants the chunks in. The chunks of one request must add up to
+ * at most the pack size limit, so a client that is missing more splits them over several requests.
+ * 4. The server sends the requested chunks, concatenated in the order requested, as a bulk transfer with
+ * that id, called a pack. If it doesn't have some of them, it sends CHUNKS_UNAVAILABLE: the 8 byte transfer
+ * id. If the request is over the pack size limit, the client already has too many packs in flight, or the
+ * server has too many bytes of packs in flight over all clients, it sends REQUEST_REJECTED: the 8 byte
+ * transfer id.
+ */
+final class PatchProtocol {
+  /**
+   * "\u00D7PAT" in ISO-8859-1. Published as PatchServer.RESERVED_PREFIX.
+   */
+  static final int MAGIC = 0xD7504154;
+
+  static final byte MANIFEST_REQUEST = 0;
+  static final byte MANIFEST_FILE = 1;
+  static final byte MANIFEST_CHUNKS = 2;
+  static final byte MANIFEST_END = 3;
+  static final byte CHUNK_REQUEST = 4;
+  static final byte CHUNK_REQUEST_END = 5;
+  static final byte CHUNKS_UNAVAILABLE = 6;
+  static final byte REQUEST_REJECTED = 7;
+
+  /**
+   * The largest pack size limit, since bulk transfers must be under 2 GB.
+   */
+  static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+
+  private static final int HEADER_SIZE = 4 + 1 + 4;
+  private static final int CHUNK_ENTRY_SIZE = ChunkId.SIZE + 4;
+
+  private PatchProtocol() {
+  }
+
+  static boolean isPatchMessage(ByteBuffer payload) {
+    final int position = payload.position();
+    return payload.remaining() >= HEADER_SIZE
+           && payload.getInt(position) == MAGIC
+           && payload.getInt(position + 5) == payload.remaining() - HEADER_SIZE;
+  }
+
+  /**
+   * @return The type of a message for which isPatchMessage() is true, without moving its position.
+   */
+  static byte peekType(ByteBuffer payload) {
+    return payload.get(payload.position() + 4);
+  }
+
+  /**
+   * @return The type of a message for which isPatchMessage() is true, and skips the header.
+   */
+  static byte readType(ByteBuffer payload) {
+    payload.getInt();
+    final byte type = payload.get();
+    payload.getInt();
+    return type;
+  }
+
+  static ByteBuffer message(byte type, int size) {
+    final ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + size);
+    message.putInt(MAGIC);
+    message.put(type);
+    message.putInt(size);
+    return message;
+  }
+
+  static void send(Connection connection, ByteBuffer message) throws IOException {
+    message.flip();
+    connection.getReliableStream().sendAsync(message);
+  }
+
+  static void sendManifest(Connection connection, Manifest manifest, long maxPackSize) throws IOException {
+    final int maxEntries = (connection.getReliableStream().maxSupportedPacketSize() - HEADER_SIZE)
+                           / CHUNK_ENTRY_SIZE;
+    for (Manifest.FileEntry file : manifest.getFiles()) {
+      final byte[] path = file.path.getBytes(StandardCharsets.UTF_8);
+      final ByteBuffer header = message(MANIFEST_FILE, 2 + path.length + 8 + ChunkId.SIZE + 4);
+      header.putShort((short) path.length);
+      header.put(path);
+      header.putLong(file.length);
+      file.hash.write(header);
+      header.putInt(file.chunks.size());
+      send(connection, header);
+
+      for (int start = 0; start < file.chunks.size(); start += maxEntries) {
+        final List<Manifest.ChunkRef> entries =
+            file.chunks.subList(start, Math.min(file.chunks.size(), start + maxEntries));
+        final ByteBuffer message = message(MANIFEST_CHUNKS, entries.size() * CHUNK_ENTRY_SIZE);
+        for (Manifest.ChunkRef chunk : entries) {
+          chunk.id.write(message);
+          message.putInt(chunk.length);
+        }
+        send(connection, message);
+      }
+    }
+
+    final ByteBuffer end = message(MANIFEST_END, 4 + 8);
+    end.putInt(manifest.getFiles().size());
+    end.putLong(maxPackSize);
+    send(connection, end);
+  }
+
+  static void sendChunkRequest(Connection connection, List<ChunkId> ids, long transferId) throws IOException {
+    final int maxEntries = (connection.getReliableStream().maxSupportedPacketSize() - HEADER_SIZE)
+                           / ChunkId.SIZE;
+    for (int start = 0; start < ids.size(); start += maxEntries) {
+      final List<ChunkId> entries = ids.subList(start, Math.min(ids.size(), start + maxEntries));
+      final ByteBuffer message = message(CHUNK_REQUEST, entries.size() * ChunkId.SIZE);
+      for (ChunkId id : entries) {
+        id.write(message);
+      }
+      send(connection, message);
+    }
+
+    final ByteBuffer end = message(CHUNK_REQUEST_END, 8);
+    end.putLong(transferId);
+    send(connection, end);
+  }
+
+  /**
+   * Send a message whose only content is a transfer id.
+   */
+  static void sendTransferMessage(Connection connection, byte type, long transferId) throws IOException {
+    final ByteBuffer message = message(type, 8);
+    message.putLong(transferId);
+    send(connection, message);
+  }
+
+  static String readPath(ByteBuffer message) {
+    final byte[] path = new byte[message.getShort() & 0xFFFF];
+    message.get(path);
+    return new String(path, StandardCharsets.UTF_8);
+  }
+}
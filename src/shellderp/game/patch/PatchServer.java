@@ -0,0 +1,425 @@
+package shellderp.game.patch;
+
+import shellderp.game.network.BulkTransferHandler;
+import shellderp.game.network.Connection;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the data files under a directory to PatchClients, see PatchProtocol. One instance serves every
+ * connection of a Server.
+ * <p>
+ * The directory is scanned once, in the constructor, so its files must not change while this serves them;
+ * create a new PatchServer for a new version of the data. Requested chunks are copied from the data files
+ * into a temporary pack file with FileChannel.transferTo(), so they don't pass through the heap, and the
+ * pack is sent on the connection's BulkTransfer. A pack can be up to a gigabyte, so packs are built on
+ * an Executor rather than in onReliableRead(), which runs in the Server's step.
+ * <p>
+ * Since packs take disk space, a request is limited to getMaxPackSize() bytes of distinct chunks, a
+ * connection to getMaxPacksPerConnection() packs in flight, and all connections together to
+ * getMaxBytesInFlight() bytes of packs; requests over any limit are rejected.
+ * <p>
+ * Usage: call onReliableRead() first in ConnectionHandler.onReliableRead(), and connectionClosed() in
+ * ConnectionHandler.onClose(). This takes over the BulkTransferHandler of connections that request a patch.
+ * Patch messages share the reliable stream with the game's, so the game must not send reliable messages
+ * that start with the 4 bytes of RESERVED_PREFIX (big endian).
+ */
+public class PatchServer implements BulkTransferHandler {
+  private static final Logger logger = Logger.getLogger(PatchServer.class.getName());
+
+  private static class Location {
+    final Path path;
+    final Manifest.ChunkRef chunk;
+
+    Location(Path path, Manifest.ChunkRef chunk) {
+      this.path = path;
+      this.chunk = chunk;
+    }
+  }
+
+  /**
+   * A pack from the time its request is accepted. Path and channel are set once it is built. Guarded by
+   * the PatchServer.
+   */
+  private static class Pack {
+    final long size;
+    boolean built = false;
+    Path path;
+    FileChannel channel;
+
+    Pack(long size) {
+      this.size = size;
+    }
+  }
+
+  /**
+   * The chunks of a request, as its CHUNK_REQUEST messages arrive.
+   */
+  private static class Request {
+    final Set<ChunkId> ids = new LinkedHashSet<>();
+    long size = 0;
+    boolean unavailable = false;
+    boolean overLimit = false;
+  }
+
+  /**
+   * Every patch message starts with these 4 bytes, big endian, followed by a type byte and its length. Game
+   * messages on the reliable stream must not start with them.
+   */
+  public static final int RESERVED_PREFIX = PatchProtocol.MAGIC;
+
+  public static final long DEFAULT_MAX_PACK_SIZE = 1L << 30;
+  public static final int DEFAULT_MAX_PACKS_PER_CONNECTION = 2;
+  public static final long DEFAULT_MAX_BYTES_IN_FLIGHT = 4L << 30;
+
+  private final Manifest manifest;
+  private final Map<ChunkId, Location> locations = new HashMap<>();
+  private final int maxChunkSize;
+  private final Executor packBuilder;
+
+  private long maxPackSize = DEFAULT_MAX_PACK_SIZE;
+  private int maxPacksPerConnection = DEFAULT_MAX_PACKS_PER_CONNECTION;
+  private long maxBytesInFlight = DEFAULT_MAX_BYTES_IN_FLIGHT;
+
+  /**
+   * The size of all the packs from acceptance until their file is deleted, for every connection.
+   */
+  private long bytesInFlight = 0;
+
+  /**
+   * Chunks requested by each connection, until its CHUNK_REQUEST_END.
+   */
+  private final Map<Connection, Request> requests = new HashMap<>();
+
+  /**
+   * Packs being sent to each connection, by transfer id.
+   */
+  private final Map<Connection, Map<Long, Pack>> packs = new HashMap<>();
+
+  public PatchServer(Path root) throws IOException {
+    this(root, new ContentChunker());
+  }
+
+  /**
+   * @param chunker Must have the same parameters as the clients'.
+   */
+  public PatchServer(Path root, ContentChunker chunker) throws IOException {
+    this(root, chunker, newPackBuilder());
+  }
+
+  /**
+   * @param chunker     Must have the same parameters as the clients'.
+   * @param packBuilder Builds the packs. It may run several at once, but should not run them on the thread
+   *                    that steps the Server.
+   */
+  public PatchServer(Path root, ContentChunker chunker, Executor packBuilder) throws IOException {
+    this.packBuilder = packBuilder;
+    this.manifest = Manifest.scan(root, chunker);
+    this.maxChunkSize = chunker.getMaxSize();
+    for (Manifest.FileEntry file : manifest.getFiles()) {
+      final Path path = Manifest.resolve(root, file.path);
+      for (Manifest.ChunkRef chunk : file.chunks) {
+        locations.putIfAbsent(chunk.id, new Location(path, chunk));
+      }
+    }
+  }
+
+  /**
+   * One daemon thread, which exits while there is nothing to build.
+   */
+  private static Executor newPackBuilder() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), runnable -> {
+          final Thread thread = new Thread(runnable, "patch-pack-builder");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  public Manifest getManifest() {
+    return manifest;
+  }
+
+  public synchronized long getMaxPackSize() {
+    return maxPackSize;
+  }
+
+  /**
+   * @param maxPackSize The most bytes of chunks a client can request at once. Told to clients with the
+   *                    manifest, so they can split their requests. At least the largest chunk, and under
+   *                    2 GB.
+   */
+  public synchronized void setMaxPackSize(long maxPackSize) {
+    if (maxPackSize < maxChunkSize || maxPackSize > PatchProtocol.MAX_PACK_SIZE) {
+      throw new IllegalArgumentException("maxPackSize must be in [" + maxChunkSize + ", "
+                                         + PatchProtocol.MAX_PACK_SIZE + "]");
+    }
+    if (maxPackSize > maxBytesInFlight) {
+      throw new IllegalArgumentException("maxPackSize must be <= maxBytesInFlight");
+    }
+    this.maxPackSize = maxPackSize;
+  }
+
+  public synchronized int getMaxPacksPerConnection() {
+    return maxPacksPerConnection;
+  }
+
+  public synchronized void setMaxPacksPerConnection(int maxPacksPerConnection) {
+    if (maxPacksPerConnection < 1) {
+      throw new IllegalArgumentException("maxPacksPerConnection must be >= 1");
+    }
+    this.maxPacksPerConnection = maxPacksPerConnection;
+  }
+
+  public synchronized long getMaxBytesInFlight() {
+    return maxBytesInFlight;
+  }
+
+  /**
+   * @param maxBytesInFlight The most bytes of packs, over all connections, that may be on disk at once.
+   *                         Requests that would go over are rejected. At least getMaxPackSize(), or the
+   *                         largest requests could never be served.
+   */
+  public synchronized void setMaxBytesInFlight(long maxBytesInFlight) {
+    if (maxBytesInFlight < maxPackSize) {
+      throw new IllegalArgumentException("maxBytesInFlight must be >= maxPackSize");
+    }
+    this.maxBytesInFlight = maxBytesInFlight;
+  }
+
+  /**
+   * @return The size of the packs being built or sent, over all connections.
+   */
+  public synchronized long getBytesInFlight() {
+    return bytesInFlight;
+  }
+
+  /**
+   * Handle a patch message from a client.
+   *
+   * @return true if payload was a patch message, false if it is for the game.
+   */
+  public synchronized boolean onReliableRead(Connection connection, ByteBuffer payload) {
+    if (!PatchProtocol.isPatchMessage(payload)) {
+      return false;
+    }
+
+    final ByteBuffer message = payload.duplicate();
+    try {
+      final byte type = PatchProtocol.readType(message);
+      switch (type) {
+        case PatchProtocol.MANIFEST_REQUEST:
+          connection.getBulkTransfer().setHandler(this);
+          PatchProtocol.sendManifest(connection, manifest, maxPackSize);
+          break;
+        case PatchProtocol.CHUNK_REQUEST: {
+          final Request request = requests.computeIfAbsent(connection, c -> new Request());
+          while (message.remaining() >= ChunkId.SIZE) {
+            addToRequest(request, ChunkId.read(message));
+          }
+          break;
+        }
+        case PatchProtocol.CHUNK_REQUEST_END: {
+          final Request request = requests.remove(connection);
+          requestEnded(connection, request == null ? new Request() : request, message.getLong());
+          break;
+        }
+        default:
+          logger.info("unexpected patch message " + type + " from " + connection);
+      }
+    } catch (IOException | BufferUnderflowException e) {
+      logger.log(Level.WARNING, "failed to handle patch message from " + connection, e);
+    }
+    return true;
+  }
+
+  private void addToRequest(Request request, ChunkId id) {
+    if (request.unavailable || request.overLimit || request.ids.contains(id)) {
+      return;
+    }
+    final Location location = locations.get(id);
+    if (location == null) {
+      request.unavailable = true;
+      return;
+    }
+    request.size += location.chunk.length;
+    if (request.size > maxPackSize) {
+      // Nothing more is kept, since the request will be rejected anyway.
+      request.overLimit = true;
+      request.ids.clear();
+      return;
+    }
+    request.ids.add(id);
+  }
+
+  private void requestEnded(Connection connection, Request request, long transferId) throws IOException {
+    if (request.unavailable) {
+      logger.info("client " + connection + " requested unknown chunks");
+      PatchProtocol.sendTransferMessage(connection, PatchProtocol.CHUNKS_UNAVAILABLE, transferId);
+      return;
+    }
+    final Map<Long, Pack> connectionPacks = packs.get(connection);
+    final int inFlight = connectionPacks == null ? 0 : connectionPacks.size();
+    if (request.overLimit || inFlight >= maxPacksPerConnection
+        || bytesInFlight + request.size > maxBytesInFlight
+        || (connectionPacks != null && connectionPacks.containsKey(transferId))) {
+      logger.info("rejected chunk request of client " + connection + " over the limits: " + request.size
+                  + " bytes with " + inFlight + " packs and " + bytesInFlight + " bytes in flight");
+      PatchProtocol.sendTransferMessage(connection, PatchProtocol.REQUEST_REJECTED, transferId);
+      return;
+    }
+    final Pack pack = new Pack(request.size);
+    bytesInFlight += pack.size;
+    packs.computeIfAbsent(connection, c -> new HashMap<>()).put(transferId, pack);
+    packBuilder.execute(() -> buildPack(connection, pack, request.ids, transferId));
+  }
+
+  /**
+   * Copy the chunks into a temporary file, on the packBuilder, and send it unless the connection closed in
+   * the meantime.
+   */
+  private void buildPack(Connection connection, Pack pack, Set<ChunkId> ids, long transferId) {
+    Path path = null;
+    FileChannel channel = null;
+    try {
+      path = Files.createTempFile("patch", ".pack");
+      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      final Map<Path, FileChannel> sources = new HashMap<>();
+      try {
+        for (ChunkId id : ids) {
+          final Location location = locations.get(id);
+          FileChannel source = sources.get(location.path);
+          if (source == null) {
+            source = FileChannel.open(location.path, StandardOpenOption.READ);
+            sources.put(location.path, source);
+          }
+          long copied = 0;
+          while (copied < location.chunk.length) {
+            copied += source.transferTo(location.chunk.offset + copied, location.chunk.length - copied,
+                channel);
+          }
+        }
+      } finally {
+        for (FileChannel source : sources.values()) {
+          source.close();
+        }
+      }
+
+      synchronized (this) {
+        pack.built = true;
+        pack.path = path;
+        pack.channel = channel;
+        if (!isInFlight(connection, transferId, pack)) {
+          deletePack(pack); // The connection closed while we built it.
+          return;
+        }
+        connection.getBulkTransfer().send(transferId, channel);
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.WARNING, "failed to build pack " + transferId + " for " + connection, e);
+      synchronized (this) {
+        pack.built = true;
+        pack.path = path;
+        pack.channel = channel;
+        if (!isInFlight(connection, transferId, pack)) {
+          deletePack(pack);
+          return;
+        }
+        packDone(connection, transferId);
+      }
+      // The client can't tell this from a chunk we don't have, and won't wait for it forever.
+      try {
+        PatchProtocol.sendTransferMessage(connection, PatchProtocol.CHUNKS_UNAVAILABLE, transferId);
+      } catch (IOException sendFailure) {
+        logger.log(Level.INFO, "failed to tell " + connection + " about pack " + transferId, sendFailure);
+      }
+    }
+  }
+
+  private boolean isInFlight(Connection connection, long transferId, Pack pack) {
+    final Map<Long, Pack> connectionPacks = packs.get(connection);
+    return connectionPacks != null && connectionPacks.get(transferId) == pack;
+  }
+
+  /**
+   * Forget the requests of a closed connection, and delete its packs.
+   */
+  public synchronized void connectionClosed(Connection connection) {
+    requests.remove(connection);
+    final Map<Long, Pack> connectionPacks = packs.remove(connection);
+    if (connectionPacks != null) {
+      for (Pack pack : connectionPacks.values()) {
+        deletePack(pack);
+      }
+    }
+  }
+
+  private synchronized void packDone(Connection connection, long transferId) {
+    final Map<Long, Pack> connectionPacks = packs.get(connection);
+    if (connectionPacks == null) {
+      return;
+    }
+    final Pack pack = connectionPacks.remove(transferId);
+    if (pack != null) {
+      deletePack(pack);
+    }
+  }
+
+  /**
+   * Delete the file of a pack, and stop counting it in flight. Does nothing for a pack that isn't built
+   * yet, buildPack() deletes it then. Must hold the lock.
+   */
+  private void deletePack(Pack pack) {
+    if (!pack.built) {
+      return;
+    }
+    bytesInFlight -= pack.size;
+    try {
+      if (pack.channel != null) {
+        pack.channel.close();
+      }
+      if (pack.path != null) {
+        Files.deleteIfExists(pack.path);
+      }
+    } catch (IOException e) {
+      logger.log(Level.INFO, "failed to delete pack " + pack.path, e);
+    }
+  }
+
+  @Override
+  public FileChannel onOffer(Connection connection, long transferId, long length) {
+    return null; // Clients don't send us anything.
+  }
+
+  @Override
+  public void onReceived(Connection connection, long transferId) {
+  }
+
+  @Override
+  public void onSent(Connection connection, long transferId) {
+    packDone(connection, transferId);
+  }
+
+  @Override
+  public void onCancelled(Connection connection, long transferId) {
+    packDone(connection, transferId);
+  }
+}
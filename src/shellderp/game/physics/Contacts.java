@@ -0,0 +1,180 @@
+package shellderp.game.physics;
+
+import java.util.Arrays;
+
+/**
+ * The contacts of one physics step, in parallel arrays. The normal points from body a to body b.
+ * <p>
+ * The impulses each contact ended the previous step with are kept, keyed by the pair of bodies, and a new
+ * contact of the same pair with about the same normal starts from them (warm starting). Resting contacts
+ * then need little solving each step, which is what lets stacks settle. The contacts of a removed body must
+ * be dropped with remove(), or a new body given its id would start from its impulses.
+ */
+final class Contacts {
+  /**
+   * Warm start only if the normal turned less than this, as a cosine; otherwise the impulses don't apply.
+   */
+  private static final float SAME_NORMAL = 0.95f;
+
+  int count = 0;
+
+  int[] a = new int[64];
+  int[] b = new int[64];
+  float[] normalX = new float[64];
+  float[] normalY = new float[64];
+  float[] depth = new float[64];
+
+  // Solver state.
+  float[] mass = new float[64];
+  float[] bounce = new float[64];
+  float[] friction = new float[64];
+  float[] normalImpulse = new float[64];
+  float[] tangentImpulse = new float[64];
+
+  // The contacts of the previous step, and a hash table from pair keys to them.
+  private int previousCount = 0;
+  private int[] previousA = new int[64];
+  private float[] previousNormalX = new float[64];
+  private float[] previousNormalY = new float[64];
+  private float[] previousNormalImpulse = new float[64];
+  private float[] previousTangentImpulse = new float[64];
+  private long[] tableKeys = new long[128];
+  private int[] tableContacts = new int[128];
+  private boolean tableEmpty = false;
+
+  private static long key(int a, int b) {
+    return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+  }
+
+  private static int hash(long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Start a new step, keeping the contacts of this one for warm starting.
+   */
+  void clear() {
+    previousCount = count;
+    int[] ints = previousA;
+    previousA = a;
+    a = ints;
+    float[] floats = previousNormalX;
+    previousNormalX = normalX;
+    normalX = floats;
+    floats = previousNormalY;
+    previousNormalY = normalY;
+    normalY = floats;
+    floats = previousNormalImpulse;
+    previousNormalImpulse = normalImpulse;
+    normalImpulse = floats;
+    floats = previousTangentImpulse;
+    previousTangentImpulse = tangentImpulse;
+    tangentImpulse = floats;
+    if (a.length < previousA.length) {
+      // Only the current arrays grow, so keep the swapped ones in step.
+      final int capacity = previousA.length;
+      a = Arrays.copyOf(a, capacity);
+      normalX = Arrays.copyOf(normalX, capacity);
+      normalY = Arrays.copyOf(normalY, capacity);
+      normalImpulse = Arrays.copyOf(normalImpulse, capacity);
+      tangentImpulse = Arrays.copyOf(tangentImpulse, capacity);
+    }
+
+    if (tableKeys.length < previousCount * 2) {
+      tableKeys = new long[Integer.highestOneBit(previousCount * 2) << 1];
+      tableContacts = new int[tableKeys.length];
+      tableEmpty = false;
+    }
+    // When everything sleeps there are no contacts, and steps should cost nothing.
+    if (!tableEmpty) {
+      Arrays.fill(tableKeys, -1);
+    }
+    tableEmpty = previousCount == 0;
+    final int mask = tableKeys.length - 1;
+    for (int i = 0; i < previousCount; i++) {
+      // b is still in the current arrays; it isn't swapped because nothing reads it back.
+      final long key = key(previousA[i], b[i]);
+      int slot = hash(key) & mask;
+      while (tableKeys[slot] != -1) {
+        slot = (slot + 1) & mask;
+      }
+      tableKeys[slot] = key;
+      tableContacts[slot] = i;
+    }
+    count = 0;
+  }
+
+  /**
+   * Drop the contacts of a body, between steps, so they neither show up nor warm start the next step.
+   */
+  void remove(int body) {
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      if (a[i] == body || b[i] == body) {
+        continue;
+      }
+      a[kept] = a[i];
+      b[kept] = b[i];
+      normalX[kept] = normalX[i];
+      normalY[kept] = normalY[i];
+      depth[kept] = depth[i];
+      mass[kept] = mass[i];
+      bounce[kept] = bounce[i];
+      friction[kept] = friction[i];
+      normalImpulse[kept] = normalImpulse[i];
+      tangentImpulse[kept] = tangentImpulse[i];
+      kept++;
+    }
+    count = kept;
+  }
+
+  private int findPrevious(int bodyA, int bodyB) {
+    final long key = key(bodyA, bodyB);
+    final int mask = tableKeys.length - 1;
+    for (int slot = hash(key) & mask; tableKeys[slot] != -1; slot = (slot + 1) & mask) {
+      if (tableKeys[slot] == key) {
+        return tableContacts[slot];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return The index of a new contact, with the impulses it ended the last step with, or 0.
+   */
+  int add(int bodyA, int bodyB, float nx, float ny, float penetration) {
+    if (count == a.length) {
+      final int capacity = count * 2;
+      a = Arrays.copyOf(a, capacity);
+      b = Arrays.copyOf(b, capacity);
+      normalX = Arrays.copyOf(normalX, capacity);
+      normalY = Arrays.copyOf(normalY, capacity);
+      depth = Arrays.copyOf(depth, capacity);
+      mass = Arrays.copyOf(mass, capacity);
+      bounce = Arrays.copyOf(bounce, capacity);
+      friction = Arrays.copyOf(friction, capacity);
+      normalImpulse = Arrays.copyOf(normalImpulse, capacity);
+      tangentImpulse = Arrays.copyOf(tangentImpulse, capacity);
+    }
+    final int i = count++;
+    a[i] = bodyA;
+    b[i] = bodyB;
+    normalX[i] = nx;
+    normalY[i] = ny;
+    depth[i] = penetration;
+    normalImpulse[i] = 0;
+    tangentImpulse[i] = 0;
+
+    final int previous = findPrevious(bodyA, bodyB);
+    if (previous != -1) {
+      // The pair may be the other way around this step, which flips the normal and tangent.
+      final float sign = previousA[previous] == bodyA ? 1 : -1;
+      if (sign * (previousNormalX[previous] * nx + previousNormalY[previous] * ny) >= SAME_NORMAL) {
+        normalImpulse[i] = previousNormalImpulse[previous];
+        tangentImpulse[i] = sign * previousTangentImpulse[previous];
+      }
+    }
+    return i;
+  }
+}
@@ -0,0 +1,763 @@
+package shellderp.game.physics;
+
+import shellderp.game.GameStep;
+import shellderp.game.spatial.HashGrid;
+import shellderp.game.spatial.IdList;
+
+import java.util.Arrays;
+
+/**
+ * 2D rigid body physics for circles and axis-aligned boxes, run as a GameStep. Bodies translate but don't
+ * rotate, which suits top-down and platformer games.
+ * <p>
+ * Bodies are ints, and are stored in parallel primitive arrays indexed by body; ids of removed bodies are
+ * reused. A body with mass 0 is static: it never moves, unless setPosition() moves it.
+ * <p>
+ * Each step of stepMs:
+ * - Gravity is added to the velocities of the awake bodies.
+ * - Broadphase: each awake body queries a HashGrid of every body with its box. Pairs of awake bodies are
+ * tested once.
+ * - Narrowphase: circle/circle, circle/box and box/box tests make contacts with a normal and depth.
+ * - The contacts are solved with sequential impulses, with restitution and Coulomb friction, and then the
+ * bodies move, and overlap beyond a slop is pushed apart.
+ * <p>
+ * Sleeping: bodies touching each other form islands. When every body of an island has been slower than the
+ * sleep speed for sleepSeconds, the whole island sleeps: it leaves the awake list, so it's not integrated,
+ * doesn't update or query the grid, and costs nothing per step. An awake body touching it, or any change
+ * made through this class, wakes the whole island again.
+ * <p>
+ * Deterministic: game time is consumed in whole steps of stepMs however step() is called, and bodies and
+ * contacts are processed in an order that only depends on the calls made. Java float arithmetic (and
+ * Math.sqrt) is exactly specified, so the same calls give bit-identical results on every JVM, and a server
+ * and its clients can run the same simulation. Not thread-safe.
+ */
+public final class PhysicsWorld implements GameStep {
+
+  public enum Shape {
+    CIRCLE,
+    BOX,
+  }
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final long stepMs;
+  private final float dt;
+  private long pendingMs = 0;
+  private long steps = 0;
+
+  private float gravityX = 0;
+  private float gravityY = 0;
+  private int iterations = 8;
+
+  /**
+   * Closing speeds below this don't bounce, so resting bodies settle.
+   */
+  private float bounceThreshold = 1;
+  private float slop = 0.01f;
+  private float correction = 0.4f;
+  private float sleepSpeed = 0.05f;
+  private float sleepSeconds = 0.5f;
+
+  // Bodies. shapes is null for free ids; a circle's radius is its half width and half height.
+  private Shape[] shapes = new Shape[INITIAL_CAPACITY];
+  private float[] xs = new float[INITIAL_CAPACITY];
+  private float[] ys = new float[INITIAL_CAPACITY];
+  private float[] velocityXs = new float[INITIAL_CAPACITY];
+  private float[] velocityYs = new float[INITIAL_CAPACITY];
+  private float[] halfWidths = new float[INITIAL_CAPACITY];
+  private float[] halfHeights = new float[INITIAL_CAPACITY];
+  private float[] inverseMasses = new float[INITIAL_CAPACITY];
+  private float[] restitutions = new float[INITIAL_CAPACITY];
+  private float[] frictions = new float[INITIAL_CAPACITY];
+  private float[] sleepTimes = new float[INITIAL_CAPACITY];
+  private int nextId = 0;
+  private int[] freeIds = new int[INITIAL_CAPACITY];
+  private int freeCount = 0;
+  private int bodyCount = 0;
+
+  /**
+   * The awake dynamic bodies, and the index of each body in it, -1 for static and sleeping bodies.
+   */
+  private int[] awake = new int[INITIAL_CAPACITY];
+  private int awakeCount = 0;
+  private int[] awakeIndices = new int[INITIAL_CAPACITY];
+
+  /**
+   * For sleeping bodies, the next body of the island, in a ring; a body's own id otherwise.
+   */
+  private int[] islandNext = new int[INITIAL_CAPACITY];
+
+  // Union-find of the islands, while deciding which sleep.
+  private int[] parents = new int[INITIAL_CAPACITY];
+  private float[] islandSleepTimes = new float[INITIAL_CAPACITY];
+
+  private final HashGrid broadphase;
+  private final IdList candidates = new IdList();
+  private final Contacts contacts = new Contacts();
+
+  /**
+   * @param stepMs   The fixed timestep.
+   * @param cellSize The cell size of the broadphase grid, about the size of a typical body.
+   */
+  public PhysicsWorld(long stepMs, float cellSize) {
+    if (stepMs < 1) {
+      throw new IllegalArgumentException("stepMs must be >= 1");
+    }
+    this.stepMs = stepMs;
+    this.dt = stepMs / 1000f;
+    this.broadphase = new HashGrid(cellSize, 4096);
+  }
+
+  public long getStepMs() {
+    return stepMs;
+  }
+
+  /**
+   * @return The number of steps simulated so far.
+   */
+  public long getSteps() {
+    return steps;
+  }
+
+  /**
+   * @param x In world units per second squared.
+   */
+  public void setGravity(float x, float y) {
+    gravityX = x;
+    gravityY = y;
+  }
+
+  /**
+   * @param iterations Velocity solver passes per step. More makes stacks stiffer. Default 8.
+   */
+  public void setIterations(int iterations) {
+    if (iterations < 1) {
+      throw new IllegalArgumentException("iterations must be >= 1");
+    }
+    this.iterations = iterations;
+  }
+
+  /**
+   * @param speed   Bodies slower than this, in world units per second, are at rest. Default 0.05.
+   * @param seconds How long a whole island must be at rest before it sleeps. Infinity disables sleeping.
+   *                Default 0.5.
+   */
+  public void setSleepThresholds(float speed, float seconds) {
+    if (!(speed >= 0 && seconds >= 0)) {
+      throw new IllegalArgumentException("thresholds must be >= 0");
+    }
+    sleepSpeed = speed;
+    sleepSeconds = seconds;
+  }
+
+  /**
+   * @param slop       The overlap left alone, so resting contacts persist instead of jittering. Default 0.01.
+   * @param correction The fraction of the overlap beyond slop pushed apart per step. Default 0.4.
+   */
+  public void setPositionCorrection(float slop, float correction) {
+    if (!(slop >= 0 && correction >= 0 && correction <= 1)) {
+      throw new IllegalArgumentException("need slop >= 0 and correction in [0, 1]");
+    }
+    this.slop = slop;
+    this.correction = correction;
+  }
+
+  /**
+   * @param mass 0 for a static body.
+   */
+  public int addCircle(float x, float y, float radius, float mass) {
+    if (!(radius > 0)) {
+      throw new IllegalArgumentException("radius must be > 0");
+    }
+    return add(Shape.CIRCLE, x, y, radius, radius, mass);
+  }
+
+  /**
+   * @param mass 0 for a static body.
+   */
+  public int addBox(float x, float y, float halfWidth, float halfHeight, float mass) {
+    if (!(halfWidth > 0 && halfHeight > 0)) {
+      throw new IllegalArgumentException("half extents must be > 0");
+    }
+    return add(Shape.BOX, x, y, halfWidth, halfHeight, mass);
+  }
+
+  private int add(Shape shape, float x, float y, float halfWidth, float halfHeight, float mass) {
+    if (!(mass >= 0 && mass < Float.POSITIVE_INFINITY)) {
+      throw new IllegalArgumentException("mass must be finite and >= 0");
+    } else if (!Float.isFinite(x) || !Float.isFinite(y)) {
+      throw new IllegalArgumentException("position must be finite");
+    }
+
+    final int body;
+    if (freeCount > 0) {
+      body = freeIds[--freeCount];
+    } else {
+      body = nextId++;
+      if (body == shapes.length) {
+        grow(body * 2);
+      }
+    }
+    shapes[body] = shape;
+    xs[body] = x;
+    ys[body] = y;
+    velocityXs[body] = 0;
+    velocityYs[body] = 0;
+    halfWidths[body] = halfWidth;
+    halfHeights[body] = halfHeight;
+    inverseMasses[body] = mass == 0 ? 0 : 1 / mass;
+    restitutions[body] = 0;
+    frictions[body] = 0.3f;
+    sleepTimes[body] = 0;
+    islandNext[body] = body;
+    awakeIndices[body] = -1;
+    bodyCount++;
+
+    broadphase.insert(body, x - halfWidth, y - halfHeight, x + halfWidth, y + halfHeight);
+    if (mass == 0) {
+      // Something may be asleep where it appeared.
+      wakeTouching(body);
+    } else {
+      addAwake(body);
+    }
+    return body;
+  }
+
+  private void grow(int capacity) {
+    shapes = Arrays.copyOf(shapes, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    velocityXs = Arrays.copyOf(velocityXs, capacity);
+    velocityYs = Arrays.copyOf(velocityYs, capacity);
+    halfWidths = Arrays.copyOf(halfWidths, capacity);
+    halfHeights = Arrays.copyOf(halfHeights, capacity);
+    inverseMasses = Arrays.copyOf(inverseMasses, capacity);
+    restitutions = Arrays.copyOf(restitutions, capacity);
+    frictions = Arrays.copyOf(frictions, capacity);
+    sleepTimes = Arrays.copyOf(sleepTimes, capacity);
+    awake = Arrays.copyOf(awake, capacity);
+    awakeIndices = Arrays.copyOf(awakeIndices, capacity);
+    islandNext = Arrays.copyOf(islandNext, capacity);
+    parents = Arrays.copyOf(parents, capacity);
+    islandSleepTimes = Arrays.copyOf(islandSleepTimes, capacity);
+  }
+
+  /**
+   * Remove a body. Whatever was resting on it wakes up. Its id may be returned by a later add.
+   */
+  public void remove(int body) {
+    checkBody(body);
+    wakeIsland(body);
+    wakeTouching(body);
+    if (awakeIndices[body] >= 0) {
+      // Swap the last awake body into its place.
+      final int index = awakeIndices[body];
+      final int last = awake[--awakeCount];
+      awake[index] = last;
+      awakeIndices[last] = index;
+      awakeIndices[body] = -1;
+    }
+    broadphase.remove(body);
+    contacts.remove(body);
+    shapes[body] = null;
+    if (freeCount == freeIds.length) {
+      freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+    }
+    freeIds[freeCount++] = body;
+    bodyCount--;
+  }
+
+  private void checkBody(int body) {
+    if (body < 0 || body >= nextId || shapes[body] == null) {
+      throw new IllegalArgumentException("no body " + body);
+    }
+  }
+
+  public int getBodyCount() {
+    return bodyCount;
+  }
+
+  public int getAwakeCount() {
+    return awakeCount;
+  }
+
+  public boolean exists(int body) {
+    return body >= 0 && body < nextId && shapes[body] != null;
+  }
+
+  public Shape getShape(int body) {
+    checkBody(body);
+    return shapes[body];
+  }
+
+  public float getX(int body) {
+    checkBody(body);
+    return xs[body];
+  }
+
+  public float getY(int body) {
+    checkBody(body);
+    return ys[body];
+  }
+
+  public float getVelocityX(int body) {
+    checkBody(body);
+    return velocityXs[body];
+  }
+
+  public float getVelocityY(int body) {
+    checkBody(body);
+    return velocityYs[body];
+  }
+
+  public boolean isStatic(int body) {
+    checkBody(body);
+    return inverseMasses[body] == 0;
+  }
+
+  public boolean isAwake(int body) {
+    checkBody(body);
+    return awakeIndices[body] >= 0;
+  }
+
+  /**
+   * Teleport a body. It and whatever it lands on or leaves wake up.
+   */
+  public void setPosition(int body, float x, float y) {
+    checkBody(body);
+    if (!Float.isFinite(x) || !Float.isFinite(y)) {
+      throw new IllegalArgumentException("position must be finite");
+    }
+    wakeTouching(body);
+    xs[body] = x;
+    ys[body] = y;
+    updateBroadphase(body);
+    wakeIsland(body);
+    wakeTouching(body);
+  }
+
+  /**
+   * Set the velocity of a dynamic body, and wake it.
+   */
+  public void setVelocity(int body, float x, float y) {
+    checkBody(body);
+    if (inverseMasses[body] == 0) {
+      throw new IllegalArgumentException("body " + body + " is static");
+    }
+    wakeIsland(body);
+    velocityXs[body] = x;
+    velocityYs[body] = y;
+  }
+
+  /**
+   * Change the velocity of a dynamic body by impulse / mass, and wake it.
+   */
+  public void applyImpulse(int body, float x, float y) {
+    checkBody(body);
+    wakeIsland(body);
+    velocityXs[body] += x * inverseMasses[body];
+    velocityYs[body] += y * inverseMasses[body];
+  }
+
+  /**
+   * @param restitution How much of the closing speed a collision bounces back, in [0, 1]; the larger of the
+   *                    two bodies' counts. Default 0.
+   * @param friction    The friction coefficient; contacts use the geometric mean of the two. Default 0.3.
+   */
+  public void setMaterial(int body, float restitution, float friction) {
+    checkBody(body);
+    if (!(restitution >= 0 && restitution <= 1 && friction >= 0)) {
+      throw new IllegalArgumentException("need restitution in [0, 1] and friction >= 0");
+    }
+    restitutions[body] = restitution;
+    frictions[body] = friction;
+  }
+
+  /**
+   * Wake a body and the rest of its island.
+   */
+  public void wake(int body) {
+    checkBody(body);
+    wakeIsland(body);
+  }
+
+  /**
+   * @return The number of contacts found by the last step, less those of bodies removed since; see
+   * getContactA() and getContactB().
+   */
+  public int getContactCount() {
+    return contacts.count;
+  }
+
+  public int getContactA(int contact) {
+    checkContact(contact);
+    return contacts.a[contact];
+  }
+
+  public int getContactB(int contact) {
+    checkContact(contact);
+    return contacts.b[contact];
+  }
+
+  private void checkContact(int contact) {
+    if (contact < 0 || contact >= contacts.count) {
+      throw new IndexOutOfBoundsException("contact " + contact + ", count " + contacts.count);
+    }
+  }
+
+  private void addAwake(int body) {
+    awakeIndices[body] = awakeCount;
+    awake[awakeCount++] = body;
+    sleepTimes[body] = 0;
+  }
+
+  private void wakeIsland(int body) {
+    if (inverseMasses[body] == 0 || awakeIndices[body] >= 0) {
+      return;
+    }
+    int member = body;
+    do {
+      final int next = islandNext[member];
+      islandNext[member] = member;
+      addAwake(member);
+      member = next;
+    } while (member != body);
+  }
+
+  /**
+   * Wake the islands of the bodies overlapping body.
+   */
+  private void wakeTouching(int body) {
+    candidates.clear();
+    broadphase.queryRange(xs[body] - halfWidths[body], ys[body] - halfHeights[body],
+        xs[body] + halfWidths[body], ys[body] + halfHeights[body], candidates);
+    for (int i = 0; i < candidates.size(); i++) {
+      wakeIsland(candidates.get(i));
+    }
+  }
+
+  private void updateBroadphase(int body) {
+    broadphase.update(body, xs[body] - halfWidths[body], ys[body] - halfHeights[body],
+        xs[body] + halfWidths[body], ys[body] + halfHeights[body]);
+  }
+
+  /**
+   * Advance game time by timeDeltaMs, simulating a step for every whole stepMs. The rest carries over.
+   */
+  @Override
+  public void step(long timeDeltaMs) {
+    pendingMs += timeDeltaMs;
+    while (pendingMs >= stepMs) {
+      pendingMs -= stepMs;
+      simulate();
+    }
+  }
+
+  private void simulate() {
+    steps++;
+    for (int i = 0; i < awakeCount; i++) {
+      final int body = awake[i];
+      velocityXs[body] += gravityX * dt;
+      velocityYs[body] += gravityY * dt;
+    }
+
+    findContacts();
+
+    prepareContacts();
+    for (int i = 0; i < iterations; i++) {
+      solveVelocities();
+    }
+
+    for (int i = 0; i < awakeCount; i++) {
+      final int body = awake[i];
+      xs[body] += velocityXs[body] * dt;
+      ys[body] += velocityYs[body] * dt;
+    }
+    correctPositions();
+    for (int i = 0; i < awakeCount; i++) {
+      updateBroadphase(awake[i]);
+    }
+
+    if (sleepSeconds < Float.POSITIVE_INFINITY) {
+      updateSleep();
+    }
+  }
+
+  private void findContacts() {
+    contacts.clear();
+    // Bodies woken by a contact are appended to the awake list, and don't query until the next step.
+    final int queried = awakeCount;
+    for (int i = 0; i < queried; i++) {
+      final int body = awake[i];
+      candidates.clear();
+      broadphase.queryRange(xs[body] - halfWidths[body], ys[body] - halfHeights[body],
+          xs[body] + halfWidths[body], ys[body] + halfHeights[body], candidates);
+      for (int j = 0; j < candidates.size(); j++) {
+        final int other = candidates.get(j);
+        final int otherIndex = awakeIndices[other];
+        // A pair of bodies that both query is found twice; keep it once.
+        if (other == body || (otherIndex >= 0 && otherIndex < queried && other < body)) {
+          continue;
+        }
+        collide(body, other);
+      }
+    }
+  }
+
+  private void collide(int a, int b) {
+    if (shapes[a] == Shape.CIRCLE) {
+      if (shapes[b] == Shape.CIRCLE) {
+        circleCircle(a, b);
+      } else {
+        circleBox(a, b, false);
+      }
+    } else if (shapes[b] == Shape.CIRCLE) {
+      circleBox(b, a, true);
+    } else {
+      boxBox(a, b);
+    }
+  }
+
+  private void addContact(int a, int b, float normalX, float normalY, float depth) {
+    contacts.add(a, b, normalX, normalY, depth);
+    wakeIsland(a);
+    wakeIsland(b);
+  }
+
+  private void circleCircle(int a, int b) {
+    final float dx = xs[b] - xs[a];
+    final float dy = ys[b] - ys[a];
+    final float radii = halfWidths[a] + halfWidths[b];
+    final float distanceSq = dx * dx + dy * dy;
+    if (distanceSq > radii * radii) {
+      return;
+    }
+    final float distance = (float) Math.sqrt(distanceSq);
+    if (distance == 0) {
+      addContact(a, b, 1, 0, radii);
+    } else {
+      addContact(a, b, dx / distance, dy / distance, radii - distance);
+    }
+  }
+
+  /**
+   * @param flipped Whether the box is body a of the pair, so the contact is made from the box.
+   */
+  private void circleBox(int circle, int box, boolean flipped) {
+    final float radius = halfWidths[circle];
+    final float halfWidth = halfWidths[box];
+    final float halfHeight = halfHeights[box];
+    final float dx = xs[circle] - xs[box];
+    final float dy = ys[circle] - ys[box];
+
+    // The normal points from the box to the circle.
+    float normalX;
+    float normalY;
+    final float depth;
+    if (Math.abs(dx) <= halfWidth && Math.abs(dy) <= halfHeight) {
+      // The center is inside: push out through the nearest side.
+      final float overlapX = halfWidth - Math.abs(dx);
+      final float overlapY = halfHeight - Math.abs(dy);
+      if (overlapX < overlapY) {
+        normalX = dx < 0 ? -1 : 1;
+        normalY = 0;
+        depth = overlapX + radius;
+      } else {
+        normalX = 0;
+        normalY = dy < 0 ? -1 : 1;
+        depth = overlapY + radius;
+      }
+    } else {
+      final float offsetX = dx - Math.max(-halfWidth, Math.min(halfWidth, dx));
+      final float offsetY = dy - Math.max(-halfHeight, Math.min(halfHeight, dy));
+      final float distanceSq = offsetX * offsetX + offsetY * offsetY;
+      if (distanceSq > radius * radius) {
+        return;
+      }
+      final float distance = (float) Math.sqrt(distanceSq);
+      normalX = offsetX / distance;
+      normalY = offsetY / distance;
+      depth = radius - distance;
+    }
+
+    if (flipped) {
+      addContact(box, circle, normalX, normalY, depth);
+    } else {
+      addContact(circle, box, -normalX, -normalY, depth);
+    }
+  }
+
+  private void boxBox(int a, int b) {
+    final float dx = xs[b] - xs[a];
+    final float dy = ys[b] - ys[a];
+    final float overlapX = halfWidths[a] + halfWidths[b] - Math.abs(dx);
+    final float overlapY = halfHeights[a] + halfHeights[b] - Math.abs(dy);
+    if (overlapX < 0 || overlapY < 0) {
+      return;
+    }
+    if (overlapX < overlapY) {
+      addContact(a, b, dx < 0 ? -1 : 1, 0, overlapX);
+    } else {
+      addContact(a, b, 0, dy < 0 ? -1 : 1, overlapY);
+    }
+  }
+
+  private void prepareContacts() {
+    for (int i = 0; i < contacts.count; i++) {
+      final int a = contacts.a[i];
+      final int b = contacts.b[i];
+      contacts.mass[i] = 1 / (inverseMasses[a] + inverseMasses[b]);
+      final float closing = (velocityXs[b] - velocityXs[a]) * contacts.normalX[i]
+                            + (velocityYs[b] - velocityYs[a]) * contacts.normalY[i];
+      final float restitution = Math.max(restitutions[a], restitutions[b]);
+      contacts.bounce[i] = closing < -bounceThreshold ? -restitution * closing : 0;
+      contacts.friction[i] = (float) Math.sqrt(frictions[a] * frictions[b]);
+    }
+
+    // Warm start: apply the impulses carried over from the last step. Only after every bounce is known, as
+    // these change the velocities it's measured from.
+    for (int i = 0; i < contacts.count; i++) {
+      final int a = contacts.a[i];
+      final int b = contacts.b[i];
+      final float impulseX = contacts.normalImpulse[i] * contacts.normalX[i]
+                             - contacts.tangentImpulse[i] * contacts.normalY[i];
+      final float impulseY = contacts.normalImpulse[i] * contacts.normalY[i]
+                             + contacts.tangentImpulse[i] * contacts.normalX[i];
+      velocityXs[a] -= impulseX * inverseMasses[a];
+      velocityYs[a] -= impulseY * inverseMasses[a];
+      velocityXs[b] += impulseX * inverseMasses[b];
+      velocityYs[b] += impulseY * inverseMasses[b];
+    }
+  }
+
+  private void solveVelocities() {
+    for (int i = 0; i < contacts.count; i++) {
+      final int a = contacts.a[i];
+      final int b = contacts.b[i];
+      final float normalX = contacts.normalX[i];
+      final float normalY = contacts.normalY[i];
+      final float inverseMassA = inverseMasses[a];
+      final float inverseMassB = inverseMasses[b];
+
+      // Normal impulse, accumulated over the iterations and kept >= 0 so contacts only push.
+      float relativeX = velocityXs[b] - velocityXs[a];
+      float relativeY = velocityYs[b] - velocityYs[a];
+      final float normalSpeed = relativeX * normalX + relativeY * normalY;
+      final float oldNormal = contacts.normalImpulse[i];
+      final float newNormal = Math.max(0, oldNormal + contacts.mass[i] * (contacts.bounce[i] - normalSpeed));
+      contacts.normalImpulse[i] = newNormal;
+      final float normalImpulse = newNormal - oldNormal;
+      velocityXs[a] -= normalImpulse * normalX * inverseMassA;
+      velocityYs[a] -= normalImpulse * normalY * inverseMassA;
+      velocityXs[b] += normalImpulse * normalX * inverseMassB;
+      velocityYs[b] += normalImpulse * normalY * inverseMassB;
+
+      // Friction along the tangent, bounded by the normal impulse.
+      relativeX = velocityXs[b] - velocityXs[a];
+      relativeY = velocityYs[b] - velocityYs[a];
+      final float tangentX = -normalY;
+      final float tangentY = normalX;
+      final float tangentSpeed = relativeX * tangentX + relativeY * tangentY;
+      final float limit = contacts.friction[i] * newNormal;
+      final float oldTangent = contacts.tangentImpulse[i];
+      final float newTangent =
+          Math.max(-limit, Math.min(limit, oldTangent - contacts.mass[i] * tangentSpeed));
+      contacts.tangentImpulse[i] = newTangent;
+      final float tangentImpulse = newTangent - oldTangent;
+      velocityXs[a] -= tangentImpulse * tangentX * inverseMassA;
+      velocityYs[a] -= tangentImpulse * tangentY * inverseMassA;
+      velocityXs[b] += tangentImpulse * tangentX * inverseMassB;
+      velocityYs[b] += tangentImpulse * tangentY * inverseMassB;
+    }
+  }
+
+  private void correctPositions() {
+    for (int i = 0; i < contacts.count; i++) {
+      final int a = contacts.a[i];
+      final int b = contacts.b[i];
+      final float push = Math.max(0, contacts.depth[i] - slop) * correction * contacts.mass[i];
+      if (push == 0) {
+        continue;
+      }
+      xs[a] -= push * contacts.normalX[i] * inverseMasses[a];
+      ys[a] -= push * contacts.normalY[i] * inverseMasses[a];
+      xs[b] += push * contacts.normalX[i] * inverseMasses[b];
+      ys[b] += push * contacts.normalY[i] * inverseMasses[b];
+    }
+  }
+
+  /**
+   * Find the islands of the awake bodies with union-find, and put to sleep the ones that have been at rest.
+   */
+  private void updateSleep() {
+    final float sleepSpeedSq = sleepSpeed * sleepSpeed;
+    for (int i = 0; i < awakeCount; i++) {
+      final int body = awake[i];
+      final float speedSq = velocityXs[body] * velocityXs[body] + velocityYs[body] * velocityYs[body];
+      sleepTimes[body] = speedSq > sleepSpeedSq ? 0 : sleepTimes[body] + dt;
+      parents[body] = body;
+      islandSleepTimes[body] = sleepTimes[body];
+    }
+    for (int i = 0; i < contacts.count; i++) {
+      final int a = contacts.a[i];
+      final int b = contacts.b[i];
+      // Static bodies don't join islands, or everything on the ground would be one island.
+      if (inverseMasses[a] != 0 && inverseMasses[b] != 0) {
+        union(a, b);
+      }
+    }
+
+    boolean anySleeping = false;
+    for (int i = 0; i < awakeCount; i++) {
+      final int body = awake[i];
+      final int root = find(body);
+      if (islandSleepTimes[root] >= sleepSeconds) {
+        // Link the island into a ring through its root, so waking any body wakes all of it.
+        if (body != root) {
+          islandNext[body] = islandNext[root];
+          islandNext[root] = body;
+        }
+        velocityXs[body] = 0;
+        velocityYs[body] = 0;
+        anySleeping = true;
+      }
+    }
+    if (!anySleeping) {
+      return;
+    }
+
+    // Drop the sleeping bodies from the awake list, keeping the order of the rest.
+    int kept = 0;
+    for (int i = 0; i < awakeCount; i++) {
+      final int body = awake[i];
+      if (islandSleepTimes[find(body)] >= sleepSeconds) {
+        awakeIndices[body] = -1;
+      } else {
+        awakeIndices[body] = kept;
+        awake[kept++] = body;
+      }
+    }
+    awakeCount = kept;
+  }
+
+  private int find(int body) {
+    while (parents[body] != body) {
+      parents[body] = parents[parents[body]];
+      body = parents[body];
+    }
+    return body;
+  }
+
+  private void union(int a, int b) {
+    final int rootA = find(a);
+    final int rootB = find(b);
+    if (rootA == rootB) {
+      return;
+    }
+    // The lower id becomes the root, so islands come out the same every run.
+    final int root = Math.min(rootA, rootB);
+    final int child = Math.max(rootA, rootB);
+    parents[child] = root;
+    islandSleepTimes[root] = Math.min(islandSleepTimes[root], islandSleepTimes[child]);
+  }
+}
@@ -0,0 +1,261 @@
+package shellderp.game.spatial;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid of square cells over an unbounded plane, hashed into a fixed number of buckets, so memory
+ * depends on the entries and not on the area they cover. An entry is listed in every cell its box overlaps,
+ * and a query visits the cells its area overlaps; cells that share a bucket are told apart by testing the
+ * boxes, which queries do anyway.
+ * <p>
+ * Make cells about the size of a typical entry, or of a typical query if that's larger. Entries overlapping
+ * more than MAX_CELLS cells are kept in a list of their own that every query checks, so a few large entries
+ * cost little, but many of them make every query slow; use a LooseQuadtree for those. Moving an entry within
+ * the same cells only stores its box.
+ */
+public final class HashGrid extends SpatialIndex {
+  public static final int MAX_CELLS = 16;
+
+  private final float cellSize;
+  private final int bucketMask;
+
+  /**
+   * The first node of each bucket, -1 if none. The extra last bucket holds the entries over MAX_CELLS.
+   */
+  private final int[] buckets;
+  private final int oversized;
+
+  // Nodes, one per cell of each entry: a doubly linked list per bucket, and a singly linked one per slot.
+  private int[] nodeSlots = new int[64];
+  private int[] nodeBuckets = new int[64];
+  private int[] nodeNext = new int[64];
+  private int[] nodePrev = new int[64];
+  private int[] nodeNextOfSlot = new int[64];
+  private int nodeCount = 0;
+  private int freeNode = -1;
+
+  // The first node of each slot, and the cells its nodes cover.
+  private int[] slotNodes = new int[16];
+  private int[] cellMinXs = new int[16];
+  private int[] cellMinYs = new int[16];
+  private int[] cellMaxXs = new int[16];
+  private int[] cellMaxYs = new int[16];
+
+  /**
+   * @param cellSize The side of a cell, in world units.
+   * @param buckets  Rounded up to a power of two. About the number of cells the entries occupy at once.
+   */
+  public HashGrid(float cellSize, int buckets) {
+    if (!(cellSize > 0)) {
+      throw new IllegalArgumentException("cellSize must be > 0");
+    } else if (buckets < 1 || buckets > 1 << 30) {
+      throw new IllegalArgumentException("buckets must be in [1, 2^30]");
+    }
+    this.cellSize = cellSize;
+    final int count = Integer.bitCount(buckets) == 1 ? buckets : Integer.highestOneBit(buckets) << 1;
+    this.bucketMask = count - 1;
+    this.buckets = new int[count + 1];
+    this.oversized = count;
+    Arrays.fill(this.buckets, -1);
+  }
+
+  public float getCellSize() {
+    return cellSize;
+  }
+
+  private int cell(float position) {
+    // Saturates at the int range, so huge coordinates land in the edge cells.
+    return (int) Math.floor(position / cellSize);
+  }
+
+  private int bucket(int cellX, int cellY) {
+    int h = cellX * 0x9E3779B1 + cellY * 0x85EBCA77;
+    h ^= h >>> 15;
+    return h & bucketMask;
+  }
+
+  private static long cellCount(int minX, int minY, int maxX, int maxY) {
+    return ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+  }
+
+  @Override
+  void slotsGrown(int capacity) {
+    slotNodes = Arrays.copyOf(slotNodes, capacity);
+    cellMinXs = Arrays.copyOf(cellMinXs, capacity);
+    cellMinYs = Arrays.copyOf(cellMinYs, capacity);
+    cellMaxXs = Arrays.copyOf(cellMaxXs, capacity);
+    cellMaxYs = Arrays.copyOf(cellMaxYs, capacity);
+  }
+
+  @Override
+  void inserted(int slot) {
+    slotNodes[slot] = -1;
+    link(slot);
+  }
+
+  @Override
+  void moved(int slot) {
+    if (cell(minXs[slot]) == cellMinXs[slot] && cell(minYs[slot]) == cellMinYs[slot]
+        && cell(maxXs[slot]) == cellMaxXs[slot] && cell(maxYs[slot]) == cellMaxYs[slot]) {
+      return;
+    }
+    unlink(slot);
+    link(slot);
+  }
+
+  @Override
+  void removed(int slot) {
+    unlink(slot);
+  }
+
+  @Override
+  void cleared() {
+    Arrays.fill(buckets, -1);
+    nodeCount = 0;
+    freeNode = -1;
+  }
+
+  private void link(int slot) {
+    final int minX = cell(minXs[slot]);
+    final int minY = cell(minYs[slot]);
+    final int maxX = cell(maxXs[slot]);
+    final int maxY = cell(maxYs[slot]);
+    cellMinXs[slot] = minX;
+    cellMinYs[slot] = minY;
+    cellMaxXs[slot] = maxX;
+    cellMaxYs[slot] = maxY;
+    if (cellCount(minX, minY, maxX, maxY) > MAX_CELLS) {
+      addNode(slot, oversized);
+      return;
+    }
+    for (int x = minX; ; x++) {
+      for (int y = minY; ; y++) {
+        addNode(slot, bucket(x, y));
+        if (y == maxY) {
+          break;
+        }
+      }
+      if (x == maxX) {
+        break;
+      }
+    }
+  }
+
+  private void addNode(int slot, int bucket) {
+    final int node;
+    if (freeNode != -1) {
+      node = freeNode;
+      freeNode = nodeNext[node];
+    } else {
+      node = nodeCount++;
+      if (node == nodeSlots.length) {
+        final int capacity = node * 2;
+        nodeSlots = Arrays.copyOf(nodeSlots, capacity);
+        nodeBuckets = Arrays.copyOf(nodeBuckets, capacity);
+        nodeNext = Arrays.copyOf(nodeNext, capacity);
+        nodePrev = Arrays.copyOf(nodePrev, capacity);
+        nodeNextOfSlot = Arrays.copyOf(nodeNextOfSlot, capacity);
+      }
+    }
+    nodeSlots[node] = slot;
+    nodeBuckets[node] = bucket;
+    nodePrev[node] = -1;
+    nodeNext[node] = buckets[bucket];
+    if (buckets[bucket] != -1) {
+      nodePrev[buckets[bucket]] = node;
+    }
+    buckets[bucket] = node;
+    nodeNextOfSlot[node] = slotNodes[slot];
+    slotNodes[slot] = node;
+  }
+
+  private void unlink(int slot) {
+    int node = slotNodes[slot];
+    while (node != -1) {
+      final int next = nodeNextOfSlot[node];
+      if (nodePrev[node] != -1) {
+        nodeNext[nodePrev[node]] = nodeNext[node];
+      } else {
+        buckets[nodeBuckets[node]] = nodeNext[node];
+      }
+      if (nodeNext[node] != -1) {
+        nodePrev[nodeNext[node]] = nodePrev[node];
+      }
+      nodeNext[node] = freeNode;
+      freeNode = node;
+      node = next;
+    }
+    slotNodes[slot] = -1;
+  }
+
+  private void visitBucket(int bucket) {
+    for (int node = buckets[bucket]; node != -1; node = nodeNext[node]) {
+      candidate(nodeSlots[node]);
+    }
+  }
+
+  @Override
+  void search(float minX, float minY, float maxX, float maxY) {
+    visitBucket(oversized);
+    final int cellMinX = cell(minX);
+    final int cellMinY = cell(minY);
+    final int cellMaxX = cell(maxX);
+    final int cellMaxY = cell(maxY);
+    if (cellCount(cellMinX, cellMinY, cellMaxX, cellMaxY) > bucketMask + 1) {
+      // More cells than buckets, so every bucket would be visited anyway.
+      for (int bucket = 0; bucket <= bucketMask; bucket++) {
+        visitBucket(bucket);
+      }
+      return;
+    }
+    for (int x = cellMinX; ; x++) {
+      for (int y = cellMinY; ; y++) {
+        visitBucket(bucket(x, y));
+        if (y == cellMaxY) {
+          break;
+        }
+      }
+      if (x == cellMaxX) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Visits rings of cells around the point's cell. An entry that isn't in the first r rings is at least
+   * r - 1 cells away, so the search stops once the k nearest so far are all closer than that.
+   */
+  @Override
+  void searchNearest(float x, float y) {
+    visitBucket(oversized);
+    final int centerX = cell(x);
+    final int centerY = cell(y);
+    for (long ring = 0; seen < size(); ring++) {
+      final float bound = (ring - 1) * cellSize;
+      if (ring > 0 && bound * bound >= nearestBoundSq()) {
+        return;
+      }
+      final long side = 2 * ring + 1;
+      if (side * side > bucketMask + 1) {
+        // The rings cover more cells than there are buckets; finish with every bucket.
+        for (int bucket = 0; bucket <= bucketMask; bucket++) {
+          visitBucket(bucket);
+        }
+        return;
+      }
+      if (ring == 0) {
+        visitBucket(bucket(centerX, centerY));
+        continue;
+      }
+      final int r = (int) ring;
+      for (int i = -r; i <= r; i++) {
+        visitBucket(bucket(centerX + i, centerY - r));
+        visitBucket(bucket(centerX + i, centerY + r));
+      }
+      for (int i = -r + 1; i <= r - 1; i++) {
+        visitBucket(bucket(centerX - r, centerY + i));
+        visitBucket(bucket(centerX + r, centerY + i));
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package shellderp.game.spatial;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints that queries append ids to. Keep one and clear() it before each query, so queries
+ * don't allocate once it has grown to the largest result.
+ */
+public final class IdList {
+  int[] ids;
+  int size = 0;
+
+  public IdList() {
+    this(16);
+  }
+
+  public IdList(int capacity) {
+    ids = new int[Math.max(1, capacity)];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int get(int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+    }
+    return ids[i];
+  }
+
+  public void add(int id) {
+    ensureCapacity(size + 1);
+    ids[size++] = id;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  void ensureCapacity(int capacity) {
+    if (capacity > ids.length) {
+      ids = Arrays.copyOf(ids, Math.max(capacity, ids.length * 2));
+    }
+  }
+
+  public int[] toArray() {
+    return Arrays.copyOf(ids, size);
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
@@ -0,0 +1,97 @@
+package shellderp.game.spatial;
+
+import java.util.Arrays;
+
+/**
+ * Maps non-negative int ids to ints, with open addressing and linear probing, so lookups don't box.
+ */
+final class IdMap {
+  private static final int EMPTY = -1;
+
+  private int[] keys;
+  private int[] values;
+  private int mask;
+  private int size = 0;
+
+  IdMap() {
+    keys = new int[16];
+    values = new int[16];
+    mask = keys.length - 1;
+    Arrays.fill(keys, EMPTY);
+  }
+
+  private static int hash(int key) {
+    final int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return The value of key, or -1 if it has none.
+   */
+  int get(int key) {
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return values[i];
+      } else if (keys[i] == EMPTY) {
+        return -1;
+      }
+    }
+  }
+
+  void put(int key, int value) {
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if (keys[i] == EMPTY) {
+      size++;
+    }
+    keys[i] = key;
+    values[i] = value;
+  }
+
+  void remove(int key) {
+    int i = hash(key) & mask;
+    while (keys[i] != key) {
+      if (keys[i] == EMPTY) {
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    size--;
+    // Shift back the entries after it that probed past it, so lookups don't stop early at the hole.
+    int hole = i;
+    for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+      final int home = hash(keys[j]) & mask;
+      if (((j - home) & mask) >= ((j - hole) & mask)) {
+        keys[hole] = keys[j];
+        values[hole] = values[j];
+        hole = j;
+      }
+    }
+    keys[hole] = EMPTY;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private void rehash(int capacity) {
+    final int[] oldKeys = keys;
+    final int[] oldValues = values;
+    keys = new int[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package shellderp.game.spatial;
+
+import java.util.Arrays;
+
+/**
+ * A quadtree over a square area, in which each node's bounds are loosened to twice its cell, centered on it.
+ * An entry then goes in the one node of the deepest level whose cells are at least as large as the entry,
+ * the node whose cell holds the entry's center, so it never straddles nodes: placing an entry is O(1), and
+ * moving it only relinks it when it changes node. Entries of any size mix well, and queries skip the
+ * subtrees that are empty or out of range.
+ * <p>
+ * The tree is complete and implicit: level d is a 2^d by 2^d grid of nodes in flat arrays, so there are no
+ * node objects, and memory is fixed by maxDepth (about 4^maxDepth * 8 bytes). Entries whose center is
+ * outside the area, or that are larger than it, are kept in a list that every query checks.
+ */
+public final class LooseQuadtree extends SpatialIndex {
+  public static final int MAX_DEPTH = 12;
+
+  private final float originX;
+  private final float originY;
+  private final float size;
+  private final int maxDepth;
+
+  /**
+   * The index of the first node of each level.
+   */
+  private final int[] levelStarts;
+
+  /**
+   * The first entry of each node, and the number of entries in its subtree. The extra last node holds the
+   * entries outside the tree.
+   */
+  private final int[] heads;
+  private final int[] counts;
+  private final int outside;
+
+  // Per slot: its node, and the doubly linked list of the node's entries.
+  private int[] slotNodes = new int[16];
+  private int[] slotNext = new int[16];
+  private int[] slotPrev = new int[16];
+
+  // The order to visit the children in, per level, for searchNearest().
+  private final int[] childOrder;
+  private final float[] childDistances;
+
+  /**
+   * @param minX     The left edge of the area.
+   * @param minY     The top edge of the area.
+   * @param size     The side of the area.
+   * @param maxDepth The deepest level, at most MAX_DEPTH. Its cells are size / 2^maxDepth.
+   */
+  public LooseQuadtree(float minX, float minY, float size, int maxDepth) {
+    if (!(size > 0)) {
+      throw new IllegalArgumentException("size must be > 0");
+    } else if (maxDepth < 0 || maxDepth > MAX_DEPTH) {
+      throw new IllegalArgumentException("maxDepth must be in [0, " + MAX_DEPTH + "]");
+    }
+    this.originX = minX;
+    this.originY = minY;
+    this.size = size;
+    this.maxDepth = maxDepth;
+
+    levelStarts = new int[maxDepth + 2];
+    for (int d = 1; d <= maxDepth + 1; d++) {
+      levelStarts[d] = levelStarts[d - 1] + (1 << (2 * (d - 1)));
+    }
+    outside = levelStarts[maxDepth + 1];
+    heads = new int[outside + 1];
+    counts = new int[outside + 1];
+    Arrays.fill(heads, -1);
+    childOrder = new int[4 * (maxDepth + 1)];
+    childDistances = new float[4 * (maxDepth + 1)];
+  }
+
+  private int node(int depth, int x, int y) {
+    return levelStarts[depth] + (y << depth) + x;
+  }
+
+  private float cellSize(int depth) {
+    return size / (1 << depth);
+  }
+
+  private int nodeOf(int slot) {
+    final float extent = Math.max(maxXs[slot] - minXs[slot], maxYs[slot] - minYs[slot]);
+    final float centerX = (minXs[slot] + maxXs[slot]) / 2;
+    final float centerY = (minYs[slot] + maxYs[slot]) / 2;
+    if (!(extent <= size && centerX >= originX && centerX < originX + size
+          && centerY >= originY && centerY < originY + size)) {
+      return outside;
+    }
+    int depth = 0;
+    while (depth < maxDepth && cellSize(depth + 1) >= extent) {
+      depth++;
+    }
+    final int cells = 1 << depth;
+    final int x = Math.min(cells - 1, (int) ((centerX - originX) / cellSize(depth)));
+    final int y = Math.min(cells - 1, (int) ((centerY - originY) / cellSize(depth)));
+    return node(depth, x, y);
+  }
+
+  @Override
+  void slotsGrown(int capacity) {
+    slotNodes = Arrays.copyOf(slotNodes, capacity);
+    slotNext = Arrays.copyOf(slotNext, capacity);
+    slotPrev = Arrays.copyOf(slotPrev, capacity);
+  }
+
+  @Override
+  void inserted(int slot) {
+    link(slot, nodeOf(slot));
+  }
+
+  @Override
+  void moved(int slot) {
+    final int node = nodeOf(slot);
+    if (node != slotNodes[slot]) {
+      unlink(slot);
+      link(slot, node);
+    }
+  }
+
+  @Override
+  void removed(int slot) {
+    unlink(slot);
+  }
+
+  @Override
+  void cleared() {
+    Arrays.fill(heads, -1);
+    Arrays.fill(counts, 0);
+  }
+
+  private void link(int slot, int node) {
+    slotNodes[slot] = node;
+    slotPrev[slot] = -1;
+    slotNext[slot] = heads[node];
+    if (heads[node] != -1) {
+      slotPrev[heads[node]] = slot;
+    }
+    heads[node] = slot;
+    addToCounts(node, 1);
+  }
+
+  private void unlink(int slot) {
+    final int node = slotNodes[slot];
+    if (slotPrev[slot] != -1) {
+      slotNext[slotPrev[slot]] = slotNext[slot];
+    } else {
+      heads[node] = slotNext[slot];
+    }
+    if (slotNext[slot] != -1) {
+      slotPrev[slotNext[slot]] = slotPrev[slot];
+    }
+    addToCounts(node, -1);
+  }
+
+  /**
+   * Add delta to the count of node and of each of its ancestors.
+   */
+  private void addToCounts(int node, int delta) {
+    counts[node] += delta;
+    if (node == outside) {
+      return;
+    }
+    int depth = 0;
+    while (levelStarts[depth + 1] <= node) {
+      depth++;
+    }
+    final int index = node - levelStarts[depth];
+    int x = index & ((1 << depth) - 1);
+    int y = index >>> depth;
+    while (depth > 0) {
+      depth--;
+      x >>= 1;
+      y >>= 1;
+      counts[node(depth, x, y)] += delta;
+    }
+  }
+
+  private void visitNode(int node) {
+    for (int slot = heads[node]; slot != -1; slot = slotNext[slot]) {
+      candidate(slot);
+    }
+  }
+
+  @Override
+  void search(float minX, float minY, float maxX, float maxY) {
+    visitNode(outside);
+    search(0, 0, 0, minX, minY, maxX, maxY);
+  }
+
+  private void search(int depth, int x, int y, float minX, float minY, float maxX, float maxY) {
+    final int node = node(depth, x, y);
+    if (counts[node] == 0) {
+      return;
+    }
+    // The loose bounds: the cell grown by half a cell on every side.
+    final float cell = cellSize(depth);
+    final float looseMinX = originX + (x - 0.5f) * cell;
+    final float looseMinY = originY + (y - 0.5f) * cell;
+    if (looseMinX > maxX || looseMinX + 2 * cell < minX || looseMinY > maxY || looseMinY + 2 * cell < minY) {
+      return;
+    }
+    visitNode(node);
+    if (depth < maxDepth) {
+      search(depth + 1, 2 * x, 2 * y, minX, minY, maxX, maxY);
+      search(depth + 1, 2 * x + 1, 2 * y, minX, minY, maxX, maxY);
+      search(depth + 1, 2 * x, 2 * y + 1, minX, minY, maxX, maxY);
+      search(depth + 1, 2 * x + 1, 2 * y + 1, minX, minY, maxX, maxY);
+    }
+  }
+
+  @Override
+  void searchNearest(float x, float y) {
+    visitNode(outside);
+    searchNearest(0, 0, 0, x, y);
+  }
+
+  /**
+   * Branch and bound: visit the children nearest first, and skip any whose loose bounds are farther than
+   * the k nearest found so far.
+   */
+  private void searchNearest(int depth, int x, int y, float px, float py) {
+    final int node = node(depth, x, y);
+    if (counts[node] == 0 || looseDistanceSq(depth, x, y, px, py) >= nearestBoundSq()) {
+      return;
+    }
+    visitNode(node);
+    if (depth == maxDepth) {
+      return;
+    }
+
+    final int base = 4 * depth;
+    for (int i = 0; i < 4; i++) {
+      final float distance = looseDistanceSq(depth + 1, 2 * x + (i & 1), 2 * y + (i >> 1), px, py);
+      int j = i;
+      while (j > 0 && childDistances[base + j - 1] > distance) {
+        childDistances[base + j] = childDistances[base + j - 1];
+        childOrder[base + j] = childOrder[base + j - 1];
+        j--;
+      }
+      childDistances[base + j] = distance;
+      childOrder[base + j] = i;
+    }
+    for (int i = 0; i < 4; i++) {
+      final int child = childOrder[base + i];
+      searchNearest(depth + 1, 2 * x + (child & 1), 2 * y + (child >> 1), px, py);
+    }
+  }
+
+  private float looseDistanceSq(int depth, int x, int y, float px, float py) {
+    final float cell = cellSize(depth);
+    final float minX = originX + (x - 0.5f) * cell;
+    final float minY = originY + (y - 0.5f) * cell;
+    return distanceSq(px, py, minX, minY, minX + 2 * cell, minY + 2 * cell);
+  }
+}
@@ -0,0 +1,366 @@
+package shellderp.game.spatial;
+
+import java.util.Arrays;
+
+/**
+ * Finds the entries near a point or in an area without looking at every entry: collision broadphase, render
+ * culling, picking, area of effect.
+ * <p>
+ * Entries are axis-aligned bounding boxes keyed by an int id, e.g. an ECS entity, with at most one box per
+ * id; a point is a box of no size. Boxes are stored in primitive arrays, so moving an entry with update()
+ * doesn't allocate, and costs nothing more than storing the box while it stays in the same part of the
+ * structure. Queries append the ids they find to an IdList, so they don't allocate either:
+ * - queryRange(): the entries whose box overlaps a box, e.g. the viewport.
+ * - queryRadius(): the entries whose box overlaps a circle.
+ * - queryNearest(): the k entries closest to a point, nearest first, by the distance to their box (0 inside).
+ * Boxes that only touch count as overlapping.
+ * <p>
+ * HashGrid suits entries of similar size spread over an unbounded world; LooseQuadtree suits entries of
+ * very different sizes, or clustered, in a bounded one. Not thread-safe.
+ */
+public abstract class SpatialIndex {
+  private static final int RANGE = 0;
+  private static final int RADIUS = 1;
+  private static final int NEAREST = 2;
+
+  // Entries, by slot. Slots are reused, and addressed through ids.
+  int[] ids = new int[16];
+  float[] minXs = new float[16];
+  float[] minYs = new float[16];
+  float[] maxXs = new float[16];
+  float[] maxYs = new float[16];
+  private final IdMap slots = new IdMap();
+  private int nextSlot = 0;
+  private int[] freeSlots = new int[16];
+  private int freeCount = 0;
+  private int size = 0;
+
+  // The query in progress. Each query stamps the slots it has seen with a new mark, so an entry found
+  // through several cells or nodes is only reported once.
+  private int[] marks = new int[16];
+  private int mark = 0;
+  private int queryMode;
+  private float queryMinX, queryMinY, queryMaxX, queryMaxY;
+  private float queryX, queryY, queryRadiusSq;
+  private IdList results;
+  int seen;
+
+  // The k nearest found so far, as a max heap on distance.
+  private int k;
+  private int heapSize;
+  private int[] heapSlots = new int[16];
+  private float[] heapDistances = new float[16];
+
+  SpatialIndex() {
+  }
+
+  public final int size() {
+    return size;
+  }
+
+  public final boolean contains(int id) {
+    return slots.get(id) != -1;
+  }
+
+  /**
+   * Add an entry.
+   *
+   * @param id Any int >= 0 not in the index.
+   */
+  public final void insert(int id, float minX, float minY, float maxX, float maxY) {
+    if (id < 0) {
+      throw new IllegalArgumentException("id must be >= 0");
+    } else if (contains(id)) {
+      throw new IllegalArgumentException("id " + id + " already in the index");
+    }
+    checkBox(minX, minY, maxX, maxY);
+
+    final int slot;
+    if (freeCount > 0) {
+      slot = freeSlots[--freeCount];
+    } else {
+      slot = nextSlot++;
+      if (slot == ids.length) {
+        growSlots(slot * 2);
+      }
+    }
+    ids[slot] = id;
+    setBox(slot, minX, minY, maxX, maxY);
+    slots.put(id, slot);
+    size++;
+    inserted(slot);
+  }
+
+  /**
+   * Add a point entry.
+   */
+  public final void insert(int id, float x, float y) {
+    insert(id, x, y, x, y);
+  }
+
+  /**
+   * Move or resize an entry.
+   */
+  public final void update(int id, float minX, float minY, float maxX, float maxY) {
+    final int slot = slotOf(id);
+    checkBox(minX, minY, maxX, maxY);
+    setBox(slot, minX, minY, maxX, maxY);
+    moved(slot);
+  }
+
+  /**
+   * Move a point entry.
+   */
+  public final void update(int id, float x, float y) {
+    update(id, x, y, x, y);
+  }
+
+  public final void remove(int id) {
+    final int slot = slotOf(id);
+    removed(slot);
+    slots.remove(id);
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+    }
+    freeSlots[freeCount++] = slot;
+    size--;
+  }
+
+  /**
+   * Remove every entry.
+   */
+  public final void clear() {
+    cleared();
+    slots.clear();
+    nextSlot = 0;
+    freeCount = 0;
+    size = 0;
+  }
+
+  private int slotOf(int id) {
+    final int slot = slots.get(id);
+    if (slot == -1) {
+      throw new IllegalArgumentException("id " + id + " not in the index");
+    }
+    return slot;
+  }
+
+  private static void checkBox(float minX, float minY, float maxX, float maxY) {
+    // Also false for NaN.
+    if (!(minX <= maxX && minY <= maxY)) {
+      throw new IllegalArgumentException(
+          "bad box (" + minX + ", " + minY + ") to (" + maxX + ", " + maxY + ")");
+    }
+  }
+
+  private void setBox(int slot, float minX, float minY, float maxX, float maxY) {
+    minXs[slot] = minX;
+    minYs[slot] = minY;
+    maxXs[slot] = maxX;
+    maxYs[slot] = maxY;
+  }
+
+  private void growSlots(int capacity) {
+    ids = Arrays.copyOf(ids, capacity);
+    minXs = Arrays.copyOf(minXs, capacity);
+    minYs = Arrays.copyOf(minYs, capacity);
+    maxXs = Arrays.copyOf(maxXs, capacity);
+    maxYs = Arrays.copyOf(maxYs, capacity);
+    marks = Arrays.copyOf(marks, capacity);
+    slotsGrown(capacity);
+  }
+
+  // What the structures do with entries. Boxes are stored before these are called.
+
+  abstract void slotsGrown(int capacity);
+
+  abstract void inserted(int slot);
+
+  abstract void moved(int slot);
+
+  abstract void removed(int slot);
+
+  abstract void cleared();
+
+  /**
+   * Call candidate() with every entry that may overlap the box (and possibly others).
+   */
+  abstract void search(float minX, float minY, float maxX, float maxY);
+
+  /**
+   * Call candidate() with entries in order of roughly increasing distance from (x, y) until every entry
+   * nearer than nearestBoundSq() is certain to have been offered.
+   */
+  abstract void searchNearest(float x, float y);
+
+  /**
+   * Append the ids of the entries whose box overlaps the given box to out.
+   *
+   * @return The number of ids appended, 0 if the box is empty (min > max).
+   */
+  public final int queryRange(float minX, float minY, float maxX, float maxY, IdList out) {
+    if (!(minX <= maxX && minY <= maxY)) {
+      return 0;
+    }
+    startQuery(RANGE, out);
+    queryMinX = minX;
+    queryMinY = minY;
+    queryMaxX = maxX;
+    queryMaxY = maxY;
+    final int before = out.size;
+    search(minX, minY, maxX, maxY);
+    return out.size - before;
+  }
+
+  /**
+   * Append the ids of the entries whose box overlaps the circle of radius around (x, y) to out.
+   *
+   * @return The number of ids appended, 0 if radius < 0.
+   */
+  public final int queryRadius(float x, float y, float radius, IdList out) {
+    if (!(radius >= 0) || Float.isNaN(x) || Float.isNaN(y)) {
+      return 0;
+    }
+    startQuery(RADIUS, out);
+    queryX = x;
+    queryY = y;
+    queryRadiusSq = radius * radius;
+    final int before = out.size;
+    search(x - radius, y - radius, x + radius, y + radius);
+    return out.size - before;
+  }
+
+  /**
+   * Append the ids of the k entries nearest to (x, y) to out, nearest first. Fewer if the index has fewer.
+   *
+   * @return The number of ids appended.
+   */
+  public final int queryNearest(float x, float y, int k, IdList out) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be >= 1");
+    }
+    startQuery(NEAREST, out);
+    queryX = x;
+    queryY = y;
+    this.k = k;
+    heapSize = 0;
+    if (k > heapSlots.length) {
+      heapSlots = new int[k];
+      heapDistances = new float[k];
+    }
+    searchNearest(x, y);
+
+    // Popping the max heap yields the farthest first, so fill the results from the back.
+    final int found = heapSize;
+    out.ensureCapacity(out.size + found);
+    for (int i = found - 1; i >= 0; i--) {
+      out.ids[out.size + i] = ids[heapSlots[0]];
+      popHeap();
+    }
+    out.size += found;
+    return found;
+  }
+
+  private void startQuery(int mode, IdList out) {
+    if (++mark == 0) {
+      Arrays.fill(marks, 0);
+      mark = 1;
+    }
+    queryMode = mode;
+    results = out;
+    seen = 0;
+  }
+
+  /**
+   * Consider an entry for the query in progress. Entries seen before in the same query are ignored.
+   */
+  final void candidate(int slot) {
+    if (marks[slot] == mark) {
+      return;
+    }
+    marks[slot] = mark;
+    seen++;
+    switch (queryMode) {
+      case RANGE:
+        if (minXs[slot] <= queryMaxX && maxXs[slot] >= queryMinX
+            && minYs[slot] <= queryMaxY && maxYs[slot] >= queryMinY) {
+          results.add(ids[slot]);
+        }
+        break;
+      case RADIUS:
+        if (distanceSq(queryX, queryY, minXs[slot], minYs[slot], maxXs[slot], maxYs[slot]) <= queryRadiusSq) {
+          results.add(ids[slot]);
+        }
+        break;
+      default:
+        offer(slot, distanceSq(queryX, queryY, minXs[slot], minYs[slot], maxXs[slot], maxYs[slot]));
+        break;
+    }
+  }
+
+  /**
+   * @return The squared distance beyond which entries can't be among the k nearest anymore.
+   */
+  final float nearestBoundSq() {
+    return heapSize < k ? Float.POSITIVE_INFINITY : heapDistances[0];
+  }
+
+  /**
+   * @return The squared distance from (x, y) to the box, 0 if it's inside.
+   */
+  static float distanceSq(float x, float y, float minX, float minY, float maxX, float maxY) {
+    final float dx = x < minX ? minX - x : x > maxX ? x - maxX : 0;
+    final float dy = y < minY ? minY - y : y > maxY ? y - maxY : 0;
+    return dx * dx + dy * dy;
+  }
+
+  private void offer(int slot, float distance) {
+    if (heapSize < k) {
+      int i = heapSize++;
+      while (i > 0) {
+        final int parent = (i - 1) / 2;
+        if (heapDistances[parent] >= distance) {
+          break;
+        }
+        heapSlots[i] = heapSlots[parent];
+        heapDistances[i] = heapDistances[parent];
+        i = parent;
+      }
+      heapSlots[i] = slot;
+      heapDistances[i] = distance;
+    } else if (distance < heapDistances[0]) {
+      siftDown(slot, distance);
+    }
+  }
+
+  private void popHeap() {
+    heapSize--;
+    if (heapSize > 0) {
+      siftDown(heapSlots[heapSize], heapDistances[heapSize]);
+    }
+  }
+
+  /**
+   * Replace the top of the heap, and restore the heap.
+   */
+  private void siftDown(int slot, float distance) {
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && heapDistances[child + 1] > heapDistances[child]) {
+        child++;
+      }
+      if (heapDistances[child] <= distance) {
+        break;
+      }
+      heapSlots[i] = heapSlots[child];
+      heapDistances[i] = heapDistances[child];
+      i = child;
+    }
+    heapSlots[i] = slot;
+    heapDistances[i] = distance;
+  }
+}
@@ -1,5 +1,8 @@
 package shellderp.game.ui;
 
+import shellderp.game.FrameClock;
+import shellderp.game.FrameProfiler;
+import shellderp.game.Time;
 import shellderp.game.Timer;
 
 import java.awt.Color;
@@ -18,8 +21,15 @@ import java.util.List;
  * Created by: Mike
  */
 public class DebugOverlay implements Renderable {
+  private static final int GRAPH_HEIGHT = 60;
+  private static final Color OVER_BUDGET_COLOR = new Color(230, 60, 60);
+  private static final Color UNDER_BUDGET_COLOR = new Color(60, 200, 90);
+
   private final Color textColor;
 
+  private FrameProfiler profiler = null;
+  private FrameClock frameClock = null;
+
   private final Timer secondTimer = new Timer();
   private int frames;
   private int lastFps;
@@ -67,14 +77,30 @@ public class DebugOverlay implements Renderable {
     staticDebugStrings.put(key, text.split("\n"));
   }
 
+  /**
+   * Show the profile and a frame time graph of a GameLoop (see GameLoop.getProfiler()), or nothing if null.
+   */
+  public void setProfiler(FrameProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * Read the time from the clock of the GameLoop that renders this (see GameLoop.getFrameClock()) instead of
+   * the current time, or the current time again if null.
+   */
+  public void setFrameClock(FrameClock frameClock) {
+    this.frameClock = frameClock;
+  }
+
   @Override
   public void render(Graphics2D g) {
+    final long now = frameClock != null ? frameClock.frameNanos() : Time.nowNanos();
     if (!secondTimer.isActive()) {
-      secondTimer.restart();
+      secondTimer.restart(now);
     }
 
-    if (secondTimer.hasPassed(1000)) {
-      secondTimer.restart();
+    if (secondTimer.hasPassed(1000, now)) {
+      secondTimer.restart(now);
       lastFps = frames;
       frames = 0;
     } else {
@@ -105,6 +131,36 @@ public class DebugOverlay implements Renderable {
       }
     }
 
+    if (profiler != null) {
+      renderProfile(g, fontMetrics);
+    }
+
     g.setTransform(originalTransform);
   }
+
+  /**
+   * Draws the sections of the profile, then a bar per frame, newest on the right, scaled so the frame budget
+   * is halfway up.
+   */
+  private void renderProfile(Graphics2D g, FontMetrics fontMetrics) {
+    g.translate(0, fontMetrics.getHeight());
+    g.drawString(profiler.getFrame().toString(), 0, 0);
+    for (FrameProfiler.Section section : profiler.getSections()) {
+      g.translate(0, fontMetrics.getHeight());
+      g.drawString(section.toString(), 0, 0);
+    }
+
+    g.translate(0, fontMetrics.getDescent() + GRAPH_HEIGHT);
+    final long budget = profiler.getFrameBudgetNanos();
+    final int frames = profiler.getHistorySize();
+    for (int i = 0; i < frames; i++) {
+      final long nanos = profiler.getHistoryNanos(i);
+      final int height = (int) Math.min(GRAPH_HEIGHT, nanos * GRAPH_HEIGHT / (2 * budget));
+      final int x = FrameProfiler.HISTORY_FRAMES - 1 - i;
+      g.setColor(nanos > budget ? OVER_BUDGET_COLOR : UNDER_BUDGET_COLOR);
+      g.drawLine(x, 0, x, -height);
+    }
+    g.setColor(textColor);
+    g.drawLine(0, -GRAPH_HEIGHT / 2, FrameProfiler.HISTORY_FRAMES - 1, -GRAPH_HEIGHT / 2);
+  }
 }
@@ -1,6 +1,7 @@
 package shellderp.game.ui;
 
 import shellderp.game.GameStep;
+import shellderp.game.RenderStep;
 
 import java.awt.Canvas;
 import java.awt.Graphics;
@@ -8,9 +9,12 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferStrategy;
 
 /**
+ * Draws the renderable once every step. In a fixed timestep GameLoop, add it as a RenderStep instead so it
+ * draws every frame with the interpolation alpha.
+ * <p>
  * Created by: Mike
  */
-public final class GameCanvas extends Canvas implements GameStep {
+public final class GameCanvas extends Canvas implements GameStep, RenderStep {
 
   private final Renderable renderable;
   private BufferStrategy strategy;
@@ -41,6 +45,11 @@ public final class GameCanvas extends Canvas implements GameStep {
 
   @Override
   public void step(long timeDeltaMs) {
+    render(1);
+  }
+
+  @Override
+  public void render(double alpha) {
     if (!isDisplayable()) {
       return;
     }
@@ -62,7 +71,7 @@ public final class GameCanvas extends Canvas implements GameStep {
         // Clear the previous rendering.
         graphics.clearRect(0, 0, getWidth(), getHeight());
         // Render the renderable onto the buffer graphics.
-        renderable.render((Graphics2D) graphics);
+        renderable.render((Graphics2D) graphics, alpha);
 
         graphics.dispose();
 
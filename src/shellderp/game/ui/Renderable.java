@@ -9,6 +9,14 @@ import java.awt.RenderingHints;
 public interface Renderable {
   void render(Graphics2D graphics);
 
+  /**
+   * Render with the interpolation alpha of a fixed timestep GameLoop, see RenderStep. By default the
+   * latest state is drawn as is.
+   */
+  default void render(Graphics2D graphics, double alpha) {
+    render(graphics);
+  }
+
   default void enableAntiAliasing(Graphics2D g) {
     g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
     // From trial and error, this looks to be the best for all fonts.
@@ -0,0 +1,52 @@
+package shellderp.game;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameClockTest {
+
+  @Test
+  public void testClocksAreIndependent() {
+    final FrameClock client = new FrameClock();
+    final FrameClock server = new FrameClock();
+    client.startFrame(1000);
+    server.startFrame(2000);
+    assertEquals(1000, client.frameNanos());
+    assertEquals(2000, server.frameNanos());
+
+    server.stop();
+    assertEquals(1000, client.frameNanos());
+    assertTrue(server.frameNanos() > 2000);
+  }
+
+  @Test
+  public void testZeroIsStillAFrame() {
+    final FrameClock clock = new FrameClock();
+    clock.startFrame(0);
+    assertEquals(clock.frameNanos(), clock.frameNanos());
+  }
+
+  @Test(timeout = 5000)
+  public void testSameTimeThroughATick() throws Exception {
+    final ServerLoop loop = new ServerLoop(1000);
+    final FrameClock clock = loop.getFrameClock();
+    final List<Long> first = new ArrayList<>();
+    final List<Long> second = new ArrayList<>();
+    loop.addStep(timeDeltaMs -> first.add(clock.frameNanos()), "first");
+    loop.addStep(timeDeltaMs -> {
+      second.add(clock.frameNanos());
+      if (second.size() == 3) {
+        loop.stop();
+      }
+    }, "second");
+    loop.run();
+
+    assertEquals(first, second);
+    assertTrue(first.get(0) < first.get(1) && first.get(1) < first.get(2));
+    assertTrue(clock.frameNanos() > first.get(2));
+  }
+}
@@ -0,0 +1,116 @@
+package shellderp.game;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FramePacerTest {
+
+  private static final long MS = 1_000_000;
+
+  /**
+   * Time only moves when the pacer looks at it (by a microsecond, so spinning ends), when it parks, and when
+   * a test does work.
+   */
+  private static class FakeClock {
+    static final long TICK = 1_000;
+
+    long now = 1_000 * MS;
+    long overshoot = 0;
+    int parks = 0;
+
+    long nanoTime() {
+      now += TICK;
+      return now;
+    }
+
+    void park(long nanos) {
+      parks++;
+      now += nanos + overshoot;
+    }
+
+    FramePacer pacer(double targetFps) {
+      return new FramePacer(targetFps, this::nanoTime, this::park);
+    }
+  }
+
+  @Test
+  public void testDeadlinesAreAbsolute() throws Exception {
+    final FakeClock clock = new FakeClock();
+    final FramePacer pacer = clock.pacer(200);
+    assertEquals(5 * MS, pacer.getFrameNanos());
+    pacer.start();
+    final long start = clock.now;
+    for (int frame = 1; frame <= 100; frame++) {
+      // Uneven work, under a frame.
+      clock.now += (frame % 4) * MS;
+      pacer.waitForNextFrame();
+      // Each frame starts at its deadline, so no error carries over to the next.
+      final long deadline = start + frame * pacer.getFrameNanos();
+      assertTrue(clock.now >= deadline);
+      assertTrue(clock.now - deadline <= 2 * FakeClock.TICK);
+    }
+    assertEquals(100, pacer.getFrames());
+    assertEquals(0, pacer.getLateFrames());
+    assertEquals(5 * MS, pacer.getMeanFrameNanos(), 2 * FakeClock.TICK);
+  }
+
+  @Test
+  public void testSpinCoversOversleep() throws Exception {
+    final FakeClock clock = new FakeClock();
+    clock.overshoot = 300_000;
+    final FramePacer pacer = clock.pacer(100);
+    pacer.start();
+    final long start = clock.now;
+    for (int frame = 1; frame <= 50; frame++) {
+      pacer.waitForNextFrame();
+      if (frame > 30) {
+        // The spin grew to cover the overshoot, so the pacer wakes before the deadline and spins up to it.
+        final long deadline = start + frame * pacer.getFrameNanos();
+        assertTrue(clock.now - deadline <= 2 * FakeClock.TICK);
+      }
+    }
+    assertEquals(50, clock.parks);
+    assertEquals(0, pacer.getLateFrames());
+  }
+
+  @Test
+  public void testLateFrameRestartsSchedule() throws Exception {
+    final FakeClock clock = new FakeClock();
+    final FramePacer pacer = clock.pacer(100);
+    pacer.start();
+    pacer.waitForNextFrame();
+    clock.now += 35 * MS;
+    final long late = pacer.waitForNextFrame();
+    assertTrue(late > pacer.getFrameNanos());
+    assertEquals(1, pacer.getLateFrames());
+
+    // The frames owed aren't run back to back; the next waits a whole frame.
+    final long lateEnd = clock.now;
+    pacer.waitForNextFrame();
+    assertTrue(clock.now - lateEnd >= pacer.getFrameNanos());
+    assertTrue(clock.now - lateEnd <= pacer.getFrameNanos() + 2 * FakeClock.TICK);
+
+    pacer.resetStats();
+    assertEquals(0, pacer.getFrames());
+    assertEquals(0, pacer.getLateFrames());
+  }
+
+  @Test
+  public void testPollsUntilDeadline() throws Exception {
+    final FakeClock clock = new FakeClock();
+    final FramePacer pacer = clock.pacer(100);
+    final AtomicInteger polls = new AtomicInteger();
+    pacer.start();
+    final long start = clock.now;
+    for (int frame = 1; frame <= 5; frame++) {
+      pacer.waitForNextFrame(polls::incrementAndGet);
+      assertTrue(clock.now >= start + frame * pacer.getFrameNanos());
+    }
+    // Polling never parks.
+    assertEquals(0, clock.parks);
+    assertTrue(polls.get() > 5);
+  }
+}
@@ -0,0 +1,98 @@
+package shellderp.game;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+  @Test
+  public void testBucketBounds() {
+    assertEquals(0, Histogram.bucketOf(0));
+    assertEquals(0, Histogram.bucketOf(-5));
+    assertEquals(15, Histogram.bucketOf(15));
+    // Each bucket ends right before the next starts.
+    for (int bucket = 0; bucket < Histogram.BUCKETS - 1; bucket++) {
+      final long upper = Histogram.upperBoundOf(bucket);
+      assertEquals(bucket, Histogram.bucketOf(upper));
+      assertEquals(bucket + 1, Histogram.bucketOf(upper + 1));
+    }
+    assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(1L << 40));
+    assertEquals(Histogram.BUCKETS - 1, Histogram.bucketOf(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testBucketWithinSixPercent() {
+    final Random random = new Random(1);
+    for (int i = 0; i < 100_000; i++) {
+      final long nanos = random.nextLong() >>> (24 + random.nextInt(40));
+      final long upper = Histogram.upperBoundOf(Histogram.bucketOf(nanos));
+      assertTrue(upper >= nanos);
+      assertTrue(nanos + " in bucket up to " + upper, upper - nanos <= nanos / 16);
+    }
+  }
+
+  @Test
+  public void testPercentilesAgainstSorted() {
+    final Random random = new Random(2);
+    final Histogram histogram = new Histogram();
+    final long[] values = new long[10_000];
+    for (int i = 0; i < values.length; i++) {
+      // Mostly a few ms, with a tail.
+      values[i] = (long) (Math.abs(random.nextGaussian()) * 2_000_000 * (random.nextInt(50) == 0 ? 20 : 1));
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    for (double percentile : new double[]{0, 1, 50, 90, 99, 99.9, 100}) {
+      final long exact = values[(int) Math.max(1, Math.ceil(values.length * percentile / 100)) - 1];
+      final long reported = histogram.getPercentileNanos(percentile);
+      assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+      assertTrue(percentile + ": " + reported + " > " + exact, reported - exact <= exact / 16);
+    }
+    assertEquals(values[values.length - 1], histogram.getPercentileNanos(100));
+    assertEquals(values[values.length - 1], histogram.getMaxNanos());
+    assertEquals(values.length, histogram.getCount());
+    assertEquals(Arrays.stream(values).sum() / (double) values.length, histogram.getMeanNanos(), 1e-6);
+  }
+
+  @Test
+  public void testEmptyAndReset() {
+    final Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getPercentileNanos(50));
+    histogram.record(1000);
+    assertEquals(1000, histogram.getPercentileNanos(50));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileNanos(99));
+    assertEquals(0, histogram.getMeanNanos(), 0);
+  }
+
+  @Test
+  public void testSlidingWindowExpires() {
+    final long ms = 1_000_000;
+    final SlidingHistogram histogram = new SlidingHistogram(1000, 10, 0);
+    histogram.record(50 * ms, 0);
+    histogram.record(1 * ms, 500 * ms);
+    assertEquals(2, histogram.getCount());
+    assertEquals(50 * ms, histogram.getPercentileNanos(100));
+
+    // The first slot is gone after a whole window.
+    histogram.advance(950 * ms);
+    assertEquals(2, histogram.getCount());
+    histogram.advance(1000 * ms);
+    assertEquals(1, histogram.getCount());
+    assertEquals(ms, histogram.getMaxNanos());
+    assertTrue(histogram.getPercentileNanos(100) <= ms);
+
+    // Idle for longer than the window.
+    histogram.advance(100_000 * ms);
+    assertEquals(0, histogram.getCount());
+    histogram.record(2 * ms, 100_001 * ms);
+    assertEquals(1, histogram.getCount());
+    assertEquals(2 * ms, histogram.getMaxNanos());
+  }
+}
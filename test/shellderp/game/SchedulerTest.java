@@ -0,0 +1,155 @@
+package shellderp.game;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SchedulerTest {
+
+  @Test
+  public void testRunsOnDeadlineAcrossLevels() {
+    final Scheduler scheduler = new Scheduler(1);
+    final Random random = new Random(1);
+    final long[] delays = new long[2000];
+    final long[] firedAt = new long[delays.length];
+    for (int i = 0; i < delays.length; i++) {
+      // Every level of the wheel, and the edges between them.
+      switch (i % 4) {
+        case 0:
+          delays[i] = 1 + random.nextInt(64);
+          break;
+        case 1:
+          delays[i] = (1L << (6 * (1 + random.nextInt(3)))) + random.nextInt(3) - 1;
+          break;
+        default:
+          delays[i] = 1 + random.nextInt(1 << 20);
+      }
+      final int task = i;
+      scheduler.schedule(delays[i], () -> firedAt[task] = scheduler.getTick());
+    }
+    // Further away than the wheels reach, so placed again on the way.
+    final long[] far = new long[1];
+    scheduler.schedule((1L << 24) + 100, () -> far[0] = scheduler.getTick());
+    assertEquals(delays.length + 1, scheduler.size());
+
+    while (scheduler.getTick() < 1 << 20) {
+      scheduler.step(1 + random.nextInt(700));
+    }
+    for (int i = 0; i < delays.length; i++) {
+      assertEquals("delay " + delays[i], delays[i], firedAt[i]);
+    }
+    assertEquals(1, scheduler.size());
+    scheduler.step((1L << 24) + 100 - scheduler.getTick());
+    assertEquals((1L << 24) + 100, far[0]);
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testRoundsUpToTicks() {
+    final Scheduler scheduler = new Scheduler(10);
+    final List<Long> fired = new ArrayList<>();
+    scheduler.schedule(25, () -> fired.add(scheduler.getTick()));
+    scheduler.schedule(0, () -> fired.add(scheduler.getTick()));
+    scheduler.step(9);
+    assertTrue(fired.isEmpty());
+    scheduler.step(1);
+    assertEquals(Long.valueOf(1), fired.get(0));
+    // Due at 25 ms, so on the tick ending at 30 ms.
+    scheduler.step(10);
+    assertEquals(1, fired.size());
+    scheduler.step(5);
+    assertEquals(1, fired.size());
+    scheduler.step(5);
+    assertEquals(Long.valueOf(3), fired.get(1));
+  }
+
+  @Test
+  public void testCancelWhileFiring() {
+    final Scheduler scheduler = new Scheduler(1);
+    final List<String> fired = new ArrayList<>();
+    final Scheduler.Task[] tasks = new Scheduler.Task[3];
+    // Tasks of the same tick run in some order, so each cancels both others.
+    for (int i = 0; i < 3; i++) {
+      final int task = i;
+      tasks[i] = scheduler.schedule(10, () -> {
+        fired.add("task" + task);
+        for (Scheduler.Task other : tasks) {
+          other.cancel();
+        }
+      });
+    }
+    final Scheduler.Task later = scheduler.schedule(20, () -> fired.add("later"));
+    assertEquals(4, scheduler.size());
+
+    scheduler.step(10);
+    assertEquals(1, fired.size());
+    assertEquals(1, scheduler.size());
+    for (Scheduler.Task task : tasks) {
+      assertTrue(task.isCancelled());
+      assertFalse(task.isScheduled());
+    }
+
+    later.cancel();
+    later.cancel();
+    assertEquals(0, scheduler.size());
+    scheduler.step(100);
+    assertEquals(1, fired.size());
+  }
+
+  @Test
+  public void testRepeatDoesNotDrift() {
+    final Scheduler scheduler = new Scheduler(1);
+    final List<Long> fired = new ArrayList<>();
+    final Scheduler.Task task = scheduler.scheduleRepeating(5, 10, () -> fired.add(scheduler.getTick()));
+    // Uneven steps, as frames are.
+    final Random random = new Random(2);
+    while (scheduler.getTick() < 1000) {
+      scheduler.step(random.nextInt(30));
+    }
+    for (int i = 0; i < fired.size(); i++) {
+      assertEquals(Long.valueOf(5 + 10 * i), fired.get(i));
+    }
+    assertTrue(fired.size() >= 99);
+    assertTrue(task.isScheduled());
+    assertEquals(1, scheduler.size());
+
+    task.cancel();
+    final int count = fired.size();
+    scheduler.step(100);
+    assertEquals(count, fired.size());
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testRepeatingTaskCancelsItself() {
+    final Scheduler scheduler = new Scheduler(1);
+    final int[] runs = new int[1];
+    final Scheduler.Task[] task = new Scheduler.Task[1];
+    task[0] = scheduler.scheduleRepeating(1, 1, () -> {
+      if (++runs[0] == 3) {
+        task[0].cancel();
+      }
+    });
+    scheduler.step(10);
+    assertEquals(3, runs[0]);
+    assertEquals(0, scheduler.size());
+  }
+
+  @Test
+  public void testThrowingTaskDoesNotStopOthers() {
+    final Scheduler scheduler = new Scheduler(1);
+    final int[] runs = new int[1];
+    scheduler.scheduleRepeating(1, 1, () -> {
+      throw new IllegalStateException("expected by the test");
+    });
+    scheduler.schedule(1, () -> runs[0]++);
+    scheduler.schedule(2, () -> runs[0]++);
+    scheduler.step(2);
+    assertEquals(2, runs[0]);
+    assertEquals(1, scheduler.size());
+  }
+}
@@ -0,0 +1,33 @@
+package shellderp.game;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ServerLoopTest {
+
+  @Test(timeout = 5000)
+  public void testStopBeforeRun() throws Exception {
+    final ServerLoop loop = new ServerLoop(100);
+    final AtomicInteger ticks = new AtomicInteger();
+    loop.addStep(timeDeltaMs -> ticks.incrementAndGet(), "count");
+    loop.stop();
+    loop.run();
+    assertEquals(0, ticks.get());
+  }
+
+  @Test(timeout = 5000)
+  public void testStopFromStep() throws Exception {
+    final ServerLoop loop = new ServerLoop(1000);
+    final AtomicInteger ticks = new AtomicInteger();
+    loop.addStep(timeDeltaMs -> {
+      if (ticks.incrementAndGet() == 3) {
+        loop.stop();
+      }
+    }, "count");
+    loop.run();
+    assertEquals(3, ticks.get());
+  }
+}
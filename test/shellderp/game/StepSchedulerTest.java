@@ -0,0 +1,170 @@
+package shellderp.game;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StepSchedulerTest {
+
+  private final ForkJoinPool pool = new ForkJoinPool(4);
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static GameStep record(List<String> log, String name) {
+    return timeDeltaMs -> log.add(name);
+  }
+
+  @Test
+  public void testSerialOrder() {
+    final StepScheduler scheduler = new StepScheduler(pool, null);
+    scheduler.setMode(StepScheduler.Mode.SERIAL);
+    final List<String> log = new ArrayList<>();
+    final Object world = new Object();
+    final StepScheduler.Job write = scheduler.add(record(log, "write"), "write").writes(world);
+    scheduler.add(record(log, "read"), "read").reads(world);
+    scheduler.add(record(log, "free"), "free");
+    scheduler.add(record(log, "first"), "first").before(write);
+
+    scheduler.step(10);
+    assertEquals(Arrays.asList("free", "first", "write", "read"), log);
+    // The same every frame.
+    log.clear();
+    scheduler.step(10);
+    assertEquals(Arrays.asList("free", "first", "write", "read"), log);
+  }
+
+  @Test(timeout = 10_000)
+  public void testConflictingJobsNeverOverlap() {
+    final StepScheduler scheduler = new StepScheduler(pool, null);
+    final Object world = new Object();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final int[] value = new int[1];
+    final List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+    for (int i = 0; i < 4; i++) {
+      final int job = i;
+      final GameStep step = timeDeltaMs -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        pause();
+        if (job % 2 == 0) {
+          value[0]++;
+        } else {
+          seen.add(value[0]);
+        }
+        running.decrementAndGet();
+      };
+      if (job % 2 == 0) {
+        scheduler.add(step, "writer" + job).writes(world);
+      } else {
+        scheduler.add(step, "reader" + job).reads(world);
+      }
+    }
+
+    for (int frame = 0; frame < 20; frame++) {
+      scheduler.step(10);
+    }
+    assertEquals(1, maxRunning.get());
+    // Each reader sees the writes added before it, and none after.
+    for (int frame = 0; frame < 20; frame++) {
+      assertEquals(Integer.valueOf(2 * frame + 1), seen.get(2 * frame));
+      assertEquals(Integer.valueOf(2 * frame + 2), seen.get(2 * frame + 1));
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testReadersRunTogether() {
+    final StepScheduler scheduler = new StepScheduler(pool, null);
+    final Object world = new Object();
+    // Both must be inside at once to get through.
+    final CyclicBarrier barrier = new CyclicBarrier(2);
+    final GameStep reader = timeDeltaMs -> {
+      try {
+        barrier.await(5, TimeUnit.SECONDS);
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    };
+    scheduler.add(reader, "a").reads(world);
+    scheduler.add(reader, "b").reads(world);
+    for (int frame = 0; frame < 5; frame++) {
+      scheduler.step(10);
+    }
+  }
+
+  @Test
+  public void testCycleRejected() {
+    final StepScheduler scheduler = new StepScheduler(pool, null);
+    final Object world = new Object();
+    final StepScheduler.Job write = scheduler.add(timeDeltaMs -> {}, "write").writes(world);
+    final StepScheduler.Job read = scheduler.add(timeDeltaMs -> {}, "read").reads(world);
+    scheduler.step(10);
+
+    // The read already runs after the write, because of the world.
+    write.after(read);
+    try {
+      scheduler.step(10);
+      fail("ran a cycle");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("cycle"));
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testFailureSkipsDependents() {
+    final StepScheduler scheduler = new StepScheduler(pool, null);
+    final Object world = new Object();
+    final AtomicInteger ran = new AtomicInteger();
+    final IllegalArgumentException thrown = new IllegalArgumentException("expected by the test");
+    scheduler.add(timeDeltaMs -> {
+      throw thrown;
+    }, "fail").writes(world);
+    scheduler.add(timeDeltaMs -> ran.incrementAndGet(), "dependent").reads(world);
+    try {
+      scheduler.step(10);
+      fail("didn't throw");
+    } catch (IllegalArgumentException e) {
+      assertSame(thrown, e);
+    }
+    assertEquals(0, ran.get());
+  }
+
+  @Test(timeout = 10_000)
+  public void testStepOnPoolWorker() throws Exception {
+    // One worker, which the outer job blocks in the inner barrier; the inner jobs need a spare thread.
+    final ForkJoinPool single = new ForkJoinPool(1);
+    final StepScheduler outer = new StepScheduler(single, null);
+    final StepScheduler inner = new StepScheduler(single, null);
+    final AtomicInteger ran = new AtomicInteger();
+    for (int i = 0; i < 4; i++) {
+      inner.add(timeDeltaMs -> ran.incrementAndGet(), "inner" + i);
+    }
+    outer.add(inner::step, "inner");
+    outer.add(timeDeltaMs -> ran.incrementAndGet(), "outer");
+    for (int frame = 1; frame <= 10; frame++) {
+      outer.step(10);
+      assertEquals(5 * frame, ran.get());
+    }
+    single.shutdown();
+  }
+}
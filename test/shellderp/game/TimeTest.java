@@ -0,0 +1,58 @@
+package shellderp.game;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class TimeTest {
+
+  private static final int ITERATIONS = 100_000;
+
+  private long sink;
+
+  private void checkTimers(Timer timer, FrameClock clock) {
+    for (int i = 0; i < ITERATIONS; i++) {
+      final long now = Time.nowNanos();
+      if (timer.hasPassed(1) || timer.hasPassed(1, clock.frameNanos())) {
+        timer.restart();
+      }
+      timer.restart(now);
+      sink += Time.millisBetween(now, Time.nowNanos());
+    }
+  }
+
+  @Test
+  public void testPrimitiveApiDoesNotAllocate() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    final long thread = Thread.currentThread().getId();
+
+    final Timer timer = new Timer();
+    final FrameClock clock = new FrameClock();
+    clock.startFrame(Time.nowNanos());
+    for (int i = 0; i < 20; i++) {
+      checkTimers(timer, clock);
+    }
+
+    // What reading the counter allocates itself, on some JDKs.
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      final long start = threads.getThreadAllocatedBytes(thread);
+      overhead = Math.min(overhead, threads.getThreadAllocatedBytes(thread) - start);
+    }
+
+    long allocated = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      final long start = threads.getThreadAllocatedBytes(thread);
+      checkTimers(timer, clock);
+      allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - start - overhead);
+    }
+    assertEquals(0, allocated);
+  }
+}
@@ -0,0 +1,118 @@
+package shellderp.game.ecs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WorldTest {
+
+  private final World world = new World();
+  private final ComponentType position = world.component("position");
+  private final FloatField x = position.addFloat("x");
+  private final ComponentType velocity = world.component("velocity");
+  private final IntField speed = velocity.addInt("speed");
+
+  @Test
+  public void testDestroyMovesLastRow() {
+    final int[] entities = new int[4];
+    for (int i = 0; i < entities.length; i++) {
+      entities[i] = world.create(position);
+      world.setFloat(entities[i], x, i);
+    }
+    world.destroy(entities[1]);
+    // The last row fills the hole.
+    assertEquals(1, world.rowOf(entities[3]));
+    assertEquals(3, world.archetypeOf(entities[0]).size());
+    for (int i : new int[]{0, 2, 3}) {
+      assertEquals(i, world.getFloat(entities[i], x), 0);
+    }
+
+    // Moving to another archetype leaves a hole too, and keeps the fields.
+    world.add(entities[0], velocity);
+    world.setInt(entities[0], speed, 7);
+    assertEquals(0, world.rowOf(entities[2]));
+    assertEquals(3, world.getFloat(entities[3], x), 0);
+    assertEquals(2, world.getFloat(entities[2], x), 0);
+    assertEquals(0, world.getFloat(entities[0], x), 0);
+    assertEquals(7, world.getInt(entities[0], speed));
+    final Archetype moved = world.archetypeOf(entities[0]);
+    assertEquals(entities[0], moved.entity(world.rowOf(entities[0])));
+
+    world.remove(entities[0], position);
+    assertFalse(world.has(entities[0], position));
+    assertEquals(7, world.getInt(entities[0], speed));
+    assertEquals(3, world.size());
+  }
+
+  @Test
+  public void testFlushAppliesInOrder() {
+    final int a = world.create(position);
+    final int b = world.create(position);
+    final Query moving = world.query(velocity);
+
+    world.removeLater(a, position);
+    world.addLater(a, velocity);
+    world.addLater(a, position);
+    world.destroyLater(b);
+    // Skipped, since b is gone by then.
+    world.addLater(b, velocity);
+    final int c = world.createLater(position, velocity);
+    assertTrue(world.isAlive(c));
+    assertEquals(0, moving.count());
+    assertTrue(world.has(a, position));
+
+    world.flush();
+    assertTrue(world.has(a, position));
+    assertTrue(world.has(a, velocity));
+    assertFalse(world.isAlive(b));
+    assertTrue(world.has(c, position) && world.has(c, velocity));
+    assertEquals(2, moving.count());
+    assertEquals(0, world.getFloat(c, x), 0);
+
+    // Nothing is applied twice.
+    world.flush();
+    assertEquals(2, world.size());
+  }
+
+  @Test
+  public void testStaleId() {
+    final int entity = world.create(position);
+    world.destroyLater(entity);
+    world.destroyLater(entity);
+    world.flush();
+    assertFalse(world.isAlive(entity));
+
+    final int reused = world.create(position);
+    assertNotEquals(entity, reused);
+    assertFalse(world.isAlive(entity));
+    try {
+      world.getFloat(entity, x);
+      fail("read a stale id");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    try {
+      world.destroyLater(entity);
+      fail("deferred on a stale id");
+    } catch (IllegalArgumentException e) {
+      // Expected.
+    }
+    assertFalse(world.isAlive(-1));
+    assertTrue(world.isAlive(reused));
+  }
+
+  @Test
+  public void testStaleIdAfterManyReuses() {
+    final int first = world.create();
+    int entity = first;
+    for (int i = 0; i < 2047; i++) {
+      world.destroy(entity);
+      entity = world.create();
+      assertTrue(entity >= 0);
+      assertFalse(world.isAlive(first));
+    }
+    // The generation wrapped around.
+    world.destroy(entity);
+    assertEquals(first, world.create());
+  }
+}
@@ -0,0 +1,248 @@
+package shellderp.game.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BulkTransferTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 2300;
+
+  private final AtomicInteger dataSent = new AtomicInteger();
+  private final AtomicInteger lowestChunkSent = new AtomicInteger();
+
+  /**
+   * Every dropEvery-th BULK_DATA packet is dropped, 0 drops none.
+   */
+  private volatile int dropEvery;
+
+  private final List<Path> files = new ArrayList<>();
+  private final List<FileChannel> channels = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    dataSent.set(0);
+    lowestChunkSent.set(Integer.MAX_VALUE);
+    dropEvery = 0;
+    SocketProvider.setDefault(new TestSocketProvider(packet -> {
+      if (packet.isControl() && packet.getPayload().get(0) == ControlType.BULK_DATA.toByte()) {
+        final int count = dataSent.incrementAndGet();
+        lowestChunkSent.accumulateAndGet(packet.getPayload().getInt(1 + 8), Math::min);
+        return dropEvery == 0 || count % dropEvery != 0;
+      }
+      return true;
+    }));
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (FileChannel channel : channels) {
+      channel.close();
+    }
+    for (Path file : files) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private Path tempFile(byte[] contents) throws IOException {
+    final Path file = Files.createTempFile("bulk", ".bin");
+    files.add(file);
+    Files.write(file, contents);
+    return file;
+  }
+
+  private FileChannel open(Path file, StandardOpenOption... options) throws IOException {
+    final FileChannel channel = FileChannel.open(file, options);
+    channels.add(channel);
+    return channel;
+  }
+
+  private static byte[] randomBytes(int length) {
+    final byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Receives into destination, and counts the callbacks.
+   */
+  private static class Receiver implements BulkTransferHandler {
+    final FileChannel destination;
+    final AtomicInteger received = new AtomicInteger();
+    final AtomicInteger sent = new AtomicInteger();
+    final AtomicInteger cancelled = new AtomicInteger();
+
+    Receiver(FileChannel destination) {
+      this.destination = destination;
+    }
+
+    @Override
+    public FileChannel onOffer(Connection connection, long transferId, long length) {
+      return destination;
+    }
+
+    @Override
+    public void onReceived(Connection connection, long transferId) {
+      received.getAndIncrement();
+    }
+
+    @Override
+    public void onSent(Connection connection, long transferId) {
+      sent.getAndIncrement();
+    }
+
+    @Override
+    public void onCancelled(Connection connection, long transferId) {
+      cancelled.getAndIncrement();
+    }
+  }
+
+  private static void stepUntil(Server server, Connection conn, AtomicInteger counter)
+      throws InterruptedException {
+    for (int i = 0; i < 500 && counter.get() == 0; i++) {
+      server.step(10);
+      conn.step(10);
+      Thread.sleep(10);
+    }
+  }
+
+  private void transfer(byte[] contents, Path destination) throws Exception {
+    final Receiver serverReceiver = new Receiver(open(destination, StandardOpenOption.WRITE));
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onOpen(Connection connection) {
+        connection.getBulkTransfer().setHandler(serverReceiver);
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    final Receiver clientReceiver = new Receiver(null);
+    conn.getBulkTransfer().setHandler(clientReceiver);
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+    server.step(0);
+
+    BulkTransfer.Outgoing outgoing = conn.getBulkTransfer().send(7, open(tempFile(contents)));
+    stepUntil(server, conn, serverReceiver.received);
+    stepUntil(server, conn, clientReceiver.sent);
+
+    assertEquals(1, serverReceiver.received.get());
+    assertEquals(1, clientReceiver.sent.get());
+    assertTrue(outgoing.isDone());
+    assertEquals(contents.length, outgoing.getBytesAcked());
+    assertArrayEquals(contents, Files.readAllBytes(destination));
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testTransfer() throws Exception {
+    transfer(randomBytes(1 << 20), tempFile(new byte[0]));
+    assertEquals(0, lowestChunkSent.get());
+  }
+
+  @Test
+  public void testTransferOverUdp() throws Exception {
+    // Chunks go through Socket's own send buffer rather than the stub's.
+    SocketProvider.setDefault(new SocketProvider() {
+      @Override
+      public Socket createSocket(java.net.SocketAddress bindAddress) throws IOException {
+        return new Socket(bindAddress);
+      }
+    });
+    transfer(randomBytes(200_000), tempFile(new byte[0]));
+  }
+
+  @Test
+  public void testTransferWithLoss() throws Exception {
+    dropEvery = 7;
+    final byte[] contents = randomBytes(500_000);
+    transfer(contents, tempFile(new byte[0]));
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    final byte[] contents = randomBytes(300_000);
+    final int chunkSize = Packet.MAX_PACKET_SIZE - Packet.MAX_HEADER_SIZE - BulkTransfer.DATA_HEADER_SIZE;
+
+    // An earlier attempt wrote 10 chunks and part of the 11th.
+    final byte[] partial = new byte[10 * chunkSize + 100];
+    System.arraycopy(contents, 0, partial, 0, partial.length);
+    transfer(contents, tempFile(partial));
+
+    assertEquals(10, lowestChunkSent.get());
+  }
+
+  @Test
+  public void testRefused() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    final Receiver clientReceiver = new Receiver(null);
+    conn.getBulkTransfer().setHandler(clientReceiver);
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    BulkTransfer.Outgoing outgoing = conn.getBulkTransfer().send(7, open(tempFile(randomBytes(1000))));
+    stepUntil(server, conn, clientReceiver.cancelled);
+
+    assertEquals(1, clientReceiver.cancelled.get());
+    assertTrue(outgoing.isCancelled());
+    assertEquals(0, dataSent.get());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testWaitsForScheduledMessages() throws Exception {
+    final Receiver serverReceiver = new Receiver(open(tempFile(new byte[0]), StandardOpenOption.WRITE));
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onOpen(Connection connection) {
+        connection.getBulkTransfer().setHandler(serverReceiver);
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+    server.step(0);
+
+    conn.getBulkTransfer().send(7, open(tempFile(randomBytes(100_000))));
+    conn.step(0); // Sends the offer.
+    Thread.sleep(50);
+    server.step(0); // Accepts it.
+    Thread.sleep(50);
+
+    // The budget only has room for some of these, so bulk data must wait.
+    final SendScheduler scheduler = conn.getSendScheduler();
+    scheduler.setBytesPerSecond(10_000);
+    for (int i = 0; i < 10; i++) {
+      scheduler.sendUnreliable(ByteBuffer.allocate(2000), 0);
+    }
+    conn.step(0);
+    assertTrue(scheduler.getQueuedMessages() > 0);
+    assertEquals(0, dataSent.get());
+
+    scheduler.setBytesPerSecond(0);
+    conn.step(0);
+    assertEquals(0, scheduler.getQueuedMessages());
+    assertTrue(dataSent.get() > 0);
+
+    conn.close();
+    server.stop();
+  }
+}
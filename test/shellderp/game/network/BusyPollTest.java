@@ -0,0 +1,83 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BusyPollTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 2400;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  /**
+   * Open a connection while polling the server, which has no thread to receive the handshake.
+   */
+  private Connection open(Server server) throws Exception {
+    final CompletableFuture<Connection> conn = CompletableFuture.supplyAsync(() -> {
+      try {
+        return Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    while (!conn.isDone()) {
+      server.poll();
+      Thread.onSpinWait();
+    }
+    return conn.get();
+  }
+
+  @Test
+  public void testConnectAndReceive() throws Exception {
+    final AtomicInteger received = new AtomicInteger();
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        received.getAndIncrement();
+      }
+    }, address -> true, true);
+    assertTrue(server.isBusyPolling());
+
+    Connection conn = open(server);
+    for (int i = 0; i < 100 && server.getConnections().isEmpty(); i++) {
+      server.poll();
+      Thread.sleep(1);
+    }
+    assertEquals(1, server.getConnections().size());
+
+    conn.getReliableStream().sendAsync(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+    conn.step(0);
+    for (int i = 0; i < 100 && received.get() == 0; i++) {
+      // step() polls before stepping the connections.
+      server.step(1);
+      Thread.sleep(1);
+    }
+    assertEquals(1, received.get());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testPollRequiresBusyPoll() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    try {
+      server.poll();
+    } finally {
+      server.stop();
+    }
+  }
+}
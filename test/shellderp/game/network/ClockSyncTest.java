@@ -0,0 +1,111 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1300;
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  @Test
+  public void testSymmetricSamples() {
+    ClockSync clockSync = new ClockSync(false);
+    final long offset = 123_456 * MS;
+
+    long local = System.nanoTime() - 2000 * MS;
+    for (int i = 0; i < ClockSync.SAMPLES_TO_SYNCHRONIZE; i++) {
+      // 20ms round trip, with the server replying at the midpoint.
+      clockSync.sampleReceived(local, local + 10 * MS + offset, local + 20 * MS);
+      local += 100 * MS;
+    }
+    assertTrue(clockSync.isSynchronized());
+
+    final long error = clockSync.serverTimeNanos() - (System.nanoTime() + offset);
+    assertTrue("error: " + error, Math.abs(error) < 5 * MS);
+  }
+
+  @Test
+  public void testOutliersRejected() {
+    ClockSync clockSync = new ClockSync(false);
+    final long offset = -50_000 * MS;
+
+    long local = System.nanoTime() - 2000 * MS;
+    for (int i = 0; i < 10; i++) {
+      if (i % 3 == 1) {
+        // The request was stuck in a queue for 200ms on the way to the server, which skews the offset
+        // sample by 100ms if it is not rejected.
+        clockSync.sampleReceived(local, local + 210 * MS + offset, local + 220 * MS);
+      } else {
+        clockSync.sampleReceived(local, local + 10 * MS + offset, local + 20 * MS);
+      }
+      local += 100 * MS;
+    }
+
+    final long error = clockSync.serverTimeNanos() - (System.nanoTime() + offset);
+    assertTrue("error: " + error, Math.abs(error) < 5 * MS);
+  }
+
+  @Test
+  public void testMonotonic() {
+    ClockSync clockSync = new ClockSync(false);
+
+    long local = System.nanoTime() - 2000 * MS;
+    for (int i = 0; i < ClockSync.SAMPLES_TO_SYNCHRONIZE; i++) {
+      clockSync.sampleReceived(local, local + 10 * MS, local + 20 * MS);
+      local += 100 * MS;
+    }
+    final long before = clockSync.serverTimeNanos();
+
+    // A correction that moves the server clock back by a second must not make time run backwards.
+    for (int i = 0; i < 20; i++) {
+      clockSync.sampleReceived(local, local + 10 * MS - 1000 * MS, local + 20 * MS);
+      local += 100 * MS;
+    }
+    assertTrue(clockSync.serverTimeNanos() >= before);
+  }
+
+  @Test
+  public void testAuthorityUsesLocalClock() {
+    ClockSync clockSync = new ClockSync(true);
+    assertTrue(clockSync.isSynchronized());
+    assertFalse(clockSync.needToSendRequest());
+
+    final long before = System.nanoTime();
+    final long serverTime = clockSync.serverTimeNanos();
+    assertTrue(serverTime >= before && serverTime <= System.nanoTime());
+  }
+
+  @Test
+  public void testConnectionSynchronizes() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    for (int i = 0; i < 50 && !conn.isClockSynchronized(); i++) {
+      server.step(0);
+      conn.step(0);
+      Thread.sleep(ClockSync.INITIAL_SYNC_INTERVAL_MS / 2);
+    }
+    assertTrue(conn.isClockSynchronized());
+
+    // Both ends are in the same process, so the server clock is our own clock.
+    final long error = conn.serverTimeNanos() - System.nanoTime();
+    assertTrue("error: " + error, Math.abs(error) < 20 * MS);
+
+    server.stop();
+  }
+}
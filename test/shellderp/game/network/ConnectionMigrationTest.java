@@ -0,0 +1,162 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionMigrationTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1900;
+
+  /**
+   * The last socket created, so a test can move the client to a new address.
+   */
+  private SocketStub lastSocket;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new SocketProvider() {
+      @Override
+      public Socket createSocket(SocketAddress bindAddress) throws IOException {
+        lastSocket = new SocketStub(bindAddress);
+        return lastSocket;
+      }
+    });
+    serverAddress = new InetSocketAddress("localhost", newPort);
+    newPort += 10;
+  }
+
+  private static ByteBuffer message(int value) {
+    final ByteBuffer payload = ByteBuffer.allocate(4);
+    payload.putInt(value);
+    payload.flip();
+    return payload;
+  }
+
+  private static void stepUntil(Server server, Connection conn, AtomicInteger counter, int expected)
+      throws InterruptedException {
+    for (int i = 0; i < 100 && counter.get() < expected; i++) {
+      conn.step(10);
+      server.step(10);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testConnectionIdAssigned() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+
+    Connection withId = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter(), true);
+    Connection withoutId = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACKs.
+
+    assertNotEquals(Connection.NO_CONNECTION_ID, withId.getConnectionId());
+    assertEquals(Connection.NO_CONNECTION_ID, withoutId.getConnectionId());
+
+    // The server side of each connection has the same id as the client.
+    for (Connection connection : server.getConnections()) {
+      final boolean hasId = connection.getConnectionId() != Connection.NO_CONNECTION_ID;
+      assertEquals((hasId ? withId : withoutId).getConnectionId(), connection.getConnectionId());
+    }
+    assertEquals(2, server.getConnections().size());
+
+    withId.close();
+    withoutId.close();
+    server.stop();
+  }
+
+  @Test
+  public void testMigrate() throws Exception {
+    AtomicInteger received = new AtomicInteger();
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(received.getAndIncrement(), payload.getInt());
+      }
+    });
+
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter(), true);
+    final SocketStub clientSocket = lastSocket;
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    conn.getReliableStream().sendAsync(message(0));
+    stepUntil(server, conn, received, 1);
+    assertEquals(1, received.get());
+
+    final InetSocketAddress newAddress = new InetSocketAddress("localhost", newPort - 1);
+    clientSocket.rebind(newAddress);
+
+    conn.getReliableStream().sendAsync(message(1));
+    conn.getReliableStream().sendAsync(message(2));
+    stepUntil(server, conn, received, 3);
+    assertEquals(3, received.get());
+
+    assertEquals(1, server.getConnections().size());
+    assertEquals(newAddress, server.getConnections().get(0).getEndPoint());
+    assertTrue(conn.isOpen());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testSpoofedAddressNotMigrated() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter(), true);
+    final SocketAddress clientAddress = lastSocket.getLocalAddress();
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    // Someone else sends packets with the connection id, but never sees the path challenge.
+    final SocketStub attacker = new SocketStub(new InetSocketAddress("localhost", newPort - 2));
+    for (int i = 0; i < 3; i++) {
+      attacker.sendDirect(new Packet.Builder().sequence(i).reliable().payload(message(i))
+          .connectionId(conn.getConnectionId()).build(), serverAddress);
+      Thread.sleep(Connection.PATH_CHALLENGE_RETRY_MS / 2);
+      server.step(10);
+    }
+
+    assertEquals(1, server.getConnections().size());
+    assertEquals(clientAddress, server.getConnections().get(0).getEndPoint());
+
+    attacker.close();
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testWithoutConnectionIdNotMigrated() throws Exception {
+    AtomicInteger received = new AtomicInteger();
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        received.getAndIncrement();
+      }
+    });
+
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    final SocketStub clientSocket = lastSocket;
+    final SocketAddress clientAddress = clientSocket.getLocalAddress();
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    clientSocket.rebind(new InetSocketAddress("localhost", newPort - 1));
+    conn.getReliableStream().sendAsync(message(0));
+    stepUntil(server, conn, received, 1);
+
+    // The server can't tell the packets are from the same client.
+    assertEquals(0, received.get());
+    assertEquals(clientAddress, server.getConnections().get(0).getEndPoint());
+
+    conn.close();
+    server.stop();
+  }
+}
@@ -0,0 +1,198 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ForwardErrorCorrectionTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1400;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  /**
+   * Send a group of packets of different lengths, some with ACKs, and return the parity.
+   */
+  private ByteBuffer sendGroup(ForwardErrorCorrection sender, List<Packet> packets) throws Exception {
+    ByteBuffer parity = null;
+    for (int i = 0; i < ForwardErrorCorrection.DEFAULT_GROUP_SIZE; i++) {
+      ByteBuffer payload = ByteBuffer.allocate(1 + i * 3);
+      payload.put(0, (byte) i);
+      Packet packet = new Packet.Builder()
+          .reliable()
+          .payload(payload)
+          .sequence((65530 + i) % Packet.MAX_SEQUENCE)
+          .build();
+      if (i % 2 == 0) {
+        packet = packet.withAck(i);
+      }
+      packets.add(packet);
+
+      assertNull(parity);
+      parity = sender.packetSent(packet);
+    }
+    assertNotNull(parity);
+    return parity;
+  }
+
+  @Test
+  public void testRebuildSingleLoss() throws Exception {
+    ForwardErrorCorrection sender =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    sender.setEnabled(true);
+    ForwardErrorCorrection receiver =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+
+    List<Packet> packets = new ArrayList<>();
+    ByteBuffer parity = sendGroup(sender, packets);
+
+    final int lost = 5;
+    for (int i = 0; i < packets.size(); i++) {
+      if (i != lost) {
+        receiver.packetReceived(packets.get(i));
+      }
+    }
+
+    assertEquals(ForwardErrorCorrection.RELIABLE_STREAM_ID, parity.get());
+    Packet rebuilt = receiver.parityReceived(parity);
+    assertNotNull(rebuilt);
+    assertEquals(packets.get(lost).getSequence(), rebuilt.getSequence());
+    assertEquals(packets.get(lost).getPayload(), rebuilt.getPayload());
+    assertTrue(rebuilt.isReliable());
+    assertEquals(1, receiver.getPacketsRecovered());
+    assertTrue(sender.getOverhead() > 0);
+  }
+
+  @Test
+  public void testTwoLossesNotRebuilt() throws Exception {
+    ForwardErrorCorrection sender =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    sender.setEnabled(true);
+    ForwardErrorCorrection receiver =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+
+    List<Packet> packets = new ArrayList<>();
+    ByteBuffer parity = sendGroup(sender, packets);
+
+    for (int i = 2; i < packets.size(); i++) {
+      receiver.packetReceived(packets.get(i));
+    }
+
+    parity.get();
+    assertNull(receiver.parityReceived(parity));
+    assertEquals(0, receiver.getPacketsRecovered());
+    assertTrue(receiver.getMeasuredLossRate() > 0);
+  }
+
+  /**
+   * Start a group of long packets without finishing it, then check a full group of short packets sent
+   * after it can still rebuild a loss.
+   */
+  private void checkInterruptedGroup(ForwardErrorCorrection sender, Runnable interrupt) throws Exception {
+    for (int i = 0; i < 3; i++) {
+      ByteBuffer payload = ByteBuffer.allocate(200);
+      payload.put(0, (byte) 0x5A).put(199, (byte) 0x5A);
+      assertNull(sender.packetSent(new Packet.Builder().reliable().payload(payload).sequence(i).build()));
+    }
+    interrupt.run();
+
+    ForwardErrorCorrection receiver =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    List<Packet> packets = new ArrayList<>();
+    ByteBuffer parity = sendGroup(sender, packets);
+
+    final int lost = 3;
+    for (int i = 0; i < packets.size(); i++) {
+      if (i != lost) {
+        receiver.packetReceived(packets.get(i));
+      }
+    }
+
+    parity.get();
+    Packet rebuilt = receiver.parityReceived(parity);
+    assertNotNull(rebuilt);
+    assertEquals(packets.get(lost).getPayload(), rebuilt.getPayload());
+  }
+
+  @Test
+  public void testToggledMidGroup() throws Exception {
+    ForwardErrorCorrection sender =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    sender.setEnabled(true);
+    checkInterruptedGroup(sender, () -> {
+      sender.setEnabled(false);
+      sender.setEnabled(true);
+    });
+  }
+
+  @Test
+  public void testShortGroupAfterSkippedSequences() throws Exception {
+    ForwardErrorCorrection sender =
+        new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    sender.setEnabled(true);
+    // sendGroup starts at a sequence that doesn't follow the interrupted group, which restarts the group.
+    checkInterruptedGroup(sender, () -> {
+    });
+  }
+
+  @Test
+  public void testGroupSizeAdapts() {
+    ForwardErrorCorrection fec = new ForwardErrorCorrection(ForwardErrorCorrection.RELIABLE_STREAM_ID);
+    fec.lossReported(0);
+    assertEquals(ForwardErrorCorrection.MAX_GROUP_SIZE, fec.getGroupSize());
+    fec.lossReported(0.01);
+    assertEquals(10, fec.getGroupSize());
+    fec.lossReported(0.5);
+    assertEquals(ForwardErrorCorrection.MIN_GROUP_SIZE, fec.getGroupSize());
+  }
+
+  @Test
+  public void testReliableRecoveredWithoutRetransmit() throws Exception {
+    final AtomicInteger numReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(numReads.getAndIncrement(), payload.getInt());
+      }
+    });
+
+    // Index 0 and 1 are the connect request and ack, so this drops the packet for payload 2.
+    SocketProvider.setDefault(new TestSocketProvider(new TestSocketProvider.ByIndex(new int[]{4})));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getReliableStream().getForwardErrorCorrection().setEnabled(true);
+
+    // The window starts at 5 packets, so everything goes out immediately. Since the client never steps,
+    // nothing is retransmitted.
+    final int numWrites = 4;
+    conn.getReliableStream().getForwardErrorCorrection().lossReported(0.025);
+    assertEquals(numWrites, conn.getReliableStream().getForwardErrorCorrection().getGroupSize());
+    for (int i = 0; i < numWrites; i++) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.putInt(i);
+      buffer.flip();
+      conn.getReliableStream().sendAsync(buffer);
+    }
+
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+    assertEquals(numWrites, numReads.get());
+    assertEquals(1, server.getConnections().get(0)
+        .getReliableStream().getForwardErrorCorrection().getPacketsRecovered());
+
+    server.stop();
+  }
+}
@@ -0,0 +1,151 @@
+package shellderp.game.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class InterestManagerTest {
+
+  private static class Recorder implements InterestManager.Listener<String> {
+    final List<String> events = new ArrayList<>();
+
+    @Override
+    public void onEnter(String client, int entity) {
+      events.add(client + "+" + entity);
+    }
+
+    @Override
+    public void onLeave(String client, int entity) {
+      events.add(client + "-" + entity);
+    }
+  }
+
+  private static List<String> flush(InterestManager<String> interest) {
+    final Recorder recorder = new Recorder();
+    interest.flush(recorder);
+    return recorder.events;
+  }
+
+  @Test
+  public void testVisibleAroundClient() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    interest.addEntity(1, 5, 5);
+    interest.addEntity(2, 18, 5);
+    interest.addEntity(3, -100, -100);
+    interest.addClient("a", 5, 5, 10);
+
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), interest.getVisible("a"));
+    assertEquals(new HashSet<>(Arrays.asList("a+1", "a+2")), new HashSet<>(flush(interest)));
+    assertTrue(flush(interest).isEmpty());
+  }
+
+  @Test
+  public void testEntityMovement() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    interest.addClient("a", 5, 5, 4);
+    interest.addClient("b", 15, 5, 4);
+    interest.addEntity(1, 5, 5);
+    assertEquals(Arrays.asList("a+1"), flush(interest));
+
+    // Within the cell, nothing changes.
+    interest.moveEntity(1, 9, 9);
+    assertTrue(flush(interest).isEmpty());
+
+    interest.moveEntity(1, 15, 5);
+    assertEquals(new HashSet<>(Arrays.asList("a-1", "b+1")), new HashSet<>(flush(interest)));
+    assertTrue(interest.getVisible("a").isEmpty());
+    assertEquals(new HashSet<>(Arrays.asList(1)), interest.getVisible("b"));
+
+    interest.removeEntity(1);
+    assertEquals(Arrays.asList("b-1"), flush(interest));
+  }
+
+  @Test
+  public void testClientMovement() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    for (int i = 0; i < 10; i++) {
+      interest.addEntity(i, i * 10 + 5, 5);
+    }
+    interest.addClient("a", 5, 5, 10);
+    assertEquals(new HashSet<>(Arrays.asList(0, 1)), interest.getVisible("a"));
+    flush(interest);
+
+    interest.moveClient("a", 45, 5, 10);
+    assertEquals(new HashSet<>(Arrays.asList(3, 4, 5)), interest.getVisible("a"));
+    assertEquals(new HashSet<>(Arrays.asList("a-0", "a-1", "a+3", "a+4", "a+5")),
+        new HashSet<>(flush(interest)));
+
+    interest.moveClient("a", 46, 5, 10);
+    assertTrue(flush(interest).isEmpty());
+  }
+
+  @Test
+  public void testEventsAreCoalesced() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    interest.addClient("a", 5, 5, 4);
+    interest.addEntity(1, 5, 5);
+    flush(interest);
+
+    // Leaves and comes back before the flush.
+    interest.moveEntity(1, 50, 50);
+    interest.moveEntity(1, 5, 5);
+    assertTrue(flush(interest).isEmpty());
+
+    // Comes and goes before the flush.
+    interest.addEntity(2, 5, 5);
+    interest.removeEntity(2);
+    assertTrue(flush(interest).isEmpty());
+    assertEquals(new HashSet<>(Arrays.asList(1)), interest.getVisible("a"));
+  }
+
+  @Test
+  public void testNegativeCoordinates() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    interest.addClient("a", -5, -5, 4);
+    interest.addEntity(1, -1, -1);
+    interest.addEntity(2, 1, 1);
+    assertEquals(new HashSet<>(Arrays.asList(1)), interest.getVisible("a"));
+  }
+
+  @Test
+  public void testRemoveClient() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    interest.addEntity(1, 5, 5);
+    interest.addClient("a", 5, 5, 30);
+    interest.removeClient("a");
+    assertTrue(flush(interest).isEmpty());
+
+    interest.moveEntity(1, 25, 25);
+    interest.addClient("a", 5, 5, 0);
+    assertTrue(interest.getVisible("a").isEmpty());
+  }
+
+  @Test
+  public void testRegionIsCircle() {
+    InterestManager<String> interest = new InterestManager<>(10);
+    // In a corner cell of the region's bounding box, but out of the circle.
+    interest.addEntity(1, 35, 35);
+    interest.addEntity(2, 35, 5);
+    interest.addClient("a", 5, 5, 29);
+    assertEquals(new HashSet<>(Arrays.asList(2)), interest.getVisible("a"));
+
+    interest.moveClient("a", 9.9f, 9.9f, 29);
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), interest.getVisible("a"));
+    interest.moveClient("a", 5, 5, 29);
+    assertEquals(Arrays.asList("a+2"), flush(interest));
+
+    interest.moveEntity(1, 5, 35);
+    assertEquals(new HashSet<>(Arrays.asList(1, 2)), interest.getVisible("a"));
+    interest.removeClient("a");
+
+    // A point still sees its own cell.
+    interest.addClient("b", 0, 0, 0);
+    interest.addEntity(3, 1, 1);
+    assertEquals(new HashSet<>(Arrays.asList(3)), interest.getVisible("b"));
+  }
+}
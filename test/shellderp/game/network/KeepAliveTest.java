@@ -0,0 +1,167 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class KeepAliveTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 2100;
+
+  /**
+   * Packets are dropped while this is false, to simulate an endpoint that disappeared.
+   */
+  private volatile boolean network;
+
+  private final AtomicInteger keepAlivesSent = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    network = true;
+    keepAlivesSent.set(0);
+    SocketProvider.setDefault(new TestSocketProvider(packet -> {
+      if (packet.isControl() && packet.getPayload().get(0) == ControlType.KEEP_ALIVE.toByte()) {
+        keepAlivesSent.getAndIncrement();
+      }
+      return network;
+    }));
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  private static void step(Server server, Connection conn, long durationMs) throws InterruptedException {
+    for (long i = 0; i < durationMs / 10; i++) {
+      server.step(10);
+      if (conn.isOpen()) {
+        conn.step(10);
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testIdleConnectionKeptOpen() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    server.setKeepAlive(30, 150);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    step(server, conn, 500);
+
+    // The client doesn't have keep-alive enabled, but answers the server's probes.
+    assertEquals(1, server.getConnections().size());
+    assertTrue(conn.isOpen());
+    assertTrue(keepAlivesSent.get() > 0);
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testIdleTimeoutRemovesClient() throws Exception {
+    AtomicInteger closedServer = new AtomicInteger();
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onClose(Connection connection) {
+        closedServer.getAndIncrement();
+      }
+    });
+    server.setKeepAlive(30, 150);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+    server.step(0);
+    assertEquals(1, server.getConnections().size());
+
+    // The client disappears without closing.
+    network = false;
+    for (int i = 0; i < 50 && !server.getConnections().isEmpty(); i++) {
+      server.step(10);
+      Thread.sleep(10);
+    }
+
+    assertTrue(server.getConnections().isEmpty());
+    assertEquals(1, closedServer.get());
+
+    server.stop();
+  }
+
+  @Test
+  public void testClientIdleTimeout() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.setKeepAlive(30, 150);
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    network = false;
+    for (int i = 0; i < 50 && conn.isOpen(); i++) {
+      conn.step(10);
+      Thread.sleep(10);
+    }
+    assertFalse(conn.isOpen());
+
+    server.stop();
+  }
+
+  @Test
+  public void testNoKeepAlivesWithTraffic() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    // Longer than the wait for the handshake below, which is quiet.
+    server.setKeepAlive(100, 500);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    for (int i = 0; i < 50; i++) {
+      conn.getUnreliableStream().sendAsync(ByteBuffer.allocate(4));
+      server.step(10);
+      conn.step(10);
+      Thread.sleep(10);
+    }
+
+    assertEquals(0, keepAlivesSent.get());
+    assertEquals(1, server.getConnections().size());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testLoweredIntervalAppliesToExistingClients() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    server.setKeepAlive(5000, 20000);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+    server.step(0);
+    assertEquals(1, server.getConnections().size());
+
+    // The client was scheduled for a check in 5 seconds, which must not hold up the new settings.
+    server.setKeepAlive(30, 150);
+    network = false;
+    for (int i = 0; i < 50 && !server.getConnections().isEmpty(); i++) {
+      server.step(10);
+      Thread.sleep(10);
+    }
+    assertTrue(server.getConnections().isEmpty());
+
+    server.stop();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testServerConnectionRejectsOwnKeepAlive() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+    server.step(0);
+    try {
+      server.getConnections().get(0).setKeepAlive(30, 150);
+    } finally {
+      conn.close();
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoopbackSocketTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1700;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new LoopbackSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  private static ByteBuffer intBuffer(int value) {
+    ByteBuffer buffer = ByteBuffer.allocate(4);
+    buffer.putInt(value);
+    buffer.flip();
+    return buffer;
+  }
+
+  @Test
+  public void testSendBothWays() throws Exception {
+    final int numWrites = 20;
+    final AtomicInteger serverReads = new AtomicInteger();
+    final AtomicInteger serverUnreliableReads = new AtomicInteger();
+    final AtomicInteger clientReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(serverReads.getAndIncrement(), payload.getInt());
+        try {
+          connection.getReliableStream().sendAsync(intBuffer(payload.getInt(0)));
+        } catch (Exception e) {
+          fail(e.toString());
+        }
+      }
+
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        serverUnreliableReads.incrementAndGet();
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(clientReads.getAndIncrement(), payload.getInt());
+      }
+    });
+
+    final ByteBuffer unreliable = intBuffer(42);
+    conn.getUnreliableStream().sendAsync(unreliable);
+    for (int i = 0; i < numWrites; i++) {
+      conn.getReliableStream().sendAsync(intBuffer(i));
+    }
+
+    for (int i = 0; i < 20 && clientReads.get() < numWrites; i++) {
+      Thread.sleep(10);
+      server.step(10);
+      conn.step(10);
+    }
+
+    assertEquals(numWrites, serverReads.get());
+    assertEquals(numWrites, clientReads.get());
+    assertEquals(1, serverUnreliableReads.get());
+    // The receiver reads a view of the payload, not the buffer we sent.
+    assertEquals(0, unreliable.position());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testListenServerAcceptsNetworkClients() throws Exception {
+    final AtomicInteger serverReads = new AtomicInteger();
+
+    SocketProvider.setDefault(new LoopbackSocketProvider(true));
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        serverReads.incrementAndGet();
+      }
+    });
+    Connection local = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    // A client in another process only has a UDP socket.
+    SocketProvider.setDefault(new SocketProvider() {
+      @Override
+      public Socket createSocket(java.net.SocketAddress bindAddress) throws java.io.IOException {
+        return new Socket(bindAddress);
+      }
+    });
+    Connection remote = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    local.getReliableStream().sendAsync(intBuffer(1));
+    remote.getReliableStream().sendAsync(intBuffer(2));
+
+    for (int i = 0; i < 20 && serverReads.get() < 2; i++) {
+      Thread.sleep(10);
+      server.step(10);
+    }
+
+    assertEquals(2, serverReads.get());
+    assertEquals(2, server.getConnections().size());
+
+    local.close();
+    remote.close();
+    server.stop();
+  }
+}
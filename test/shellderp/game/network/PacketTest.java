@@ -20,6 +20,22 @@ public class PacketTest {
     assertEquals(65535, fromBuffer.getSequence());
   }
 
+  @Test
+  public void testControlFromBuffer() throws Exception {
+    ByteBuffer payload = ByteBuffer.wrap(new byte[]{ControlType.TIME_REQUEST.toByte(), 1, 2, 3});
+    Packet packet = new Packet.Builder().control().payload(payload.duplicate()).build();
+
+    Packet fromBuffer = Packet.fromBuffer(packet.toBuffer());
+    assertTrue(fromBuffer.isControl());
+    assertFalse(fromBuffer.isReliable());
+    assertEquals(payload, fromBuffer.getPayload());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReliableControl() {
+    new Packet.Builder().control().reliable().payload(ByteBuffer.allocate(1)).build();
+  }
+
   @Test
   public void testNextSequence() throws Exception {
     assertEquals(1, Packet.nextSequence(0));
@@ -76,4 +92,56 @@ public class PacketTest {
     duplicate.limit(3);
     Packet.fromBuffer(duplicate);
   }
+
+  @Test
+  public void testWideSequencesFromBuffer() throws Exception {
+    Packet packet = new Packet.Builder().sequences(SequenceSpace.WIDE).reliable()
+        .payload(ByteBuffer.allocate(1)).sequence(-5).ack(70000).build();
+    assertTrue(packet.hasWideSequences());
+    assertEquals(1 + 4 + 4 + 1, packet.toBuffer().limit());
+
+    Packet fromBuffer = Packet.fromBuffer(packet.toBuffer());
+    assertTrue(fromBuffer.hasWideSequences());
+    assertEquals(-5, fromBuffer.getSequence());
+    assertEquals(70000, fromBuffer.getAckSequence());
+  }
+
+  @Test
+  public void testSequencesMustBeInSpace() {
+    try {
+      new Packet.Builder().sequence(Packet.MAX_SEQUENCE);
+      fail("narrow sequence out of range");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      new Packet.Builder().ack(-1);
+      fail("narrow ack out of range");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      // Checked against the space even if it is set after the sequence.
+      new Packet.Builder().sequences(SequenceSpace.WIDE).sequence(70000).sequences(SequenceSpace.NARROW);
+      fail("narrow sequence out of range");
+    } catch (IllegalArgumentException expected) {
+    }
+    new Packet.Builder().sequences(SequenceSpace.WIDE).sequence(70000).ack(-1);
+  }
+
+  @Test
+  public void testForcedWideSequences() throws Exception {
+    Packet narrow = new Packet.Builder().connectRequest().sequence(5).build();
+    assertFalse(narrow.hasWideSequences());
+    assertEquals(3, narrow.toBuffer().limit());
+
+    Packet wide = new Packet.Builder().connectRequest().sequence(5).wideSequences().build();
+    assertTrue(wide.hasWideSequences());
+    assertEquals(5, wide.toBuffer().limit());
+
+    Packet fromBuffer = Packet.fromBuffer(wide.toBuffer());
+    assertTrue(fromBuffer.hasWideSequences());
+    assertEquals(5, fromBuffer.getSequence());
+
+    // Without the ack, the header is only wide if the sequence needs it.
+    assertFalse(fromBuffer.withoutAck().hasWideSequences());
+  }
 }
@@ -0,0 +1,65 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class PathMtuDiscoveryTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1600;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  private static int size(Packet packet) {
+    return 3 + (packet.hasAck() ? 2 : 0) + (packet.hasPayload() ? packet.getPayload().remaining() : 0);
+  }
+
+  @Test
+  public void testDisabledByDefault() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    conn.step(0);
+    assertEquals(Packet.MAX_PACKET_SIZE, conn.getMaxDatagramSize());
+    assertEquals(Packet.MAX_PACKET_SIZE - Packet.MAX_HEADER_SIZE,
+        conn.getReliableStream().maxSupportedPacketSize());
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testDiscoversPathMtu() throws Exception {
+    final int pathMtu = 1400;
+
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+
+    // Simulate a path that drops anything larger than its MTU, as with the don't fragment bit set.
+    SocketProvider.setDefault(new TestSocketProvider(packet -> size(packet) <= pathMtu));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    assertTrue(conn.enablePathMtuDiscovery());
+    assertEquals(PathMtuDiscovery.BASE_SIZE, conn.getMaxDatagramSize());
+
+    for (int i = 0; i < 200 && conn.getMaxDatagramSize() < pathMtu - 8; i++) {
+      conn.step(10);
+      Thread.sleep(10);
+    }
+
+    final int discovered = conn.getMaxDatagramSize();
+    assertTrue("discovered " + discovered, discovered <= pathMtu && discovered > pathMtu - 8);
+    assertEquals(discovered - Packet.MAX_HEADER_SIZE, conn.getUnreliableStream().maxSupportedPacketSize());
+
+    conn.close();
+    server.stop();
+  }
+}
@@ -0,0 +1,122 @@
+package shellderp.game.network;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PiggybackAckTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static int newPort = 2000;
+
+  @Test
+  public void testAckEveryNth() {
+    PiggybackAck piggybackAck = new PiggybackAck();
+    final long start = System.nanoTime();
+
+    piggybackAck.setAckSequence(1, start);
+    assertFalse(piggybackAck.getAndClearAckIfDue(start).isPresent());
+
+    // The second packet is acked right away.
+    piggybackAck.setAckSequence(2, start);
+    assertEquals(Optional.of(2), piggybackAck.getAndClearAckIfDue(start));
+    assertFalse(piggybackAck.getAndClearAckIfDue(start).isPresent());
+
+    assertEquals(0, piggybackAck.getAcksPiggybacked());
+    assertEquals(1, piggybackAck.getAcksSentBare());
+  }
+
+  @Test
+  public void testDelayFollowsPeerSendInterval() {
+    PiggybackAck piggybackAck = new PiggybackAck();
+    assertEquals(PiggybackAck.DEFAULT_DELAY_MS, piggybackAck.getDelayMs());
+
+    // A peer sending at 128Hz.
+    long now = System.nanoTime();
+    for (int i = 0; i < 50; i++) {
+      piggybackAck.setAckSequence(i, now);
+      piggybackAck.getAndClearAck();
+      now += 7_800_000;
+    }
+    assertEquals(7, piggybackAck.getDelayMs());
+    assertEquals(50, piggybackAck.getAcksPiggybacked());
+
+    piggybackAck.setAckSequence(50, now);
+    assertFalse(piggybackAck.getAndClearAckIfDue(now + 6 * MS).isPresent());
+    assertEquals(Optional.of(50), piggybackAck.getAndClearAckIfDue(now + 8 * MS));
+  }
+
+  @Test
+  public void testDelayCappedByRoundTrip() {
+    PiggybackAck piggybackAck = new PiggybackAck();
+
+    // An idle peer, sending once a second.
+    long now = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      piggybackAck.setAckSequence(i, now);
+      piggybackAck.getAndClearAck();
+      now += 1000 * MS;
+    }
+    assertEquals(ReliableStream.DEFAULT_PACKET_LOST_TIMEOUT_MS / 4, piggybackAck.getDelayMs());
+
+    piggybackAck.roundTripUpdated(40, 200);
+    assertEquals(20, piggybackAck.getDelayMs());
+
+    piggybackAck.roundTripUpdated(100, 60);
+    assertEquals(15, piggybackAck.getDelayMs());
+  }
+
+  @Test
+  public void testStatsOnConnection() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    InetSocketAddress serverAddress = new InetSocketAddress("localhost", newPort++);
+
+    AtomicInteger serverReceived = new AtomicInteger();
+    AtomicInteger clientReceived = new AtomicInteger();
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        serverReceived.getAndIncrement();
+        try {
+          // Reply to each message, which carries the ack.
+          connection.getReliableStream().sendAsync(ByteBuffer.allocate(4));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    Connection conn = Connection.open(serverAddress, 1000, new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        clientReceived.getAndIncrement();
+      }
+    });
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    for (int i = 0; i < 5; i++) {
+      conn.getReliableStream().sendAsync(ByteBuffer.allocate(4));
+      for (int j = 0; j < 20 && clientReceived.get() <= i; j++) {
+        server.step(1);
+        conn.step(1);
+        Thread.sleep(1);
+      }
+    }
+    assertEquals(5, serverReceived.get());
+    assertEquals(5, clientReceived.get());
+
+    // The server acked every message on its reply.
+    final PiggybackAck serverAcks = server.getConnections().get(0).getPiggybackAck();
+    assertEquals(5, serverAcks.getAcksPiggybacked());
+    assertEquals(0, serverAcks.getAcksSentBare());
+
+    conn.close();
+    server.stop();
+  }
+}
@@ -0,0 +1,79 @@
+package shellderp.game.network;
+
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ReceiveBatchTest {
+
+  private static Packet packet(int sequence) {
+    return new Packet.Builder().payload(ByteBuffer.allocate(1)).sequence(sequence).build();
+  }
+
+  @Test
+  public void testGroupBySourceKeepsOrder() throws Exception {
+    SocketAddress a = new InetSocketAddress("localhost", 1);
+    SocketAddress b = new InetSocketAddress("localhost", 2);
+    SocketAddress c = new InetSocketAddress("localhost", 3);
+    SocketAddress[] sources = {a, b, a, c, b, a};
+
+    ReceiveBatch batch = new ReceiveBatch(sources.length);
+    for (int i = 0; i < sources.length; i++) {
+      if (i % 2 == 0) {
+        batch.add(sources[i], packet(i));
+      } else {
+        // Some come in as raw datagrams, like from a UDP socket.
+        batch.nextBuffer().put(packet(i).toBuffer());
+        batch.addReceived(sources[i]);
+      }
+    }
+    assertTrue(batch.isFull());
+    batch.decode();
+    batch.groupBySource();
+
+    SocketAddress[] expectedSources = {a, a, a, b, b, c};
+    int[] expectedSequences = {0, 2, 5, 1, 4, 3};
+    for (int i = 0; i < sources.length; i++) {
+      assertEquals(expectedSources[i], batch.getSource(i));
+      assertEquals(expectedSequences[i], batch.getPacket(i).getSequence());
+    }
+
+    batch.clear();
+    assertTrue(batch.isEmpty());
+  }
+
+  @Test
+  public void testDecodeDropsMalformedPackets() throws Exception {
+    SocketAddress a = new InetSocketAddress("localhost", 1);
+    ReceiveBatch batch = new ReceiveBatch(4);
+    batch.nextBuffer().put(packet(0).toBuffer());
+    batch.addReceived(a);
+    // Too short to hold a header.
+    batch.nextBuffer().put((byte) 1);
+    batch.addReceived(a);
+    batch.add(a, packet(2));
+    batch.nextBuffer().put(packet(3).toBuffer());
+    batch.addReceived(a);
+
+    batch.decode();
+    assertEquals(3, batch.size());
+    assertEquals(0, batch.getPacket(0).getSequence());
+    assertEquals(2, batch.getPacket(1).getSequence());
+    assertEquals(3, batch.getPacket(2).getSequence());
+
+    // Every buffer is still there to be reused.
+    batch.clear();
+    for (int i = 0; i < 4; i++) {
+      batch.nextBuffer().put(packet(i).toBuffer());
+      batch.addReceived(a);
+    }
+    batch.decode();
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, batch.getPacket(i).getSequence());
+    }
+  }
+}
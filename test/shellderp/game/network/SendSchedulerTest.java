@@ -0,0 +1,117 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendSchedulerTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1500;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  private static ByteBuffer message(int id, int size) {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(0, id);
+    return buffer;
+  }
+
+  @Test
+  public void testBudgetFilledInPriorityOrder() throws Exception {
+    final List<Integer> received = new ArrayList<>();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        received.add(payload.getInt());
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    // The bucket starts with one max size packet worth of budget, which fits 4 of these messages
+    // entirely, and a 5th that puts the bucket in debt.
+    final SendScheduler scheduler = conn.getSendScheduler();
+    scheduler.setBytesPerSecond(10_000);
+    for (int i = 0; i < 10; i++) {
+      scheduler.sendUnreliable(message(i, 2000), i);
+    }
+
+    conn.step(0);
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+
+    List<Integer> expected = new ArrayList<>();
+    for (int i = 9; i >= 5; i--) {
+      expected.add(i);
+    }
+    assertEquals(expected, received);
+    assertEquals(5, scheduler.getQueuedMessages());
+    assertEquals(5, scheduler.getMessagesSent());
+
+    server.stop();
+  }
+
+  @Test
+  public void testAgeBoostPreventsStarvation() throws Exception {
+    final List<Integer> received = new ArrayList<>();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        received.add(payload.getInt());
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    final SendScheduler scheduler = conn.getSendScheduler();
+    scheduler.setAgeBoostPerSecond(1000);
+    scheduler.sendReliable(message(0, 4), 0);
+    Thread.sleep(20);
+    // Waiting 20ms boosted the first message by at least 20, so it goes first.
+    scheduler.sendReliable(message(1, 4), 10);
+
+    conn.step(0);
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+
+    assertEquals(0, (int) received.get(0));
+    assertEquals(1, (int) received.get(1));
+
+    server.stop();
+  }
+
+  @Test
+  public void testUnreliableExpires() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+
+    final SendScheduler scheduler = conn.getSendScheduler();
+    scheduler.setBytesPerSecond(1000);
+    scheduler.setUnreliableExpiry(10);
+    for (int i = 0; i < 10; i++) {
+      scheduler.sendUnreliable(message(i, Packet.MAX_PACKET_SIZE / 2), 0);
+    }
+
+    conn.step(0); // Uses up the budget.
+    Thread.sleep(20);
+    conn.step(0); // Everything left has expired.
+
+    assertEquals(0, scheduler.getQueuedMessages());
+    assertEquals(10, scheduler.getMessagesSent() + scheduler.getMessagesDropped());
+    assertTrue(scheduler.getMessagesDropped() > 0);
+
+    server.stop();
+  }
+}
@@ -0,0 +1,48 @@
+package shellderp.game.network;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SequenceSpaceTest {
+  @Test
+  public void testNarrow() {
+    final SequenceSpace space = SequenceSpace.NARROW;
+    assertEquals(0, space.next(65535));
+    assertTrue(space.newerThanExpected(65535, 100));
+    assertFalse(space.newerThanExpected(0, 40000));
+    assertEquals(101, space.distance(65535, 100));
+    assertEquals(1234, space.reconstruct(1234, 60000));
+  }
+
+  @Test
+  public void testWideWrapsAround() {
+    final SequenceSpace space = SequenceSpace.WIDE;
+    assertEquals(65536, space.next(65535));
+    assertEquals(Integer.MIN_VALUE, space.next(Integer.MAX_VALUE));
+    assertEquals(0, space.next(-1));
+
+    assertTrue(space.newerThanExpected(-1, 0));
+    assertTrue(space.newerThanExpected(Integer.MAX_VALUE, Integer.MIN_VALUE));
+    assertTrue(space.newerThanExpected(0, 40000));
+    assertTrue(space.newerThanExpected(0, 1 << 30));
+    assertFalse(space.newerThanExpected(1, 0));
+    assertFalse(space.newerThanExpected(0, Integer.MIN_VALUE));
+
+    assertEquals(10, space.distance(-5, 5));
+    assertEquals(1, space.distance(Integer.MAX_VALUE, Integer.MIN_VALUE));
+  }
+
+  @Test
+  public void testWideReconstruct() {
+    final SequenceSpace space = SequenceSpace.WIDE;
+    assertEquals(70000, space.reconstruct(70000 & 0xFFFF, 70010));
+    assertEquals(70010, space.reconstruct(70010 & 0xFFFF, 70000));
+    // Across a carry of the low 16 bits, both ways.
+    assertEquals(65530, space.reconstruct(65530, 65540));
+    assertEquals(65540, space.reconstruct(65540 & 0xFFFF, 65530));
+    // Across the wraparound of the int.
+    assertEquals(-3, space.reconstruct(-3 & 0xFFFF, 2));
+    assertEquals(2, space.reconstruct(2, -3));
+  }
+}
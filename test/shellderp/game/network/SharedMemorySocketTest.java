@@ -0,0 +1,220 @@
+package shellderp.game.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SharedMemorySocketTest {
+
+  private Path directory;
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 1800;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("shm-test");
+    SocketProvider.setDefault(new SharedMemorySocketProvider(directory));
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  @After
+  public void tearDown() {
+    // Receive threads may still be deleting their rings, so ignore files that disappear under us.
+    final File[] files = directory.toFile().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.toFile().delete();
+  }
+
+  private static Packet packet(int sequence, int payloadSize) {
+    ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+    payload.putInt(0, sequence);
+    return new Packet.Builder().payload(payload).sequence(sequence).build();
+  }
+
+  @Test
+  public void testRingWrapsAndFills() throws Exception {
+    final int capacity = 2 * Packet.MAX_PACKET_SIZE;
+    final Path file = directory.resolve("ring");
+    SharedMemoryRing producer = SharedMemoryRing.openProducer(file, capacity);
+    SharedMemoryRing consumer = SharedMemoryRing.openConsumer(file);
+    ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_PACKET_SIZE);
+
+    assertTrue(consumer.isEmpty());
+
+    // Enough rounds with odd sizes that records wrap at different offsets.
+    int sent = 0;
+    int received = 0;
+    for (int round = 0; round < 50; round++) {
+      while (producer.offer(packet(sent, 1000 + sent % 7))) {
+        sent++;
+      }
+      assertTrue(sent > received && sent - received <= capacity / 1000);
+
+      while (true) {
+        buffer.clear();
+        if (!consumer.poll(buffer)) {
+          break;
+        }
+        buffer.flip();
+        Packet packet = Packet.fromBuffer(buffer);
+        assertEquals(received, packet.getSequence());
+        assertEquals(received, packet.getPayload().getInt());
+        assertEquals(1000 + received % 7, packet.getPayload().limit());
+        received++;
+      }
+      assertEquals(sent, received);
+    }
+  }
+
+  private static int receive(Socket socket, InetSocketAddress target, Socket sender) throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocate(Packet.MAX_PACKET_SIZE);
+    for (int i = 0; i < 100; i++) {
+      sender.sendDirect(packet(i, 4), target);
+      buffer.clear();
+      if (socket.tryReceive(buffer) != null) {
+        buffer.flip();
+        return Packet.fromBuffer(buffer).getSequence();
+      }
+      Thread.sleep(SharedMemorySocket.DISCOVERY_INTERVAL_MS / 2);
+    }
+    return -1;
+  }
+
+  @Test
+  public void testSendAfterPortRebound() throws Exception {
+    Socket sender = SocketProvider.getDefault().createSocket(new InetSocketAddress("localhost", 0));
+    Socket first = SocketProvider.getDefault().createSocket(serverAddress);
+    assertTrue(receive(first, serverAddress, sender) >= 0);
+    first.close();
+
+    // The sender still has the ring of the first socket mapped, which was deleted on close.
+    Socket second = SocketProvider.getDefault().createSocket(serverAddress);
+    assertTrue(receive(second, serverAddress, sender) >= 0);
+
+    second.close();
+    sender.close();
+  }
+
+  @Test
+  public void testEndpointClosedUnmapsRings() throws Exception {
+    SharedMemorySocket receiver =
+        (SharedMemorySocket) SocketProvider.getDefault().createSocket(serverAddress);
+    Socket sender = SocketProvider.getDefault().createSocket(new InetSocketAddress("localhost", 0));
+    assertTrue(receive(receiver, serverAddress, sender) >= 0);
+    assertEquals(1, receiver.getInRingCount());
+
+    receiver.endpointClosed(sender.getLocalAddress());
+    assertEquals(0, receiver.getInRingCount());
+
+    // A peer that comes back is found again like a new one.
+    assertTrue(receive(receiver, serverAddress, sender) >= 0);
+    assertEquals(1, receiver.getInRingCount());
+
+    sender.close();
+    receiver.close();
+    assertEquals(0, receiver.getInRingCount());
+  }
+
+  @Test
+  public void testPortInUse() throws Exception {
+    Socket socket = SocketProvider.getDefault().createSocket(serverAddress);
+    try {
+      SocketProvider.getDefault().createSocket(serverAddress);
+      fail("bound the same port twice");
+    } catch (java.net.BindException e) {
+      // Expected.
+    }
+    socket.close();
+  }
+
+  @Test
+  public void testAwaitReceiveReportsPending() throws Exception {
+    Socket receiver = SocketProvider.getDefault().createSocket(serverAddress);
+    Socket sender = SocketProvider.getDefault().createSocket(new InetSocketAddress("localhost", 0));
+
+    // Nothing sent, so the receive thread has no reason to take its lock.
+    assertFalse(receiver.awaitReceive(null));
+
+    sender.sendDirect(packet(1, 100), serverAddress);
+    boolean pending = false;
+    for (int i = 0; i < 100 && !pending; i++) {
+      Thread.sleep(SharedMemorySocket.DISCOVERY_INTERVAL_MS / 4);
+      pending = receiver.awaitReceive(null);
+    }
+    assertTrue(pending);
+
+    ReceiveBatch batch = new ReceiveBatch(ReceiveThread.BATCH_SIZE);
+    receiver.receiveBatch(batch);
+    assertEquals(1, batch.size());
+    assertFalse(receiver.awaitReceive(null));
+
+    sender.close();
+    receiver.close();
+  }
+
+  @Test
+  public void testServerAndConnection() throws Exception {
+    final int numWrites = 100;
+    final AtomicInteger serverReads = new AtomicInteger();
+    final AtomicInteger clientReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(serverReads.getAndIncrement(), payload.getInt());
+      }
+
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        try {
+          connection.getUnreliableStream().sendAsync(payload);
+        } catch (IOException e) {
+          fail(e.toString());
+        }
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        clientReads.incrementAndGet();
+      }
+    });
+
+    for (int i = 0; i < numWrites; i++) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.putInt(i);
+      buffer.flip();
+      conn.getReliableStream().sendAsync(buffer);
+    }
+    ByteBuffer echo = ByteBuffer.allocate(4);
+    echo.putInt(0, 42);
+    conn.getUnreliableStream().sendAsync(echo);
+
+    for (int i = 0; i < 100 && (serverReads.get() < numWrites || clientReads.get() < 1); i++) {
+      Thread.sleep(10);
+      server.step(10);
+      conn.step(10);
+    }
+
+    assertEquals(numWrites, serverReads.get());
+    assertEquals(1, clientReads.get());
+
+    conn.close();
+    server.stop();
+  }
+}
@@ -25,7 +25,7 @@ public class SocketStub extends Socket {
    * We keep a map of all socket stubs so we can simulate sends by adding to eachothers inQueues.
    */
   private static final HashMap<SocketAddress, SocketStub> allSockets = new HashMap<>();
-  private final SocketAddress bindAddress;
+  private volatile SocketAddress bindAddress;
 
   private int totalSent;
 
@@ -107,6 +107,25 @@ public class SocketStub extends Socket {
     return m.buffer.limit();
   }
 
+  @Override
+  public SocketAddress getLocalAddress() {
+    return bindAddress;
+  }
+
+  /**
+   * Simulate a NAT rebinding: packets we send come from newAddress from now on. Packets to the old address
+   * still reach us, as they would until the old mapping expires.
+   */
+  public synchronized void rebind(SocketAddress newAddress) {
+    allSockets.put(newAddress, this);
+    bindAddress = newAddress;
+  }
+
+  @Override
+  public boolean enableDontFragment() {
+    return true;
+  }
+
   @Override
   public void close() throws IOException {
     pipe.source().close();
@@ -0,0 +1,79 @@
+package shellderp.game.network;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testFiresAfterDelay() {
+    final long start = 0;
+    TimingWheel<String> wheel = new TimingWheel<>(10, 8, start);
+    List<String> fired = new ArrayList<>();
+
+    wheel.schedule("a", 25);
+    wheel.schedule("b", 50);
+    assertEquals(2, wheel.size());
+
+    wheel.advance(start + 20 * MS, fired::add);
+    assertTrue(fired.isEmpty());
+
+    wheel.advance(start + 30 * MS, fired::add);
+    assertEquals(List.of("a"), fired);
+
+    wheel.advance(start + 50 * MS, fired::add);
+    assertEquals(List.of("a", "b"), fired);
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testDelayLongerThanTurn() {
+    TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+    List<String> fired = new ArrayList<>();
+
+    // One turn is 80ms, so this shares a slot with ticks 2 and 10 before it is due.
+    wheel.schedule("a", 180);
+    for (long now = 0; now < 180 * MS; now += 10 * MS) {
+      wheel.advance(now, fired::add);
+      assertTrue(fired.isEmpty());
+    }
+    wheel.advance(180 * MS, fired::add);
+    assertEquals(List.of("a"), fired);
+  }
+
+  @Test
+  public void testAdvanceAfterLongPause() {
+    TimingWheel<Integer> wheel = new TimingWheel<>(10, 8, 0);
+    List<Integer> fired = new ArrayList<>();
+
+    for (int i = 1; i <= 20; i++) {
+      wheel.schedule(i, i * 10);
+    }
+    wheel.advance(1000 * MS, fired::add);
+    assertEquals(20, fired.size());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testRescheduleFromExpired() {
+    TimingWheel<String> wheel = new TimingWheel<>(10, 8, 0);
+    List<String> fired = new ArrayList<>();
+
+    wheel.schedule("a", 10);
+    for (long now = 10 * MS; now <= 50 * MS; now += 10 * MS) {
+      wheel.advance(now, item -> {
+        fired.add(item);
+        wheel.schedule(item, 10);
+      });
+    }
+    assertEquals(5, fired.size());
+    assertEquals(1, wheel.size());
+  }
+}
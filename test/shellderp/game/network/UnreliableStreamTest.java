@@ -179,6 +179,183 @@ public class UnreliableStreamTest {
     assertEquals(1, unreliableStream.inQueue.size());
   }
 
+  @Test
+  public void testRedundantRecoversLostPackets() throws Exception {
+    final AtomicInteger numReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        // Every payload must arrive exactly once and in order.
+        assertEquals(numReads.getAndIncrement(), payload.getInt());
+      }
+    });
+
+    // Index 0 and 1 are the connect request and ack, so this drops the packets for payloads 2, 3 and 6.
+    SocketProvider.setDefault(
+        new TestSocketProvider(new TestSocketProvider.ByIndex(new int[]{4, 5, 8})));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getUnreliableStream().setRedundancy(3);
+
+    final int numWrites = 10;
+    for (int i = 0; i < numWrites; i++) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.putInt(i);
+      buffer.flip();
+      conn.getUnreliableStream().sendAsync(buffer);
+    }
+
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+    assertEquals(numWrites, numReads.get());
+    assertEquals(3, server.getConnections().iterator().next()
+        .getUnreliableStream().getRedundantRecoveries());
+
+    server.stop();
+  }
+
+  @Test
+  public void testRedundantAcked() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getUnreliableStream().setRedundancy(5);
+
+    for (int i = 0; i < 3; i++) {
+      conn.getUnreliableStream().sendAsync(ByteBuffer.wrap(new byte[]{(byte) i}));
+    }
+    assertEquals(3, conn.getUnreliableStream().unacked.size());
+
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0); // Server acks the newest redundant packet.
+    Thread.sleep(50); // Give the client a chance to read the ack.
+    assertEquals(0, conn.getUnreliableStream().unacked.size());
+
+    server.stop();
+  }
+
+  private static Packet bundle(int sequence, int count, int... lengthsAndValues) {
+    ByteBuffer payload = ByteBuffer.allocate(64);
+    payload.put((byte) count);
+    for (int i = 0; i < count; i++) {
+      payload.putShort((short) lengthsAndValues[2 * i]);
+      payload.putInt(lengthsAndValues[2 * i + 1]);
+    }
+    payload.putInt(lengthsAndValues[2 * count]);
+    payload.flip();
+    return new Packet.Builder().payload(payload).sequence(sequence).redundant().build();
+  }
+
+  @Test
+  public void testMalformedRedundantDropsWholeBundle() throws Exception {
+    final AtomicInteger numReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(numReads.getAndIncrement(), payload.getInt());
+      }
+    });
+    final AtomicInteger sent = new AtomicInteger();
+    SocketProvider.setDefault(new TestSocketProvider(packet -> {
+      if (packet.isRedundant()) {
+        sent.set(packet.getSequence());
+      }
+      return true;
+    }));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getUnreliableStream().setRedundancy(3);
+    conn.getUnreliableStream().sendAsync(ByteBuffer.allocate(4));
+    final int sequence = sent.get();
+
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+    assertEquals(1, numReads.get());
+    final UnreliableStream stream = server.getConnections().iterator().next().getUnreliableStream();
+
+    // The second old payload claims more bytes than the bundle has; the first must not be delivered.
+    stream.packetReceived(bundle(sequence + 3, 2, 4, 1, 100, 2, 3));
+    server.step(0);
+    assertEquals(1, numReads.get());
+
+    stream.packetReceived(bundle(sequence + 3, 2, 4, 1, 4, 2, 3));
+    server.step(0);
+    assertEquals(4, numReads.get());
+
+    server.stop();
+  }
+
+  @Test
+  public void testEmptyRedundantEntryDropsWholeBundle() throws Exception {
+    final UnreliableStream stream = new UnreliableStream(null, new ConnectionHandlerAdapter(), 10, 0);
+
+    // One old payload of 4 bytes followed by an empty new payload.
+    ByteBuffer payload = ByteBuffer.allocate(7);
+    payload.put((byte) 1).putShort((short) 4).putInt(1);
+    payload.flip();
+    stream.packetReceived(new Packet.Builder().payload(payload).sequence(11).redundant().build());
+    assertEquals(0, stream.inQueue.size());
+
+    // An empty old payload followed by a 4 byte new payload.
+    payload = ByteBuffer.allocate(7);
+    payload.put((byte) 1).putShort((short) 0).putInt(2);
+    payload.flip();
+    stream.packetReceived(new Packet.Builder().payload(payload).sequence(11).redundant().build());
+    assertEquals(0, stream.inQueue.size());
+    assertEquals(-1, stream.getAckSequence());
+
+    stream.packetReceived(bundle(11, 1, 4, 1, 2));
+    assertEquals(2, stream.inQueue.size());
+  }
+
+  @Test
+  public void testReorderedRedundantKeepsAck() throws Exception {
+    final UnreliableStream stream = new UnreliableStream(null, new ConnectionHandlerAdapter(), 10, 0);
+
+    stream.packetReceived(bundle(12, 2, 4, 1, 4, 2, 3));
+    assertEquals(12, stream.getAckSequence());
+
+    // An older packet arriving late delivers nothing new and must not move the ack back.
+    stream.packetReceived(bundle(11, 1, 4, 1, 2));
+    assertEquals(12, stream.getAckSequence());
+    assertEquals(3, stream.inQueue.size());
+
+    stream.packetReceived(bundle(13, 1, 4, 3, 4));
+    assertEquals(13, stream.getAckSequence());
+  }
+
+  @Test
+  public void testRedundantCopiesReusedBuffer() throws Exception {
+    final AtomicInteger numReads = new AtomicInteger();
+
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        assertEquals(numReads.getAndIncrement(), payload.getInt());
+      }
+    });
+
+    // Drop the packet of the first payload, so it can only arrive as a redundant copy.
+    SocketProvider.setDefault(
+        new TestSocketProvider(new TestSocketProvider.ByIndex(new int[]{2})));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getUnreliableStream().setRedundancy(3);
+
+    // The caller reuses one buffer for every send.
+    final ByteBuffer buffer = ByteBuffer.allocate(4);
+    for (int i = 0; i < 3; i++) {
+      buffer.clear();
+      buffer.putInt(i);
+      buffer.flip();
+      conn.getUnreliableStream().sendAsync(buffer);
+    }
+
+    Thread.sleep(50); // Give server a chance to read
+    server.step(0);
+    assertEquals(3, numReads.get());
+
+    server.stop();
+  }
+
 //    @Test
 //    public void testSpam() throws Exception {
 //        SocketProvider.setDefault(new SocketProvider() {
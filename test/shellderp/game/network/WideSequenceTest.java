@@ -0,0 +1,158 @@
+package shellderp.game.network;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WideSequenceTest {
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 2200;
+
+  @Before
+  public void setUp() throws Exception {
+    SocketProvider.setDefault(new TestSocketProvider());
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+  }
+
+  private static Packet reliablePacket(SequenceSpace space, int sequence) {
+    return new Packet.Builder().sequences(space).reliable().sequence(sequence).payload(ByteBuffer.allocate(1))
+        .build();
+  }
+
+  /**
+   * Grow the window by sending and acking full windows, then return how many packets fit in it.
+   */
+  private static int grownWindowSize(SequenceSpace space, int initialSequence) throws Exception {
+    GoBackNWindow window = new GoBackNWindow(initialSequence, 1000, space);
+    int sequence = initialSequence;
+    for (int round = 0; round < 20; round++) {
+      while (!window.isFull()) {
+        window.packetSent(reliablePacket(space, sequence));
+        sequence = space.next(sequence);
+      }
+      window.ackReceived(sequence);
+    }
+
+    int count = 0;
+    while (!window.isFull()) {
+      window.packetSent(reliablePacket(space, sequence));
+      sequence = space.next(sequence);
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testWideWindowGrowsPastNarrowLimit() throws Exception {
+    assertEquals(100, grownWindowSize(SequenceSpace.NARROW, 65000));
+    // Starting just below the int wraparound, so the window crosses it.
+    final int wide = grownWindowSize(SequenceSpace.WIDE, -100);
+    assertTrue(wide > 100);
+    assertTrue(wide <= GoBackNWindow.MAX_WIDE_WINDOW_SIZE);
+  }
+
+  @Test
+  public void testNegotiation() throws Exception {
+    Server server = new Server(serverAddress, ConnectionHandlerAdapter::new);
+    Connection narrow = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    Connection wide = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter(), false, true);
+    Thread.sleep(50); // Give server a chance to read the ACKs.
+    server.step(0);
+
+    assertFalse(narrow.hasWideSequences());
+    assertTrue(wide.hasWideSequences());
+    assertEquals(2, server.getConnections().size());
+    assertEquals(1, server.getConnections().stream().filter(Connection::hasWideSequences).count());
+
+    narrow.close();
+    wide.close();
+    server.stop();
+  }
+
+  @Test
+  public void testReliableTransfer() throws Exception {
+    final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        received.add(payload.getInt());
+      }
+    });
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter(), false, true);
+    Thread.sleep(50); // Give server a chance to read the ACK from conn.
+
+    final int count = 500;
+    for (int i = 0; i < count; i++) {
+      ByteBuffer payload = ByteBuffer.allocate(4);
+      payload.putInt(i).flip();
+      conn.getReliableStream().sendAsync(payload);
+    }
+    for (int i = 0; i < 200 && received.size() < count; i++) {
+      server.step(10);
+      conn.step(10);
+      Thread.sleep(10);
+    }
+
+    assertEquals(count, received.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, (int) received.get(i));
+    }
+
+    conn.close();
+    server.stop();
+  }
+
+  @Test
+  public void testNarrowConnectionIgnoresWideHeaders() throws Exception {
+    final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+    Server server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onUnreliableRead(Connection connection, ByteBuffer payload) {
+        received.add(payload.getInt());
+      }
+    });
+    final AtomicInteger sent = new AtomicInteger();
+    SocketProvider.setDefault(new TestSocketProvider(packet -> {
+      if (packet.hasPayload() && !packet.isControl()) {
+        sent.set(packet.getSequence());
+      }
+      return true;
+    }));
+    Connection conn = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter());
+    conn.getUnreliableStream().sendAsync(intPayload(1));
+    server.step(0);
+    assertEquals(Collections.singletonList(1), received);
+    final Connection serverSide = server.getConnections().get(0);
+
+    Packet packet = new Packet.Builder().payload(intPayload(2)).sequence(Packet.nextSequence(sent.get()))
+        .wideSequences().build();
+    serverSide.packetReceived(serverSide.getEndPoint(), packet);
+    server.step(0);
+    assertEquals(1, received.size());
+
+    // The same packet with a narrow header is fine.
+    serverSide.packetReceived(serverSide.getEndPoint(), packet.withoutAck());
+    server.step(0);
+    assertEquals(Arrays.asList(1, 2), received);
+
+    conn.close();
+    server.stop();
+  }
+
+  private static ByteBuffer intPayload(int value) {
+    ByteBuffer payload = ByteBuffer.allocate(4);
+    payload.putInt(value).flip();
+    return payload;
+  }
+}
@@ -0,0 +1,64 @@
+package shellderp.game.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ChunkStoreTest {
+
+  private Path directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("store-test");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> walk = Files.walk(directory)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  public void testPutAndGet() throws Exception {
+    final ChunkStore store = new ChunkStore(directory.resolve("store"));
+    final ByteBuffer data = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+    final ChunkId id = ChunkId.of(data);
+    assertFalse(store.contains(id));
+    assertNull(store.get(id));
+
+    store.put(id, data);
+    assertTrue(store.contains(id));
+    assertEquals(4, data.remaining());
+    assertEquals(data, store.get(id));
+
+    store.remove(id);
+    assertFalse(store.contains(id));
+  }
+
+  @Test
+  public void testCorruptChunkRejected() throws Exception {
+    final ChunkStore store = new ChunkStore(directory);
+    final ChunkId id = ChunkId.of(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+    try {
+      store.put(id, ByteBuffer.wrap(new byte[]{1, 2, 3, 5}));
+      fail("stored data that doesn't match its id");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertFalse(store.contains(id));
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(0, files.count());
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package shellderp.game.patch;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ContentChunkerTest {
+
+  private final ContentChunker chunker = new ContentChunker(256, 1024, 4096);
+
+  private static byte[] randomBytes(int length, long seed) {
+    final byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static Set<ChunkId> ids(List<ContentChunker.Chunk> chunks) {
+    final Set<ChunkId> ids = new HashSet<>();
+    for (ContentChunker.Chunk chunk : chunks) {
+      ids.add(chunk.id);
+    }
+    return ids;
+  }
+
+  /**
+   * @return How many chunks of after are not in before.
+   */
+  private int changedChunks(byte[] before, byte[] after) {
+    final Set<ChunkId> beforeIds = ids(chunker.chunks(ByteBuffer.wrap(before)));
+    int changed = 0;
+    for (ContentChunker.Chunk chunk : chunker.chunks(ByteBuffer.wrap(after))) {
+      if (!beforeIds.contains(chunk.id)) {
+        changed++;
+      }
+    }
+    return changed;
+  }
+
+  @Test
+  public void testChunksCoverDataWithinBounds() {
+    final byte[] data = randomBytes(200_000, 1);
+    final List<ContentChunker.Chunk> chunks = chunker.chunks(ByteBuffer.wrap(data));
+    int offset = 0;
+    for (int i = 0; i < chunks.size(); i++) {
+      final ContentChunker.Chunk chunk = chunks.get(i);
+      assertEquals(offset, chunk.offset);
+      assertTrue(chunk.length <= 4096);
+      if (i < chunks.size() - 1) {
+        assertTrue(chunk.length > 256);
+      }
+      assertEquals(ChunkId.of(ByteBuffer.wrap(data, chunk.offset, chunk.length)), chunk.id);
+      offset += chunk.length;
+    }
+    assertEquals(data.length, offset);
+    // Around averageSize, not stuck at either bound.
+    assertTrue(chunks.size() > data.length / 4096 && chunks.size() < data.length / 256);
+  }
+
+  @Test
+  public void testOffsetsRelativeToPosition() {
+    final byte[] data = randomBytes(10_000, 2);
+    final ByteBuffer buffer = ByteBuffer.wrap(data);
+    buffer.position(100);
+    final List<ContentChunker.Chunk> chunks = chunker.chunks(buffer);
+    assertEquals(0, chunks.get(0).offset);
+    assertEquals(ChunkId.of(ByteBuffer.wrap(data, 100, chunks.get(0).length)), chunks.get(0).id);
+  }
+
+  @Test
+  public void testStableUnderInsert() {
+    final byte[] before = randomBytes(200_000, 3);
+    final byte[] inserted = randomBytes(10, 4);
+    final int at = 100_000;
+    final byte[] after = new byte[before.length + inserted.length];
+    System.arraycopy(before, 0, after, 0, at);
+    System.arraycopy(inserted, 0, after, at, inserted.length);
+    System.arraycopy(before, at, after, at + inserted.length, before.length - at);
+
+    // Only the chunk with the insertion, and maybe the next before the boundaries line up again.
+    assertTrue(changedChunks(before, after) <= 2);
+  }
+
+  @Test
+  public void testStableUnderDelete() {
+    final byte[] before = randomBytes(200_000, 5);
+    final int at = 100_000;
+    final int length = 300;
+    final byte[] after = new byte[before.length - length];
+    System.arraycopy(before, 0, after, 0, at);
+    System.arraycopy(before, at + length, after, at, before.length - at - length);
+
+    assertTrue(changedChunks(before, after) <= 2);
+  }
+
+  @Test
+  public void testFixedSizeWouldShift() {
+    // The same insert with minSize == maxSize, i.e. fixed-size chunks, changes every chunk after it.
+    final ContentChunker fixed = new ContentChunker(1024, 1024, 1024);
+    final byte[] before = randomBytes(20_000, 6);
+    final byte[] after = new byte[before.length + 1];
+    System.arraycopy(before, 0, after, 1, before.length);
+
+    final Set<ChunkId> beforeIds = ids(fixed.chunks(ByteBuffer.wrap(before)));
+    for (ContentChunker.Chunk chunk : fixed.chunks(ByteBuffer.wrap(after))) {
+      assertFalse(beforeIds.contains(chunk.id));
+    }
+  }
+}
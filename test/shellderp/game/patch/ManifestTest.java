@@ -0,0 +1,75 @@
+package shellderp.game.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class ManifestTest {
+
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    root = Files.createTempDirectory("manifest-test");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private void assertRejected(String path) {
+    try {
+      Manifest.resolve(root, path);
+      fail("resolved " + path);
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testResolveRejectsEscapes() throws Exception {
+    assertRejected("../outside");
+    assertRejected("data/../../outside");
+    assertRejected(root.getParent().resolve("outside").toString());
+    assertRejected("/etc/passwd");
+    assertRejected("");
+    assertRejected(".");
+    assertRejected("data/..");
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    assertEquals(root.resolve("data").resolve("file.bin"), Manifest.resolve(root, "data/file.bin"));
+    assertEquals(root.resolve("file.bin"), Manifest.resolve(root, "data/../file.bin"));
+  }
+
+  @Test
+  public void testScan() throws Exception {
+    Files.createDirectories(root.resolve("b"));
+    Files.write(root.resolve("b").resolve("c.bin"), new byte[]{1, 2, 3});
+    Files.write(root.resolve("a.bin"), new byte[0]);
+
+    final Manifest manifest = Manifest.scan(root, new ContentChunker());
+    assertEquals(2, manifest.getFiles().size());
+    assertEquals("a.bin", manifest.getFiles().get(0).path);
+    assertEquals(0, manifest.getFiles().get(0).chunks.size());
+
+    final Manifest.FileEntry file = manifest.getFile("b/c.bin");
+    assertEquals(3, file.length);
+    assertEquals(1, file.chunks.size());
+    assertEquals(file.hash, file.chunks.get(0).id);
+
+    assertTrue(Manifest.scan(root.resolve("missing"), new ContentChunker()).getFiles().isEmpty());
+  }
+}
@@ -0,0 +1,453 @@
+package shellderp.game.patch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import shellderp.game.network.Connection;
+import shellderp.game.network.ConnectionHandlerAdapter;
+import shellderp.game.network.MalformedPacketException;
+import shellderp.game.network.Server;
+import shellderp.game.network.SocketProvider;
+import shellderp.game.network.TestSocketProvider;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class PatchTest {
+
+  private final ContentChunker chunker = new ContentChunker(1024, 4096, 16384);
+
+  private InetSocketAddress serverAddress;
+  private final int timeout = 1000;
+  private static int newPort = 2500;
+
+  private Path directory;
+  private Path serverRoot;
+  private Path clientRoot;
+  private ChunkStore store;
+
+  /**
+   * BULK_DATA packets, told apart from the patch messages by their size.
+   */
+  private final AtomicInteger dataSent = new AtomicInteger();
+  private volatile int dropDataAfter;
+
+  private Server server;
+  private PatchServer patchServer;
+
+  @Before
+  public void setUp() throws Exception {
+    dropDataAfter = Integer.MAX_VALUE;
+    SocketProvider.setDefault(new TestSocketProvider(packet -> {
+      try {
+        // The data is in the packet's body, which only toBuffer() includes.
+        if (packet.isControl() && packet.toBuffer().remaining() > 1000) {
+          return dataSent.incrementAndGet() <= dropDataAfter;
+        }
+      } catch (MalformedPacketException e) {
+        throw new AssertionError(e);
+      }
+      return true;
+    }));
+    serverAddress = new InetSocketAddress("localhost", newPort++);
+
+    directory = Files.createTempDirectory("patch-test");
+    serverRoot = Files.createDirectories(directory.resolve("server"));
+    clientRoot = Files.createDirectories(directory.resolve("client"));
+    store = new ChunkStore(directory.resolve("store"));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.stop();
+    }
+    try (Stream<Path> walk = Files.walk(directory)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    final byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private void startServer() throws IOException {
+    startServer(new PatchServer(serverRoot, chunker));
+  }
+
+  private void startServer(PatchServer patchServer) throws IOException {
+    this.patchServer = patchServer;
+    server = new Server(serverAddress, () -> new ConnectionHandlerAdapter() {
+      @Override
+      public void onReliableRead(Connection connection, ByteBuffer payload) {
+        patchServer.onReliableRead(connection, payload);
+      }
+
+      @Override
+      public void onClose(Connection connection) {
+        patchServer.connectionClosed(connection);
+      }
+    });
+  }
+
+  /**
+   * A patch from clientRoot to the server's version, and what happened to it.
+   */
+  private class Patch implements PatchClient.Listener {
+    final Connection connection;
+    final PatchClient client;
+    final List<Byte> messages = Collections.synchronizedList(new ArrayList<>());
+    volatile boolean patched = false;
+    volatile IOException failure;
+
+    Patch() throws Exception {
+      final PatchClient[] clientRef = new PatchClient[1];
+      connection = Connection.open(serverAddress, timeout, new ConnectionHandlerAdapter() {
+        @Override
+        public void onReliableRead(Connection connection, ByteBuffer payload) {
+          if (PatchProtocol.isPatchMessage(payload)) {
+            messages.add(PatchProtocol.peekType(payload));
+          }
+          clientRef[0].onReliableRead(payload);
+        }
+      });
+      client = new PatchClient(connection, clientRoot, store, chunker, this);
+      clientRef[0] = client;
+    }
+
+    @Override
+    public void onPatched(PatchClient client) {
+      patched = true;
+    }
+
+    @Override
+    public void onFailed(PatchClient client, IOException cause) {
+      failure = cause;
+    }
+
+    boolean isFinished() {
+      return patched || failure != null;
+    }
+
+    void step(int steps) throws InterruptedException {
+      for (int i = 0; i < steps && !isFinished(); i++) {
+        server.step(10);
+        connection.step(10);
+        Thread.sleep(5);
+      }
+    }
+
+    void run() throws Exception {
+      client.start();
+      step(500);
+      if (failure != null) {
+        throw failure;
+      }
+      assertTrue(patched);
+    }
+  }
+
+  private void assertSameFiles() throws IOException {
+    final Manifest serverManifest = Manifest.scan(serverRoot, chunker);
+    final Manifest clientManifest = Manifest.scan(clientRoot, chunker);
+    assertEquals(serverManifest.getFiles().size(), clientManifest.getFiles().size());
+    for (Manifest.FileEntry file : serverManifest.getFiles()) {
+      assertArrayEquals(Files.readAllBytes(serverRoot.resolve(file.path)),
+          Files.readAllBytes(clientRoot.resolve(file.path)));
+    }
+  }
+
+  private long totalChunkBytes(Path root) throws IOException {
+    return Manifest.scan(root, chunker).getFiles().stream().mapToLong(file -> file.length).sum();
+  }
+
+  @Test
+  public void testFetchesOnlyChangedChunks() throws Exception {
+    final byte[] old = randomBytes(200_000, 1);
+    final byte[] changed = new byte[old.length + 100];
+    System.arraycopy(old, 0, changed, 0, 50_000);
+    System.arraycopy(randomBytes(100, 2), 0, changed, 50_000, 100);
+    System.arraycopy(old, 50_000, changed, 50_100, old.length - 50_000);
+
+    Files.createDirectories(serverRoot.resolve("maps"));
+    Files.write(serverRoot.resolve("maps").resolve("level.bin"), changed);
+    Files.write(serverRoot.resolve("same.bin"), randomBytes(30_000, 3));
+    Files.write(serverRoot.resolve("new.bin"), randomBytes(20_000, 4));
+    Files.createDirectories(clientRoot.resolve("maps"));
+    Files.write(clientRoot.resolve("maps").resolve("level.bin"), old);
+    Files.write(clientRoot.resolve("same.bin"), randomBytes(30_000, 3));
+    Files.write(clientRoot.resolve("extra.bin"), randomBytes(10, 5));
+
+    final Set<ChunkId> clientChunks = new HashSet<>();
+    for (Manifest.FileEntry file : Manifest.scan(clientRoot, chunker).getFiles()) {
+      clientChunks.addAll(file.chunks.stream().map(chunk -> chunk.id).collect(Collectors.toList()));
+    }
+    long expected = 0;
+    final Set<ChunkId> missing = new HashSet<>();
+    for (Manifest.FileEntry file : Manifest.scan(serverRoot, chunker).getFiles()) {
+      for (Manifest.ChunkRef chunk : file.chunks) {
+        if (!clientChunks.contains(chunk.id) && missing.add(chunk.id)) {
+          expected += chunk.length;
+        }
+      }
+    }
+
+    startServer();
+    final Patch patch = new Patch();
+    patch.run();
+
+    assertEquals(expected, patch.client.getBytesToDownload());
+    // The new file, and a chunk or two around the insertion.
+    assertTrue(expected < 20_000 + 3 * 16384);
+    assertTrue(dataSent.get() > 0);
+    // Files the server doesn't have are left alone.
+    assertTrue(Files.exists(clientRoot.resolve("extra.bin")));
+    Files.delete(clientRoot.resolve("extra.bin"));
+    assertSameFiles();
+
+    // Up to date: nothing more to download.
+    final Patch again = new Patch();
+    again.run();
+    assertEquals(0, again.client.getBytesToDownload());
+  }
+
+  @Test
+  public void testSplitsIntoPacks() throws Exception {
+    Files.write(serverRoot.resolve("a.bin"), randomBytes(100_000, 6));
+    startServer();
+    patchServer.setMaxPackSize(chunker.getMaxSize());
+
+    final Patch patch = new Patch();
+    patch.run();
+    assertEquals(totalChunkBytes(serverRoot), patch.client.getBytesToDownload());
+    // The server rejects requests over its limit, so this took several.
+    assertTrue(patch.client.getBytesToDownload() > patchServer.getMaxPackSize());
+    assertSameFiles();
+  }
+
+  @Test
+  public void testCorruptChunkRejected() throws Exception {
+    final byte[] contents = randomBytes(50_000, 7);
+    Files.write(serverRoot.resolve("a.bin"), contents);
+    startServer();
+    // Changed after the server scanned it, so what it sends doesn't match its manifest.
+    contents[25_000]++;
+    Files.write(serverRoot.resolve("a.bin"), contents);
+
+    final Patch patch = new Patch();
+    try {
+      patch.run();
+      fail("patched with a corrupt chunk");
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertFalse(Files.exists(clientRoot.resolve("a.bin")));
+    // The corrupt pack is gone, so it won't be resumed.
+    try (Stream<Path> files = Files.list(directory.resolve("store"))) {
+      assertFalse(files.anyMatch(file -> file.toString().endsWith(".pack")));
+    }
+    patch.connection.close();
+  }
+
+  @Test
+  public void testInterruptedPackResumes() throws Exception {
+    Files.write(serverRoot.resolve("a.bin"), randomBytes(150_000, 8));
+    startServer();
+
+    // A clean download, to know how many chunks the pack has.
+    final Path otherStore = directory.resolve("other");
+    final ChunkStore cleanStore = store;
+    store = new ChunkStore(otherStore);
+    final Patch clean = new Patch();
+    clean.run();
+    final int fullCount = dataSent.getAndSet(0);
+    clean.connection.close();
+    for (Manifest.FileEntry file : Manifest.scan(clientRoot, chunker).getFiles()) {
+      Files.delete(clientRoot.resolve(file.path));
+    }
+    store = cleanStore;
+
+    // The connection stops delivering bulk data partway, and the client gives up on it.
+    dropDataAfter = fullCount / 2;
+    final Patch interrupted = new Patch();
+    interrupted.client.start();
+    interrupted.step(100);
+    assertFalse(interrupted.isFinished());
+    interrupted.connection.close();
+    server.step(0);
+    try (Stream<Path> files = Files.list(directory.resolve("store"))) {
+      final Path pack = files.filter(file -> file.toString().endsWith(".pack")).findFirst().get();
+      assertTrue(Files.size(pack) > 0);
+    }
+
+    dataSent.set(0);
+    dropDataAfter = Integer.MAX_VALUE;
+    final Patch resumed = new Patch();
+    resumed.run();
+    assertSameFiles();
+    assertTrue(dataSent.get() <= fullCount - fullCount / 4);
+  }
+
+  @Test
+  public void testRequestLimits() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      Files.write(serverRoot.resolve(i + ".bin"), randomBytes(chunker.getMaxSize(), 10 + i));
+    }
+    startServer();
+    patchServer.setMaxPackSize(2 * chunker.getMaxSize());
+    patchServer.setMaxPacksPerConnection(1);
+    final List<ChunkId> ids = new ArrayList<>();
+    for (Manifest.FileEntry file : patchServer.getManifest().getFiles()) {
+      ids.add(file.chunks.get(0).id);
+    }
+
+    final Patch patch = new Patch();
+
+    // Over the size limit.
+    PatchProtocol.sendChunkRequest(patch.connection, ids, 1);
+    // Duplicates count once, so this is within it, and starts a pack.
+    PatchProtocol.sendChunkRequest(patch.connection, Collections.nCopies(100, ids.get(0)), 2);
+    // A second pack in flight is too many.
+    PatchProtocol.sendChunkRequest(patch.connection, ids.subList(1, 2), 3);
+    for (int i = 0; i < 20; i++) {
+      server.step(10);
+      patch.connection.step(10);
+      Thread.sleep(5);
+    }
+
+    assertEquals(2, patch.messages.stream().filter(type -> type == PatchProtocol.REQUEST_REJECTED).count());
+    assertEquals(Collections.singletonList(PatchProtocol.REQUEST_REJECTED), patch.messages.subList(0, 1));
+    patch.connection.close();
+  }
+
+  @Test
+  public void testPacksBuiltOffStep() throws Exception {
+    Files.write(serverRoot.resolve("a.bin"), randomBytes(50_000, 20));
+    final ConcurrentLinkedQueue<Runnable> builds = new ConcurrentLinkedQueue<>();
+    startServer(new PatchServer(serverRoot, chunker, builds::add));
+
+    final Patch patch = new Patch();
+    patch.client.start();
+    patch.step(50);
+    // The request was accepted, but the step left building the pack to the executor.
+    assertFalse(patch.isFinished());
+    assertEquals(1, builds.size());
+    assertEquals(0, dataSent.get());
+
+    builds.poll().run();
+    patch.step(500);
+    assertTrue(patch.patched);
+    assertSameFiles();
+  }
+
+  @Test
+  public void testPackOfClosedConnectionDiscarded() throws Exception {
+    Files.write(serverRoot.resolve("a.bin"), randomBytes(50_000, 21));
+    final ConcurrentLinkedQueue<Runnable> builds = new ConcurrentLinkedQueue<>();
+    startServer(new PatchServer(serverRoot, chunker, builds::add));
+
+    final Patch patch = new Patch();
+    patch.client.start();
+    patch.step(50);
+    assertEquals(1, builds.size());
+    patch.connection.close();
+    for (int i = 0; i < 10 && !server.getConnections().isEmpty(); i++) {
+      server.step(10);
+      Thread.sleep(5);
+    }
+    assertTrue(server.getConnections().isEmpty());
+
+    // Built after the connection closed, so it is deleted rather than sent.
+    builds.poll().run();
+    assertEquals(0, dataSent.get());
+  }
+
+  @Test
+  public void testServerWideLimit() throws Exception {
+    Files.write(serverRoot.resolve("a.bin"), randomBytes(50_000, 22));
+    final ConcurrentLinkedQueue<Runnable> builds = new ConcurrentLinkedQueue<>();
+    startServer(new PatchServer(serverRoot, chunker, builds::add));
+    patchServer.setMaxPackSize(chunker.getMaxSize());
+    patchServer.setMaxBytesInFlight(chunker.getMaxSize());
+    // Each client is within its own limits, but the first one's pack leaves no room for the second's.
+    final List<ChunkId> ids = new ArrayList<>();
+    long size = 0;
+    ChunkId next = null;
+    for (Manifest.ChunkRef chunk : patchServer.getManifest().getFiles().get(0).chunks) {
+      if (size + chunk.length > chunker.getMaxSize()) {
+        next = chunk.id;
+        break;
+      }
+      ids.add(chunk.id);
+      size += chunk.length;
+    }
+    assertNotNull(next);
+
+    final Patch first = new Patch();
+    final Patch second = new Patch();
+    PatchProtocol.sendChunkRequest(first.connection, ids, 1);
+    for (int i = 0; i < 10 && builds.isEmpty(); i++) {
+      server.step(10);
+      first.connection.step(10);
+      Thread.sleep(5);
+    }
+    assertEquals(1, builds.size());
+    assertEquals(size, patchServer.getBytesInFlight());
+
+    PatchProtocol.sendChunkRequest(second.connection, Collections.singletonList(next), 2);
+    for (int i = 0; i < 10 && second.messages.isEmpty(); i++) {
+      server.step(10);
+      second.connection.step(10);
+      Thread.sleep(5);
+    }
+    assertEquals(Collections.singletonList(PatchProtocol.REQUEST_REJECTED), second.messages);
+
+    // Once the first client is gone, its pack no longer counts.
+    first.connection.close();
+    for (int i = 0; i < 10 && server.getConnections().size() > 1; i++) {
+      server.step(10);
+      Thread.sleep(5);
+    }
+    builds.poll().run();
+    assertEquals(0, patchServer.getBytesInFlight());
+    second.connection.close();
+  }
+
+  @Test
+  public void testGameMessagesNotTakenForPatch() {
+    // The first byte of the old single byte tag, which game messages could easily start with.
+    final byte[] game = new byte[16];
+    game[0] = (byte) 0xD7;
+    assertFalse(PatchProtocol.isPatchMessage(ByteBuffer.wrap(game)));
+
+    final ByteBuffer message = PatchProtocol.message(PatchProtocol.CHUNKS_UNAVAILABLE, 8);
+    message.putLong(1);
+    message.flip();
+    assertTrue(PatchProtocol.isPatchMessage(message));
+    assertEquals(PatchProtocol.CHUNKS_UNAVAILABLE, PatchProtocol.peekType(message));
+
+    // The prefix alone isn't enough, the length must match too.
+    final ByteBuffer longer = ByteBuffer.allocate(message.remaining() + 1);
+    longer.put(message.duplicate()).rewind();
+    assertFalse(PatchProtocol.isPatchMessage(longer));
+    assertEquals(PatchServer.RESERVED_PREFIX, message.getInt(0));
+  }
+}
@@ -0,0 +1,148 @@
+package shellderp.game.physics;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PhysicsWorldTest {
+
+  private static PhysicsWorld world() {
+    final PhysicsWorld world = new PhysicsWorld(10, 1);
+    world.setGravity(0, -10);
+    return world;
+  }
+
+  /**
+   * A box of walls with a pile of bodies dropped in, some removed and added as it runs.
+   *
+   * @param chunkSeed The time deltas step() is called with vary with it, but add up to the same.
+   * @return The raw bits of every body's position and velocity after each second.
+   */
+  private static List<Integer> simulate(long chunkSeed) {
+    final PhysicsWorld world = world();
+    world.addBox(0, -1, 20, 1, 0);
+    world.addBox(-21, 10, 1, 11, 0);
+    world.addBox(21, 10, 1, 11, 0);
+    final Random random = new Random(42);
+    final List<Integer> bodies = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      bodies.add(addRandomBody(world, random));
+    }
+
+    final Random chunks = new Random(chunkSeed);
+    final List<Integer> bits = new ArrayList<>();
+    long elapsedMs = 0;
+    for (int second = 1; second <= 5; second++) {
+      while (elapsedMs < second * 1000) {
+        final long delta = Math.min(second * 1000 - elapsedMs, 1 + chunks.nextInt(40));
+        world.step(delta);
+        elapsedMs += delta;
+      }
+      for (int j = 0; j < 5; j++) {
+        world.remove(bodies.remove(random.nextInt(bodies.size())));
+        bodies.add(addRandomBody(world, random));
+      }
+      for (int body : bodies) {
+        bits.add(Float.floatToRawIntBits(world.getX(body)));
+        bits.add(Float.floatToRawIntBits(world.getY(body)));
+        bits.add(Float.floatToRawIntBits(world.getVelocityX(body)));
+        bits.add(Float.floatToRawIntBits(world.getVelocityY(body)));
+      }
+    }
+    assertEquals(500, world.getSteps());
+    return bits;
+  }
+
+  private static int addRandomBody(PhysicsWorld world, Random random) {
+    final float x = -18 + random.nextFloat() * 36;
+    final float y = 2 + random.nextFloat() * 16;
+    final float size = 0.3f + random.nextFloat() * 0.7f;
+    final int body = random.nextBoolean()
+                     ? world.addCircle(x, y, size, 1 + random.nextFloat())
+                     : world.addBox(x, y, size, size * (0.5f + random.nextFloat()), 1 + random.nextFloat());
+    world.setMaterial(body, random.nextFloat() * 0.5f, random.nextFloat());
+    world.setVelocity(body, random.nextFloat() * 4 - 2, 0);
+    return body;
+  }
+
+  @Test
+  public void testDeterministic() {
+    final List<Integer> first = simulate(1);
+    assertEquals(first, simulate(1));
+    // Steps are whole stepMs however the time comes in.
+    assertEquals(first, simulate(2));
+  }
+
+  @Test
+  public void testSleepAndWake() {
+    final PhysicsWorld world = world();
+    final int floor = world.addBox(0, -1, 10, 1, 0);
+    final int bottom = world.addBox(0, 0.5f, 0.5f, 0.5f, 1);
+    final int top = world.addBox(0, 1.5f, 0.5f, 0.5f, 1);
+    final int apart = world.addCircle(5, 0.5f, 0.5f, 1);
+    world.step(3000);
+    assertFalse(world.isAwake(bottom));
+    assertFalse(world.isAwake(top));
+    assertFalse(world.isAwake(apart));
+    assertEquals(0, world.getAwakeCount());
+    final float restingY = world.getY(top);
+
+    // Sleeping costs nothing, and nothing moves.
+    world.step(1000);
+    assertEquals(restingY, world.getY(top), 0);
+
+    // Waking a body wakes its island, and only it.
+    world.applyImpulse(top, 0, 0.1f);
+    assertTrue(world.isAwake(bottom));
+    assertTrue(world.isAwake(top));
+    assertFalse(world.isAwake(apart));
+    world.step(3000);
+    assertEquals(0, world.getAwakeCount());
+
+    // Something landing on a sleeping body wakes it.
+    final int dropped = world.addCircle(5, 4, 0.5f, 1);
+    for (int i = 0; i < 100 && !world.isAwake(apart); i++) {
+      world.step(10);
+    }
+    assertTrue(world.isAwake(apart));
+    world.step(3000);
+    assertFalse(world.isAwake(dropped));
+
+    // So does losing what it rests on, and then it falls.
+    world.remove(floor);
+    assertTrue(world.isAwake(bottom));
+    assertTrue(world.isAwake(apart));
+    world.step(500);
+    assertTrue(world.getY(top) < restingY - 1);
+  }
+
+  @Test
+  public void testReusedIdDoesNotInheritContacts() {
+    final PhysicsWorld world = world();
+    world.setSleepThresholds(0.05f, Float.POSITIVE_INFINITY);
+    world.addBox(0, -1, 10, 1, 0);
+    final int heavy = world.addBox(0, 0.5f, 0.5f, 0.5f, 100);
+    world.step(500);
+    assertEquals(1, world.getContactCount());
+    world.remove(heavy);
+    assertEquals(0, world.getContactCount());
+    final int light = world.addBox(0, 0.5f, 0.5f, 0.5f, 0.01f);
+    assertEquals(heavy, light);
+    world.step(10);
+
+    // The same body on the same floor, in a world where its id never touched anything.
+    final PhysicsWorld fresh = world();
+    fresh.setSleepThresholds(0.05f, Float.POSITIVE_INFINITY);
+    fresh.addBox(0, -1, 10, 1, 0);
+    fresh.remove(fresh.addBox(100, 100, 0.5f, 0.5f, 100));
+    assertEquals(light, fresh.addBox(0, 0.5f, 0.5f, 0.5f, 0.01f));
+    fresh.step(10);
+
+    assertEquals(fresh.getY(light), world.getY(light), 0);
+    assertEquals(fresh.getVelocityY(light), world.getVelocityY(light), 0);
+  }
+}
@@ -0,0 +1,188 @@
+package shellderp.game.spatial;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the queries of each SpatialIndex against a brute force search of the same boxes.
+ */
+@RunWith(Parameterized.class)
+public class SpatialIndexTest {
+
+  @Parameterized.Parameters(name = "{0}")
+  public static Collection<Object[]> indexes() {
+    return Arrays.asList(new Object[][]{
+        {"HashGrid", (Supplier<SpatialIndex>) () -> new HashGrid(4, 256)},
+        {"LooseQuadtree", (Supplier<SpatialIndex>) () -> new LooseQuadtree(0, 0, 200, 6)},
+    });
+  }
+
+  private final Supplier<SpatialIndex> factory;
+  private final Random random = new Random(1);
+  private final Map<Integer, float[]> boxes = new HashMap<>();
+
+  public SpatialIndexTest(String name, Supplier<SpatialIndex> factory) {
+    this.factory = factory;
+  }
+
+  private float[] randomBox() {
+    // Mostly inside the quadtree's area, some around it.
+    final float x = -20 + random.nextFloat() * 240;
+    final float y = -20 + random.nextFloat() * 240;
+    final float size;
+    switch (random.nextInt(10)) {
+      case 0:
+        size = 0;
+        break;
+      case 1:
+        size = random.nextFloat() * 150;
+        break;
+      default:
+        size = random.nextFloat() * 6;
+    }
+    return new float[]{x, y, x + size * random.nextFloat(), y + size * random.nextFloat()};
+  }
+
+  private SpatialIndex populate(int count) {
+    final SpatialIndex index = factory.get();
+    for (int id = 0; id < count; id++) {
+      final float[] box = randomBox();
+      index.insert(id, box[0], box[1], box[2], box[3]);
+      boxes.put(id, box);
+    }
+    // Move and remove some, so slots are reused and entries change cells and nodes.
+    for (int i = 0; i < count; i++) {
+      final int id = random.nextInt(count);
+      if (!boxes.containsKey(id)) {
+        continue;
+      }
+      if (random.nextInt(4) == 0) {
+        index.remove(id);
+        boxes.remove(id);
+      } else {
+        final float[] box = random.nextBoolean() ? randomBox() : nudged(boxes.get(id));
+        index.update(id, box[0], box[1], box[2], box[3]);
+        boxes.put(id, box);
+      }
+    }
+    for (int id = count; id < count + count / 10; id++) {
+      final float[] box = randomBox();
+      index.insert(id, box[0], box[1], box[2], box[3]);
+      boxes.put(id, box);
+    }
+    assertEquals(boxes.size(), index.size());
+    return index;
+  }
+
+  private float[] nudged(float[] box) {
+    final float dx = random.nextFloat() - 0.5f;
+    final float dy = random.nextFloat() - 0.5f;
+    return new float[]{box[0] + dx, box[1] + dy, box[2] + dx, box[3] + dy};
+  }
+
+  private static int[] sorted(IdList ids) {
+    final int[] array = ids.toArray();
+    Arrays.sort(array);
+    return array;
+  }
+
+  private float distanceSq(int id, float x, float y) {
+    final float[] box = boxes.get(id);
+    return SpatialIndex.distanceSq(x, y, box[0], box[1], box[2], box[3]);
+  }
+
+  @Test
+  public void testRangeMatchesBruteForce() {
+    final SpatialIndex index = populate(2000);
+    final IdList found = new IdList();
+    for (int query = 0; query < 300; query++) {
+      final float[] area = query % 50 == 0 ? new float[]{-1000, -1000, 1000, 1000} : randomBox();
+      found.clear();
+      final int count = index.queryRange(area[0], area[1], area[2], area[3], found);
+      assertEquals(found.size(), count);
+
+      final List<Integer> expected = new ArrayList<>();
+      for (Map.Entry<Integer, float[]> entry : boxes.entrySet()) {
+        final float[] box = entry.getValue();
+        if (box[0] <= area[2] && box[2] >= area[0] && box[1] <= area[3] && box[3] >= area[1]) {
+          expected.add(entry.getKey());
+        }
+      }
+      assertArrayEquals(expected.stream().mapToInt(Integer::intValue).sorted().toArray(), sorted(found));
+    }
+    assertEquals(0, index.queryRange(10, 10, 5, 5, found));
+  }
+
+  @Test
+  public void testRadiusMatchesBruteForce() {
+    final SpatialIndex index = populate(2000);
+    final IdList found = new IdList();
+    for (int query = 0; query < 300; query++) {
+      final float x = -30 + random.nextFloat() * 260;
+      final float y = -30 + random.nextFloat() * 260;
+      final float radius = query % 3 == 0 ? 0 : random.nextFloat() * 40;
+      found.clear();
+      index.queryRadius(x, y, radius, found);
+
+      final List<Integer> expected = new ArrayList<>();
+      for (int id : boxes.keySet()) {
+        if (distanceSq(id, x, y) <= radius * radius) {
+          expected.add(id);
+        }
+      }
+      assertArrayEquals(expected.stream().mapToInt(Integer::intValue).sorted().toArray(), sorted(found));
+    }
+    assertEquals(0, index.queryRadius(0, 0, -1, found));
+  }
+
+  @Test
+  public void testNearestMatchesBruteForce() {
+    final SpatialIndex index = populate(2000);
+    final IdList found = new IdList();
+    for (int query = 0; query < 300; query++) {
+      final float x = -50 + random.nextFloat() * 300;
+      final float y = -50 + random.nextFloat() * 300;
+      final int k = 1 + random.nextInt(query % 10 == 0 ? 3000 : 20);
+      found.clear();
+      final int count = index.queryNearest(x, y, k, found);
+      assertEquals(Math.min(k, boxes.size()), count);
+
+      // Ties may come in any order, so compare the distances.
+      final float[] expected = new float[boxes.size()];
+      int i = 0;
+      for (int id : boxes.keySet()) {
+        expected[i++] = distanceSq(id, x, y);
+      }
+      Arrays.sort(expected);
+      for (i = 0; i < count; i++) {
+        assertEquals("query " + query + " result " + i, expected[i], distanceSq(found.get(i), x, y), 0);
+      }
+      assertEquals(count, Arrays.stream(found.toArray()).distinct().count());
+    }
+  }
+
+  @Test
+  public void testClear() {
+    final SpatialIndex index = populate(100);
+    index.clear();
+    assertEquals(0, index.size());
+    final IdList found = new IdList();
+    assertEquals(0, index.queryRange(-1000, -1000, 1000, 1000, found));
+    assertEquals(0, index.queryNearest(0, 0, 5, found));
+    index.insert(3, 1, 1);
+    assertEquals(1, index.queryRadius(0, 0, 2, found));
+    assertEquals(3, found.get(0));
+  }
+}